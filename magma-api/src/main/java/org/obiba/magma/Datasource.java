@@ -32,6 +32,11 @@ public interface Datasource extends Initialisable, Disposable, AttributeAware, T
 
   boolean canDrop();
 
+  /**
+   * Whether several {@link ValueTableWriter}, each in its own thread, can write value sets in the same table at once.
+   */
+  boolean canWriteConcurrently();
+
   @NotNull
   ValueTableWriter createWriter(@NotNull String tableName, @NotNull String entityType);
 
@@ -34,6 +34,14 @@ public class MagmaCacheExtension implements MagmaEngineExtension {
     return cacheManager.getCache("magma-table-entities");
   }
 
+  public boolean hasWhereClauseCache() {
+    return hasCacheManager() && cacheManager.getCache("magma-where-clause") != null;
+  }
+
+  public Cache getWhereClauseCache() {
+    return cacheManager.getCache("magma-where-clause");
+  }
+
   public boolean hasCacheManager() {
     return cacheManager != null;
   }
@@ -5,6 +5,8 @@ import java.util.Collection;
 import java.util.LinkedHashSet;
 import java.util.NoSuchElementException;
 import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 import javax.annotation.Nullable;
 import javax.validation.constraints.NotNull;
@@ -43,6 +45,11 @@ public class MagmaEngine implements DatasourceRegistry {
 
   private final LockManager lockManager = new LockManager();
 
+  /**
+   * Incremented when the datasources of the registry or the tables of a datasource change.
+   */
+  private final AtomicLong datasourceRegistryVersion = new AtomicLong();
+
   public MagmaEngine() {
     if(instance != null) {
       throw new IllegalStateException(
@@ -114,6 +121,34 @@ public class MagmaEngine implements DatasourceRegistry {
 
   public void decorate(Decorator<DatasourceRegistry> registryDecorator) {
     datasourceRegistry = registryDecorator.decorate(datasourceRegistry);
+    datasourceRegistryChanged();
+  }
+
+  /**
+   * Version of the content of the datasource registry: it changes when datasources are added or removed, when tables
+   * are added to, removed from or renamed in a datasource, or when the variables of a table are added, updated or
+   * removed. It allows caching the resolution of references to datasources, tables and variables.
+   */
+  public long getDatasourceRegistryVersion() {
+    return datasourceRegistryVersion.get();
+  }
+
+  /**
+   * Notifies that datasources or their tables changed, invalidating the cached resolution of references.
+   */
+  public void datasourceRegistryChanged() {
+    datasourceRegistryVersion.incrementAndGet();
+  }
+
+  /**
+   * Notifies the engine, if instantiated, that datasources or their tables changed. Without engine, there is no cached
+   * resolution to invalidate.
+   *
+   * @see #datasourceRegistryChanged()
+   */
+  public static void notifyRegistryChanged() {
+    MagmaEngine engine = instance;
+    if(engine != null) engine.datasourceRegistryChanged();
   }
 
   @Override
@@ -128,22 +163,29 @@ public class MagmaEngine implements DatasourceRegistry {
 
   @Override
   public Datasource addDatasource(Datasource datasource) {
-    return getDatasourceRegistry().addDatasource(datasource);
+    Datasource added = getDatasourceRegistry().addDatasource(datasource);
+    datasourceRegistryChanged();
+    return added;
   }
 
   @Override
   public Datasource addDatasource(DatasourceFactory factory) {
-    return getDatasourceRegistry().addDatasource(factory);
+    Datasource added = getDatasourceRegistry().addDatasource(factory);
+    datasourceRegistryChanged();
+    return added;
   }
 
   @Override
   public void addDecorator(Decorator<Datasource> decorator) {
     getDatasourceRegistry().addDecorator(decorator);
+    datasourceRegistryChanged();
   }
 
   @Override
   public String addTransientDatasource(DatasourceFactory factory) {
-    return getDatasourceRegistry().addTransientDatasource(factory);
+    String added = getDatasourceRegistry().addTransientDatasource(factory);
+    datasourceRegistryChanged();
+    return added;
   }
 
   @Override
@@ -169,23 +211,44 @@ public class MagmaEngine implements DatasourceRegistry {
   @Override
   public void removeDatasource(Datasource datasource) {
     getDatasourceRegistry().removeDatasource(datasource);
+    datasourceRegistryChanged();
   }
 
   @Override
   public void removeTransientDatasource(@Nullable String uid) {
     getDatasourceRegistry().removeTransientDatasource(uid);
+    datasourceRegistryChanged();
   }
 
   ValueTypeFactory getValueTypeFactory() {
     return valueTypeFactory;
   }
 
+  /**
+   * Locks the names in exclusive mode, see {@link LockManager}.
+   */
   public void lock(Collection<String> lockNames) throws InterruptedException {
     lockManager.lock(lockNames);
   }
 
+  /**
+   * Locks the names in exclusive mode, if they can all be locked before the timeout.
+   *
+   * @return true if the names were locked, false if none of them is locked
+   */
+  public boolean tryLock(Collection<String> lockNames, long timeout, TimeUnit unit) throws InterruptedException {
+    return lockManager.tryLock(lockNames, timeout, unit);
+  }
+
   public void unlock(Iterable<String> lockNames) {
-    lockManager.unlock(lockNames, true);
+    lockManager.unlock(lockNames);
+  }
+
+  /**
+   * The lock manager of this engine, for shared locks and contention metrics.
+   */
+  public LockManager getLockManager() {
+    return lockManager;
   }
 
   public <T> WeakReference<T> registerInstance(T singleton) {
@@ -1,5 +1,6 @@
 package org.obiba.magma;
 
+import java.util.List;
 import java.util.Set;
 import java.util.SortedSet;
 
@@ -49,6 +50,17 @@ public interface ValueTable extends Timestamped {
 
   VariableValueSource getVariableValueSource(String variableName) throws NoSuchVariableException;
 
+  /**
+   * Reads the values of several variables for the given entities, in one pass over the underlying storage when the
+   * implementation allows it. Rows are returned in the order of {@code entities}, and each row holds one value per
+   * variable, in the order of {@code variables}. Entities that have no value set in this table get null values.
+   *
+   * @param variables the variables to read, all from this table
+   * @param entities the entities to read
+   * @return one {@code Value[]} per entity
+   */
+  Iterable<Value[]> getValueMatrix(List<Variable> variables, SortedSet<VariableEntity> entities);
+
   boolean isView();
 
   String getTableReference();
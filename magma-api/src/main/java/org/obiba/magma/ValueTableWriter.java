@@ -9,6 +9,11 @@ public interface ValueTableWriter extends AutoCloseable {
   @NotNull
   ValueSetWriter writeValueSet(@NotNull VariableEntity entity);
 
+  /**
+   * Writes the value sets that were buffered by this writer, if any. Closing the writer also flushes it.
+   */
+  void flush();
+
   @Override
   void close();
 
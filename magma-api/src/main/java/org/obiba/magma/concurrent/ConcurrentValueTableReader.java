@@ -9,6 +9,9 @@ import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
 import java.util.concurrent.LinkedBlockingDeque;
 import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.obiba.magma.Value;
 import org.obiba.magma.ValueSet;
@@ -28,6 +31,16 @@ public class ConcurrentValueTableReader {
 
   private static final Logger log = LoggerFactory.getLogger(ConcurrentValueTableReader.class);
 
+  /**
+   * Default number of read value sets that can be waiting for the callback before readers are blocked.
+   */
+  public static final int DEFAULT_QUEUE_CAPACITY = 1000;
+
+  /**
+   * Marker put in the write queue by each reader when it is done reading.
+   */
+  private static final VariableEntityValues END_OF_READ = new VariableEntityValues(null);
+
   private boolean ignoreReadErrors = false;
 
   private ThreadFactory threadFactory;
@@ -44,8 +57,12 @@ public class ConcurrentValueTableReader {
 
   private Variable[] variables;
 
+  private int queueCapacity = DEFAULT_QUEUE_CAPACITY;
+
   private BlockingQueue<VariableEntityValues> writeQueue;
 
+  private final Metrics metrics = new Metrics();
+
   private ConcurrentValueTableReader() {
 
   }
@@ -66,7 +83,8 @@ public class ConcurrentValueTableReader {
     // A queue containing all entities to read the values for.
     // Once this is empty, and all readers are done, then  reading is over.
     BlockingQueue<VariableEntity> readQueue = new LinkedBlockingDeque<>(entities);
-    writeQueue = new LinkedBlockingDeque<>();
+    writeQueue = new LinkedBlockingDeque<>(queueCapacity);
+    metrics.reset();
     try {
       callback.onBegin(entities, variables);
       List<Future<?>> readers = entities.isEmpty()
@@ -74,6 +92,7 @@ public class ConcurrentValueTableReader {
           : concurrentRead(executorService, variableValueSources, readQueue);
       callback.onComplete();
       waitForReaders(readers);
+      log.debug("Read of {} completed: {}", valueTable.getName(), metrics);
     } finally {
       executorService.shutdownNow();
     }
@@ -85,12 +104,24 @@ public class ConcurrentValueTableReader {
     for(int i = 0; i < nbConcurrentReaders; i++) {
       readers.add(executorService.submit(new ConcurrentValueSetReader(variableValueSources, readQueue, writeQueue)));
     }
-    while(!isReadCompleted(readers)) {
-      flushQueue();
+    // Each reader puts an END_OF_READ marker when it stops, so once all markers are received, the queue is drained.
+    int activeReaders = readers.size();
+    try {
+      while(activeReaders > 0) {
+        VariableEntityValues values = writeQueue.take();
+        if(values == END_OF_READ) {
+          activeReaders--;
+        } else {
+          metrics.updateQueueDepth(writeQueue.size());
+          long start = System.nanoTime();
+          callback.onValues(values.getEntity(), variables, values.getValues());
+          metrics.addCallbackTime(System.nanoTime() - start);
+        }
+      }
+    } catch(InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new RuntimeException(e);
     }
-    // Flush remaining values if any
-    // This is necessary due to a race condition between isReadComplete() and readers appending to the write queue
-    flushQueue();
     return readers;
   }
 
@@ -102,27 +133,6 @@ public class ConcurrentValueTableReader {
     return variableValueSources;
   }
 
-  private void flushQueue() {
-    VariableEntityValues values = null;
-    while((values = writeQueue.poll()) != null) {
-      callback.onValues(values.getEntity(), variables, values.getValues());
-    }
-  }
-
-  /**
-   * Returns true when all readers have finished submitting to the writeQueue. false otherwise.
-   *
-   * @return
-   */
-  private boolean isReadCompleted(Iterable<Future<?>> readers) {
-    for(Future<?> reader : readers) {
-      if(!reader.isDone()) {
-        return false;
-      }
-    }
-    return true;
-  }
-
   private void waitForReaders(Iterable<Future<?>> readers) {
     for(Future<?> reader : readers) {
       try {
@@ -150,6 +160,91 @@ public class ConcurrentValueTableReader {
     return sources;
   }
 
+  /**
+   * Get the metrics of the last (or current) read.
+   *
+   * @return
+   */
+  public Metrics getMetrics() {
+    return metrics;
+  }
+
+  /**
+   * Statistics about the read pipeline: how full the write queue got, how long readers were blocked waiting for the
+   * callback to consume values and how long the callback took to process them.
+   */
+  public static class Metrics {
+
+    private final AtomicInteger maxQueueDepth = new AtomicInteger();
+
+    private final AtomicLong valuesCount = new AtomicLong();
+
+    private final AtomicLong readerIdleNanos = new AtomicLong();
+
+    private final AtomicLong callbackNanos = new AtomicLong();
+
+    private Metrics() {
+    }
+
+    private void reset() {
+      maxQueueDepth.set(0);
+      valuesCount.set(0);
+      readerIdleNanos.set(0);
+      callbackNanos.set(0);
+    }
+
+    private void updateQueueDepth(int depth) {
+      int max = maxQueueDepth.get();
+      while(depth > max && !maxQueueDepth.compareAndSet(max, depth)) {
+        max = maxQueueDepth.get();
+      }
+    }
+
+    private void addReaderIdleTime(long nanos) {
+      readerIdleNanos.addAndGet(nanos);
+    }
+
+    private void addCallbackTime(long nanos) {
+      valuesCount.incrementAndGet();
+      callbackNanos.addAndGet(nanos);
+    }
+
+    /**
+     * @return the largest number of read value sets that were waiting for the callback
+     */
+    public int getMaxQueueDepth() {
+      return maxQueueDepth.get();
+    }
+
+    /**
+     * @return the number of value sets that were passed to the callback
+     */
+    public long getValuesCount() {
+      return valuesCount.get();
+    }
+
+    /**
+     * @return the cumulated time the readers were blocked because the write queue was full
+     */
+    public long getReaderIdleTime(TimeUnit unit) {
+      return unit.convert(readerIdleNanos.get(), TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * @return the cumulated time spent in {@link ConcurrentReaderCallback#onValues(VariableEntity, Variable[], Value...)}
+     */
+    public long getCallbackTime(TimeUnit unit) {
+      return unit.convert(callbackNanos.get(), TimeUnit.NANOSECONDS);
+    }
+
+    @Override
+    public String toString() {
+      return "values=" + getValuesCount() + ", maxQueueDepth=" + getMaxQueueDepth() + ", readerIdleTime=" +
+          getReaderIdleTime(TimeUnit.MILLISECONDS) + "ms, callbackTime=" + getCallbackTime(TimeUnit.MILLISECONDS) +
+          "ms";
+    }
+  }
+
   private static class VariableEntityValues {
 
     private final VariableEntity entity;
@@ -188,17 +283,40 @@ public class ConcurrentValueTableReader {
 
     @Override
     public void run() {
+      boolean aborted = false;
       try {
         VariableEntity entity = readQueue.poll();
         while(entity != null && !callback.isCancelled()) {
           if(valueTable.hasValueSet(entity)) {
             log.trace("Read entity {}", entity.getIdentifier());
-            writeQueue.put(new VariableEntityValues(entity, readValues(entity)));
+            put(new VariableEntityValues(entity, readValues(entity)));
           }
           entity = readQueue.poll();
         }
       } catch(InterruptedException e) {
-        // do nothing
+        // reading was aborted (executor shutdown), nobody is waiting for the end of read marker
+        aborted = true;
+      } finally {
+        if(!aborted) signalEndOfRead();
+      }
+    }
+
+    /**
+     * Blocks while the write queue is full, the time spent waiting is accounted as reader idle time.
+     */
+    private void put(VariableEntityValues values) throws InterruptedException {
+      if(!writeQueue.offer(values)) {
+        long start = System.nanoTime();
+        writeQueue.put(values);
+        metrics.addReaderIdleTime(System.nanoTime() - start);
+      }
+    }
+
+    private void signalEndOfRead() {
+      try {
+        writeQueue.put(END_OF_READ);
+      } catch(InterruptedException e) {
+        // reading was aborted (executor shutdown), nobody is waiting for this marker
       }
     }
 
@@ -279,6 +397,19 @@ public class ConcurrentValueTableReader {
       return this;
     }
 
+    /**
+     * Maximum number of read value sets waiting to be passed to the callback. When reached, readers wait for the
+     * callback to catch up.
+     *
+     * @param capacity
+     * @return
+     */
+    public Builder withQueueCapacity(int capacity) {
+      if(capacity < 1) throw new IllegalArgumentException("Queue capacity must be strictly positive");
+      reader.queueCapacity = capacity;
+      return this;
+    }
+
     public Builder from(ValueTable source) {
       reader.valueTable = source;
       return this;
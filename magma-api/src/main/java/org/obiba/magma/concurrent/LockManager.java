@@ -4,55 +4,269 @@
 package org.obiba.magma.concurrent;
 
 import java.util.Collection;
-import java.util.HashMap;
-import java.util.HashSet;
-import java.util.Map;
-import java.util.Set;
-import java.util.concurrent.locks.ReentrantLock;
+import java.util.List;
+import java.util.SortedSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
+import com.google.common.collect.ImmutableSortedSet;
+import com.google.common.collect.Lists;
+
+/**
+ * Locks by name. A set of names is locked by acquiring the lock of each name in their natural order, so that threads
+ * locking overlapping sets of names cannot deadlock, and threads locking distinct names never wait for each other.
+ * <p/>
+ * Names are locked in exclusive (write) or shared (read) mode. Locks are reentrant and, by default, fair: waiting
+ * threads acquire them in arrival order. The lock of a name is discarded when no thread holds it or waits for it.
+ */
 public class LockManager {
 
-  private final Map<String, ReentrantLock> locks = new HashMap<>();
-
-  public synchronized void lock(Collection<String> lockNames) throws InterruptedException {
-    @SuppressWarnings("TypeMayBeWeakened")
-    Set<String> lockedNames = new HashSet<>();
-    while(lockedNames.size() < lockNames.size()) {
-      for(String lockName : lockNames) {
-        ReentrantLock lock = getOrCreateLock(lockName);
-        if(lock.tryLock()) {
-          lockedNames.add(lockName);
-        } else {
-          if(lockedNames.size() != 0) {
-            unlock(lockedNames, false);
-            lockedNames.clear();
-          }
-          wait();
-          break;
+  public enum Mode {
+    SHARED, EXCLUSIVE
+  }
+
+  private final boolean fair;
+
+  private final ConcurrentMap<String, NamedLock> locks = new ConcurrentHashMap<>();
+
+  private final Metrics metrics = new Metrics();
+
+  public LockManager() {
+    this(true);
+  }
+
+  /**
+   * @param fair true if waiting threads acquire the locks in arrival order
+   */
+  public LockManager(boolean fair) {
+    this.fair = fair;
+  }
+
+  /**
+   * Locks the names in exclusive mode, waiting for them as long as necessary.
+   */
+  public void lock(Collection<String> lockNames) throws InterruptedException {
+    lock(lockNames, Mode.EXCLUSIVE);
+  }
+
+  /**
+   * Locks the names in the given mode, waiting for them as long as necessary.
+   */
+  public void lock(Collection<String> lockNames, Mode mode) throws InterruptedException {
+    if(!acquire(lockNames, mode, -1)) throw new IllegalStateException("Lock not acquired");
+  }
+
+  /**
+   * Locks the names in exclusive mode, if they can all be locked before the timeout.
+   *
+   * @return true if the names were locked, false if none of them is locked
+   */
+  public boolean tryLock(Collection<String> lockNames, long timeout, TimeUnit unit) throws InterruptedException {
+    return tryLock(lockNames, Mode.EXCLUSIVE, timeout, unit);
+  }
+
+  /**
+   * Locks the names in the given mode, if they can all be locked before the timeout.
+   *
+   * @return true if the names were locked, false if none of them is locked
+   */
+  public boolean tryLock(Collection<String> lockNames, Mode mode, long timeout, TimeUnit unit)
+      throws InterruptedException {
+    return acquire(lockNames, mode, Math.max(0, unit.toNanos(timeout)));
+  }
+
+  /**
+   * Unlocks names locked in exclusive mode.
+   */
+  public void unlock(Iterable<String> lockNames) {
+    unlock(lockNames, Mode.EXCLUSIVE);
+  }
+
+  /**
+   * Unlocks names locked in exclusive mode.
+   *
+   * @deprecated waiting threads are always notified, use {@link #unlock(Iterable)}
+   */
+  @Deprecated
+  public void unlock(Iterable<String> lockNames, @SuppressWarnings("UnusedParameters") boolean notify) {
+    unlock(lockNames);
+  }
+
+  /**
+   * Unlocks names locked in the given mode.
+   *
+   * @throws IllegalMonitorStateException if the current thread does not hold the lock of one of the names
+   */
+  public void unlock(Iterable<String> lockNames, Mode mode) {
+    IllegalMonitorStateException notHeld = null;
+    for(String lockName : Lists.reverse(Lists.newArrayList(ImmutableSortedSet.copyOf(lockNames)))) {
+      NamedLock lock = locks.get(lockName);
+      if(lock == null) continue;
+      try {
+        lock.get(mode).unlock();
+        release(lockName, lock);
+      } catch(IllegalMonitorStateException e) {
+        notHeld = e;
+      }
+    }
+    if(notHeld != null) throw notHeld;
+  }
+
+  /**
+   * Number of names that are currently locked or waited for.
+   */
+  public int getLockCount() {
+    return locks.size();
+  }
+
+  public Metrics getMetrics() {
+    return metrics;
+  }
+
+  /**
+   * Acquires the locks in the natural order of the names. When one of them cannot be acquired before the timeout, the
+   * ones already acquired are released.
+   *
+   * @param timeoutNanos time to wait for all the locks, negative to wait as long as necessary
+   */
+  private boolean acquire(Collection<String> lockNames, Mode mode, long timeoutNanos) throws InterruptedException {
+    SortedSet<String> names = ImmutableSortedSet.copyOf(lockNames);
+    List<String> acquired = Lists.newArrayListWithCapacity(names.size());
+    long start = System.nanoTime();
+    boolean locked = false;
+    try {
+      for(String name : names) {
+        NamedLock lock = retain(name);
+        boolean lockAcquired = false;
+        try {
+          long remaining = timeoutNanos < 0 ? -1 : Math.max(0, timeoutNanos - (System.nanoTime() - start));
+          lockAcquired = acquire(lock.get(mode), remaining);
+        } finally {
+          if(!lockAcquired) release(name, lock);
+        }
+        if(!lockAcquired) {
+          metrics.timeouts.incrementAndGet();
+          return false;
         }
+        acquired.add(name);
+      }
+      metrics.acquisitions.incrementAndGet();
+      locked = true;
+      return true;
+    } finally {
+      if(!locked) unlock(acquired, mode);
+    }
+  }
+
+  private boolean acquire(Lock lock, long timeoutNanos) throws InterruptedException {
+    // the timed tryLock honours fairness, unlike tryLock()
+    if(lock.tryLock(0, TimeUnit.NANOSECONDS)) return true;
+    metrics.contentions.incrementAndGet();
+    long start = System.nanoTime();
+    try {
+      if(timeoutNanos < 0) {
+        lock.lockInterruptibly();
+        return true;
       }
+      return lock.tryLock(timeoutNanos, TimeUnit.NANOSECONDS);
+    } finally {
+      metrics.waitNanos.addAndGet(System.nanoTime() - start);
     }
   }
 
-  public synchronized void unlock(Iterable<String> lockNames, boolean notify) {
-    for(String lockName : lockNames) {
-      ReentrantLock lock = locks.get(lockName);
-      if(lock != null) {
-        lock.unlock();
+  /**
+   * Gets the lock of a name and counts the current thread as one of its users, so that it is not discarded.
+   */
+  private NamedLock retain(String name) {
+    while(true) {
+      NamedLock lock = locks.get(name);
+      if(lock == null) {
+        NamedLock created = new NamedLock(fair);
+        lock = locks.putIfAbsent(name, created);
+        if(lock == null) lock = created;
+      }
+      synchronized(lock) {
+        // a discarded lock was removed from the map, get or create the new one
+        if(lock.users >= 0) {
+          lock.users++;
+          return lock;
+        }
       }
     }
+  }
 
-    if(notify) {
-      notify();
+  private void release(String name, NamedLock lock) {
+    synchronized(lock) {
+      lock.users--;
+      if(lock.users == 0) {
+        // mark as discarded before removing it
+        lock.users = -1;
+        locks.remove(name, lock);
+      }
     }
   }
 
-  private synchronized ReentrantLock getOrCreateLock(String lockName) {
-    ReentrantLock lock = locks.get(lockName);
-    if(lock == null) {
-      lock = new ReentrantLock();
-      locks.put(lockName, lock);
+  private static final class NamedLock {
+
+    private final ReentrantReadWriteLock lock;
+
+    /**
+     * Number of acquisitions held or in progress, -1 when discarded. Guarded by this.
+     */
+    private int users;
+
+    private NamedLock(boolean fair) {
+      lock = new ReentrantReadWriteLock(fair);
+    }
+
+    private Lock get(Mode mode) {
+      return mode == Mode.SHARED ? lock.readLock() : lock.writeLock();
+    }
+  }
+
+  public static class Metrics {
+
+    private final AtomicLong acquisitions = new AtomicLong();
+
+    private final AtomicLong contentions = new AtomicLong();
+
+    private final AtomicLong timeouts = new AtomicLong();
+
+    private final AtomicLong waitNanos = new AtomicLong();
+
+    private Metrics() {
+    }
+
+    /**
+     * @return the number of sets of names that were locked
+     */
+    public long getAcquisitionCount() {
+      return acquisitions.get();
+    }
+
+    /**
+     * @return the number of name locks that were not available immediately
+     */
+    public long getContentionCount() {
+      return contentions.get();
+    }
+
+    /**
+     * @return the number of sets of names that could not be locked before the timeout
+     */
+    public long getTimeoutCount() {
+      return timeouts.get();
+    }
+
+    /**
+     * @return the time spent waiting for locks, in the given unit
+     */
+    public long getWaitTime(TimeUnit unit) {
+      return unit.convert(waitNanos.get(), TimeUnit.NANOSECONDS);
     }
-    return lock;
   }
 }
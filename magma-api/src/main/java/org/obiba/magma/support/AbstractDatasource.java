@@ -14,6 +14,7 @@ import javax.validation.constraints.NotNull;
 import org.obiba.magma.AbstractAttributeAware;
 import org.obiba.magma.Attribute;
 import org.obiba.magma.Datasource;
+import org.obiba.magma.MagmaEngine;
 import org.obiba.magma.NoSuchValueTableException;
 import org.obiba.magma.Timestamps;
 import org.obiba.magma.Value;
@@ -162,6 +163,11 @@ public abstract class AbstractDatasource extends AbstractAttributeAware implemen
     throw new UnsupportedOperationException("cannot drop datasource");
   }
 
+  @Override
+  public boolean canWriteConcurrently() {
+    return false;
+  }
+
   @NotNull
   @Override
   public Timestamps getTimestamps() {
@@ -175,6 +181,7 @@ public abstract class AbstractDatasource extends AbstractAttributeAware implemen
 
   protected void addValueTable(ValueTable vt) {
     valueTables.add(vt);
+    MagmaEngine.notifyRegistryChanged();
   }
 
   protected void removeValueTable(String tableName) {
@@ -184,6 +191,7 @@ public abstract class AbstractDatasource extends AbstractAttributeAware implemen
   protected void removeValueTable(ValueTable toRemove) {
     valueTables.remove(toRemove);
     Disposables.dispose(toRemove);
+    MagmaEngine.notifyRegistryChanged();
   }
 
   @SuppressWarnings("NoopMethodInAbstractClass")
@@ -117,6 +117,11 @@ public abstract class AbstractDatasourceWrapper implements Datasource {
     getWrappedDatasource().drop();
   }
 
+  @Override
+  public boolean canWriteConcurrently() {
+    return getWrappedDatasource().canWriteConcurrently();
+  }
+
   @NotNull
   @Override
   public Timestamps getTimestamps() {
@@ -14,6 +14,7 @@ import javax.validation.constraints.NotNull;
 
 import org.obiba.magma.Datasource;
 import org.obiba.magma.Initialisable;
+import org.obiba.magma.MagmaEngine;
 import org.obiba.magma.NoSuchValueSetException;
 import org.obiba.magma.NoSuchVariableException;
 import org.obiba.magma.Timestamps;
@@ -156,6 +157,7 @@ public abstract class AbstractValueTable implements ValueTable, Initialisable {
     for(VariableValueSource variableValueSource : factory.createSources()) {
       sources.put(variableValueSource.getName(), variableValueSource);
     }
+    variablesChanged();
   }
 
   protected void addVariableValueSources(Collection<VariableValueSource> sourcesToAdd) {
@@ -173,14 +175,24 @@ public abstract class AbstractValueTable implements ValueTable, Initialisable {
     for(VariableValueSource variableValueSource : list) {
       sources.put(variableValueSource.getName(), variableValueSource);
     }
+    variablesChanged();
   }
 
   protected void addVariableValueSource(VariableValueSource source) {
     sources.put(source.getName(), source);
+    variablesChanged();
   }
 
   protected void removeVariableValueSource(String variableName) {
     sources.remove(variableName);
+    variablesChanged();
+  }
+
+  /**
+   * Invalidates the references to the variables of this table that were resolved before their sources changed.
+   */
+  private void variablesChanged() {
+    MagmaEngine.notifyRegistryChanged();
   }
 
   protected void removeVariableValueSources(Iterable<VariableValueSource> sourcesToRemove) {
@@ -230,6 +242,11 @@ public abstract class AbstractValueTable implements ValueTable, Initialisable {
     });
   }
 
+  @Override
+  public Iterable<Value[]> getValueMatrix(List<Variable> variables, SortedSet<VariableEntity> entities) {
+    return ValueMatrices.fromSources(this, variables, entities);
+  }
+
   @Override
   public String getTableReference() {
     return ValueTable.Reference.getReference(getDatasource() == null ? "null" : getDatasource().getName(), getName());
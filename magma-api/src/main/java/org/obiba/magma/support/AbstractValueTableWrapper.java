@@ -1,5 +1,6 @@
 package org.obiba.magma.support;
 
+import java.util.List;
 import java.util.Set;
 import java.util.SortedSet;
 
@@ -98,6 +99,11 @@ public abstract class AbstractValueTableWrapper implements ValueTableWrapper {
     return getWrappedValueTable().getVariableValueSource(variableName);
   }
 
+  @Override
+  public Iterable<Value[]> getValueMatrix(List<Variable> variables, SortedSet<VariableEntity> entities) {
+    return getWrappedValueTable().getValueMatrix(variables, entities);
+  }
+
   @Override
   public boolean hasValueSet(VariableEntity entity) {
     return getWrappedValueTable().hasValueSet(entity);
@@ -0,0 +1,343 @@
+package org.obiba.magma.support;
+
+import java.io.Serializable;
+import java.util.AbstractSet;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.SortedSet;
+
+import javax.annotation.Nullable;
+
+import org.obiba.magma.VariableEntity;
+
+import com.google.common.collect.ImmutableSortedSet;
+
+/**
+ * An immutable sorted set of entities of a single type. The identifiers are stored, in order, in a single character
+ * array: the set does not hold any {@link VariableEntity} instance, they are created on iteration. Lookups are binary
+ * searches and unions or intersections of compact sets are merges of their identifiers.
+ */
+public final class CompactVariableEntitySet extends AbstractSet<VariableEntity>
+    implements SortedSet<VariableEntity>, Serializable {
+
+  private static final long serialVersionUID = -2497164329218950417L;
+
+  private static final CompactVariableEntitySet EMPTY = new CompactVariableEntitySet(null, new char[0], new int[1], 0,
+      0);
+
+  @Nullable
+  private final String entityType;
+
+  private final char[] identifiers;
+
+  /**
+   * Identifier {@code i} is {@code identifiers[offsets[i]]} to {@code identifiers[offsets[i + 1]]} (exclusive).
+   */
+  private final int[] offsets;
+
+  private final int from;
+
+  private final int to;
+
+  private CompactVariableEntitySet(@Nullable String entityType, char[] identifiers, int[] offsets, int from, int to) {
+    this.entityType = entityType == null ? null : entityType.intern();
+    this.identifiers = identifiers;
+    this.offsets = offsets;
+    this.from = from;
+    this.to = to;
+  }
+
+  public static CompactVariableEntitySet of() {
+    return EMPTY;
+  }
+
+  /**
+   * Returns a compact copy of {@code entities}, or an {@link ImmutableSortedSet} if they are not all of the same type.
+   */
+  public static SortedSet<VariableEntity> copyOf(Iterable<? extends VariableEntity> entities) {
+    if(entities instanceof CompactVariableEntitySet) return (CompactVariableEntitySet) entities;
+    String entityType = null;
+    List<String> identifiers = entities instanceof Set ? new ArrayList<String>(((Set<?>) entities).size())
+        : new ArrayList<String>();
+    for(VariableEntity entity : entities) {
+      if(entityType == null) {
+        entityType = entity.getType();
+      } else if(!entityType.equals(entity.getType())) {
+        return ImmutableSortedSet.copyOf(entities);
+      }
+      identifiers.add(entity.getIdentifier());
+    }
+    return entityType == null ? EMPTY : of(entityType, identifiers);
+  }
+
+  /**
+   * Returns the set of the entities of type {@code entityType} with the given identifiers, in any order and possibly
+   * repeated.
+   */
+  public static CompactVariableEntitySet of(String entityType, List<String> identifiers) {
+    List<String> sorted = new ArrayList<>(identifiers);
+    Collections.sort(sorted);
+    int length = 0;
+    for(String identifier : sorted) {
+      length += identifier.length();
+    }
+    char[] chars = new char[length];
+    int[] offsets = new int[sorted.size() + 1];
+    int size = 0;
+    String previous = null;
+    for(String identifier : sorted) {
+      if(identifier.equals(previous)) continue;
+      identifier.getChars(0, identifier.length(), chars, offsets[size]);
+      offsets[size + 1] = offsets[size] + identifier.length();
+      size++;
+      previous = identifier;
+    }
+    return size == 0
+        ? EMPTY
+        : new CompactVariableEntitySet(entityType, trim(chars, offsets[size]), trim(offsets, size + 1), 0, size);
+  }
+
+  @Nullable
+  public String getEntityType() {
+    return entityType;
+  }
+
+  @Override
+  public int size() {
+    return to - from;
+  }
+
+  @Override
+  public boolean contains(Object o) {
+    if(!(o instanceof VariableEntity) || isEmpty()) return false;
+    VariableEntity entity = (VariableEntity) o;
+    return entityType.equals(entity.getType()) && indexOf(entity.getIdentifier()) >= 0;
+  }
+
+  /**
+   * Returns the position of {@code o} in this set, or -1 if it is not an element of this set.
+   */
+  public int indexOf(Object o) {
+    if(!(o instanceof VariableEntity) || isEmpty()) return -1;
+    VariableEntity entity = (VariableEntity) o;
+    if(!entityType.equals(entity.getType())) return -1;
+    int index = indexOf(entity.getIdentifier());
+    return index < 0 ? -1 : index - from;
+  }
+
+  @Override
+  public Iterator<VariableEntity> iterator() {
+    return new Iterator<VariableEntity>() {
+
+      private int next = from;
+
+      @Override
+      public boolean hasNext() {
+        return next < to;
+      }
+
+      @Override
+      public VariableEntity next() {
+        if(!hasNext()) throw new NoSuchElementException();
+        return get(next++);
+      }
+
+      @Override
+      public void remove() {
+        throw new UnsupportedOperationException();
+      }
+    };
+  }
+
+  @Nullable
+  @Override
+  public Comparator<? super VariableEntity> comparator() {
+    return null;
+  }
+
+  @Override
+  public SortedSet<VariableEntity> subSet(VariableEntity fromElement, VariableEntity toElement) {
+    if(fromElement.compareTo(toElement) > 0) throw new IllegalArgumentException("fromElement > toElement");
+    return range(lowerBound(fromElement), lowerBound(toElement));
+  }
+
+  @Override
+  public SortedSet<VariableEntity> headSet(VariableEntity toElement) {
+    return range(from, lowerBound(toElement));
+  }
+
+  @Override
+  public SortedSet<VariableEntity> tailSet(VariableEntity fromElement) {
+    return range(lowerBound(fromElement), to);
+  }
+
+  @Override
+  public VariableEntity first() {
+    if(isEmpty()) throw new NoSuchElementException();
+    return get(from);
+  }
+
+  @Override
+  public VariableEntity last() {
+    if(isEmpty()) throw new NoSuchElementException();
+    return get(to - 1);
+  }
+
+  /**
+   * Returns the union of {@code left} and {@code right}, as a compact set when they are all of the same type.
+   */
+  public static SortedSet<VariableEntity> union(Set<? extends VariableEntity> left,
+      Set<? extends VariableEntity> right) {
+    SortedSet<VariableEntity> compact = copyOf(left);
+    return compact instanceof CompactVariableEntitySet
+        ? ((CompactVariableEntitySet) compact).union(right)
+        : ImmutableSortedSet.<VariableEntity>naturalOrder().addAll(left).addAll(right).build();
+  }
+
+  /**
+   * Returns the union of this set and {@code other}, computed by merging identifiers when both are compact sets of the
+   * same entity type.
+   */
+  public SortedSet<VariableEntity> union(Set<? extends VariableEntity> other) {
+    SortedSet<VariableEntity> that = copyOf(other);
+    if(that.isEmpty()) return this;
+    if(isEmpty()) return that;
+    if(that instanceof CompactVariableEntitySet && entityType.equals(((CompactVariableEntitySet) that).entityType)) {
+      return merge(this, (CompactVariableEntitySet) that, true);
+    }
+    return ImmutableSortedSet.<VariableEntity>naturalOrder().addAll(this).addAll(that).build();
+  }
+
+  /**
+   * Returns the intersection of this set and {@code other}, computed by merging identifiers when both are compact sets
+   * of the same entity type.
+   */
+  public SortedSet<VariableEntity> intersection(Set<? extends VariableEntity> other) {
+    SortedSet<VariableEntity> that = copyOf(other);
+    if(that.isEmpty() || isEmpty()) return EMPTY;
+    if(that instanceof CompactVariableEntitySet) {
+      return entityType.equals(((CompactVariableEntitySet) that).entityType)
+          ? merge(this, (CompactVariableEntitySet) that, false)
+          : EMPTY;
+    }
+    ImmutableSortedSet.Builder<VariableEntity> builder = ImmutableSortedSet.naturalOrder();
+    for(VariableEntity entity : that) {
+      if(contains(entity)) builder.add(entity);
+    }
+    return builder.build();
+  }
+
+  private static CompactVariableEntitySet merge(CompactVariableEntitySet left, CompactVariableEntitySet right,
+      boolean union) {
+    int leftLength = left.offsets[left.to] - left.offsets[left.from];
+    int rightLength = right.offsets[right.to] - right.offsets[right.from];
+    char[] chars = new char[union ? leftLength + rightLength : Math.min(leftLength, rightLength)];
+    int[] offsets = new int[(union ? left.size() + right.size() : Math.min(left.size(), right.size())) + 1];
+    int size = 0;
+    int i = left.from;
+    int j = right.from;
+    while(i < left.to || j < right.to) {
+      int cmp = i == left.to ? 1 : j == right.to ? -1 : compare(left, i, right, j);
+      CompactVariableEntitySet source = cmp <= 0 ? left : right;
+      int index = cmp <= 0 ? i : j;
+      if(cmp <= 0) i++;
+      if(cmp >= 0) j++;
+      if(union || cmp == 0) {
+        int length = source.offsets[index + 1] - source.offsets[index];
+        System.arraycopy(source.identifiers, source.offsets[index], chars, offsets[size], length);
+        offsets[size + 1] = offsets[size] + length;
+        size++;
+      }
+      if(!union && (i == left.to || j == right.to)) break;
+    }
+    return size == 0
+        ? EMPTY
+        : new CompactVariableEntitySet(left.entityType, trim(chars, offsets[size]), trim(offsets, size + 1), 0, size);
+  }
+
+  private static int compare(CompactVariableEntitySet left, int i, CompactVariableEntitySet right, int j) {
+    int leftStart = left.offsets[i];
+    int leftLength = left.offsets[i + 1] - leftStart;
+    int rightStart = right.offsets[j];
+    int rightLength = right.offsets[j + 1] - rightStart;
+    int length = Math.min(leftLength, rightLength);
+    for(int k = 0; k < length; k++) {
+      char c1 = left.identifiers[leftStart + k];
+      char c2 = right.identifiers[rightStart + k];
+      if(c1 != c2) return c1 - c2;
+    }
+    return leftLength - rightLength;
+  }
+
+  /**
+   * Compares identifier {@code i} with {@code identifier}, consistently with {@link String#compareTo(String)}.
+   */
+  private int compare(int i, String identifier) {
+    int start = offsets[i];
+    int length = offsets[i + 1] - start;
+    int common = Math.min(length, identifier.length());
+    for(int k = 0; k < common; k++) {
+      char c1 = identifiers[start + k];
+      char c2 = identifier.charAt(k);
+      if(c1 != c2) return c1 - c2;
+    }
+    return length - identifier.length();
+  }
+
+  private int indexOf(String identifier) {
+    int low = from;
+    int high = to - 1;
+    while(low <= high) {
+      int mid = (low + high) >>> 1;
+      int cmp = compare(mid, identifier);
+      if(cmp < 0) {
+        low = mid + 1;
+      } else if(cmp > 0) {
+        high = mid - 1;
+      } else {
+        return mid;
+      }
+    }
+    return -(low + 1);
+  }
+
+  /**
+   * Index of the first entity that is greater or equal to {@code entity}.
+   */
+  private int lowerBound(VariableEntity entity) {
+    if(isEmpty()) return from;
+    int cmp = entityType.compareTo(entity.getType());
+    if(cmp != 0) return cmp < 0 ? to : from;
+    int index = indexOf(entity.getIdentifier());
+    return index >= 0 ? index : -(index + 1);
+  }
+
+  private SortedSet<VariableEntity> range(int fromIndex, int toIndex) {
+    return fromIndex >= toIndex
+        ? EMPTY
+        : new CompactVariableEntitySet(entityType, identifiers, offsets, fromIndex, toIndex);
+  }
+
+  private VariableEntity get(int i) {
+    return new VariableEntityBean(entityType, new String(identifiers, offsets[i], offsets[i + 1] - offsets[i]));
+  }
+
+  private static char[] trim(char[] chars, int length) {
+    return chars.length == length ? chars : Arrays.copyOf(chars, length);
+  }
+
+  private static int[] trim(int[] ints, int length) {
+    return ints.length == length ? ints : Arrays.copyOf(ints, length);
+  }
+
+  private Object readResolve() {
+    // intern the entity type of the deserialized set
+    return isEmpty() ? EMPTY : new CompactVariableEntitySet(entityType, identifiers, offsets, from, to);
+  }
+}
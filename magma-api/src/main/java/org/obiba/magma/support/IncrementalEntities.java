@@ -0,0 +1,105 @@
+package org.obiba.magma.support;
+
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.SortedSet;
+
+import javax.annotation.Nullable;
+
+import org.obiba.magma.Timestamps;
+import org.obiba.magma.Value;
+import org.obiba.magma.ValueTable;
+import org.obiba.magma.VariableEntity;
+
+import com.google.common.collect.ImmutableSortedSet;
+import com.google.common.collect.Iterators;
+import com.google.common.collect.Lists;
+import com.google.common.collect.PeekingIterator;
+import com.google.common.collect.Sets;
+
+/**
+ * Selects the entities of which the value set must be copied from a source table to a destination table, because it is
+ * missing from the destination or more recent in the source.
+ * <p/>
+ * The timestamps of both tables are read in bulk, with {@link ValueTable#getValueSetTimestamps(SortedSet)}, and
+ * compared in a single pass over the sorted entities. When the source table is an
+ * {@link UpdatedVariableEntityProvider}, only the entities it reports as updated after the oldest destination update
+ * are compared.
+ */
+public final class IncrementalEntities {
+
+  private IncrementalEntities() {}
+
+  /**
+   * Returns the entities of which the value set in {@code source} is more recent than in {@code destination}, or is
+   * missing from {@code destination}. Entities without an update timestamp in either table are always selected.
+   *
+   * @param source the table the value sets are copied from
+   * @param entities entities that have a value set in {@code source}
+   * @param destination the table the value sets are copied to
+   * @return the selected entities, sorted
+   */
+  public static SortedSet<VariableEntity> select(ValueTable source, SortedSet<VariableEntity> entities,
+      ValueTable destination) {
+    SortedSet<VariableEntity> sorted = CompactVariableEntitySet.copyOf(entities);
+    SortedSet<VariableEntity> common = intersection(sorted, destination.getVariableEntities());
+    SortedSet<VariableEntity> compared = source instanceof UpdatedVariableEntityProvider
+        ? getUpdatedEntities((UpdatedVariableEntityProvider) source, common, destination)
+        : common;
+
+    List<VariableEntity> selected = Lists.newArrayList();
+    PeekingIterator<VariableEntity> comparedEntities = Iterators.peekingIterator(compared.iterator());
+    Iterator<Timestamps> sourceTimestamps = source.getValueSetTimestamps(compared).iterator();
+    Iterator<Timestamps> destinationTimestamps = destination.getValueSetTimestamps(compared).iterator();
+    for(VariableEntity entity : sorted) {
+      if(comparedEntities.hasNext() && comparedEntities.peek().equals(entity)) {
+        comparedEntities.next();
+        if(isNewer(sourceTimestamps.next(), destinationTimestamps.next())) selected.add(entity);
+      } else if(!common.contains(entity)) {
+        selected.add(entity);
+      }
+    }
+    return CompactVariableEntitySet.copyOf(selected);
+  }
+
+  /**
+   * Indicates whether the source timestamps are more recent than the destination ones. Timestamps that are null, or
+   * that have a null update value, are considered more recent.
+   */
+  public static boolean isNewer(@Nullable Timestamps source, @Nullable Timestamps destination) {
+    Value sourceUpdate = getLastUpdate(source);
+    Value destinationUpdate = getLastUpdate(destination);
+    return sourceUpdate == null || destinationUpdate == null || sourceUpdate.compareTo(destinationUpdate) > 0;
+  }
+
+  /**
+   * Restricts the entities to compare to the ones updated in the source after the oldest update in the destination:
+   * the other ones cannot be more recent in the source. The destination timestamps are read once more to find the
+   * oldest update.
+   */
+  private static SortedSet<VariableEntity> getUpdatedEntities(UpdatedVariableEntityProvider source,
+      SortedSet<VariableEntity> common, ValueTable destination) {
+    if(common.isEmpty()) return common;
+    Value oldest = null;
+    for(Timestamps timestamps : destination.getValueSetTimestamps(common)) {
+      Value lastUpdate = getLastUpdate(timestamps);
+      if(lastUpdate == null) return common;
+      if(oldest == null || lastUpdate.compareTo(oldest) < 0) oldest = lastUpdate;
+    }
+    return intersection(common, source.getUpdatedVariableEntities(oldest));
+  }
+
+  @Nullable
+  private static Value getLastUpdate(@Nullable Timestamps timestamps) {
+    Value lastUpdate = timestamps == null ? null : timestamps.getLastUpdate();
+    return lastUpdate == null || lastUpdate.isNull() ? null : lastUpdate;
+  }
+
+  private static SortedSet<VariableEntity> intersection(SortedSet<VariableEntity> entities,
+      Set<VariableEntity> others) {
+    return entities instanceof CompactVariableEntitySet
+        ? ((CompactVariableEntitySet) entities).intersection(others)
+        : ImmutableSortedSet.copyOf(Sets.intersection(entities, others));
+  }
+}
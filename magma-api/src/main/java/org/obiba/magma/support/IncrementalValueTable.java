@@ -10,6 +10,8 @@
 package org.obiba.magma.support;
 
 import java.util.Map;
+import java.util.Set;
+import java.util.SortedSet;
 
 import javax.annotation.Nullable;
 import javax.validation.constraints.NotNull;
@@ -18,11 +20,9 @@ import org.obiba.magma.Datasource;
 import org.obiba.magma.NoSuchValueSetException;
 import org.obiba.magma.NoSuchValueTableException;
 import org.obiba.magma.Timestamps;
-import org.obiba.magma.Value;
 import org.obiba.magma.ValueTable;
 import org.obiba.magma.VariableEntity;
 import org.obiba.magma.transform.BijectiveFunction;
-import org.obiba.magma.type.DateTimeType;
 import org.obiba.magma.views.AbstractTransformingValueTableWrapper;
 
 import com.google.common.collect.Maps;
@@ -79,6 +79,14 @@ public class IncrementalValueTable extends AbstractTransformingValueTableWrapper
     return variableEntityMappingFunction;
   }
 
+  /**
+   * Compares the timestamps of all the source entities at once, instead of one entity at a time.
+   */
+  @Override
+  public Set<VariableEntity> getVariableEntities() {
+    return variableEntityMappingFunction.getNewerEntities();
+  }
+
   /**
    * <pre>
    * apply: source entity <b>older</b> than destination
@@ -89,8 +97,25 @@ public class IncrementalValueTable extends AbstractTransformingValueTableWrapper
 
     private final Map<VariableEntity, VariableEntity> applyCache = Maps.newHashMap();
 
+    /**
+     * The source entities that are newer than in the destination, once they were all compared.
+     */
+    @Nullable
+    private SortedSet<VariableEntity> newerEntities;
+
+    private SortedSet<VariableEntity> getNewerEntities() {
+      if(newerEntities == null) {
+        newerEntities = IncrementalEntities
+            .select(sourceTable, CompactVariableEntitySet.copyOf(sourceTable.getVariableEntities()), destinationTable);
+      }
+      return newerEntities;
+    }
+
     @Override
     public VariableEntity apply(VariableEntity from) {
+      if(newerEntities != null) {
+        return newerEntities.contains(from) ? from : null;
+      }
       if(applyCache.containsKey(from)) {
         //log.info("apply has cached: {}", from.getIdentifier());
         return applyCache.get(from);
@@ -109,24 +134,18 @@ public class IncrementalValueTable extends AbstractTransformingValueTableWrapper
 
     private boolean isSourceNewerThanDestination(VariableEntity from) {
       Timestamps sourceTimestamps = null;
-      Value sourceLastUpdate = DateTimeType.get().nullValue();
-      Value destinationLastUpdate = DateTimeType.get().nullValue();
       try {
         sourceTimestamps = getWrappedValueTable().getValueSetTimestamps(from);
-        if(sourceTimestamps != null) sourceLastUpdate = sourceTimestamps.getLastUpdate();
       } catch(NoSuchValueSetException ignored) {
       }
 
       Timestamps destinationTimestamps = null;
       try {
         destinationTimestamps = destinationTable.getValueSetTimestamps(from);
-        if(destinationTimestamps != null) destinationLastUpdate = destinationTimestamps.getLastUpdate();
       } catch(NoSuchValueSetException ignored) {
       }
 
-      //log.info("{} - sourceLastUpdate: {}, destinationLastUpdate: {}", from, sourceLastUpdate, destinationLastUpdate);
-      return sourceLastUpdate.isNull() || destinationLastUpdate.isNull() ||
-          sourceLastUpdate.compareTo(destinationLastUpdate) > 0;
+      return IncrementalEntities.isNewer(sourceTimestamps, destinationTimestamps);
     }
   }
 
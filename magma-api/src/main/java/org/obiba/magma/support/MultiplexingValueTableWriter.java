@@ -47,6 +47,13 @@ public class MultiplexingValueTableWriter implements ValueTableWriter {
     return new MultiplexedVariableWriter();
   }
 
+  @Override
+  public void flush() {
+    for(ValueTableWriter writer : writers.values()) {
+      writer.flush();
+    }
+  }
+
   @Override
   public void close() {
     for(ValueTableWriter writer : writers.values()) {
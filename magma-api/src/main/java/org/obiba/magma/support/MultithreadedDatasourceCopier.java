@@ -4,12 +4,14 @@ import java.io.IOException;
 import java.util.List;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
 import java.util.concurrent.LinkedBlockingDeque;
 import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 import javax.annotation.Nullable;
 import javax.validation.constraints.NotNull;
@@ -62,6 +64,30 @@ public class MultithreadedDatasourceCopier {
       return this;
     }
 
+    /**
+     * Number of writers running in parallel, each with its own {@link ValueTableWriter}. Only applies when the
+     * destination datasource {@link Datasource#canWriteConcurrently()}, otherwise a single writer is used.
+     *
+     * @param writers
+     * @return
+     */
+    public Builder withWriters(int writers) {
+      if(writers < 1) throw new IllegalArgumentException("Number of writers must be strictly positive");
+      copier.concurrentWriters = writers;
+      return this;
+    }
+
+    /**
+     * Demarcates the transaction of each parallel writer.
+     *
+     * @param writerTransaction
+     * @return
+     */
+    public Builder withWriterTransaction(@Nullable WriterTransaction writerTransaction) {
+      copier.writerTransaction = writerTransaction;
+      return this;
+    }
+
     public Builder withReaderListener(ReaderListener readerListener) {
       copier.readerListener = readerListener;
       return this;
@@ -106,6 +132,15 @@ public class MultithreadedDatasourceCopier {
 
   }
 
+  /**
+   * Callback in which a parallel writer is executed, typically to run it within its own transaction.
+   */
+  public interface WriterTransaction {
+
+    void execute(Runnable writer);
+
+  }
+
   @Nullable
   private ThreadFactory threadFactory;
 
@@ -113,6 +148,11 @@ public class MultithreadedDatasourceCopier {
 
   private int concurrentReaders = 3;
 
+  private int concurrentWriters = 1;
+
+  @Nullable
+  private WriterTransaction writerTransaction;
+
   @NotNull
   private DatasourceCopier.Builder copier = DatasourceCopier.Builder.newCopier();
 
@@ -131,8 +171,7 @@ public class MultithreadedDatasourceCopier {
 
   private long entitiesToCopy = 0;
 
-  @SuppressWarnings("FieldMayBeFinal")
-  private long entitiesCopied = 0;
+  private final AtomicLong entitiesCopied = new AtomicLong();
 
   private int nextPercentIncrement = 0;
 
@@ -153,8 +192,16 @@ public class MultithreadedDatasourceCopier {
 
     prepareVariables();
 
-    // A queue containing all entity values available for writing to the destinationDatasource.
-    BlockingQueue<VariableEntityValues> writeQueue = new LinkedBlockingDeque<>(bufferSize);
+    // One queue per writer containing the entity values available for writing to the destinationDatasource.
+    List<BlockingQueue<VariableEntityValues>> writeQueues = Lists.newArrayList();
+    int writersCount = getWritersCount();
+    if(writersCount < concurrentWriters) {
+      log.warn("Datasource {} does not support concurrent writers, using a single writer.",
+          destinationDatasource.getName());
+    }
+    for(int i = 0; i < writersCount; i++) {
+      writeQueues.add(new LinkedBlockingDeque<VariableEntityValues>(bufferSize));
+    }
 
     DatasourceCopier datasourceCopier = copier.build();
     if(datasourceCopier.isCopyValues()) {
@@ -165,11 +212,11 @@ public class MultithreadedDatasourceCopier {
       entitiesToCopy = readQueue.size();
       for(int i = 0; i < concurrentReaders; i++) {
         readers.add(
-            executor.submit(new ConcurrentValueSetReader(readQueue, writeQueue, datasourceCopier.isCopyNullValues())));
+            executor.submit(new ConcurrentValueSetReader(readQueue, writeQueues, datasourceCopier.isCopyNullValues())));
       }
     }
     try {
-      write(writeQueue);
+      write(writeQueues);
       checkReadersForException();
     } finally {
       log.debug("Finished multi-threaded copy. Submitted tasks {}, executed tasks {}", executor.getTaskCount(),
@@ -178,18 +225,44 @@ public class MultithreadedDatasourceCopier {
     }
   }
 
-  private void write(BlockingQueue<VariableEntityValues> writeQueue) throws IOException {
+  /**
+   * Writers are concurrent only if requested and supported by the destination datasource: each of them has its own
+   * table writer and transaction. Otherwise the single writer runs synchronously in the calling thread.
+   */
+  private int getWritersCount() {
+    return concurrentWriters > 1 && !destinationDatasource.canWriteConcurrently() ? 1 : concurrentWriters;
+  }
+
+  private void write(List<BlockingQueue<VariableEntityValues>> writeQueues) throws IOException {
     copyVariables();
-    // The writers could also be concurrent, but dues to transaction isolation issues, it is currently ran
-    // synchronously
-    new ConcurrentValueSetWriter(writeQueue).run();
+    if(writeQueues.size() == 1) {
+      new ConcurrentValueSetWriter(writeQueues.get(0)).run();
+      return;
+    }
+
+    ExecutorService writersExecutor = threadFactory == null //
+        ? Executors.newFixedThreadPool(writeQueues.size()) //
+        : Executors.newFixedThreadPool(writeQueues.size(), threadFactory);
+    try {
+      List<Future<?>> writers = Lists.newArrayList();
+      for(BlockingQueue<VariableEntityValues> writeQueue : writeQueues) {
+        writers.add(writersExecutor.submit(new TransactionalValueSetWriter(new ConcurrentValueSetWriter(writeQueue))));
+      }
+      checkForException(writers);
+    } finally {
+      writersExecutor.shutdownNow();
+    }
   }
 
-  @SuppressWarnings("OverlyNestedMethod")
   private void checkReadersForException() {
-    for(Future<?> reader : readers) {
+    checkForException(readers);
+  }
+
+  @SuppressWarnings("OverlyNestedMethod")
+  private void checkForException(Iterable<Future<?>> tasks) {
+    for(Future<?> task : tasks) {
       try {
-        reader.get();
+        task.get();
       } catch(InterruptedException e) {
         throw new RuntimeException(e);
       } catch(ExecutionException e) {
@@ -239,14 +312,14 @@ public class MultithreadedDatasourceCopier {
 
     private final BlockingQueue<VariableEntity> readQueue;
 
-    private final BlockingQueue<VariableEntityValues> writeQueue;
+    private final List<BlockingQueue<VariableEntityValues>> writeQueues;
 
     private final boolean copyNullValues;
 
     private ConcurrentValueSetReader(BlockingQueue<VariableEntity> readQueue,
-        BlockingQueue<VariableEntityValues> writeQueue, boolean copyNullValues) {
+        List<BlockingQueue<VariableEntityValues>> writeQueues, boolean copyNullValues) {
       this.readQueue = readQueue;
-      this.writeQueue = writeQueue;
+      this.writeQueues = writeQueues;
       this.copyNullValues = copyNullValues;
     }
 
@@ -276,7 +349,7 @@ public class MultithreadedDatasourceCopier {
 
       if(copyNullValues || !hasOnlyNullValues) {
         log.trace("Enqueued entity {}", entity.getIdentifier());
-        writeQueue.put(new VariableEntityValues(valueSet, values));
+        getWriteQueue(entity).put(new VariableEntityValues(valueSet, values));
       } else {
         log.trace("Skip entity {} because of null values", entity.getIdentifier());
       }
@@ -285,6 +358,41 @@ public class MultithreadedDatasourceCopier {
         readerListener.onRead(valueSet, values);
       }
     }
+
+    /**
+     * Entities are partitioned between the writers by their identifier, so that a given entity is always written by
+     * the same writer.
+     */
+    private BlockingQueue<VariableEntityValues> getWriteQueue(VariableEntity entity) {
+      if(writeQueues.size() == 1) return writeQueues.get(0);
+      return writeQueues.get((entity.getIdentifier().hashCode() & Integer.MAX_VALUE) % writeQueues.size());
+    }
+  }
+
+  private class TransactionalValueSetWriter implements Runnable {
+
+    private final Runnable writer;
+
+    private TransactionalValueSetWriter(Runnable writer) {
+      this.writer = writer;
+    }
+
+    @Override
+    public void run() {
+      try {
+        if(writerTransaction == null) {
+          writer.run();
+        } else {
+          writerTransaction.execute(writer);
+        }
+      } catch(RuntimeException e) {
+        // readers could be blocked on this writer's queue: stop them so that the other writers can complete
+        for(Future<?> reader : readers) {
+          reader.cancel(true);
+        }
+        throw e;
+      }
+    }
   }
 
   private class ConcurrentValueSetWriter implements Runnable {
@@ -349,21 +457,23 @@ public class MultithreadedDatasourceCopier {
         log.trace("Dequeued entity {}", values.valueSet.getVariableEntity().getIdentifier());
         datasourceCopier.copyValues(sourceTable, destinationName, values.valueSet, variables, values.values, writer);
       }
-      entitiesCopied++;
-      printProgress();
+      printProgress(entitiesCopied.incrementAndGet());
     }
 
     @SuppressWarnings("NumericCastThatLosesPrecision")
-    private void printProgress() {
+    private void printProgress(long copied) {
       try {
         if(entitiesToCopy > 0) {
-          int percentComplete = (int) (entitiesCopied / (double) entitiesToCopy * 100);
-          if(percentComplete >= nextPercentIncrement) {
-            log.info("Copy {}% complete.", percentComplete);
-            for(DatasourceCopierProgressListener listener : progressListeners) {
-              listener.status(sourceTable.getName(), entitiesCopied, entitiesToCopy, percentComplete);
+          int percentComplete = (int) (copied / (double) entitiesToCopy * 100);
+          // writers may be concurrent
+          synchronized(progressListeners) {
+            if(percentComplete >= nextPercentIncrement) {
+              log.info("Copy {}% complete.", percentComplete);
+              for(DatasourceCopierProgressListener listener : progressListeners) {
+                listener.status(sourceTable.getName(), copied, entitiesToCopy, percentComplete);
+              }
+              nextPercentIncrement = percentComplete + 1;
             }
-            nextPercentIncrement = percentComplete + 1;
           }
         }
       } catch(RuntimeException e) {
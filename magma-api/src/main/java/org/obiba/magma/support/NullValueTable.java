@@ -2,6 +2,7 @@ package org.obiba.magma.support;
 
 import java.lang.ref.WeakReference;
 import java.util.Collections;
+import java.util.List;
 import java.util.Set;
 import java.util.SortedSet;
 
@@ -105,6 +106,11 @@ public class NullValueTable implements ValueTable {
     });
   }
 
+  @Override
+  public Iterable<Value[]> getValueMatrix(List<Variable> variables, SortedSet<VariableEntity> entities) {
+    return ValueMatrices.fromSources(this, variables, entities);
+  }
+
   @Override
   public boolean hasVariable(String name) {
     return false;
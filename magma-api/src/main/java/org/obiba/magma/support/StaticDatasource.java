@@ -117,6 +117,11 @@ public class StaticDatasource extends AbstractAttributeAware implements Datasour
     return true;
   }
 
+  @Override
+  public boolean canWriteConcurrently() {
+    return false;
+  }
+
   @Override
   public void drop() {
     tableMap.clear();
@@ -180,6 +185,10 @@ public class StaticDatasource extends AbstractAttributeAware implements Datasour
       this.table = table;
     }
 
+    @Override
+    public void flush() {
+    }
+
     @Override
     public void close() {
     }
@@ -0,0 +1,22 @@
+package org.obiba.magma.support;
+
+import java.util.Set;
+
+import javax.validation.constraints.NotNull;
+
+import org.obiba.magma.Value;
+import org.obiba.magma.VariableEntity;
+
+/**
+ * A {@link org.obiba.magma.ValueTable} that can query natively which of its value sets were updated after a given
+ * time, without reading the timestamps of each value set.
+ */
+public interface UpdatedVariableEntityProvider {
+
+  /**
+   * Returns the entities of which the value set was updated after {@code since}, or has no update timestamp.
+   *
+   * @param since a non-null {@link org.obiba.magma.type.DateTimeType} value
+   */
+  Set<VariableEntity> getUpdatedVariableEntities(@NotNull Value since);
+}
@@ -0,0 +1,125 @@
+package org.obiba.magma.support;
+
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.SortedSet;
+
+import org.obiba.magma.Value;
+import org.obiba.magma.ValueSet;
+import org.obiba.magma.ValueTable;
+import org.obiba.magma.Variable;
+import org.obiba.magma.VariableEntity;
+import org.obiba.magma.VariableValueSource;
+
+import com.google.common.collect.Lists;
+
+/**
+ * Helpers for implementing {@link ValueTable#getValueMatrix(List, SortedSet)}.
+ */
+public final class ValueMatrices {
+
+  private ValueMatrices() {
+
+  }
+
+  /**
+   * Builds the value matrix of a table from its {@code VariableValueSource}s. Sources that support vectors are read
+   * with one {@code VectorSource} iterator each; the other sources share a single {@code ValueSet} lookup per entity.
+   *
+   * @param table the table that holds the variables
+   * @param variables the variables to read
+   * @param entities the entities to read
+   * @return one {@code Value[]} per entity, values being in the order of {@code variables}
+   */
+  public static Iterable<Value[]> fromSources(final ValueTable table, List<Variable> variables,
+      final SortedSet<VariableEntity> entities) {
+    final List<VariableValueSource> sources = Lists.newArrayListWithCapacity(variables.size());
+    for(Variable variable : variables) {
+      sources.add(table.getVariableValueSource(variable.getName()));
+    }
+    return new Iterable<Value[]>() {
+      @Override
+      public Iterator<Value[]> iterator() {
+        return new SourcesIterator(table, sources, entities);
+      }
+    };
+  }
+
+  /**
+   * Returns a row of null values, one per variable.
+   *
+   * @param variables the variables of the row
+   * @return the null value, or null sequence for a repeatable variable, of each variable
+   */
+  public static Value[] nullRow(List<Variable> variables) {
+    Value[] row = new Value[variables.size()];
+    for(int i = 0; i < row.length; i++) {
+      row[i] = nullValue(variables.get(i));
+    }
+    return row;
+  }
+
+  private static Value nullValue(Variable variable) {
+    return variable.isRepeatable() ? variable.getValueType().nullSequence() : variable.getValueType().nullValue();
+  }
+
+  private static class SourcesIterator implements Iterator<Value[]> {
+
+    private final ValueTable table;
+
+    private final List<VariableValueSource> sources;
+
+    private final Iterator<VariableEntity> entities;
+
+    private final List<Iterator<Value>> vectors;
+
+    private final boolean needsValueSet;
+
+    private SourcesIterator(ValueTable table, List<VariableValueSource> sources, SortedSet<VariableEntity> entities) {
+      this.table = table;
+      this.sources = sources;
+      this.entities = entities.iterator();
+      vectors = Lists.newArrayListWithCapacity(sources.size());
+      boolean valueSetRequired = false;
+      for(VariableValueSource source : sources) {
+        if(source.supportVectorSource()) {
+          vectors.add(source.asVectorSource().getValues(entities).iterator());
+        } else {
+          vectors.add(null);
+          valueSetRequired = true;
+        }
+      }
+      needsValueSet = valueSetRequired;
+    }
+
+    @Override
+    public boolean hasNext() {
+      return entities.hasNext();
+    }
+
+    @Override
+    public Value[] next() {
+      if(!hasNext()) throw new NoSuchElementException();
+      VariableEntity entity = entities.next();
+      ValueSet valueSet = needsValueSet && table.hasValueSet(entity) ? table.getValueSet(entity) : null;
+      Value[] row = new Value[sources.size()];
+      for(int i = 0; i < row.length; i++) {
+        Iterator<Value> vector = vectors.get(i);
+        if(vector != null) {
+          row[i] = vector.next();
+        } else if(valueSet != null) {
+          row[i] = sources.get(i).getValue(valueSet);
+        } else {
+          row[i] = nullValue(sources.get(i).getVariable());
+        }
+      }
+      return row;
+    }
+
+    @Override
+    public void remove() {
+      throw new UnsupportedOperationException();
+    }
+  }
+}
@@ -20,7 +20,8 @@ public class VariableEntitiesCache implements Serializable {
   }
 
   public VariableEntitiesCache(Set<VariableEntity> entities, long lastUpdate) {
-    this.entities = entities;
+    // compact copy, this cache may be held or serialized by a cache manager
+    this.entities = CompactVariableEntitySet.copyOf(entities);
     this.lastUpdate = lastUpdate;
   }
 
@@ -1,6 +1,8 @@
 package org.obiba.magma.views;
 
+import java.util.List;
 import java.util.Set;
+import java.util.SortedSet;
 
 import javax.validation.constraints.NotNull;
 
@@ -13,6 +15,7 @@ import org.obiba.magma.VariableEntity;
 import org.obiba.magma.VariableValueSource;
 import org.obiba.magma.support.AbstractValueTableWrapper;
 import org.obiba.magma.support.AbstractVariableValueSourceWrapper;
+import org.obiba.magma.support.ValueMatrices;
 import org.obiba.magma.transform.BijectiveFunction;
 import org.obiba.magma.transform.BijectiveFunctions;
 import org.obiba.magma.transform.TransformingValueTable;
@@ -109,6 +112,11 @@ public abstract class AbstractTransformingValueTableWrapper extends AbstractValu
         .apply(super.getVariableValueSource(getVariableNameMappingFunction().unapply(variableName)));
   }
 
+  @Override
+  public Iterable<Value[]> getValueMatrix(List<Variable> variables, SortedSet<VariableEntity> entities) {
+    return ValueMatrices.fromSources(this, variables, entities);
+  }
+
   @NotNull
   @Override
   public BijectiveFunction<VariableEntity, VariableEntity> getVariableEntityMappingFunction() {
@@ -0,0 +1,27 @@
+package org.obiba.magma.views;
+
+import java.util.SortedSet;
+
+import javax.annotation.Nullable;
+
+import org.obiba.magma.ValueSet;
+import org.obiba.magma.ValueTable;
+import org.obiba.magma.VariableEntity;
+
+/**
+ * A {@link WhereClause} that can select the value sets of many entities at once, without loading the value set of each
+ * entity. {@link View} uses it to filter its entities.
+ */
+public interface BatchWhereClause extends WhereClause {
+
+  /**
+   * Returns the entities of which the value set is selected by this clause. This is equivalent to calling
+   * {@link #where(ValueSet, View)} with the value set of each entity in {@code valueTable}.
+   *
+   * @param valueTable the table the value sets come from, the table wrapped by the view if any
+   * @param entities entities that have a value set in {@code valueTable}
+   * @param view the view in which context the value sets are selected, may be null
+   * @return the selected entities, in the order of {@code entities}
+   */
+  SortedSet<VariableEntity> filter(ValueTable valueTable, SortedSet<VariableEntity> entities, @Nullable View view);
+}
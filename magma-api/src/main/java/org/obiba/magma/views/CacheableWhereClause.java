@@ -0,0 +1,18 @@
+package org.obiba.magma.views;
+
+import javax.annotation.Nullable;
+
+/**
+ * A {@link WhereClause} of which the selection of a value set depends only on its definition and on the view it is
+ * applied in, so that the results of equal clauses can be shared by {@link CachingWhereClause}, including in a cache
+ * that outlives the clause instances.
+ */
+public interface CacheableWhereClause extends WhereClause {
+
+  /**
+   * @return a key that is the same for all the clauses that select the same value sets, null if the selection also
+   * depends on other tables and so cannot be cached
+   */
+  @Nullable
+  String getCacheKey();
+}
@@ -1,25 +1,115 @@
 package org.obiba.magma.views;
 
+import java.util.Date;
+import java.util.List;
+import java.util.Set;
+import java.util.SortedSet;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
+import javax.annotation.Nullable;
+
+import org.obiba.magma.Disposable;
+import org.obiba.magma.Initialisable;
+import org.obiba.magma.MagmaCacheExtension;
+import org.obiba.magma.MagmaEngine;
+import org.obiba.magma.Value;
 import org.obiba.magma.ValueSet;
+import org.obiba.magma.ValueTable;
+import org.obiba.magma.VariableEntity;
+import org.obiba.magma.support.CompactVariableEntitySet;
+import org.obiba.magma.support.Disposables;
+import org.obiba.magma.support.Initialisables;
+import org.springframework.cache.Cache.ValueWrapper;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Optional;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
+import com.google.common.hash.Hashing;
+
+/**
+ * Caches the results of an expensive {@link WhereClause}. Results are keyed by clause, view, table, entity and last
+ * update of the table the value set comes from, so that they are shared by all the {@link ValueSet} instances of an
+ * entity and become stale when the source table is updated. The results of a {@link CacheableWhereClause} are keyed by
+ * its definition, and so are shared by the clause instances of the same view. A {@link CacheableWhereClause} without
+ * cache key, as its results depend on more than the table of the value set, is not cached.
+ * <p/>
+ * Results are stored in the {@code magma-where-clause} cache of the {@link MagmaCacheExtension} when available,
+ * otherwise in a local cache bounded in size and time. When the table is updated, the stale result of an entity is
+ * evicted as its new result is stored. On dispose, the results are evicted from the local cache, and from the shared
+ * cache unless they are shared with other clause instances: those are left to the expiration of the shared cache.
+ * <p/>
+ * Entities are filtered with the cached results, the others are filtered at once when the expensive clause is a
+ * {@link BatchWhereClause}.
+ */
+public class CachingWhereClause implements BatchWhereClause, Initialisable, Disposable {
 
-import com.google.common.collect.MapMaker;
+  public static final long DEFAULT_MAXIMUM_SIZE = 100000;
 
-class CachingWhereClause implements WhereClause {
+  public static final long DEFAULT_EXPIRE_AFTER_ACCESS_MINUTES = 10;
 
   /**
-   * Cache the result in this map. Note that this cache will only work if == returns true for the keys. This should be
-   * the case as we pass-around the same ValueSet instance all the time. It is important to use weak keys since we don't
-   * want the cache to prevent collecting garbage.
+   * Time during which the last update of a table is reused when value sets are selected one by one.
    */
-  // TODO: this should be handled in a general-level caching package.
-  private final ConcurrentMap<ValueSet, Boolean> cache = new MapMaker().weakKeys().makeMap();
+  public static final long LAST_UPDATE_CHECK_INTERVAL_MILLIS = 1000;
 
   private final WhereClause expensiveClause;
 
-  CachingWhereClause(WhereClause expensiveClause) {
+  private final long maximumSize;
+
+  private final long expireAfterAccessMillis;
+
+  /**
+   * Distinguishes the results of this clause from the ones of other clauses in a shared cache, absent if the results of
+   * this clause cannot be cached.
+   */
+  @Nullable
+  private transient volatile Optional<String> clauseKey;
+
+  @Nullable
+  private transient volatile Cache<String, Boolean> localCache;
+
+  /**
+   * Keys of the results of this clause in the shared cache, by key of entity, that is without last update.
+   */
+  private final ConcurrentMap<String, String> sharedKeys = new ConcurrentHashMap<>();
+
+  @Nullable
+  private transient volatile TableLastUpdate tableLastUpdate;
+
+  private final AtomicLong hitCount = new AtomicLong();
+
+  private final AtomicLong missCount = new AtomicLong();
+
+  public CachingWhereClause(WhereClause expensiveClause) {
+    this(expensiveClause, DEFAULT_MAXIMUM_SIZE, DEFAULT_EXPIRE_AFTER_ACCESS_MINUTES, TimeUnit.MINUTES);
+  }
+
+  /**
+   * @param maximumSize maximum number of results kept in the local cache
+   * @param expireAfterAccess duration after which a result that was not accessed is evicted from the local cache
+   */
+  public CachingWhereClause(WhereClause expensiveClause, long maximumSize, long expireAfterAccess, TimeUnit unit) {
     this.expensiveClause = expensiveClause;
+    this.maximumSize = maximumSize;
+    expireAfterAccessMillis = unit.toMillis(expireAfterAccess);
+  }
+
+  @Override
+  public void initialise() {
+    Initialisables.initialise(expensiveClause);
+  }
+
+  @Override
+  public void dispose() {
+    Disposables.dispose(expensiveClause);
+    invalidate(!isShared());
   }
 
   @Override
@@ -28,12 +118,213 @@ class CachingWhereClause implements WhereClause {
   }
 
   @Override
-  public boolean where(ValueSet valueSet, View view) {
-    if(cache.containsKey(valueSet)) {
-      return cache.get(valueSet);
+  public boolean where(ValueSet valueSet, @Nullable View view) {
+    if(!getClauseKey().isPresent()) return whereExpensive(valueSet, view);
+
+    ValueTable valueTable = valueSet.getValueTable();
+    String entityKey = getEntityKey(valueTable, valueSet.getVariableEntity(), view);
+    String key = getKey(entityKey, getLastUpdate(valueTable));
+    Boolean where = getCachedResult(key);
+    if(where == null) {
+      missCount.incrementAndGet();
+      where = whereExpensive(valueSet, view);
+      putCachedResult(entityKey, key, where);
+    } else {
+      hitCount.incrementAndGet();
     }
-    boolean where = expensiveClause.where(valueSet);
-    cache.put(valueSet, where);
     return where;
   }
+
+  @Override
+  public SortedSet<VariableEntity> filter(ValueTable valueTable, SortedSet<VariableEntity> entities,
+      @Nullable View view) {
+    if(!getClauseKey().isPresent()) return CompactVariableEntitySet.copyOf(filterExpensive(valueTable, entities, view));
+
+    Value lastUpdate = valueTable.getTimestamps().getLastUpdate();
+    List<VariableEntity> selected = Lists.newArrayList();
+    List<VariableEntity> uncached = Lists.newArrayList();
+    for(VariableEntity entity : entities) {
+      Boolean where = getCachedResult(getKey(getEntityKey(valueTable, entity, view), lastUpdate));
+      if(where == null) {
+        uncached.add(entity);
+      } else {
+        hitCount.incrementAndGet();
+        if(where) selected.add(entity);
+      }
+    }
+    if(!uncached.isEmpty()) {
+      missCount.addAndGet(uncached.size());
+      Set<VariableEntity> uncachedSelected = filterExpensive(valueTable, CompactVariableEntitySet.copyOf(uncached),
+          view);
+      for(VariableEntity entity : uncached) {
+        boolean where = uncachedSelected.contains(entity);
+        String entityKey = getEntityKey(valueTable, entity, view);
+        putCachedResult(entityKey, getKey(entityKey, lastUpdate), where);
+        if(where) selected.add(entity);
+      }
+    }
+    return CompactVariableEntitySet.copyOf(selected);
+  }
+
+  private boolean whereExpensive(ValueSet valueSet, @Nullable View view) {
+    return view == null ? expensiveClause.where(valueSet) : expensiveClause.where(valueSet, view);
+  }
+
+  private Set<VariableEntity> filterExpensive(ValueTable valueTable, SortedSet<VariableEntity> entities,
+      @Nullable View view) {
+    if(expensiveClause instanceof BatchWhereClause) {
+      return ((BatchWhereClause) expensiveClause).filter(valueTable, entities, view);
+    }
+    Set<VariableEntity> selected = Sets.newHashSet();
+    for(VariableEntity entity : entities) {
+      if(whereExpensive(valueTable.getValueSet(entity), view)) {
+        selected.add(entity);
+      }
+    }
+    return selected;
+  }
+
+  public long getHitCount() {
+    return hitCount.get();
+  }
+
+  public long getMissCount() {
+    return missCount.get();
+  }
+
+  /**
+   * Number of results in the local cache, results stored in the {@link MagmaCacheExtension} are not counted.
+   */
+  public long getSize() {
+    return getLocalCache().size();
+  }
+
+  /**
+   * Evicts the results of this clause from the local cache and from the shared cache.
+   */
+  public void invalidateAll() {
+    invalidate(true);
+  }
+
+  private void invalidate(boolean evictShared) {
+    getLocalCache().invalidateAll();
+    org.springframework.cache.Cache sharedCache = getSharedCache();
+    if(evictShared && sharedCache != null) {
+      for(String key : sharedKeys.values()) {
+        sharedCache.evict(key);
+      }
+    }
+    sharedKeys.clear();
+    tableLastUpdate = null;
+  }
+
+  /**
+   * Returns true if the results of this clause are shared with the other clause instances of the same definition.
+   */
+  private boolean isShared() {
+    return expensiveClause instanceof CacheableWhereClause;
+  }
+
+  private Optional<String> getClauseKey() {
+    Optional<String> key = clauseKey;
+    if(key == null) {
+      synchronized(this) {
+        if(clauseKey == null) {
+          if(isShared()) {
+            String cacheKey = ((CacheableWhereClause) expensiveClause).getCacheKey();
+            clauseKey = cacheKey == null
+                ? Optional.<String>absent()
+                : Optional.of(Hashing.sha1().hashString(cacheKey, Charsets.UTF_8).toString());
+          } else {
+            clauseKey = Optional.of(UUID.randomUUID().toString());
+          }
+        }
+        key = clauseKey;
+      }
+    }
+    return key;
+  }
+
+  private String getEntityKey(ValueTable valueTable, VariableEntity entity, @Nullable View view) {
+    return getClauseKey().get() + ";view=" + (view == null ? "" : view.getTableReference()) + ";table=" +
+        valueTable.getTableReference() + ";type=" + entity.getType() + ";id=" + entity.getIdentifier();
+  }
+
+  private static String getKey(String entityKey, Value lastUpdate) {
+    return entityKey + ";lastUpdate=" + (lastUpdate.isNull() ? "" : ((Date) lastUpdate.getValue()).getTime());
+  }
+
+  /**
+   * Reads the last update of the table once per {@link #LAST_UPDATE_CHECK_INTERVAL_MILLIS}, rather than once per value
+   * set.
+   */
+  private Value getLastUpdate(ValueTable valueTable) {
+    long now = System.currentTimeMillis();
+    TableLastUpdate current = tableLastUpdate;
+    if(current == null || current.valueTable != valueTable ||
+        now - current.readTime > LAST_UPDATE_CHECK_INTERVAL_MILLIS) {
+      current = new TableLastUpdate(valueTable, valueTable.getTimestamps().getLastUpdate(), now);
+      tableLastUpdate = current;
+    }
+    return current.lastUpdate;
+  }
+
+  @Nullable
+  private Boolean getCachedResult(String key) {
+    org.springframework.cache.Cache sharedCache = getSharedCache();
+    if(sharedCache == null) return getLocalCache().getIfPresent(key);
+    ValueWrapper wrapper = sharedCache.get(key);
+    return wrapper == null ? null : (Boolean) wrapper.get();
+  }
+
+  /**
+   * Stores the result of an entity, and evicts its result for a previous last update of the table from the shared
+   * cache. The local cache does not need it: its stale results expire.
+   */
+  private void putCachedResult(String entityKey, String key, Boolean where) {
+    org.springframework.cache.Cache sharedCache = getSharedCache();
+    if(sharedCache == null) {
+      getLocalCache().put(key, where);
+    } else {
+      sharedCache.put(key, where);
+      String previousKey = sharedKeys.put(entityKey, key);
+      if(previousKey != null && !previousKey.equals(key)) sharedCache.evict(previousKey);
+    }
+  }
+
+  @Nullable
+  private org.springframework.cache.Cache getSharedCache() {
+    if(!MagmaEngine.get().hasExtension(MagmaCacheExtension.class)) return null;
+    MagmaCacheExtension cacheExtension = MagmaEngine.get().getExtension(MagmaCacheExtension.class);
+    return cacheExtension.hasWhereClauseCache() ? cacheExtension.getWhereClauseCache() : null;
+  }
+
+  private Cache<String, Boolean> getLocalCache() {
+    Cache<String, Boolean> cache = localCache;
+    if(cache == null) {
+      synchronized(this) {
+        if(localCache == null) {
+          localCache = CacheBuilder.newBuilder().maximumSize(maximumSize)
+              .expireAfterAccess(expireAfterAccessMillis, TimeUnit.MILLISECONDS).build();
+        }
+        cache = localCache;
+      }
+    }
+    return cache;
+  }
+
+  private static final class TableLastUpdate {
+
+    private final ValueTable valueTable;
+
+    private final Value lastUpdate;
+
+    private final long readTime;
+
+    private TableLastUpdate(ValueTable valueTable, Value lastUpdate, long readTime) {
+      this.valueTable = valueTable;
+      this.lastUpdate = lastUpdate;
+      this.readTime = readTime;
+    }
+  }
 }
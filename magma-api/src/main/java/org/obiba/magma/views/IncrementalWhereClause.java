@@ -1,24 +1,29 @@
 package org.obiba.magma.views;
 
+import java.util.SortedSet;
+
+import javax.annotation.Nullable;
+
 import org.obiba.magma.NoSuchDatasourceException;
 import org.obiba.magma.NoSuchValueTableException;
 import org.obiba.magma.Timestamps;
-import org.obiba.magma.Value;
 import org.obiba.magma.ValueSet;
 import org.obiba.magma.ValueTable;
+import org.obiba.magma.VariableEntity;
+import org.obiba.magma.support.IncrementalEntities;
 import org.obiba.magma.support.MagmaEngineTableResolver;
 import org.obiba.magma.support.NullValueTable;
-import org.obiba.magma.type.DateTimeType;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.google.common.annotations.VisibleForTesting;
 
 /**
- * A "where" clause that can be used to create an incremental {@link View}.
+ * A "where" clause that can be used to create an incremental {@link View}. The entities of a view are selected at once,
+ * by comparing the value set timestamps of the source and destination tables in bulk.
  */
 @SuppressWarnings("UnusedDeclaration")
-public class IncrementalWhereClause implements WhereClause {
+public class IncrementalWhereClause implements BatchWhereClause {
   //
   // Constants
   //
@@ -98,6 +103,14 @@ public class IncrementalWhereClause implements WhereClause {
     return include;
   }
 
+  @Override
+  public SortedSet<VariableEntity> filter(ValueTable valueTable, SortedSet<VariableEntity> entities,
+      @Nullable View view) {
+    SortedSet<VariableEntity> included = IncrementalEntities.select(valueTable, entities, getDestinationTable());
+    log.debug("Include {} entities out of {}", included.size(), entities.size());
+    return included;
+  }
+
   //
   // Methods
   //
@@ -142,9 +155,10 @@ public class IncrementalWhereClause implements WhereClause {
    */
   @VisibleForTesting
   boolean laterThan(Timestamps ts1, Timestamps ts2) {
-    Value u1 = ts1 != null ? ts1.getLastUpdate() : DateTimeType.get().nullValue();
-    Value u2 = ts2 != null ? ts2.getLastUpdate() : DateTimeType.get().nullValue();
-    log.debug("source.updated {} destination.updated {}", u1, u2);
-    return u1.isNull() || u2.isNull() || u1.compareTo(u2) > 0;
+    if(log.isDebugEnabled()) {
+      log.debug("source.updated {} destination.updated {}", ts1 != null ? ts1.getLastUpdate() : null,
+          ts2 != null ? ts2.getLastUpdate() : null);
+    }
+    return IncrementalEntities.isNewer(ts1, ts2);
   }
 }
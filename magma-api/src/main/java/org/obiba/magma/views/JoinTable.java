@@ -4,7 +4,9 @@
 package org.obiba.magma.views;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.Date;
 import java.util.Iterator;
 import java.util.LinkedHashSet;
 import java.util.List;
@@ -12,6 +14,7 @@ import java.util.Map;
 import java.util.Set;
 import java.util.SortedSet;
 
+import javax.annotation.Nullable;
 import javax.validation.constraints.NotNull;
 
 import org.obiba.magma.Datasource;
@@ -28,8 +31,10 @@ import org.obiba.magma.VariableEntity;
 import org.obiba.magma.VariableValueSource;
 import org.obiba.magma.VectorSource;
 import org.obiba.magma.support.AbstractVariableValueSourceWrapper;
+import org.obiba.magma.support.CompactVariableEntitySet;
 import org.obiba.magma.support.NullTimestamps;
 import org.obiba.magma.support.UnionTimestamps;
+import org.obiba.magma.support.ValueMatrices;
 import org.obiba.magma.support.ValueSetBean;
 
 import com.google.common.base.Function;
@@ -45,7 +50,15 @@ import com.google.common.collect.Multimap;
 @SuppressWarnings({ "UnusedDeclaration", "TransientFieldInNonSerializableClass" })
 public class JoinTable implements ValueTable, Initialisable {
 
-  private static final int DEFAULT_ENTITY_COUNT = 5000;
+  /**
+   * Maximum number of tables for which the join index records, per entity, the tables that have a value set.
+   */
+  private static final int MAX_INDEXED_TABLES = Long.SIZE;
+
+  /**
+   * Time during which the join index answers for single entities without reading the last update of the tables again.
+   */
+  public static final long VERSION_CHECK_INTERVAL_MILLIS = 1000;
 
   @NotNull
   private final List<ValueTable> tables;
@@ -55,6 +68,17 @@ public class JoinTable implements ValueTable, Initialisable {
    */
   private transient Set<Variable> unionOfVariables;
 
+  /**
+   * Cached map of the variables of {@link #unionOfVariables} by name.
+   */
+  private transient Map<String, Variable> unionOfVariablesByName;
+
+  /**
+   * Cached union of the entities of all tables, valid as long as the tables are not updated.
+   */
+  @Nullable
+  private transient volatile JoinIndex joinIndex;
+
   /**
    * Cached map of variable names to tables.
    */
@@ -73,10 +97,6 @@ public class JoinTable implements ValueTable, Initialisable {
   @NotNull
   private transient final Map<String, JoinableVariable> joinableVariablesByName = Maps.newHashMap();
 
-  // An arbitrary number to initialise the LinkedHashSet with a capacity close to the actual value
-  // See getVariableEntities()
-  private transient int lastEntityCount = DEFAULT_ENTITY_COUNT;
-
   private transient boolean variableAnalysed = false;
 
   /**
@@ -171,8 +191,10 @@ public class JoinTable implements ValueTable, Initialisable {
 
   @Override
   public ValueSet getValueSet(VariableEntity entity) throws NoSuchValueSetException {
-    if(hasValueSet(entity)) {
-      return new JoinedValueSet(this, entity);
+    JoinIndex index = getJoinIndex(false);
+    long tablesMask = index == null ? JoinIndex.UNKNOWN : index.getTablesMask(entity);
+    if(tablesMask == JoinIndex.UNKNOWN ? hasValueSetInTables(entity) : tablesMask != 0) {
+      return new JoinedValueSet(this, entity, tablesMask);
     }
     throw new NoSuchValueSetException(this, entity);
   }
@@ -207,26 +229,29 @@ public class JoinTable implements ValueTable, Initialisable {
     };
   }
 
+  @Override
+  public Iterable<Value[]> getValueMatrix(List<Variable> variables, SortedSet<VariableEntity> entities) {
+    return ValueMatrices.fromSources(this, variables, entities);
+  }
+
   @Override
   public Set<VariableEntity> getVariableEntities() {
     if(!variableAnalysed) analyseVariables();
 
-    // Set the initial capacity to the number of entities we saw in the previous call to this method
-    Set<VariableEntity> entities = new LinkedHashSet<>(lastEntityCount);
-    for(ValueTable table : getTables()) {
-      entities.addAll(table.getVariableEntities());
-    }
-    // Remember this value so that next time around, the set is initialised with a capacity closer to the actual value.
-    lastEntityCount = entities.size();
-    return entities;
+    JoinIndex index = getJoinIndex(true);
+    return index == null ? JoinIndex.union(getTables()) : index.getEntities();
   }
 
   @Override
   public Iterable<ValueSet> getValueSets() {
-    return Iterables.transform(getVariableEntities(), new Function<VariableEntity, ValueSet>() {
+    if(!variableAnalysed) analyseVariables();
+
+    final JoinIndex index = getJoinIndex(true);
+    Set<VariableEntity> entities = index == null ? JoinIndex.union(getTables()) : index.getEntities();
+    return Iterables.transform(entities, new Function<VariableEntity, ValueSet>() {
       @Override
       public ValueSet apply(VariableEntity from) {
-        return new JoinedValueSet(JoinTable.this, from);
+        return new JoinedValueSet(JoinTable.this, from, index == null ? JoinIndex.UNKNOWN : index.getTablesMask(from));
       }
     });
   }
@@ -238,12 +263,13 @@ public class JoinTable implements ValueTable, Initialisable {
 
   @Override
   public Variable getVariable(String name) throws NoSuchVariableException {
-    for(Variable variable : getVariables()) {
-      if(variable.getName().equals(name)) {
-        return variable;
-      }
+    if(!variableAnalysed) analyseVariables();
+
+    Variable variable = unionOfVariablesByName().get(name);
+    if(variable == null) {
+      throw new NoSuchVariableException(name);
     }
-    throw new NoSuchVariableException(name);
+    return variable;
   }
 
   @Override
@@ -278,6 +304,15 @@ public class JoinTable implements ValueTable, Initialisable {
   public boolean hasValueSet(VariableEntity entity) {
     if(!variableAnalysed) analyseVariables();
 
+    JoinIndex index = getJoinIndex(false);
+    if(index != null) {
+      long tablesMask = index.getTablesMask(entity);
+      if(tablesMask != JoinIndex.UNKNOWN) return tablesMask != 0;
+    }
+    return hasValueSetInTables(entity);
+  }
+
+  private boolean hasValueSetInTables(VariableEntity entity) {
     for(ValueTable table : getTables()) {
       if(table.hasValueSet(entity)) {
         return true;
@@ -311,24 +346,58 @@ public class JoinTable implements ValueTable, Initialisable {
 
   private synchronized Iterable<Variable> unionOfVariables() {
     if(unionOfVariables == null) {
-      unionOfVariables = new LinkedHashSet<>();
-
       if(!variableAnalysed) analyseVariables();
 
-      Collection<String> unionOfVariableNames = new LinkedHashSet<>();
+      Set<Variable> variables = new LinkedHashSet<>();
+      Map<String, Variable> variablesByName = Maps.newHashMap();
       for(ValueTable table : getTables()) {
         for(Variable variable : table.getVariables()) {
-          // Add returns true if the set did not already contain the value
-          if(unionOfVariableNames.add(variable.getName())) {
-            unionOfVariables.add(variable);
+          // keep the first variable found with this name
+          if(!variablesByName.containsKey(variable.getName())) {
+            variablesByName.put(variable.getName(), variable);
+            variables.add(variable);
           }
         }
       }
+      unionOfVariablesByName = variablesByName;
+      unionOfVariables = variables;
     }
 
     return unionOfVariables;
   }
 
+  private synchronized Map<String, Variable> unionOfVariablesByName() {
+    unionOfVariables();
+    return unionOfVariablesByName;
+  }
+
+  /**
+   * Returns the join index if it is still valid for the current last update of the tables. The last updates are read
+   * once per pass over the entities, while the value sets of single entities rely on the last check for
+   * {@link #VERSION_CHECK_INTERVAL_MILLIS}.
+   *
+   * @param build whether the index should be (re)built if there is no valid one, otherwise it is only built on
+   * {@link #getVariableEntities()} as it requires the entities of all the tables
+   * @return null if there is no valid index or if the index cannot be versioned because a table has no last update
+   */
+  @Nullable
+  private JoinIndex getJoinIndex(boolean build) {
+    JoinIndex index = joinIndex;
+    long now = System.currentTimeMillis();
+    if(!build) {
+      // without an index, the tables are probed and their last update is not needed
+      if(index == null || now - index.getCheckTime() <= VERSION_CHECK_INTERVAL_MILLIS) return index;
+    }
+    long[] versions = JoinIndex.versions(getTables());
+    if(index != null && versions != null && index.isValid(versions)) {
+      index.setCheckTime(now);
+      return index;
+    }
+    index = build && versions != null ? new JoinIndex(getTables(), versions, now) : null;
+    joinIndex = index;
+    return index;
+  }
+
   @NotNull
   private synchronized List<ValueTable> getTablesWithVariable(@NotNull JoinableVariable joinableVariable)
       throws NoSuchVariableException {
@@ -368,12 +437,119 @@ public class JoinTable implements ValueTable, Initialisable {
 
   @Override
   public int getValueSetCount() {
-    return Iterables.size(getValueSets());
+    return getVariableEntities().size();
   }
 
   @Override
   public int getVariableEntityCount() {
-    return Iterables.size(getVariableEntities());
+    return getVariableEntities().size();
+  }
+
+  /**
+   * Union of the entities of the joined tables, with, for each entity, a bitmap of the tables that have a value set for
+   * it. The index is versioned by the last update of each table and is rebuilt when any of them changes.
+   */
+  private static final class JoinIndex {
+
+    /**
+     * Tables mask of an entity for which the index does not know which tables have a value set.
+     */
+    static final long UNKNOWN = -1L;
+
+    @NotNull
+    private final long[] versions;
+
+    /**
+     * Time at which the versions were last found to be the ones of the tables.
+     */
+    private volatile long checkTime;
+
+    @NotNull
+    private final SortedSet<VariableEntity> entities;
+
+    /**
+     * Bit {@code i} of {@code tablesMasks[j]} is set when table {@code i} has a value set for the entity at position
+     * {@code j} of {@link #entities}. Null when there are too many tables or when the entities are not compact.
+     */
+    @Nullable
+    private final long[] tablesMasks;
+
+    private JoinIndex(@NotNull List<ValueTable> tables, @NotNull long[] versions, long checkTime) {
+      this.versions = versions;
+      this.checkTime = checkTime;
+      List<Set<VariableEntity>> tableEntities = Lists.newArrayListWithCapacity(tables.size());
+      SortedSet<VariableEntity> union = CompactVariableEntitySet.of();
+      for(ValueTable table : tables) {
+        Set<VariableEntity> set = table.getVariableEntities();
+        tableEntities.add(set);
+        union = CompactVariableEntitySet.union(union, set);
+      }
+      entities = union;
+      tablesMasks = union instanceof CompactVariableEntitySet && tables.size() <= MAX_INDEXED_TABLES
+          ? masks((CompactVariableEntitySet) union, tableEntities)
+          : null;
+    }
+
+    @NotNull
+    private static long[] masks(@NotNull CompactVariableEntitySet union,
+        @NotNull List<Set<VariableEntity>> tableEntities) {
+      long[] masks = new long[union.size()];
+      for(int i = 0; i < tableEntities.size(); i++) {
+        for(VariableEntity entity : tableEntities.get(i)) {
+          masks[union.indexOf(entity)] |= 1L << i;
+        }
+      }
+      return masks;
+    }
+
+    @NotNull
+    static SortedSet<VariableEntity> union(@NotNull Iterable<ValueTable> tables) {
+      SortedSet<VariableEntity> entities = CompactVariableEntitySet.of();
+      for(ValueTable table : tables) {
+        entities = CompactVariableEntitySet.union(entities, table.getVariableEntities());
+      }
+      return entities;
+    }
+
+    /**
+     * @return the last update of each table, or null if one of them has none
+     */
+    @Nullable
+    static long[] versions(@NotNull List<ValueTable> tables) {
+      long[] versions = new long[tables.size()];
+      for(int i = 0; i < versions.length; i++) {
+        Value lastUpdate = tables.get(i).getTimestamps().getLastUpdate();
+        if(lastUpdate.isNull()) return null;
+        versions[i] = ((Date) lastUpdate.getValue()).getTime();
+      }
+      return versions;
+    }
+
+    boolean isValid(@NotNull long[] currentVersions) {
+      return Arrays.equals(versions, currentVersions);
+    }
+
+    long getCheckTime() {
+      return checkTime;
+    }
+
+    void setCheckTime(long checkTime) {
+      this.checkTime = checkTime;
+    }
+
+    @NotNull
+    SortedSet<VariableEntity> getEntities() {
+      return entities;
+    }
+
+    /**
+     * @return the bitmap of the tables having a value set for the entity, 0 if none has, or {@link #UNKNOWN}
+     */
+    long getTablesMask(@NotNull VariableEntity entity) {
+      if(tablesMasks == null) return entities.contains(entity) ? UNKNOWN : 0;
+      int index = ((CompactVariableEntitySet) entities).indexOf(entity);
+      return index < 0 ? 0 : tablesMasks[index];
+    }
   }
 
   static class JoinedValueSet extends ValueSetBean {
@@ -384,29 +560,42 @@ public class JoinTable implements ValueTable, Initialisable {
     @NotNull
     private final Map<String, Timestamps> timestampsByTable = Maps.newHashMap();
 
+    /**
+     * Bitmap of the joined tables having a value set for the entity, from the join index, or {@link JoinIndex#UNKNOWN}
+     * when tables have to be asked.
+     */
+    private final long tablesMask;
+
     JoinedValueSet(@NotNull ValueTable table, @NotNull VariableEntity entity) {
+      this(table, entity, JoinIndex.UNKNOWN);
+    }
+
+    JoinedValueSet(@NotNull ValueTable table, @NotNull VariableEntity entity, long tablesMask) {
       super(table, entity);
+      this.tablesMask = tablesMask;
     }
 
     @NotNull
     @Override
     public Timestamps getTimestamps() {
       List<Timestamps> timestampses = Lists.newArrayList();
-      for(ValueTable valueTable : ((JoinTable) getValueTable()).getTables()) {
-        if(valueTable.hasValueSet(getVariableEntity())) {
-          timestampses.add(valueTable.getValueSetTimestamps(getVariableEntity()));
+      List<ValueTable> tables = ((JoinTable) getValueTable()).getTables();
+      for(int i = 0; i < tables.size(); i++) {
+        if(hasValueSet(tables.get(i), i)) {
+          timestampses.add(tables.get(i).getValueSetTimestamps(getVariableEntity()));
         }
       }
       return new UnionTimestamps(timestampses);
     }
 
     synchronized Iterable<ValueSet> getInnerTableValueSets(Iterable<ValueTable> valueTables) {
+      List<ValueTable> tables = ((JoinTable) getValueTable()).getTables();
       List<ValueSet> valueSets = Lists.newArrayList();
       for(ValueTable valueTable : valueTables) {
         if(valueSetsByTable.containsKey(valueTable.getTableReference())) {
           ValueSet valueSet = valueSetsByTable.get(valueTable.getTableReference());
           if(valueSet != null) valueSets.add(valueSet);
-        } else if(valueTable.hasValueSet(getVariableEntity())) {
+        } else if(hasValueSet(valueTable, tables.indexOf(valueTable))) {
           ValueSet valueSet = valueTable.getValueSet(getVariableEntity());
           valueSetsByTable.put(valueTable.getTableReference(), valueSet);
           valueSets.add(valueSet);
@@ -414,6 +603,12 @@ public class JoinTable implements ValueTable, Initialisable {
       }
       return valueSets;
     }
+
+    private boolean hasValueSet(ValueTable valueTable, int tableIndex) {
+      return tablesMask == JoinIndex.UNKNOWN || tableIndex < 0
+          ? valueTable.hasValueSet(getVariableEntity())
+          : (tablesMask & 1L << tableIndex) != 0;
+    }
   }
 
   private static class JoinedVariableValueSource extends AbstractVariableValueSourceWrapper implements VectorSource {
@@ -6,6 +6,7 @@ import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Set;
 import java.util.SortedSet;
+import java.util.concurrent.TimeUnit;
 
 import javax.annotation.Nullable;
 import javax.validation.constraints.NotNull;
@@ -31,6 +32,8 @@ import org.obiba.magma.support.AbstractValueTableWrapper;
 import org.obiba.magma.support.AbstractVariableValueSourceWrapper;
 import org.obiba.magma.support.Disposables;
 import org.obiba.magma.support.Initialisables;
+import org.obiba.magma.support.ValueMatrices;
+import org.obiba.magma.support.CompactVariableEntitySet;
 import org.obiba.magma.support.VariableEntitiesCache;
 import org.obiba.magma.transform.BijectiveFunction;
 import org.obiba.magma.transform.BijectiveFunctions;
@@ -45,7 +48,6 @@ import org.springframework.cache.Cache;
 import com.google.common.base.Function;
 import com.google.common.base.Preconditions;
 import com.google.common.base.Predicate;
-import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.Iterables;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Sets;
@@ -240,24 +242,46 @@ public class View extends AbstractValueTableWrapper implements Initialisable, Di
   }
 
   @Override
-  @SuppressWarnings("ChainOfInstanceofChecks")
   public boolean hasValueSet(@Nullable VariableEntity entity) {
     if(entity == null) return false;
 
     VariableEntity unmapped = getVariableEntityMappingFunction().unapply(entity);
-    if(unmapped == null) return false;
+    return unmapped != null && isSelected(unmapped);
+  }
 
-    boolean hasValueSet = super.hasValueSet(unmapped);
+  /**
+   * Returns true if the wrapped table has a value set for this entity and the where clause selects it.
+   *
+   * @param unmapped an entity of the wrapped table
+   */
+  @SuppressWarnings("ChainOfInstanceofChecks")
+  private boolean isSelected(VariableEntity unmapped) {
+    if(!super.hasValueSet(unmapped)) return false;
 
-    if(hasValueSet) {
-      // Shortcut some WhereClause to prevent loading the ValueSet which may be expensive
-      if(getWhereClause() instanceof AllClause) return true;
-      if(getWhereClause() instanceof NoneClause) return false;
+    // Shortcut some WhereClause to prevent loading the ValueSet which may be expensive
+    if(getWhereClause() instanceof AllClause) return true;
+    if(getWhereClause() instanceof NoneClause) return false;
 
-      ValueSet valueSet = super.getValueSet(unmapped);
-      hasValueSet = getWhereClause().where(valueSet, this);
-    }
-    return hasValueSet;
+    ValueSet valueSet = super.getValueSet(unmapped);
+    return getWhereClause().where(valueSet, this);
+  }
+
+  /**
+   * Maps an entity of the wrapped table to the entity of this view.
+   *
+   * @param entity an entity of the wrapped table
+   * @param selected true if the where clause already selected this entity
+   * @return the entity of this view, null if it cannot be mapped or is not selected
+   */
+  @Nullable
+  private VariableEntity toViewEntity(VariableEntity entity, boolean selected) {
+    // the mapping function may modify the entity identifiers
+    VariableEntity mapped = getVariableEntityMappingFunction().apply(entity);
+    if(mapped == null) return null;
+
+    VariableEntity unmapped = getVariableEntityMappingFunction().unapply(mapped);
+    if(unmapped == null) return null;
+    return selected || isSelected(unmapped) ? mapped : null;
   }
 
   @Override
@@ -307,6 +331,12 @@ public class View extends AbstractValueTableWrapper implements Initialisable, Di
     });
   }
 
+  @Override
+  public Iterable<Value[]> getValueMatrix(List<Variable> variables, SortedSet<VariableEntity> entities) {
+    // values are derived or mapped by this view's sources
+    return ValueMatrices.fromSources(this, variables, entities);
+  }
+
   @Override
   public Iterable<Variable> getVariables() {
     if(from instanceof JoinTable) {
@@ -434,21 +464,23 @@ public class View extends AbstractValueTableWrapper implements Initialisable, Di
 
   protected Set<VariableEntity> loadVariableEntities() {
     // do not use Guava functional stuff to avoid multiple iterations over entities
-    ImmutableSet.Builder<VariableEntity> builder = ImmutableSet.builder();
+    List<VariableEntity> entities = Lists.newArrayList();
     if(hasVariables()) {
-      for(VariableEntity entity : super.getVariableEntities()) {
-        // transform super.getVariableEntities() using getVariableEntityMappingFunction()
-        // (which may modified entity identifiers)
-        entity = getVariableEntityMappingFunction().apply(entity);
-
-        // filter the resulting entities to remove the ones for which hasValueSet() is false
-        // (usually due to a where clause)
-        if(hasValueSet(entity)) {
-          builder.add(entity);
+      boolean batch = getWhereClause() instanceof BatchWhereClause;
+      // a batch where clause selects the entities of the wrapped table at once instead of loading the value set of
+      // each of them
+      Iterable<VariableEntity> candidates = batch
+          ? ((BatchWhereClause) getWhereClause())
+          .filter(getWrappedValueTable(), CompactVariableEntitySet.copyOf(super.getVariableEntities()), this)
+          : super.getVariableEntities();
+      for(VariableEntity entity : candidates) {
+        VariableEntity mapped = toViewEntity(entity, batch);
+        if(mapped != null) {
+          entities.add(mapped);
         }
       }
     }
-    return builder.build();
+    return CompactVariableEntitySet.copyOf(entities);
   }
 
   public void setDatasource(ViewAwareDatasource datasource) {
@@ -618,6 +650,11 @@ public class View extends AbstractValueTableWrapper implements Initialisable, Di
       return this;
     }
 
+    public Builder cacheWhere(long maximumSize, long expireAfterAccess, TimeUnit unit) {
+      view.setWhereClause(new CachingWhereClause(view.where, maximumSize, expireAfterAccess, unit));
+      return this;
+    }
+
     public View build() {
       return view;
     }
@@ -148,6 +148,7 @@ public class ViewAwareDatasource extends AbstractDatasourceWrapper {
     views.put(view.getName(), view);
     view.setDatasource(this);
     lastUpdate = DateTimeType.get().now();
+    MagmaEngine.notifyRegistryChanged();
   }
 
   public synchronized void removeView(String name) {
@@ -157,6 +158,7 @@ public class ViewAwareDatasource extends AbstractDatasourceWrapper {
       views.remove(name);
       Disposables.dispose(view);
       lastUpdate = DateTimeType.get().now();
+      MagmaEngine.notifyRegistryChanged();
     }
   }
 
@@ -167,6 +169,7 @@ public class ViewAwareDatasource extends AbstractDatasourceWrapper {
       view.setName(newName);
       views.put(newName, view);
       lastUpdate = DateTimeType.get().now();
+      MagmaEngine.notifyRegistryChanged();
     }
   }
 
@@ -166,4 +166,15 @@ public class MagmaEngineTest {
       magmaEngine.shutdown();
     }
   }
+
+  @Test
+  public void test_notifyRegistryChanged_does_not_instantiate_engine() {
+    long version = magmaEngine.getDatasourceRegistryVersion();
+    MagmaEngine.notifyRegistryChanged();
+    assertThat(magmaEngine.getDatasourceRegistryVersion()).isEqualTo(version + 1);
+
+    magmaEngine.shutdown();
+    MagmaEngine.notifyRegistryChanged();
+    assertThat(MagmaEngine.isInstantiated()).isFalse();
+  }
 }
@@ -0,0 +1,101 @@
+package org.obiba.magma.concurrent;
+
+import java.util.List;
+import java.util.Set;
+
+import org.junit.Test;
+import org.obiba.magma.Value;
+import org.obiba.magma.Variable;
+import org.obiba.magma.VariableEntity;
+import org.obiba.magma.support.StaticDatasource;
+import org.obiba.magma.support.StaticValueTable;
+import org.obiba.magma.test.AbstractMagmaTest;
+import org.obiba.magma.type.IntegerType;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+
+public class ConcurrentValueTableReaderTest extends AbstractMagmaTest {
+
+  @Test
+  public void test_read_all_values_with_small_queue() {
+    StaticValueTable table = createTable(500);
+    RecordingCallback callback = new RecordingCallback();
+
+    ConcurrentValueTableReader reader = ConcurrentValueTableReader.Builder.newReader() //
+        .withReaders(4) //
+        .withQueueCapacity(2) //
+        .from(table) //
+        .to(callback) //
+        .build();
+    reader.read();
+
+    assertThat(callback.begun).isTrue();
+    assertThat(callback.completed).isTrue();
+    assertThat(callback.identifiers).hasSize(500);
+    assertThat(reader.getMetrics().getValuesCount()).isEqualTo(500);
+    assertThat(reader.getMetrics().getMaxQueueDepth()).isLessThanOrEqualTo(2);
+  }
+
+  @Test
+  public void test_read_empty_table() {
+    RecordingCallback callback = new RecordingCallback();
+    ConcurrentValueTableReader reader = ConcurrentValueTableReader.Builder.newReader().from(createTable(0))
+        .to(callback).build();
+    reader.read();
+
+    assertThat(callback.completed).isTrue();
+    assertThat(callback.identifiers).isEmpty();
+    assertThat(reader.getMetrics().getValuesCount()).isEqualTo(0);
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void test_invalid_queue_capacity() {
+    ConcurrentValueTableReader.Builder.newReader().withQueueCapacity(0);
+  }
+
+  private StaticValueTable createTable(int count) {
+    List<String> entities = Lists.newArrayList();
+    for(int i = 0; i < count; i++) {
+      entities.add("" + i);
+    }
+    StaticValueTable table = new StaticValueTable(new StaticDatasource("ds"), "table", entities);
+    table.addVariables(IntegerType.get(), "VAR");
+    for(String entity : entities) {
+      table.addValues(entity, "VAR", Integer.valueOf(entity));
+    }
+    return table;
+  }
+
+  private static class RecordingCallback implements ConcurrentValueTableReader.ConcurrentReaderCallback {
+
+    private final Set<String> identifiers = Sets.newHashSet();
+
+    private boolean begun;
+
+    private boolean completed;
+
+    @Override
+    public void onBegin(List<VariableEntity> entities, Variable... variables) {
+      begun = true;
+    }
+
+    @Override
+    public void onValues(VariableEntity entity, Variable[] variables, Value... values) {
+      assertThat(values[0].toString()).isEqualTo(entity.getIdentifier());
+      identifiers.add(entity.getIdentifier());
+    }
+
+    @Override
+    public void onComplete() {
+      completed = true;
+    }
+
+    @Override
+    public boolean isCancelled() {
+      return false;
+    }
+  }
+}
@@ -0,0 +1,91 @@
+package org.obiba.magma.concurrent;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Test;
+import org.obiba.magma.concurrent.LockManager.Mode;
+
+import com.google.common.collect.ImmutableList;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+
+public class LockManagerTest {
+
+  private final LockManager lockManager = new LockManager();
+
+  private final ExecutorService executor = Executors.newSingleThreadExecutor();
+
+  @After
+  public void shutdown() {
+    executor.shutdownNow();
+  }
+
+  @Test
+  public void test_distinct_names_are_locked_concurrently() throws Exception {
+    lockManager.lock(ImmutableList.of("ds.a"));
+    try {
+      assertThat(tryLockInOtherThread(ImmutableList.of("ds.b"), Mode.EXCLUSIVE)).isTrue();
+      assertThat(tryLockInOtherThread(ImmutableList.of("ds.b", "ds.a"), Mode.EXCLUSIVE)).isFalse();
+    } finally {
+      lockManager.unlock(ImmutableList.of("ds.a"));
+    }
+    assertThat(tryLockInOtherThread(ImmutableList.of("ds.b", "ds.a"), Mode.EXCLUSIVE)).isTrue();
+
+    assertThat(lockManager.getMetrics().getTimeoutCount()).isEqualTo(1);
+    assertThat(lockManager.getMetrics().getContentionCount()).isEqualTo(1);
+    assertThat(lockManager.getMetrics().getAcquisitionCount()).isEqualTo(3);
+  }
+
+  @Test
+  public void test_shared_locks() throws Exception {
+    lockManager.lock(ImmutableList.of("a"), Mode.SHARED);
+    try {
+      assertThat(tryLockInOtherThread(ImmutableList.of("a"), Mode.SHARED)).isTrue();
+      assertThat(tryLockInOtherThread(ImmutableList.of("a"), Mode.EXCLUSIVE)).isFalse();
+    } finally {
+      lockManager.unlock(ImmutableList.of("a"), Mode.SHARED);
+    }
+  }
+
+  @Test
+  public void test_idle_locks_are_discarded() throws Exception {
+    lockManager.lock(ImmutableList.of("a", "b"));
+    lockManager.lock(ImmutableList.of("a"));
+    assertThat(lockManager.getLockCount()).isEqualTo(2);
+
+    lockManager.unlock(ImmutableList.of("a", "b"));
+    assertThat(lockManager.getLockCount()).isEqualTo(1);
+    lockManager.unlock(ImmutableList.of("a"));
+    assertThat(lockManager.getLockCount()).isEqualTo(0);
+  }
+
+  @Test(expected = IllegalMonitorStateException.class)
+  public void test_unlock_not_held() throws Exception {
+    executor.submit(new Callable<Void>() {
+      @Override
+      public Void call() throws InterruptedException {
+        lockManager.lock(ImmutableList.of("a"));
+        return null;
+      }
+    }).get();
+    lockManager.unlock(ImmutableList.of("a"));
+  }
+
+  /**
+   * Locks and unlocks the names in another thread.
+   */
+  private boolean tryLockInOtherThread(final Iterable<String> names, final Mode mode) throws Exception {
+    return executor.submit(new Callable<Boolean>() {
+      @Override
+      public Boolean call() throws InterruptedException {
+        boolean locked = lockManager.tryLock(ImmutableList.copyOf(names), mode, 50, TimeUnit.MILLISECONDS);
+        if(locked) lockManager.unlock(names, mode);
+        return locked;
+      }
+    }).get();
+  }
+}
@@ -0,0 +1,95 @@
+package org.obiba.magma.support;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.SortedSet;
+import java.util.TreeSet;
+
+import org.junit.Test;
+import org.obiba.magma.VariableEntity;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.ImmutableSortedSet;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+
+public class CompactVariableEntitySetTest {
+
+  @Test
+  public void test_sorted_without_duplicates() {
+    SortedSet<VariableEntity> set = CompactVariableEntitySet.copyOf(entities("3", "10", "1", "3", "2"));
+
+    assertThat(set).isInstanceOf(CompactVariableEntitySet.class);
+    assertThat(set).containsExactly(entity("1"), entity("10"), entity("2"), entity("3"));
+    assertThat(set.first()).isEqualTo(entity("1"));
+    assertThat(set.last()).isEqualTo(entity("3"));
+    assertThat(set.contains(entity("10"))).isTrue();
+    assertThat(set.contains(entity("4"))).isFalse();
+    assertThat(set.contains(new VariableEntityBean("Other", "1"))).isFalse();
+    assertThat(set).isEqualTo(new TreeSet<>(entities("1", "2", "3", "10")));
+  }
+
+  @Test
+  public void test_sub_sets() {
+    SortedSet<VariableEntity> set = CompactVariableEntitySet.copyOf(entities("a", "b", "c", "d"));
+
+    assertThat(set.subSet(entity("b"), entity("d"))).containsExactly(entity("b"), entity("c"));
+    assertThat(set.headSet(entity("bb"))).containsExactly(entity("a"), entity("b"));
+    assertThat(set.tailSet(entity("c"))).containsExactly(entity("c"), entity("d"));
+    assertThat(set.tailSet(entity("c")).contains(entity("b"))).isFalse();
+    assertThat(set.tailSet(entity("e"))).isEmpty();
+    assertThat(((CompactVariableEntitySet) set.tailSet(entity("b"))).indexOf(entity("c"))).isEqualTo(1);
+    assertThat(((CompactVariableEntitySet) set.tailSet(entity("b"))).indexOf(entity("a"))).isEqualTo(-1);
+  }
+
+  @Test
+  public void test_union_and_intersection() {
+    CompactVariableEntitySet left = (CompactVariableEntitySet) CompactVariableEntitySet
+        .copyOf(entities("1", "3", "5", "7"));
+    ImmutableSet<VariableEntity> right = entities("2", "3", "7", "8");
+
+    assertThat(left.union(right)).isInstanceOf(CompactVariableEntitySet.class)
+        .containsExactly(entity("1"), entity("2"), entity("3"), entity("5"), entity("7"), entity("8"));
+    assertThat(left.intersection(right)).containsExactly(entity("3"), entity("7"));
+    assertThat(left.intersection(entities("9"))).isEmpty();
+    assertThat(CompactVariableEntitySet.union(CompactVariableEntitySet.of(), right)).isEqualTo(right);
+  }
+
+  @Test
+  public void test_mixed_types_fall_back_to_sorted_set() {
+    SortedSet<VariableEntity> set = CompactVariableEntitySet
+        .copyOf(ImmutableList.<VariableEntity>of(entity("1"), new VariableEntityBean("Other", "1")));
+
+    assertThat(set).isInstanceOf(ImmutableSortedSet.class).hasSize(2);
+  }
+
+  @Test
+  public void test_serialization() throws Exception {
+    SortedSet<VariableEntity> set = CompactVariableEntitySet.copyOf(entities("1", "2", "3"));
+
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    try(ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+      out.writeObject(set);
+    }
+    try(ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray()))) {
+      CompactVariableEntitySet read = (CompactVariableEntitySet) in.readObject();
+      assertThat(read).isEqualTo(set);
+      assertThat(read.getEntityType()).isSameAs("Participant");
+    }
+  }
+
+  private static VariableEntity entity(String identifier) {
+    return new VariableEntityBean("Participant", identifier);
+  }
+
+  private static ImmutableSet<VariableEntity> entities(String... identifiers) {
+    ImmutableSet.Builder<VariableEntity> builder = ImmutableSet.builder();
+    for(String identifier : identifiers) {
+      builder.add(entity(identifier));
+    }
+    return builder.build();
+  }
+}
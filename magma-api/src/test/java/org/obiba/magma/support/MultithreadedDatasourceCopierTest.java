@@ -0,0 +1,151 @@
+package org.obiba.magma.support;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Set;
+
+import javax.validation.constraints.NotNull;
+
+import org.junit.Test;
+import org.obiba.magma.Value;
+import org.obiba.magma.ValueTable;
+import org.obiba.magma.ValueTableWriter;
+import org.obiba.magma.Variable;
+import org.obiba.magma.VariableEntity;
+import org.obiba.magma.test.AbstractMagmaTest;
+import org.obiba.magma.type.IntegerType;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+
+public class MultithreadedDatasourceCopierTest extends AbstractMagmaTest {
+
+  @Test
+  public void test_copy_with_concurrent_writers() throws IOException {
+    ConcurrentStaticDatasource destination = new ConcurrentStaticDatasource(true);
+    final Set<String> transactionThreads = Sets.newConcurrentHashSet();
+
+    MultithreadedDatasourceCopier.Builder.newCopier() //
+        .from(createTable(200)) //
+        .to(destination) //
+        .withWriters(4) //
+        .withWriterTransaction(new MultithreadedDatasourceCopier.WriterTransaction() {
+          @Override
+          public void execute(Runnable writer) {
+            transactionThreads.add(Thread.currentThread().getName());
+            writer.run();
+          }
+        }) //
+        .build().copy();
+
+    assertThat(transactionThreads).hasSize(4);
+    assertThat(destination.writtenEntities).hasSize(200);
+    assertThat(destination.writerThreads).hasSize(4);
+    ValueTable copy = destination.getValueTable("table");
+    assertThat(copy.getValueSetCount()).isEqualTo(200);
+  }
+
+  @Test
+  public void test_copy_falls_back_to_single_writer() throws IOException {
+    ConcurrentStaticDatasource destination = new ConcurrentStaticDatasource(false);
+
+    MultithreadedDatasourceCopier.Builder.newCopier() //
+        .from(createTable(50)) //
+        .to(destination) //
+        .withWriters(4) //
+        .build().copy();
+
+    assertThat(destination.writtenEntities).hasSize(50);
+    assertThat(destination.writerThreads).containsOnly(Thread.currentThread().getName());
+  }
+
+  private StaticValueTable createTable(int count) {
+    List<String> entities = Lists.newArrayList();
+    for(int i = 0; i < count; i++) {
+      entities.add("" + i);
+    }
+    StaticDatasource source = new StaticDatasource("source");
+    StaticValueTable table = new StaticValueTable(source, "table", entities);
+    table.addVariables(IntegerType.get(), "VAR");
+    for(String entity : entities) {
+      table.addValues(entity, "VAR", Integer.valueOf(entity));
+    }
+    source.addValueTable(table);
+    return table;
+  }
+
+  /**
+   * Records which threads wrote the value sets, writes to the underlying static tables are serialized.
+   */
+  private static class ConcurrentStaticDatasource extends StaticDatasource {
+
+    private final boolean concurrent;
+
+    private final Set<String> writtenEntities = Sets.newConcurrentHashSet();
+
+    private final Set<String> writerThreads = Sets.newConcurrentHashSet();
+
+    private ConcurrentStaticDatasource(boolean concurrent) {
+      super("destination");
+      this.concurrent = concurrent;
+    }
+
+    @Override
+    public boolean canWriteConcurrently() {
+      return concurrent;
+    }
+
+    @NotNull
+    @Override
+    public synchronized ValueTableWriter createWriter(@NotNull String tableName, @NotNull String entityType) {
+      final ValueTableWriter writer = super.createWriter(tableName, entityType);
+      return new ValueTableWriter() {
+        @Override
+        public VariableWriter writeVariables() {
+          return writer.writeVariables();
+        }
+
+        @NotNull
+        @Override
+        public ValueSetWriter writeValueSet(@NotNull final VariableEntity entity) {
+          writerThreads.add(Thread.currentThread().getName());
+          writtenEntities.add(entity.getIdentifier());
+          final ValueSetWriter valueSetWriter;
+          synchronized(ConcurrentStaticDatasource.this) {
+            valueSetWriter = writer.writeValueSet(entity);
+          }
+          return new ValueSetWriter() {
+            @Override
+            public void writeValue(@NotNull Variable variable, Value value) {
+              synchronized(ConcurrentStaticDatasource.this) {
+                valueSetWriter.writeValue(variable, value);
+              }
+            }
+
+            @Override
+            public void remove() {
+              valueSetWriter.remove();
+            }
+
+            @Override
+            public void close() {
+              valueSetWriter.close();
+            }
+          };
+        }
+
+        @Override
+        public void flush() {
+          writer.flush();
+        }
+
+        @Override
+        public void close() {
+          writer.close();
+        }
+      };
+    }
+  }
+}
@@ -0,0 +1,54 @@
+package org.obiba.magma.support;
+
+import java.util.List;
+import java.util.SortedSet;
+
+import org.junit.Test;
+import org.obiba.magma.Value;
+import org.obiba.magma.Variable;
+import org.obiba.magma.VariableEntity;
+import org.obiba.magma.test.AbstractMagmaTest;
+import org.obiba.magma.type.IntegerType;
+import org.obiba.magma.type.TextType;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+
+public class ValueMatricesTest extends AbstractMagmaTest {
+
+  @Test
+  public void test_value_matrix_is_entity_major() {
+    StaticValueTable table = new StaticValueTable(new StaticDatasource("ds"), "table", ImmutableList.of("1", "2"));
+    table.addVariables(IntegerType.get(), "INT");
+    table.addVariables(TextType.get(), "TXT");
+    table.addValues("1", "INT", 1, "TXT", "one");
+    table.addValues("2", "INT", 2, "TXT", "two");
+
+    SortedSet<VariableEntity> entities = Sets.<VariableEntity>newTreeSet(
+        ImmutableList.of(new VariableEntityBean("Participant", "2"), new VariableEntityBean("Participant", "1"),
+            new VariableEntityBean("Participant", "3")));
+    List<Variable> variables = ImmutableList.of(table.getVariable("TXT"), table.getVariable("INT"));
+
+    List<Value[]> rows = Lists.newArrayList(table.getValueMatrix(variables, entities));
+
+    assertThat(rows).hasSize(3);
+    assertThat(rows.get(0)).isEqualTo(new Value[] { TextType.get().valueOf("one"), IntegerType.get().valueOf(1) });
+    assertThat(rows.get(1)).isEqualTo(new Value[] { TextType.get().valueOf("two"), IntegerType.get().valueOf(2) });
+    assertThat(rows.get(2)).isEqualTo(new Value[] { TextType.get().nullValue(), IntegerType.get().nullValue() });
+  }
+
+  @Test
+  public void test_null_row() {
+    List<Variable> variables = ImmutableList.of( //
+        Variable.Builder.newVariable("A", IntegerType.get(), "Participant").build(),
+        Variable.Builder.newVariable("B", TextType.get(), "Participant").repeatable().build());
+
+    Value[] row = ValueMatrices.nullRow(variables);
+
+    assertThat(row[0]).isEqualTo(IntegerType.get().nullValue());
+    assertThat(row[1]).isEqualTo(TextType.get().nullSequence());
+  }
+}
@@ -0,0 +1,248 @@
+package org.obiba.magma.views;
+
+import java.util.Date;
+import java.util.SortedSet;
+import java.util.TreeSet;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.Nullable;
+import javax.validation.constraints.NotNull;
+
+import org.junit.Test;
+import org.obiba.magma.MagmaCacheExtension;
+import org.obiba.magma.MagmaEngine;
+import org.obiba.magma.Timestamps;
+import org.obiba.magma.TimestampsBean;
+import org.obiba.magma.ValueSet;
+import org.obiba.magma.ValueTable;
+import org.obiba.magma.VariableEntity;
+import org.obiba.magma.support.StaticDatasource;
+import org.obiba.magma.support.StaticValueTable;
+import org.obiba.magma.support.VariableEntityBean;
+import org.obiba.magma.test.AbstractMagmaTest;
+import org.obiba.magma.type.DateTimeType;
+import org.obiba.magma.type.IntegerType;
+import org.springframework.cache.concurrent.ConcurrentMapCache;
+import org.springframework.cache.support.SimpleCacheManager;
+
+import com.google.common.collect.ImmutableList;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+
+public class CachingWhereClauseTest extends AbstractMagmaTest {
+
+  private static final VariableEntity ONE = new VariableEntityBean("Participant", "1");
+
+  private static final VariableEntity TWO = new VariableEntityBean("Participant", "2");
+
+  @Test
+  public void test_results_are_cached_by_entity() {
+    CountingClause clause = new CountingClause();
+    View view = View.Builder.newView("view", createTable()).where(clause).cacheWhere().build();
+    CachingWhereClause cachingClause = (CachingWhereClause) view.getWhereClause();
+
+    for(int i = 0; i < 3; i++) {
+      assertThat(view.hasValueSet(ONE)).isTrue();
+      assertThat(view.hasValueSet(TWO)).isFalse();
+    }
+
+    assertThat(clause.count).isEqualTo(2);
+    assertThat(cachingClause.getMissCount()).isEqualTo(2);
+    assertThat(cachingClause.getHitCount()).isEqualTo(4);
+    assertThat(cachingClause.getSize()).isEqualTo(2);
+  }
+
+  @Test
+  public void test_results_are_evicted() {
+    CountingClause clause = new CountingClause();
+    View view = View.Builder.newView("view", createTable()).where(clause).cacheWhere(1, 1, TimeUnit.MINUTES).build();
+
+    view.hasValueSet(ONE);
+    view.hasValueSet(TWO);
+    view.hasValueSet(ONE);
+
+    assertThat(clause.count).isEqualTo(3);
+    assertThat(((CachingWhereClause) view.getWhereClause()).getSize()).isEqualTo(1);
+  }
+
+  @Test
+  public void test_entities_are_filtered_at_once_and_cached() {
+    CountingClause clause = new CountingClause();
+    View view = View.Builder.newView("view", createTable()).where(clause).cacheWhere().build();
+    CachingWhereClause cachingClause = (CachingWhereClause) view.getWhereClause();
+
+    assertThat(view.getVariableEntities()).containsOnly(ONE);
+    assertThat(clause.filtered).isEqualTo(2);
+    assertThat(clause.count).isEqualTo(0);
+
+    assertThat(view.hasValueSet(ONE)).isTrue();
+    assertThat(view.hasValueSet(TWO)).isFalse();
+    assertThat(clause.count).isEqualTo(0);
+    assertThat(cachingClause.getMissCount()).isEqualTo(2);
+    assertThat(cachingClause.getHitCount()).isEqualTo(2);
+  }
+
+  @Test
+  public void test_results_are_shared_by_clauses_of_the_same_definition_and_kept_on_dispose() {
+    ConcurrentMapCache cache = extendWithSharedCache();
+
+    StaticValueTable table = createTable();
+    CountingClause clause = new CacheableCountingClause();
+    View view = View.Builder.newView("view", table).where(clause).cacheWhere().build();
+    assertThat(view.hasValueSet(ONE)).isTrue();
+    assertThat(cache.getNativeCache()).hasSize(1);
+
+    CountingClause otherClause = new CacheableCountingClause();
+    View otherView = View.Builder.newView("view", table).where(otherClause).cacheWhere().build();
+    assertThat(otherView.hasValueSet(ONE)).isTrue();
+    assertThat(otherClause.count).isEqualTo(0);
+
+    ((CachingWhereClause) view.getWhereClause()).dispose();
+    assertThat(cache.getNativeCache()).hasSize(1);
+    assertThat(otherView.hasValueSet(ONE)).isTrue();
+    assertThat(otherClause.count).isEqualTo(0);
+  }
+
+  @Test
+  public void test_results_of_a_clause_are_evicted_from_the_shared_cache_on_dispose() {
+    ConcurrentMapCache cache = extendWithSharedCache();
+
+    View view = View.Builder.newView("view", createTable()).where(new CountingClause()).cacheWhere().build();
+    assertThat(view.hasValueSet(ONE)).isTrue();
+    assertThat(cache.getNativeCache()).hasSize(1);
+
+    ((CachingWhereClause) view.getWhereClause()).dispose();
+    assertThat(cache.getNativeCache()).isEmpty();
+  }
+
+  @Test
+  public void test_stale_result_is_evicted_from_the_shared_cache() {
+    ConcurrentMapCache cache = extendWithSharedCache();
+
+    final AtomicLong lastUpdate = new AtomicLong(1000);
+    StaticValueTable table = new StaticValueTable(new StaticDatasource("ds"), "table", ImmutableList.of("1", "2")) {
+      @NotNull
+      @Override
+      public Timestamps getTimestamps() {
+        return new TimestampsBean(DateTimeType.get().valueOf(new Date(0)),
+            DateTimeType.get().valueOf(new Date(lastUpdate.get())));
+      }
+    };
+    table.addVariables(IntegerType.get(), "INT");
+    CountingClause clause = new CacheableCountingClause();
+    View view = View.Builder.newView("view", table).where(clause).cacheWhere().build();
+    CachingWhereClause cachingClause = (CachingWhereClause) view.getWhereClause();
+
+    for(int i = 0; i < 3; i++) {
+      lastUpdate.addAndGet(1000);
+      assertThat(cachingClause.filter(table, new TreeSet<>(table.getVariableEntities()), view)).containsOnly(ONE);
+      assertThat(cache.getNativeCache()).hasSize(2);
+    }
+    assertThat(clause.filtered).isEqualTo(6);
+  }
+
+  @Test
+  public void test_clause_without_cache_key_is_not_cached() {
+    ConcurrentMapCache cache = extendWithSharedCache();
+
+    StaticValueTable table = createTable();
+    CountingClause clause = new CacheableCountingClause(null);
+    View view = View.Builder.newView("view", table).where(clause).cacheWhere().build();
+    CachingWhereClause cachingClause = (CachingWhereClause) view.getWhereClause();
+
+    for(int i = 0; i < 3; i++) {
+      assertThat(view.hasValueSet(ONE)).isTrue();
+      assertThat(cachingClause.filter(table, new TreeSet<>(table.getVariableEntities()), view)).containsOnly(ONE);
+    }
+    assertThat(clause.count).isEqualTo(3);
+    assertThat(clause.filtered).isEqualTo(6);
+    assertThat(cachingClause.getMissCount()).isEqualTo(0);
+    assertThat(cache.getNativeCache()).isEmpty();
+  }
+
+  @Test
+  public void test_last_update_is_read_once_for_successive_value_sets() {
+    final AtomicInteger timestampsCount = new AtomicInteger();
+    StaticValueTable table = new StaticValueTable(new StaticDatasource("ds"), "table", ImmutableList.of("1", "2")) {
+      @Override
+      public Timestamps getTimestamps() {
+        timestampsCount.incrementAndGet();
+        return super.getTimestamps();
+      }
+    };
+    table.addVariables(IntegerType.get(), "INT");
+    View view = View.Builder.newView("view", table).where(new CountingClause()).cacheWhere().build();
+
+    for(int i = 0; i < 3; i++) {
+      view.hasValueSet(ONE);
+      view.hasValueSet(TWO);
+    }
+    assertThat(timestampsCount.get()).isEqualTo(1);
+  }
+
+  private ConcurrentMapCache extendWithSharedCache() {
+    ConcurrentMapCache cache = new ConcurrentMapCache("magma-where-clause");
+    SimpleCacheManager cacheManager = new SimpleCacheManager();
+    cacheManager.setCaches(ImmutableList.of(cache));
+    cacheManager.afterPropertiesSet();
+    MagmaEngine.get().extend(new MagmaCacheExtension(cacheManager));
+    return cache;
+  }
+
+  private StaticValueTable createTable() {
+    StaticValueTable table = new StaticValueTable(new StaticDatasource("ds"), "table", ImmutableList.of("1", "2"));
+    table.addVariables(IntegerType.get(), "INT");
+    table.addValues("1", "INT", 1);
+    table.addValues("2", "INT", 2);
+    return table;
+  }
+
+  private static class CacheableCountingClause extends CountingClause implements CacheableWhereClause {
+
+    @Nullable
+    private final String cacheKey;
+
+    private CacheableCountingClause() {
+      this("counting");
+    }
+
+    private CacheableCountingClause(@Nullable String cacheKey) {
+      this.cacheKey = cacheKey;
+    }
+
+    @Nullable
+    @Override
+    public String getCacheKey() {
+      return cacheKey;
+    }
+  }
+
+  private static class CountingClause implements BatchWhereClause {
+
+    private int count;
+
+    private int filtered;
+
+    @Override
+    public boolean where(ValueSet valueSet) {
+      count++;
+      return !TWO.equals(valueSet.getVariableEntity());
+    }
+
+    @Override
+    public boolean where(ValueSet valueSet, View view) {
+      return where(valueSet);
+    }
+
+    @Override
+    public SortedSet<VariableEntity> filter(ValueTable valueTable, SortedSet<VariableEntity> entities,
+        @Nullable View view) {
+      filtered += entities.size();
+      SortedSet<VariableEntity> selected = new TreeSet<>(entities);
+      selected.remove(TWO);
+      return selected;
+    }
+  }
+}
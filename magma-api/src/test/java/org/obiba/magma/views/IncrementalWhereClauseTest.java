@@ -9,6 +9,10 @@
  ******************************************************************************/
 package org.obiba.magma.views;
 
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedSet;
+
 import javax.validation.constraints.NotNull;
 
 import org.easymock.EasyMock;
@@ -18,10 +22,18 @@ import org.obiba.magma.Value;
 import org.obiba.magma.ValueSet;
 import org.obiba.magma.ValueTable;
 import org.obiba.magma.VariableEntity;
+import org.obiba.magma.support.CompactVariableEntitySet;
+import org.obiba.magma.support.StaticDatasource;
+import org.obiba.magma.support.StaticValueTable;
+import org.obiba.magma.support.UpdatedVariableEntityProvider;
 import org.obiba.magma.support.VariableEntityBean;
 import org.obiba.magma.test.AbstractMagmaTest;
 import org.obiba.magma.type.DateTimeType;
 
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Maps;
+
 import static org.fest.assertions.api.Assertions.assertThat;
 
 /**
@@ -46,6 +58,39 @@ public class IncrementalWhereClauseTest extends AbstractMagmaTest {
     assertThat(test("2011-11-25T12:30Z", null)).isTrue();
   }
 
+  @Test
+  public void test_filter_compares_timestamps_at_once() {
+    TimestampedTable source = new TimestampedTable("1", "2", "3", "4");
+    source.setLastUpdate("1", "2011-11-25T12:30Z").setLastUpdate("2", "2011-11-25T12:30Z")
+        .setLastUpdate("3", "2011-11-25T12:30Z");
+    TimestampedTable destination = new TimestampedTable("1", "2", "3");
+    destination.setLastUpdate("1", "2011-11-24T12:30Z").setLastUpdate("2", "2011-11-26T12:30Z")
+        .setLastUpdate("3", "2011-11-26T12:30Z");
+
+    View view = View.Builder.newView("view", source).where(new IncrementalWhereClause(destination)).build();
+
+    assertThat(view.getVariableEntities()).containsOnly(new VariableEntityBean("P", "1"),
+        new VariableEntityBean("P", "4"));
+    assertThat(source.bulkReads).isEqualTo(1);
+    assertThat(destination.bulkReads).isEqualTo(1);
+  }
+
+  @Test
+  public void test_filter_compares_updated_entities_only() {
+    UpdatedTable source = new UpdatedTable("1", "2", "3");
+    source.setLastUpdate("1", "2011-11-25T12:30Z").setLastUpdate("2", "2011-11-23T12:30Z")
+        .setLastUpdate("3", "2011-11-27T12:30Z");
+    TimestampedTable destination = new TimestampedTable("1", "2", "3");
+    destination.setLastUpdate("1", "2011-11-24T12:30Z").setLastUpdate("2", "2011-11-24T12:30Z")
+        .setLastUpdate("3", "2011-11-26T12:30Z");
+
+    SortedSet<VariableEntity> included = new IncrementalWhereClause(destination)
+        .filter(source, CompactVariableEntitySet.copyOf(source.getVariableEntities()), null);
+
+    assertThat(included).containsOnly(new VariableEntityBean("P", "1"), new VariableEntityBean("P", "3"));
+    assertThat(source.comparedEntities).isEqualTo(2);
+  }
+
   private boolean test(String source, String other) {
     ValueTable destination = EasyMock.createMock(ValueTable.class);
     EasyMock.expect(destination.hasValueSet(entity)).andReturn(other != null).anyTimes();
@@ -90,4 +135,63 @@ public class IncrementalWhereClauseTest extends AbstractMagmaTest {
 
     };
   }
+
+  private static class TimestampedTable extends StaticValueTable {
+
+    private final Map<VariableEntity, Timestamps> timestamps = Maps.newHashMap();
+
+    int bulkReads;
+
+    int comparedEntities;
+
+    private TimestampedTable(String... entities) {
+      super(new StaticDatasource("ds"), "t", ImmutableList.copyOf(entities), "P");
+    }
+
+    TimestampedTable setLastUpdate(String identifier, final String updated) {
+      timestamps.put(new VariableEntityBean("P", identifier), new Timestamps() {
+
+        @NotNull
+        @Override
+        public Value getLastUpdate() {
+          return DateTimeType.get().valueOf(updated);
+        }
+
+        @NotNull
+        @Override
+        public Value getCreated() {
+          return DateTimeType.get().nullValue();
+        }
+      });
+      return this;
+    }
+
+    @Override
+    public Timestamps getValueSetTimestamps(VariableEntity entity) {
+      return timestamps.get(entity);
+    }
+
+    @Override
+    public Iterable<Timestamps> getValueSetTimestamps(SortedSet<VariableEntity> entities) {
+      bulkReads++;
+      comparedEntities += entities.size();
+      return super.getValueSetTimestamps(entities);
+    }
+  }
+
+  private static class UpdatedTable extends TimestampedTable implements UpdatedVariableEntityProvider {
+
+    private UpdatedTable(String... entities) {
+      super(entities);
+    }
+
+    @Override
+    public Set<VariableEntity> getUpdatedVariableEntities(@NotNull Value since) {
+      ImmutableSet.Builder<VariableEntity> updated = ImmutableSet.builder();
+      for(VariableEntity entity : getVariableEntities()) {
+        if(getValueSetTimestamps(entity).getLastUpdate().compareTo(since) > 0) updated.add(entity);
+      }
+      return updated.build();
+    }
+  }
 }
@@ -2,6 +2,7 @@ package org.obiba.magma.views;
 
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Date;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
@@ -9,15 +10,22 @@ import java.util.Set;
 import org.junit.Test;
 import org.obiba.magma.NoSuchValueSetException;
 import org.obiba.magma.NoSuchVariableException;
+import org.obiba.magma.Timestamps;
+import org.obiba.magma.TimestampsBean;
 import org.obiba.magma.ValueSet;
 import org.obiba.magma.ValueTable;
 import org.obiba.magma.Variable;
 import org.obiba.magma.VariableEntity;
 import org.obiba.magma.VariableValueSource;
+import org.obiba.magma.support.NullTimestamps;
+import org.obiba.magma.support.StaticDatasource;
+import org.obiba.magma.support.StaticValueTable;
 import org.obiba.magma.support.VariableEntityBean;
 import org.obiba.magma.test.AbstractMagmaTest;
+import org.obiba.magma.type.DateTimeType;
 import org.obiba.magma.type.TextType;
 
+import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.Iterables;
 import com.google.common.collect.Lists;
@@ -214,6 +222,38 @@ public class JoinTableTest extends AbstractMagmaTest {
     assertThat(joinTable.getValueSet(newEntity("2"))).isNotNull();
   }
 
+  @Test
+  public void test_join_index_answers_without_probing_tables() {
+    VersionedTable first = new VersionedTable("first", "1", "2");
+    first.addValues("1", "var1", "1-1").addValues("2", "var1", "2-1");
+    VersionedTable second = new VersionedTable("second", "2", "3");
+    second.addValues("2", "var2", "2-2").addValues("3", "var2", "3-2");
+    JoinTable joinTable = new JoinTable(ImmutableList.<ValueTable>of(first, second));
+
+    assertThat(joinTable.getVariableEntities()).containsOnly(newEntity("1"), newEntity("2"), newEntity("3"));
+    assertThat(joinTable.getVariableEntityCount()).isEqualTo(3);
+    assertThat(joinTable.getValueSetCount()).isEqualTo(3);
+    assertThat(joinTable.hasValueSet(newEntity("3"))).isTrue();
+    assertThat(joinTable.hasValueSet(newEntity("4"))).isFalse();
+    assertThat(joinTable.getValue(joinTable.getVariable("var1"), joinTable.getValueSet(newEntity("1"))).toString())
+        .isEqualTo("1-1");
+    assertThat(joinTable.getValue(joinTable.getVariable("var2"), joinTable.getValueSet(newEntity("3"))).toString())
+        .isEqualTo("3-2");
+    assertThat(joinTable.getValue(joinTable.getVariable("var2"), joinTable.getValueSet(newEntity("1"))).isNull())
+        .isTrue();
+    assertThat(first.hasValueSetCount + second.hasValueSetCount).isEqualTo(0);
+    assertThat(first.getVariableEntitiesCount).isEqualTo(1);
+    // once per pass over the entities, single entities rely on the last check
+    assertThat(first.getTimestampsCount).isEqualTo(3);
+
+    // an update of an inner table invalidates the index on next pass
+    first.lastUpdate = new Date(first.lastUpdate.getTime() + 1000);
+    assertThat(joinTable.getVariableEntityCount()).isEqualTo(3);
+    assertThat(first.getVariableEntitiesCount).isEqualTo(2);
+    assertThat(joinTable.hasValueSet(newEntity("1"))).isTrue();
+    assertThat(first.hasValueSetCount).isEqualTo(0);
+  }
+
   //TODO testGetValue but hard to test with mockups
   // @Test
 //  public void testGetValue() {
@@ -243,6 +283,40 @@ public class JoinTableTest extends AbstractMagmaTest {
   // Helper Methods
   //
 
+  private static class VersionedTable extends StaticValueTable {
+
+    private Date lastUpdate = new Date();
+
+    private int hasValueSetCount;
+
+    private int getVariableEntitiesCount;
+
+    private int getTimestampsCount;
+
+    private VersionedTable(String name, String... entities) {
+      super(new StaticDatasource("ds"), name, ImmutableList.copyOf(entities), PARTICIPANT_ENTITY_TYPE);
+      addVariables(TextType.get(), "var1", "var2");
+    }
+
+    @Override
+    public Timestamps getTimestamps() {
+      getTimestampsCount++;
+      return new TimestampsBean(DateTimeType.get().valueOf(lastUpdate), DateTimeType.get().valueOf(lastUpdate));
+    }
+
+    @Override
+    public boolean hasValueSet(VariableEntity entity) {
+      hasValueSetCount++;
+      return super.hasValueSet(entity);
+    }
+
+    @Override
+    public Set<VariableEntity> getVariableEntities() {
+      getVariableEntitiesCount++;
+      return super.getVariableEntities();
+    }
+  }
+
   static class JoinTableBuilder {
 
     private final List<ValueTable> mocks = new ArrayList<>();
@@ -303,6 +377,7 @@ public class JoinTableTest extends AbstractMagmaTest {
       expect(builder.mock.getEntityType()).andReturn(entityType).anyTimes();
       expect(builder.mock.isForEntityType(entityType)).andReturn(true).anyTimes();
       expect(builder.mock.getVariables()).andReturn(builder.variables).anyTimes();
+      expect(builder.mock.getTimestamps()).andReturn(NullTimestamps.get()).anyTimes();
       return builder;
     }
 
@@ -2,6 +2,7 @@ package org.obiba.magma.datasource.generated;
 
 import java.util.Collection;
 import java.util.Collections;
+import java.util.List;
 import java.util.Map;
 import java.util.NoSuchElementException;
 import java.util.Set;
@@ -22,6 +23,7 @@ import org.obiba.magma.ValueTable;
 import org.obiba.magma.Variable;
 import org.obiba.magma.VariableEntity;
 import org.obiba.magma.VariableValueSource;
+import org.obiba.magma.support.ValueMatrices;
 import org.obiba.magma.support.VariableEntityBean;
 import org.obiba.magma.type.DateTimeType;
 
@@ -146,6 +148,11 @@ public class GeneratedValueTable implements ValueTable {
     });
   }
 
+  @Override
+  public Iterable<Value[]> getValueMatrix(List<Variable> variables, SortedSet<VariableEntity> entities) {
+    return ValueMatrices.fromSources(this, variables, entities);
+  }
+
   @Override
   public Iterable<ValueSet> getValueSets() {
     return Iterables.transform(entities, new Function<VariableEntity, ValueSet>() {
@@ -0,0 +1,116 @@
+package org.obiba.magma.datasource.csv;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import javax.validation.constraints.NotNull;
+
+import org.obiba.magma.VariableEntity;
+import org.obiba.magma.support.VariableEntityBean;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Sidecar file persisting the byte offsets of the records of a csv data file, so that the data file is not scanned on
+ * each initialisation. The index is used only if the data file still has the length and last modification time it had
+ * when the index was built, and if the index was built with the same parsing settings (the signature).
+ */
+class CsvIndexFile {
+
+  private static final Logger log = LoggerFactory.getLogger(CsvIndexFile.class);
+
+  static final String EXTENSION = ".idx";
+
+  private static final int VERSION = 2;
+
+  @NotNull
+  private final File file;
+
+  @NotNull
+  private final File dataFile;
+
+  CsvIndexFile(@NotNull File dataFile) {
+    this.dataFile = dataFile;
+    file = new File(dataFile.getParentFile(), dataFile.getName() + EXTENSION);
+  }
+
+  @NotNull
+  File getFile() {
+    return file;
+  }
+
+  /**
+   * Reads the index if it is valid for the data file in its current state.
+   *
+   * @return false if the index does not exist or is stale, in which case {@code headerMap} and {@code entityIndex} are
+   * left untouched
+   */
+  boolean read(String signature, String entityType, Map<String, Integer> headerMap,
+      Map<VariableEntity, CsvIndexEntry> entityIndex) {
+    if(!file.exists()) return false;
+    try(DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+      if(in.readInt() != VERSION || in.readLong() != dataFile.length() || in.readLong() != dataFile.lastModified() ||
+          !in.readUTF().equals(signature)) {
+        return false;
+      }
+      Map<String, Integer> header = new LinkedHashMap<>();
+      for(int i = in.readInt(); i > 0; i--) {
+        header.put(in.readUTF(), in.readInt());
+      }
+      Map<VariableEntity, CsvIndexEntry> entries = new LinkedHashMap<>();
+      for(int i = in.readInt(); i > 0; i--) {
+        entries.put(new VariableEntityBean(entityType, in.readUTF()), new CsvIndexEntry(in.readLong(), in.readLong()));
+      }
+      headerMap.putAll(header);
+      entityIndex.putAll(entries);
+      return true;
+    } catch(IOException e) {
+      log.debug("Ignoring unreadable csv index file {}", file, e);
+      return false;
+    }
+  }
+
+  /**
+   * Writes the index of the data file. {@code length} and {@code lastModified} are the ones of the data file when it
+   * was scanned, so that changes made during the scan invalidate the index. Failures are logged only, as the data file
+   * can still be scanned on next initialisation.
+   */
+  void write(long length, long lastModified, String signature, Map<String, Integer> headerMap,
+      Map<VariableEntity, CsvIndexEntry> entityIndex) {
+    try(DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)))) {
+      out.writeInt(VERSION);
+      out.writeLong(length);
+      out.writeLong(lastModified);
+      out.writeUTF(signature);
+      out.writeInt(headerMap.size());
+      for(Map.Entry<String, Integer> entry : headerMap.entrySet()) {
+        out.writeUTF(entry.getKey());
+        out.writeInt(entry.getValue());
+      }
+      out.writeInt(entityIndex.size());
+      for(Map.Entry<VariableEntity, CsvIndexEntry> entry : entityIndex.entrySet()) {
+        out.writeUTF(entry.getKey().getIdentifier());
+        out.writeLong(entry.getValue().getStart());
+        out.writeLong(entry.getValue().getEnd());
+      }
+    } catch(IOException e) {
+      log.debug("Unable to write csv index file {}", file, e);
+      delete();
+    }
+  }
+
+  void delete() {
+    if(file.exists() && !file.delete()) {
+      log.warn("Unable to delete stale csv index file {}", file);
+    }
+  }
+
+}
@@ -32,46 +32,46 @@ public class CsvValueSet extends ValueSetBean {
   }
 
   public Value getValue(Variable variable) {
-    Value value = variable.getValueType().nullValue();
     Integer pos = headerMap.get(variable.getName());
-    if(pos != null && pos < line.length) {
-      String strValue = line[pos];
-      if(strValue.length() > 0) {
-        try {
-          value = getValue(variable, strValue);
-        } catch(MagmaRuntimeException e) {
-          throw new DatasourceParsingException(
-              "Unable to get value for entity " + getVariableEntity().getIdentifier() + " and variable " +
-                  variable.getName() + ": " + e.getMessage(), e, "CsvUnableToGetVariableValueForEntity",
-              getVariableEntity().getIdentifier(), variable.getName(), e.getMessage());
-        }
+    return getValue((CsvValueTable) getValueTable(), getVariableEntity(), variable,
+        pos != null && pos < line.length ? line[pos] : null);
+  }
+
+  /**
+   * Converts the string value read in the data file of {@code table}.
+   */
+  static Value getValue(CsvValueTable table, VariableEntity entity, Variable variable, @Nullable String strValue) {
+    Value value = variable.getValueType().nullValue();
+    if(strValue != null && strValue.length() > 0) {
+      try {
+        value = getValue(table.getParentFile(), variable, strValue);
+      } catch(MagmaRuntimeException e) {
+        throw new DatasourceParsingException(
+            "Unable to get value for entity " + entity.getIdentifier() + " and variable " + variable.getName() + ": " +
+                e.getMessage(), e, "CsvUnableToGetVariableValueForEntity", entity.getIdentifier(), variable.getName(),
+            e.getMessage());
       }
     }
     return value;
   }
 
-  private Value getValue(Variable variable, String strValue) {
+  private static Value getValue(@Nullable File parentFile, Variable variable, String strValue) {
     return variable.getValueType().equals(BinaryType.get()) //
-        ? getBinaryValue(variable, strValue) //
+        ? getBinaryValue(parentFile, variable, strValue) //
         : getAnyTypeValue(variable, strValue);
   }
 
-  private Value getAnyTypeValue(Variable variable, String strValue) {
+  private static Value getAnyTypeValue(Variable variable, String strValue) {
     return variable.isRepeatable() //
         ? variable.getValueType().sequenceOf(strValue) //
         : variable.getValueType().valueOf(strValue);
   }
 
-  private Value getBinaryValue(Variable variable, String strValue) {
-    ValueLoaderFactory factory = new BinaryValueStreamLoaderFactory(getParentFile());
+  private static Value getBinaryValue(@Nullable File parentFile, Variable variable, String strValue) {
+    ValueLoaderFactory factory = new BinaryValueStreamLoaderFactory(parentFile);
     return variable.isRepeatable() //
         ? BinaryType.get().sequenceOfReferences(factory, strValue) //
         : BinaryType.get().valueOfReference(factory, strValue);
   }
 
-  @Nullable
-  private File getParentFile() {
-    return ((CsvValueTable) getValueTable()).getParentFile();
-  }
-
 }
@@ -5,15 +5,22 @@ import java.io.IOException;
 import java.io.RandomAccessFile;
 import java.io.Reader;
 import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.NoSuchElementException;
 import java.util.Set;
+import java.util.SortedSet;
 
 import javax.annotation.Nullable;
 import javax.validation.constraints.NotNull;
@@ -25,6 +32,7 @@ import org.obiba.magma.MagmaRuntimeException;
 import org.obiba.magma.NoSuchValueSetException;
 import org.obiba.magma.NoSuchVariableException;
 import org.obiba.magma.Timestamps;
+import org.obiba.magma.Value;
 import org.obiba.magma.ValueSet;
 import org.obiba.magma.ValueTable;
 import org.obiba.magma.Variable;
@@ -33,6 +41,7 @@ import org.obiba.magma.datasource.csv.converter.VariableConverter;
 import org.obiba.magma.datasource.csv.support.BufferedReaderEolSupport;
 import org.obiba.magma.support.AbstractValueTable;
 import org.obiba.magma.support.DatasourceParsingException;
+import org.obiba.magma.support.ValueMatrices;
 import org.obiba.magma.support.VariableEntityBean;
 import org.obiba.magma.support.VariableEntityProvider;
 import org.obiba.magma.type.TextType;
@@ -40,7 +49,10 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Function;
 import com.google.common.base.Strings;
+import com.google.common.collect.Iterables;
+import com.google.common.collect.Iterators;
 
 import au.com.bytecode.opencsv.CSVParser;
 import au.com.bytecode.opencsv.CSVReader;
@@ -55,6 +67,11 @@ public class CsvValueTable extends AbstractValueTable implements Initialisable,
 
   public static final byte NEWLINE_CHARACTER = '\n';
 
+  /**
+   * Size of the read-ahead buffer used when records are read in file order.
+   */
+  private static final int SCAN_BUFFER_SIZE = 1 << 20;
+
   private static final Logger log = LoggerFactory.getLogger(CsvValueTable.class);
 
   private ValueTable refTable;
@@ -91,6 +108,11 @@ public class CsvValueTable extends AbstractValueTable implements Initialisable,
 
   private final CsvTimestamps timestamps;
 
+  @Nullable
+  private FileChannel dataChannel;
+
+  private boolean dataIndexFileStale;
+
   public CsvValueTable(Datasource datasource, String name, File dataFile, String entityType) {
     this(datasource, name, null, dataFile, entityType);
   }
@@ -129,10 +151,153 @@ public class CsvValueTable extends AbstractValueTable implements Initialisable,
     if(indexEntry == null) {
       throw new NoSuchValueSetException(this, entity);
     }
-    try(Reader reader = getCsvDatasource().getReader(dataFile)) {
-      CSVReader csvReader = getCsvDatasource().getCsvReader(reader);
-      skipSafely(reader, indexEntry.getStart());
-      return new CsvValueSet(this, entity, dataHeaderMap, csvReader.readNext());
+    try {
+      return new CsvValueSet(this, entity, dataHeaderMap, readRecord(new DataReader(getDataChannel()), indexEntry));
+    } catch(IOException e) {
+      throw new MagmaRuntimeException(e);
+    }
+  }
+
+  /**
+   * Scans the data file once, in file order, instead of reading each value set separately.
+   */
+  @Override
+  public Iterable<ValueSet> getValueSets() {
+    return new Iterable<ValueSet>() {
+      @Override
+      public Iterator<ValueSet> iterator() {
+        return new ValueSetScanIterator();
+      }
+    };
+  }
+
+  @Override
+  public Iterable<Value[]> getValueMatrix(final List<Variable> variables, final SortedSet<VariableEntity> entities) {
+    // read each record once for all the variables, vector sources would scan the data file once per variable
+    return new Iterable<Value[]>() {
+      @Override
+      public Iterator<Value[]> iterator() {
+        final DataReader reader = newDataReader(false);
+        return Iterators.transform(entities.iterator(), new Function<VariableEntity, Value[]>() {
+          @Override
+          public Value[] apply(VariableEntity entity) {
+            CsvIndexEntry indexEntry = entityIndex.get(entity);
+            if(indexEntry == null) return ValueMatrices.nullRow(variables);
+            CsvValueSet valueSet = new CsvValueSet(CsvValueTable.this, entity, dataHeaderMap,
+                readRecord(reader, indexEntry));
+            Value[] row = new Value[variables.size()];
+            for(int i = 0; i < row.length; i++) {
+              row[i] = valueSet.getValue(variables.get(i));
+            }
+            return row;
+          }
+        });
+      }
+    };
+  }
+
+  /**
+   * Reads the values of a variable for the given entities by scanning the data file once, in file order.
+   */
+  Iterable<Value> getValues(final Variable variable, final SortedSet<VariableEntity> entities) {
+    return new Iterable<Value>() {
+      @Override
+      public Iterator<Value> iterator() {
+        final Map<VariableEntity, String> column = readColumn(variable, entities);
+        return Iterators.transform(entities.iterator(), new Function<VariableEntity, Value>() {
+          @Override
+          public Value apply(VariableEntity entity) {
+            return CsvValueSet.getValue(CsvValueTable.this, entity, variable, column.get(entity));
+          }
+        });
+      }
+    };
+  }
+
+  private Map<VariableEntity, String> readColumn(Variable variable, SortedSet<VariableEntity> entities) {
+    Map<VariableEntity, String> column = new HashMap<>();
+    Integer pos = dataHeaderMap.get(variable.getName());
+    if(pos == null || entities.isEmpty()) return column;
+    DataReader reader = newDataReader(true);
+    for(Map.Entry<VariableEntity, CsvIndexEntry> entry : entityIndex.entrySet()) {
+      if(entities.contains(entry.getKey())) {
+        String[] record = readRecord(reader, entry.getValue());
+        if(pos < record.length) column.put(entry.getKey(), record[pos]);
+      }
+    }
+    return column;
+  }
+
+  private DataReader newDataReader(boolean sequential) {
+    try {
+      return sequential ? new DataReader(getDataChannel(), SCAN_BUFFER_SIZE) : new DataReader(getDataChannel());
+    } catch(IOException e) {
+      throw new MagmaRuntimeException(e);
+    }
+  }
+
+  /**
+   * Returns the channel shared by all value set reads. Reads are positional, so the channel may be used concurrently.
+   */
+  private synchronized FileChannel getDataChannel() throws IOException {
+    if(dataChannel == null) {
+      if(dataFile == null) {
+        throw new MagmaRuntimeException("Cannot read from null data file for table " + getName());
+      }
+      dataChannel = FileChannel.open(dataFile.toPath(), StandardOpenOption.READ);
+    }
+    return dataChannel;
+  }
+
+  /**
+   * Reads the record that starts at the byte offset of the index entry. The end of the entry is only used as a size
+   * hint: entries added by {@link CsvValueTableWriter} estimate it, so the read is extended until the record is complete.
+   */
+  private String[] readRecord(DataReader reader, CsvIndexEntry indexEntry) {
+    Charset charset = Charset.forName(getCharacterSet());
+    // make room for a line terminator not accounted for in the entry
+    int size = (int) (indexEntry.getEnd() - indexEntry.getStart()) + 2;
+    try {
+      while(true) {
+        ByteBuffer buffer = reader.read(indexEntry.getStart(), size);
+        boolean eof = buffer.remaining() < size;
+        String[] record = parseRecord(charset.decode(buffer), eof);
+        if(record != null) return record;
+        size *= 2;
+      }
+    } catch(IOException e) {
+      throw new MagmaRuntimeException(e);
+    }
+  }
+
+  /**
+   * Parses the first record of {@code text}, possibly spanning several lines.
+   *
+   * @param complete true if {@code text} reaches the end of the file
+   * @return null if {@code text} does not hold the whole record
+   */
+  @Nullable
+  private String[] parseRecord(CharSequence text, boolean complete) {
+    CSVParser parser = getCsvDatasource().getCsvParser();
+    List<String> values = new ArrayList<>();
+    int lineStart = 0;
+    for(int i = 0; i < text.length(); i++) {
+      char c = text.charAt(i);
+      if(c == '\n' || c == '\r') {
+        Collections.addAll(values, parseLine(parser, text.subSequence(lineStart, i)));
+        if(!parser.isPending()) return values.toArray(new String[values.size()]);
+        if(c == '\r' && i + 1 < text.length() && text.charAt(i + 1) == '\n') i++;
+        lineStart = i + 1;
+      }
+    }
+    if(!complete) return null;
+    Collections.addAll(values, parseLine(parser, text.subSequence(lineStart, text.length())));
+    return values.toArray(new String[values.size()]);
+  }
+
+  private String[] parseLine(CSVParser parser, CharSequence line) {
+    try {
+      return parser.parseLineMulti(line.toString());
     } catch(IOException e) {
       throw new MagmaRuntimeException(e);
     }
@@ -150,7 +315,15 @@ public class CsvValueTable extends AbstractValueTable implements Initialisable,
   }
 
   @Override
-  public void dispose() {
+  public synchronized void dispose() {
+    if(dataChannel != null) {
+      try {
+        dataChannel.close();
+      } catch(IOException e) {
+        log.warn("Unable to close data file of table {}", getName(), e);
+      }
+      dataChannel = null;
+    }
   }
 
   private void initialiseVariables() throws IOException {
@@ -173,7 +346,7 @@ public class CsvValueTable extends AbstractValueTable implements Initialisable,
           // skip first header as it's the participant ID
           for(int i = 1; i < line.length; i++) {
             String variableName = line[i].trim();
-            addVariableValueSource(new CsvVariableValueSource(Variable.Builder
+            addVariableValueSource(new CsvVariableValueSource(this, Variable.Builder
                 .newVariable(variableName, TextType.get(), entityType == null ? DEFAULT_ENTITY_TYPE : entityType)
                 .build()));
           }
@@ -230,7 +403,7 @@ public class CsvValueTable extends AbstractValueTable implements Initialisable,
       // update only variable that was in data file
       if(hasVariable(variableName)) {
         removeVariableValueSource(variableName);
-        addVariableValueSource(new CsvVariableValueSource(var));
+        addVariableValueSource(new CsvVariableValueSource(this, var));
       }
       nextLine = variableReader.readNext();
     }
@@ -242,7 +415,7 @@ public class CsvValueTable extends AbstractValueTable implements Initialisable,
       // update only variable that was in data file
       if(hasVariable(var.getName())) {
         removeVariableValueSource(var.getName());
-        addVariableValueSource(new CsvVariableValueSource(var));
+        addVariableValueSource(new CsvVariableValueSource(this, var));
       }
     }
     missingVariableNames = getMissingVariableNames();
@@ -264,7 +437,46 @@ public class CsvValueTable extends AbstractValueTable implements Initialisable,
   }
 
   private void initialiseData() throws IOException {
+    if(dataFile == null || !dataFile.exists()) {
+      buildDataLineIndex();
+      return;
+    }
+    CsvIndexFile indexFile = new CsvIndexFile(dataFile);
+    String signature = getDataIndexSignature();
+    Map<String, Integer> headerMap = new HashMap<>();
+    if(indexFile.read(signature, entityType, headerMap, entityIndex)) {
+      log.debug("Read index of {} from {}", dataFile.getName(), indexFile.getFile().getName());
+      isDataFileEmpty = dataFile.length() == 0;
+      if(!dataHeaderMapInitialized && !headerMap.isEmpty()) {
+        dataHeaderMap.putAll(headerMap);
+        dataHeaderMapInitialized = true;
+      }
+      return;
+    }
+    long length = dataFile.length();
+    long lastModified = dataFile.lastModified();
     buildDataLineIndex();
+    indexFile.write(length, lastModified, signature, dataHeaderMap, entityIndex);
+  }
+
+  /**
+   * The settings the data index depends on.
+   */
+  private String getDataIndexSignature() {
+    CsvDatasource datasource = getCsvDatasource();
+    return datasource.getCharacterSet() + datasource.getSeparator().getCharacter() +
+        datasource.getQuote().getCharacter() + datasource.getFirstRow() + ":" + entityType;
+  }
+
+  /**
+   * The persisted data index does not account for changes made by this table: delete it so that it gets rebuilt on next
+   * initialisation.
+   */
+  private void invalidateDataIndexFile() {
+    if(!dataIndexFileStale && dataFile != null) {
+      new CsvIndexFile(dataFile).delete();
+      dataIndexFileStale = true;
+    }
   }
 
   @NotNull
@@ -318,24 +530,37 @@ public class CsvValueTable extends AbstractValueTable implements Initialisable,
     }
 
     CSVParser parser = getCsvDatasource().getCsvParser();
+    Charset charset = Charset.forName(getCharacterSet());
+    boolean singleByteCharset = charset.newEncoder().maxBytesPerChar() <= 1;
+    // size of an encoded '\r' or '\n', without the byte order mark some charsets prepend
+    int eolBytes = "\n\n".getBytes(charset).length - "\n".getBytes(charset).length;
 
     try(BufferedReaderEolSupport reader = new BufferedReaderEolSupport(getCsvDatasource().getReader(dataFile))) {
       int line = 0;
       int innerline = 0;
       long start = 0;
+      // the reader counts characters, the index holds byte offsets
+      long charPosition = 0;
+      long bytePosition = 0;
       String nextLine = null;
       List<String> multiLineValues = new ArrayList<>();
       while((nextLine = reader.readLine()) != null) {
         if(isDataFileEmpty) isDataFileEmpty = false;
 
+        long cursorPosition = reader.getCursorPosition();
+        // the cursor is past the line terminator characters that were read, whether '\n', '\r\n' or blank lines
+        long eolChars = cursorPosition - charPosition - nextLine.length();
+        bytePosition += singleByteCharset
+            ? cursorPosition - charPosition
+            : nextLine.getBytes(charset).length + eolChars * eolBytes;
+        charPosition = cursorPosition;
+
         String[] values = parser.parseLineMulti(nextLine);
         Collections.addAll(multiLineValues, values);
         if(parser.isPending()) {
           // we are in a multiline entry
           innerline++;
         } else {
-          long cursorPosition = reader.getCursorPosition();
-
           int lineNumber = line - innerline;
           if(lineNumber >= getCsvDatasource().getFirstRow()) {
             log.trace("[{}:{}] {}", dataFile.getName(), lineNumber, nextLine);
@@ -344,7 +569,7 @@ public class CsvValueTable extends AbstractValueTable implements Initialisable,
               throw new MagmaRuntimeException(
                   "Cannot find identifier for line " + line + " in file " + dataFile.getName());
             }
-            CsvIndexEntry indexEntry = new CsvIndexEntry(start, cursorPosition);
+            CsvIndexEntry indexEntry = new CsvIndexEntry(start, bytePosition);
             lineNumberMap.put(lineNumber, indexEntry);
             entityIndex.put(new VariableEntityBean(entityType, identifier), indexEntry);
           } else if(!dataHeaderMapInitialized) {
@@ -356,13 +581,13 @@ public class CsvValueTable extends AbstractValueTable implements Initialisable,
           }
           multiLineValues.clear();
           innerline = 0;
-          start = cursorPosition;
+          start = bytePosition;
         }
         line++;
       }
     }
 
-    if(log.isTraceEnabled()) traceLineNumberMap(lineNumberMap, dataFile);
+    if(log.isTraceEnabled()) traceDataIndex();
 
     return lineNumberMap;
   }
@@ -384,6 +609,15 @@ public class CsvValueTable extends AbstractValueTable implements Initialisable,
     }
   }
 
+  private void traceDataIndex() throws IOException {
+    try(FileChannel channel = FileChannel.open(dataFile.toPath(), StandardOpenOption.READ)) {
+      for(Map.Entry<VariableEntity, CsvIndexEntry> entry : entityIndex.entrySet()) {
+        log.trace("{}: {}", entry.getKey().getIdentifier(), entry.getValue());
+        log.trace("   '{}'", Arrays.toString(readRecord(new DataReader(channel), entry.getValue())));
+      }
+    }
+  }
+
   public void clear(@NotNull File file, CsvIndexEntry indexEntry) throws IOException {
     try(RandomAccessFile raf = new RandomAccessFile(file, "rws")) {
       int length = (int) (indexEntry.getEnd() - indexEntry.getStart());
@@ -400,6 +634,7 @@ public class CsvValueTable extends AbstractValueTable implements Initialisable,
     }
     CsvIndexEntry indexEntry = entityIndex.get(entity);
     if(indexEntry != null) {
+      invalidateDataIndexFile();
       clear(dataFile, indexEntry);
       entityIndex.remove(entity);
     }
@@ -418,6 +653,87 @@ public class CsvValueTable extends AbstractValueTable implements Initialisable,
     }
   }
 
+  /**
+   * Iterates over the value sets in file order, reading the data file through a read-ahead buffer.
+   */
+  private class ValueSetScanIterator implements Iterator<ValueSet> {
+
+    private final Iterator<Map.Entry<VariableEntity, CsvIndexEntry>> entries = entityIndex.entrySet().iterator();
+
+    @Nullable
+    private DataReader reader;
+
+    @Override
+    public boolean hasNext() {
+      return entries.hasNext();
+    }
+
+    @Override
+    public ValueSet next() {
+      if(!hasNext()) throw new NoSuchElementException();
+      Map.Entry<VariableEntity, CsvIndexEntry> entry = entries.next();
+      if(reader == null) reader = newDataReader(true);
+      return new CsvValueSet(CsvValueTable.this, entry.getKey(), dataHeaderMap, readRecord(reader, entry.getValue()));
+    }
+
+    @Override
+    public void remove() {
+      throw new UnsupportedOperationException();
+    }
+  }
+
+  /**
+   * Positional reads of the data file. When a buffer size is given, reads are served from a buffer that is refilled
+   * from the requested position when it does not hold the requested bytes, so that reading records in file order
+   * reads the file once.
+   */
+  private static class DataReader {
+
+    private final FileChannel channel;
+
+    @Nullable
+    private final ByteBuffer buffer;
+
+    private long bufferStart;
+
+    private DataReader(FileChannel channel) {
+      this.channel = channel;
+      buffer = null;
+    }
+
+    private DataReader(FileChannel channel, int bufferSize) {
+      this.channel = channel;
+      buffer = ByteBuffer.allocate(bufferSize);
+      buffer.flip();
+    }
+
+    /**
+     * @return the bytes from {@code position}, less than {@code size} only if the end of the file is reached
+     */
+    private ByteBuffer read(long position, int size) throws IOException {
+      if(buffer == null || size > buffer.capacity()) {
+        return fill(ByteBuffer.allocate(size), position);
+      }
+      if(position < bufferStart || position + size > bufferStart + buffer.limit()) {
+        buffer.clear();
+        fill(buffer, position);
+        bufferStart = position;
+      }
+      ByteBuffer bytes = buffer.duplicate();
+      bytes.position((int) (position - bufferStart));
+      bytes.limit(Math.min(bytes.position() + size, buffer.limit()));
+      return bytes;
+    }
+
+    private ByteBuffer fill(ByteBuffer bytes, long position) throws IOException {
+      while(bytes.hasRemaining()) {
+        if(channel.read(bytes, position + bytes.position()) < 0) break;
+      }
+      bytes.flip();
+      return bytes;
+    }
+  }
+
   private class CSVVariableEntityProvider implements VariableEntityProvider {
 
     @NotNull
@@ -527,12 +843,13 @@ public class CsvValueTable extends AbstractValueTable implements Initialisable,
 
   public void updateDataIndex(VariableEntity entity, long lastByte, String... line) {
     log.trace("entityIndex: {}", entityIndex);
+    invalidateDataIndexFile();
     entityIndex.put(entity, new CsvIndexEntry(lastByte, lastByte + lineLength(line)));
   }
 
   public void updateVariableIndex(Variable variable, long lastByte, String... line) {
     variableNameIndex.put(variable.getName(), new CsvIndexEntry(lastByte, lastByte + lineLength(line)));
-    addVariableValueSource(new CsvVariableValueSource(variable));
+    addVariableValueSource(new CsvVariableValueSource(this, variable));
   }
 
   private int lineLength(String... line) {
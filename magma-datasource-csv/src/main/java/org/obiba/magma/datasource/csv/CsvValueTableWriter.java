@@ -43,6 +43,10 @@ public class CsvValueTableWriter implements ValueTableWriter {
     return new CsvVariableWriter();
   }
 
+  @Override
+  public void flush() {
+  }
+
   @Override
   public void close() {
   }
@@ -1,5 +1,8 @@
 package org.obiba.magma.datasource.csv;
 
+import java.util.SortedSet;
+
+import javax.annotation.Nullable;
 import javax.validation.constraints.NotNull;
 
 import org.obiba.magma.AbstractVariableValueSource;
@@ -7,6 +10,7 @@ import org.obiba.magma.Value;
 import org.obiba.magma.ValueSet;
 import org.obiba.magma.ValueType;
 import org.obiba.magma.Variable;
+import org.obiba.magma.VariableEntity;
 import org.obiba.magma.VariableValueSource;
 import org.obiba.magma.VectorSource;
 import org.obiba.magma.VectorSourceNotSupportedException;
@@ -18,11 +22,22 @@ import org.obiba.magma.VectorSourceNotSupportedException;
  * <li>When the variables provided are a reference from another table</li>
  * </ol>
  */
-public class CsvVariableValueSource extends AbstractVariableValueSource implements VariableValueSource {
+public class CsvVariableValueSource extends AbstractVariableValueSource implements VariableValueSource, VectorSource {
+
+  @Nullable
+  private final CsvValueTable valueTable;
 
   private final Variable variable;
 
   public CsvVariableValueSource(Variable variable) {
+    this(null, variable);
+  }
+
+  /**
+   * @param valueTable the table whose data file is read by the vector source, vectors are not supported if null
+   */
+  public CsvVariableValueSource(@Nullable CsvValueTable valueTable, Variable variable) {
+    this.valueTable = valueTable;
     this.variable = variable;
   }
 
@@ -46,13 +61,20 @@ public class CsvVariableValueSource extends AbstractVariableValueSource implemen
 
   @Override
   public boolean supportVectorSource() {
-    return false;
+    return valueTable != null;
   }
 
   @NotNull
   @Override
   public VectorSource asVectorSource() {
-    throw new VectorSourceNotSupportedException(getClass());
+    if(valueTable == null) throw new VectorSourceNotSupportedException(getClass());
+    return this;
+  }
+
+  @Override
+  public Iterable<Value> getValues(SortedSet<VariableEntity> entities) {
+    if(valueTable == null) throw new VectorSourceNotSupportedException(getClass());
+    return valueTable.getValues(variable, entities);
   }
 
   @Override
@@ -315,7 +315,7 @@ public class BufferedReaderEolSupport extends Reader {
 
           // Skip leftover '\n' or '\r', if necessary
           if(nextChar >= nChars) fill();
-          while(nextChar < cb.length && (cb[nextChar] == '\n' || cb[nextChar] == '\r')) {
+          while(nextChar < nChars && (cb[nextChar] == '\n' || cb[nextChar] == '\r')) {
             nextChar++;
             if(nextChar >= nChars) fill();
           }
@@ -2,8 +2,13 @@ package org.obiba.magma.datasource.csv;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Locale;
 import java.util.Map;
+import java.util.SortedSet;
+import java.util.TreeSet;
 
 import org.apache.commons.io.FileUtils;
 import org.junit.Test;
@@ -16,6 +21,7 @@ import org.obiba.magma.ValueSet;
 import org.obiba.magma.ValueTable;
 import org.obiba.magma.Variable;
 import org.obiba.magma.VariableEntity;
+import org.obiba.magma.VectorSource;
 import org.obiba.magma.datasource.csv.support.Quote;
 import org.obiba.magma.datasource.csv.support.Separator;
 import org.obiba.magma.support.DatasourceParsingException;
@@ -557,6 +563,98 @@ public class CsvDatasourceTest extends AbstractMagmaTest {
     assertEolValue(table, "5", "Nero", "NERO CLAVDIVS CAESAR AVGVSTVS GERMANICVS");
   }
 
+  @Test
+  public void test_data_index_file() throws IOException {
+    File dataFile = File.createTempFile("magma", "test-index");
+    dataFile.deleteOnExit();
+    File indexFile = new CsvIndexFile(dataFile).getFile();
+    indexFile.deleteOnExit();
+    FileUtils.writeStringToFile(dataFile, "entity_id,Name\n1,\"H\u00e9l\u00e8ne\"\n2,\"Zo\u00eb\"\n", "utf-8");
+
+    assertIndexedValue(dataFile, "2", "Zo\u00eb");
+    assertThat(indexFile.exists()).isTrue();
+
+    // same length and last modification time: offsets are read from the index file
+    long lastModified = dataFile.lastModified();
+    FileUtils.writeStringToFile(dataFile, "entity_id,Name\n1,\"H\u00e9l\u00e8ne\"\n3,\"Zo\u00eb\"\n", "utf-8");
+    assertThat(dataFile.setLastModified(lastModified)).isTrue();
+    assertIndexedValue(dataFile, "2", "Zo\u00eb");
+
+    // data file has changed: index is rebuilt
+    FileUtils.writeStringToFile(dataFile,
+        "entity_id,Name\n1,\"H\u00e9l\u00e8ne\"\n3,\"Zo\u00eb\"\n4,\"\u00c8ve\"\n", "utf-8");
+    assertIndexedValue(dataFile, "4", "\u00c8ve");
+  }
+
+  @Test
+  public void test_data_index_file_with_crlf() throws IOException {
+    File dataFile = File.createTempFile("magma", "test-index-crlf");
+    dataFile.deleteOnExit();
+    new CsvIndexFile(dataFile).getFile().deleteOnExit();
+    // enough records for line terminators to be split between reader buffers
+    StringBuilder data = new StringBuilder("entity_id,Name\r\n");
+    for(int i = 0; i < 2000; i++) {
+      data.append(i).append(",\"H\u00e9l\u00e8ne\r\n").append(i).append("\"\r\n");
+    }
+    FileUtils.writeStringToFile(dataFile, data.toString(), "utf-8");
+
+    for(int i = 0; i < 2000; i += 99) {
+      assertIndexedValue(dataFile, String.valueOf(i), "H\u00e9l\u00e8ne\n" + i);
+    }
+  }
+
+  private void assertIndexedValue(File dataFile, String entityId, String name) {
+    CsvDatasource datasource = new CsvDatasource("csv-datasource")
+        .addValueTable("Table1", dataFile, DEFAULT_ENTITY_TYPE);
+    datasource.initialise();
+    ValueTable table = datasource.getValueTable("Table1");
+    VariableEntity entity = new VariableEntityBean(DEFAULT_ENTITY_TYPE, entityId);
+    assertThat(table.hasValueSet(entity)).isTrue();
+    assertThat(table.getValue(table.getVariable("Name"), table.getValueSet(entity)).getValue()).isEqualTo(name);
+    datasource.dispose();
+  }
+
+  @Test
+  public void test_scan_and_vector_read() throws IOException {
+    File dataFile = File.createTempFile("magma", "test-scan");
+    dataFile.deleteOnExit();
+    new CsvIndexFile(dataFile).getFile().deleteOnExit();
+    FileUtils.writeStringToFile(dataFile, "entity_id,Name,\"Complete name\"\n" + //
+        "4,Claudius,\"TIBERIVS CLAVDIVS CAESAR AVGVSTVS GERMANICVS\"\n\n" + //
+        "1,Augustus,\"GAIVS IVLIVS \nCAESAR OCTAVIANVS\"\n" + //
+        "3,Caligula,\"GAIVS IVLIVS CAESAR AVGVSTVS GERMANICVS\"\r\n" + //
+        "2,Tiberius,\"TIBERIVS IVLIVS CAESAR AVGVSTVS\"\r" + //
+        "5,Nero,\"NERO CLAVDIVS CAESAR AVGVSTVS GERMANICVS\"", "utf-8");
+
+    CsvDatasource datasource = new CsvDatasource("csv-datasource")
+        .addValueTable("Table1", dataFile, DEFAULT_ENTITY_TYPE);
+    datasource.initialise();
+    ValueTable table = datasource.getValueTable("Table1");
+
+    List<String> identifiers = new ArrayList<>();
+    for(ValueSet valueSet : table.getValueSets()) {
+      identifiers.add(valueSet.getVariableEntity().getIdentifier());
+      ValueSet single = table.getValueSet(valueSet.getVariableEntity());
+      for(Variable variable : table.getVariables()) {
+        assertThat(table.getValue(variable, valueSet)).isEqualTo(table.getValue(variable, single));
+      }
+    }
+    assertThat(identifiers).containsExactly("4", "1", "3", "2", "5");
+
+    SortedSet<VariableEntity> entities = new TreeSet<>(table.getVariableEntities());
+    entities.add(new VariableEntityBean(DEFAULT_ENTITY_TYPE, "6"));
+    VectorSource vector = table.getVariableValueSource("Complete name").asVectorSource();
+    Iterator<VariableEntity> entityIterator = entities.iterator();
+    for(Value value : vector.getValues(entities)) {
+      VariableEntity entity = entityIterator.next();
+      assertThat(value).isEqualTo(table.hasValueSet(entity) //
+          ? table.getValue(table.getVariable("Complete name"), table.getValueSet(entity)) //
+          : TextType.get().nullValue());
+    }
+    assertThat(entityIterator.hasNext()).isFalse();
+    datasource.dispose();
+  }
+
   private void assertEolVariable(ValueTable table, String name) {
     Variable variable = table.getVariable(name);
     assertThat(variable).isNotNull();
@@ -32,6 +32,10 @@ public class ExcelValueTableWriter implements ValueTableWriter {
     return new ExcelValueSetWriter(entity);
   }
 
+  @Override
+  public void flush() {
+  }
+
   @Override
   public void close() {
   }
@@ -46,6 +46,10 @@ class FsValueTableWriter implements ValueTableWriter {
     }
   }
 
+  @Override
+  public void flush() {
+  }
+
   @Override
   public void close() {
   }
@@ -53,6 +53,12 @@ public class HibernateDatasource extends AbstractDatasource {
 
   public static final String TYPE = "hibernate";
 
+  /**
+   * Hibernate property that enables the per-variable chunks of values, read instead of the value rows when all the
+   * values of a variable are read. False by default.
+   */
+  public static final String VALUE_CHUNKS = "magma.hibernate.value_chunks";
+
   private final SessionFactory sessionFactory;
 
   private Serializable datasourceId;
@@ -152,6 +158,7 @@ public class HibernateDatasource extends AbstractDatasource {
     deleteValueSets(tableFullName, session,
         session.getNamedQuery("findValueSetIdsByTableId").setParameter("valueTableId", tableState.getId()).list());
 
+    valueTable.getValueChunks().deleteTable();
     deleteTableVariables(tableFullName, tableState, session);
 
     session.delete(tableState);
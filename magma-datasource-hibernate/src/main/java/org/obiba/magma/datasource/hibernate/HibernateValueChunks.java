@@ -0,0 +1,296 @@
+package org.obiba.magma.datasource.hibernate;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.Serializable;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.annotation.Nullable;
+
+import org.hibernate.ScrollMode;
+import org.hibernate.ScrollableResults;
+import org.hibernate.Session;
+import org.hibernate.criterion.Projections;
+import org.hibernate.criterion.Restrictions;
+import org.hibernate.engine.spi.SessionFactoryImplementor;
+import org.obiba.magma.MagmaRuntimeException;
+import org.obiba.magma.Value;
+import org.obiba.magma.ValueType;
+import org.obiba.magma.datasource.hibernate.domain.ValueChunkState;
+import org.obiba.magma.datasource.hibernate.domain.ValueSetState;
+import org.obiba.magma.datasource.hibernate.domain.VariableState;
+import org.obiba.magma.datasource.hibernate.type.CompactValueCodec;
+import org.obiba.magma.type.BinaryType;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.SetMultimap;
+import com.google.common.collect.Sets;
+
+/**
+ * Maintains and reads the {@link ValueChunkState}s of a {@code HibernateValueTable}: the values of each variable,
+ * packed by blocks of {@value #BLOCK_SIZE} value set ids, so that the values of a variable are read from a few rows
+ * instead of one row per value set.
+ * <p/>
+ * Chunks are written and maintained when the Hibernate property {@value HibernateDatasource#VALUE_CHUNKS} is true.
+ * The chunks of the values written by a {@code HibernateValueTableWriter} are always deleted. A chunk holds the number
+ * of value sets of its block when it was written, and the chunks of a variable are read only when each of them still
+ * has the number of value sets of its block and they hold all the value sets of the table: the blocks written before
+ * the property was enabled, or of which value sets were added or removed while it was disabled, are read from the
+ * values until they are written again.
+ */
+class HibernateValueChunks {
+
+  private static final Logger log = LoggerFactory.getLogger(HibernateValueChunks.class);
+
+  /**
+   * Number of consecutive value set ids of which the values are packed in the same chunk.
+   */
+  static final int BLOCK_SIZE = 1000;
+
+  /**
+   * Maximum number of variables whose chunks are written by the same query.
+   */
+  private static final int VARIABLE_CHUNK_SIZE = 500;
+
+  private final HibernateValueTable valueTable;
+
+  HibernateValueChunks(HibernateValueTable valueTable) {
+    this.valueTable = valueTable;
+  }
+
+  static int getBlock(Serializable valueSetId) {
+    return (int) (((Number) valueSetId).longValue() / BLOCK_SIZE);
+  }
+
+  boolean isEnabled() {
+    return Boolean.parseBoolean(((SessionFactoryImplementor) valueTable.getDatasource().getSessionFactory()) //
+        .getProperties().getProperty(HibernateDatasource.VALUE_CHUNKS));
+  }
+
+  /**
+   * Reads the values of a variable from its chunks.
+   *
+   * @param identifiers identifiers of the entities of which the values are read
+   * @return the non-null values of these entities by identifier, or null if the chunks are disabled or do not cover all
+   * the value sets of the table
+   */
+  @Nullable
+  Map<String, Value> read(Serializable variableId, ValueType valueType, Set<String> identifiers) {
+    if(!isEnabled() || BinaryType.get().equals(valueType) ||
+        valueTable.getDatasource().hasTableTransaction(valueTable.getName())) {
+      return null;
+    }
+    Session session = getCurrentSession();
+    if(!isCovered(session, variableId)) return null;
+    Map<String, Value> values = Maps.newHashMap();
+    ScrollableResults chunks = session.getNamedQuery("findValueChunksByVariableId") //
+        .setParameter("variableId", variableId) //
+        .scroll(ScrollMode.FORWARD_ONLY);
+    try {
+      while(chunks.next()) {
+        unpack((byte[]) chunks.get(1), valueType, identifiers, values);
+      }
+    } finally {
+      chunks.close();
+    }
+    return values;
+  }
+
+  /**
+   * Returns true if each chunk of the variable still has the number of value sets of its block, and these chunks hold
+   * all the value sets of the table.
+   */
+  private boolean isCovered(Session session, Serializable variableId) {
+    Number chunkCount = (Number) session.getNamedQuery("countValueChunksByVariableId") //
+        .setParameter("variableId", variableId) //
+        .uniqueResult();
+    Object[] covering = (Object[]) session.getNamedQuery("countCoveringValueChunksByVariableId") //
+        .setParameter("variableId", variableId) //
+        .setParameter("blockSize", BLOCK_SIZE) //
+        .uniqueResult();
+    int coveringCount = ((Number) covering[0]).intValue();
+    int covered = covering[1] == null ? 0 : ((Number) covering[1]).intValue();
+    int valueSetCount = valueTable.getValueSetCount();
+    if(coveringCount != chunkCount.intValue() || covered != valueSetCount) {
+      log.debug("Chunks of variable {} in {}: {} of {} chunks cover {} of {} value sets", variableId,
+          valueTable.getName(), coveringCount, chunkCount, covered, valueSetCount);
+      return false;
+    }
+    return true;
+  }
+
+  /**
+   * Deletes the chunks of the given variables in the given blocks, and writes them again from the values if chunks are
+   * enabled. The session is flushed and cleared.
+   *
+   * @param variableNamesByBlock names of the variables of which the values were modified, by block
+   * @param grownBlocks blocks to which value sets were added: if chunks are enabled, the chunks of all the variables are
+   * written again, as they no longer cover their block
+   */
+  void write(SetMultimap<Integer, String> variableNamesByBlock, Set<Integer> grownBlocks) {
+    if(variableNamesByBlock.isEmpty() && grownBlocks.isEmpty()) return;
+    Session session = getCurrentSession();
+    session.flush();
+
+    Map<String, VariableState> variables = Maps.newLinkedHashMap();
+    for(VariableState state : valueTable.getValueTableState().getVariables()) {
+      if(state.getId() != null) variables.put(state.getName(), state);
+    }
+    boolean enabled = isEnabled();
+    Set<Integer> blocks = enabled
+        ? Sets.union(variableNamesByBlock.keySet(), grownBlocks)
+        : variableNamesByBlock.keySet();
+    for(Integer block : blocks) {
+      List<VariableState> states = Lists.newArrayList();
+      if(enabled && grownBlocks.contains(block)) {
+        states.addAll(variables.values());
+      } else {
+        for(String name : variableNamesByBlock.get(block)) {
+          if(variables.containsKey(name)) states.add(variables.get(name));
+        }
+      }
+      int valueSetCount = enabled ? countValueSets(session, block) : 0;
+      for(List<VariableState> chunk : Lists.partition(states, VARIABLE_CHUNK_SIZE)) {
+        List<Serializable> variableIds = Lists.newArrayList();
+        for(VariableState state : chunk) {
+          variableIds.add(state.getId());
+        }
+        session.getNamedQuery("deleteValueChunksByBlockAndVariableIds") //
+            .setParameter("block", block) //
+            .setParameterList("variableIds", variableIds) //
+            .executeUpdate();
+        if(enabled) writeBlock(session, block, valueSetCount, chunk);
+      }
+    }
+    log.debug("Wrote chunks of {} blocks of {}", blocks.size(), valueTable.getName());
+
+    session.flush();
+    session.clear();
+  }
+
+  /**
+   * Removes a value set from the value set count of the chunks of its block. The chunks of the variables that had a
+   * value in this value set must be written again.
+   */
+  void removeValueSet(Serializable valueSetId) {
+    if(!isEnabled()) return;
+    getCurrentSession().getNamedQuery("decrementValueChunkValueSetCountsByBlock") //
+        .setParameter("valueTableId", valueTable.getValueTableId()) //
+        .setParameter("block", getBlock(valueSetId)) //
+        .executeUpdate();
+  }
+
+  void deleteVariable(Serializable variableId) {
+    if(!isEnabled()) return;
+    getCurrentSession().getNamedQuery("deleteValueChunksByVariableId") //
+        .setParameter("variableId", variableId) //
+        .executeUpdate();
+  }
+
+  void deleteTable() {
+    if(!isEnabled()) return;
+    int deleted = getCurrentSession().getNamedQuery("deleteValueChunksByTableId") //
+        .setParameter("valueTableId", valueTable.getValueTableId()) //
+        .executeUpdate();
+    log.debug("Deleted {} value chunks from {}", deleted, valueTable.getName());
+  }
+
+  private int countValueSets(Session session, int block) {
+    long firstId = (long) block * BLOCK_SIZE;
+    return ((Number) session.createCriteria(ValueSetState.class) //
+        .setProjection(Projections.rowCount()) //
+        .add(Restrictions.eq("valueTable.id", valueTable.getValueTableId())) //
+        .add(Restrictions.between("id", firstId, firstId + BLOCK_SIZE - 1)) //
+        .uniqueResult()).intValue();
+  }
+
+  @SuppressWarnings("unchecked")
+  private void writeBlock(Session session, int block, int valueSetCount, List<VariableState> states) {
+    Map<Serializable, Map<String, Value>> valuesByVariableId = Maps.newHashMap();
+    Map<Serializable, ValueType> valueTypes = Maps.newHashMap();
+    for(VariableState state : states) {
+      if(BinaryType.get().equals(state.getValueType())) continue;
+      valuesByVariableId.put(state.getId(), Maps.<String, Value>newHashMap());
+      valueTypes.put(state.getId(), state.getValueType());
+    }
+    if(valuesByVariableId.isEmpty()) return;
+
+    long firstId = (long) block * BLOCK_SIZE;
+    for(Object[] row : (List<Object[]>) session.getNamedQuery("allValuesOfVariablesInBlock") //
+        .setParameter("valueTableId", valueTable.getValueTableId()) //
+        .setParameter("firstId", firstId) //
+        .setParameter("lastId", firstId + BLOCK_SIZE - 1) //
+        .setParameterList("variableIds", valuesByVariableId.keySet()) //
+        .list()) {
+      Map<String, Value> values = valuesByVariableId.get((Serializable) row[1]);
+      Value value = (Value) row[2];
+      if(values == null) continue;
+      if(value.getValueType().equals(valueTypes.get((Serializable) row[1]))) {
+        values.put((String) row[0], value);
+      } else {
+        // a chunk is decoded with the type of its variable, let the values be read from their rows
+        valuesByVariableId.put((Serializable) row[1], null);
+      }
+    }
+
+    for(Map.Entry<Serializable, Map<String, Value>> entry : valuesByVariableId.entrySet()) {
+      if(entry.getValue() == null) continue;
+      session.save(new ValueChunkState((Long) valueTable.getValueTableId(), (Long) entry.getKey(), block, valueSetCount,
+          pack(entry.getValue())));
+    }
+  }
+
+  /**
+   * Packs values as their count followed by each entity identifier and value encoded by {@link CompactValueCodec}.
+   */
+  static byte[] pack(Map<String, Value> values) {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    try(DataOutputStream out = new DataOutputStream(bytes)) {
+      out.writeInt(values.size());
+      for(Map.Entry<String, Value> entry : values.entrySet()) {
+        byte[] encoded = CompactValueCodec.encode(entry.getValue());
+        out.writeUTF(entry.getKey());
+        out.writeInt(encoded.length);
+        out.write(encoded);
+      }
+    } catch(IOException e) {
+      throw new MagmaRuntimeException(e);
+    }
+    return bytes.toByteArray();
+  }
+
+  /**
+   * Unpacks the values of the given entities, the values of the other entities are skipped without being decoded.
+   */
+  static void unpack(byte[] packed, ValueType valueType, Set<String> identifiers, Map<String, Value> values) {
+    try(DataInputStream in = new DataInputStream(new ByteArrayInputStream(packed))) {
+      int size = in.readInt();
+      for(int i = 0; i < size; i++) {
+        String identifier = in.readUTF();
+        int length = in.readInt();
+        if(identifiers.contains(identifier)) {
+          byte[] encoded = new byte[length];
+          in.readFully(encoded);
+          values.put(identifier, CompactValueCodec.decode(valueType, encoded));
+        } else {
+          in.skipBytes(length);
+        }
+      }
+    } catch(IOException e) {
+      throw new MagmaRuntimeException(e);
+    }
+  }
+
+  private Session getCurrentSession() {
+    return valueTable.getDatasource().getSessionFactory().getCurrentSession();
+  }
+
+}
@@ -3,8 +3,8 @@ package org.obiba.magma.datasource.hibernate;
 import java.io.Serializable;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.Date;
 import java.util.Iterator;
-import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.NoSuchElementException;
@@ -28,6 +28,8 @@ import org.obiba.core.service.impl.hibernate.AssociationCriteria;
 import org.obiba.core.service.impl.hibernate.AssociationCriteria.Operation;
 import org.obiba.magma.Datasource;
 import org.obiba.magma.Initialisable;
+import org.obiba.magma.MagmaCacheExtension;
+import org.obiba.magma.MagmaEngine;
 import org.obiba.magma.NoSuchValueSetException;
 import org.obiba.magma.NoSuchVariableException;
 import org.obiba.magma.Timestamps;
@@ -46,30 +48,52 @@ import org.obiba.magma.datasource.hibernate.domain.ValueTableState;
 import org.obiba.magma.datasource.hibernate.domain.VariableState;
 import org.obiba.magma.support.AbstractValueTable;
 import org.obiba.magma.support.AbstractVariableEntityProvider;
+import org.obiba.magma.support.CompactVariableEntitySet;
 import org.obiba.magma.support.NullTimestamps;
+import org.obiba.magma.support.UpdatedVariableEntityProvider;
 import org.obiba.magma.support.ValueSetBean;
+import org.obiba.magma.support.VariableEntitiesCache;
 import org.obiba.magma.support.VariableEntityBean;
 import org.obiba.magma.type.DateTimeType;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.cache.Cache;
 
 import com.google.common.base.Predicate;
 import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.ImmutableSortedSet;
 import com.google.common.collect.Iterables;
+import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
 
 @SuppressWarnings("OverlyCoupledClass")
-class HibernateValueTable extends AbstractValueTable {
+class HibernateValueTable extends AbstractValueTable implements UpdatedVariableEntityProvider {
 
   private static final Logger log = LoggerFactory.getLogger(HibernateValueTable.class);
 
+  /**
+   * Maximum number of variables whose values are read by the same query.
+   */
+  private static final int VARIABLE_CHUNK_SIZE = 500;
+
+  /**
+   * Number of value sets read by the same query when the table is scanned.
+   */
+  private static final int VALUE_SET_BATCH_SIZE = 100;
+
   private final Serializable valueTableId;
 
   private final HibernateVariableEntityProvider variableEntityProvider;
 
   private Map<String, Timestamps> valueSetTimestamps;
 
+  private final ValueSetPrefetch valueSetPrefetch = new ValueSetPrefetch();
+
+  private final HibernateValueChunks valueChunks = new HibernateValueChunks(this);
+
   HibernateValueTable(Datasource datasource, ValueTableState state) {
     super(datasource, state.getName());
     valueTableId = state.getId();
@@ -94,6 +118,10 @@ class HibernateValueTable extends AbstractValueTable {
     if(!hasValueSet(entity)) {
       throw new NoSuchValueSetException(this, entity);
     }
+    ValueSetState prefetched = valueSetPrefetch.get(entity);
+    if(prefetched != null) {
+      return new HibernateValueSet(entity, prefetched);
+    }
     AssociationCriteria criteria = AssociationCriteria
         .create(ValueSetState.class, getDatasource().getSessionFactory().getCurrentSession())
         .add("valueTable.id", Operation.eq, valueTableId)
@@ -115,10 +143,12 @@ class HibernateValueTable extends AbstractValueTable {
     getDatasource().deleteValueSets(getDatasource().getName() + "." + getName(), session,
         session.getNamedQuery("findValueSetIdsByTableId").setParameter("valueTableId", getValueTableState().getId())
             .list());
+    valueChunks.deleteTable();
 
     session.buildLockRequest(new LockOptions(LockMode.PESSIMISTIC_FORCE_INCREMENT)).lock(getValueTableState());
 
-    variableEntityProvider.initialise();
+    valueSetPrefetch.clear();
+    variableEntityProvider.refresh();
   }
 
   @Override
@@ -154,14 +184,54 @@ class HibernateValueTable extends AbstractValueTable {
     };
   }
 
+  @Override
+  @SuppressWarnings("unchecked")
+  public Set<VariableEntity> getUpdatedVariableEntities(@NotNull Value since) {
+    Query query = getDatasource().getSessionFactory().getCurrentSession().createSQLQuery(
+        "SELECT ve.identifier FROM value_set vs, variable_entity ve " +
+            "WHERE ve.id = vs.variable_entity_id AND vs.value_table_id = :value_table_id AND ve.type = :entity_type " +
+            "AND (vs.updated > :since OR vs.updated IS NULL)") //
+        .setParameter("value_table_id", valueTableId) //
+        .setParameter("entity_type", getEntityType()) //
+        .setTimestamp("since", (Date) since.getValue());
+    ImmutableSet.Builder<VariableEntity> entities = ImmutableSet.builder();
+    for(String identifier : (List<String>) query.list()) {
+      entities.add(new VariableEntityBean(getEntityType(), identifier));
+    }
+    return entities.build();
+  }
+
+  @Override
+  public Iterable<Value[]> getValueMatrix(List<Variable> variables, final SortedSet<VariableEntity> entities) {
+    if(entities.isEmpty()) {
+      return ImmutableList.of();
+    }
+    final List<HibernateVariableValueSource> sources = Lists.newArrayListWithCapacity(variables.size());
+    for(Variable variable : variables) {
+      VariableValueSource source = getVariableValueSource(variable.getName());
+      if(!(source instanceof HibernateVariableValueSource)) {
+        return super.getValueMatrix(variables, entities);
+      }
+      sources.add((HibernateVariableValueSource) source);
+    }
+    return new Iterable<Value[]>() {
+      @Override
+      public Iterator<Value[]> iterator() {
+        return new ValueMatrixIterator(sources, entities);
+      }
+    };
+  }
+
   void dropValueSet(VariableEntity entity, Serializable valueSetId) {
     Session session = getDatasource().getSessionFactory().getCurrentSession();
 
     getDatasource()
         .deleteValueSets(getDatasource().getName() + "." + getName(), session, Collections.singleton(valueSetId));
+    valueChunks.removeValueSet(valueSetId);
 
     session.buildLockRequest(new LockOptions(LockMode.PESSIMISTIC_FORCE_INCREMENT)).lock(getValueTableState());
 
+    valueSetPrefetch.clear();
     variableEntityProvider.remove(entity);
   }
 
@@ -298,7 +368,9 @@ class HibernateValueTable extends AbstractValueTable {
   }
 
   void commitEntities(Collection<VariableEntity> newEntities) {
-    variableEntityProvider.entities.addAll(newEntities);
+    // values may have been written, prefetched value sets are outdated
+    valueSetPrefetch.clear();
+    variableEntityProvider.add(newEntities);
   }
 
   void commitSources(Collection<VariableValueSource> uncommittedSources) {
@@ -326,8 +398,13 @@ class HibernateValueTable extends AbstractValueTable {
     return valueTableId;
   }
 
+  HibernateValueChunks getValueChunks() {
+    return valueChunks;
+  }
+
   class HibernateValueSet extends ValueSetBean {
 
+    @Nullable
     private final Criteria valueSetCriteria;
 
     private ValueSetState valueSetState;
@@ -337,6 +414,12 @@ class HibernateValueTable extends AbstractValueTable {
       this.valueSetCriteria = valueSetCriteria;
     }
 
+    HibernateValueSet(VariableEntity entity, ValueSetState valueSetState) {
+      super(HibernateValueTable.this, entity);
+      valueSetCriteria = null;
+      this.valueSetState = valueSetState;
+    }
+
     synchronized ValueSetState getValueSetState() {
       if(valueSetState == null) {
         valueSetState = (ValueSetState) valueSetCriteria.uniqueResult();
@@ -359,30 +442,64 @@ class HibernateValueTable extends AbstractValueTable {
   }
 
   void refreshEntityProvider() {
-    ((HibernateVariableEntityProvider)getVariableEntityProvider()).initialise();
+    variableEntityProvider.refresh();
   }
 
+  /**
+   * The entities of the table, read with a scrolling projection of their type and identifier, and held in a compact
+   * set. When a {@link MagmaCacheExtension} provides the {@code magma-table-entities} cache, the set is shared there,
+   * by table id, until the table is updated.
+   */
   public class HibernateVariableEntityProvider extends AbstractVariableEntityProvider implements Initialisable {
 
-    private final Set<VariableEntity> entities = new LinkedHashSet<>();
+    /**
+     * Committed entities, replaced (never modified) when they change.
+     */
+    private volatile SortedSet<VariableEntity> entities = CompactVariableEntitySet.of();
+
+    /**
+     * Entities removed from the table since {@link #entities} was built. Guarded by this.
+     */
+    private final Set<VariableEntity> removedEntities = Sets.newHashSet();
 
     public HibernateVariableEntityProvider(String entityType) {
       super(entityType);
     }
 
+    /**
+     * Reads the entities from the shared cache if they are up to date, from the database otherwise.
+     */
     @Override
     public void initialise() {
-      log.debug("Populating entity cache for table {}", getName());
-      entities.clear();
-      // get the variable entities that have a value set in the table
-      AssociationCriteria criteria = AssociationCriteria
-          .create(ValueSetState.class, getDatasource().getSessionFactory().getCurrentSession())
-          .add("valueTable.id", Operation.eq, valueTableId);
-      for(Object obj : criteria.list()) {
-        VariableEntity entity = ((ValueSetState) obj).getVariableEntity();
-        entities.add(new VariableEntityBean(entity.getType(), entity.getIdentifier()));
+      ValueTableState tableState = getValueTableState();
+      Cache sharedCache = getSharedCache();
+      String cacheKey = getCacheKey();
+      if(sharedCache != null && tableState != null) {
+        Cache.ValueWrapper wrapper = sharedCache.get(cacheKey);
+        if(wrapper != null && ((VariableEntitiesCache) wrapper.get())
+            .isUpToDate(DateTimeType.get().valueOf(tableState.getUpdated()))) {
+          log.debug("Entities of table {} read from the shared cache", getName());
+          setEntities(CompactVariableEntitySet.copyOf(((VariableEntitiesCache) wrapper.get()).getEntities()));
+          return;
+        }
+      }
+
+      SortedSet<VariableEntity> loaded = refresh();
+      if(sharedCache != null && tableState != null) {
+        sharedCache.put(cacheKey, new VariableEntitiesCache(loaded, tableState.getUpdated().getTime()));
       }
-      log.debug("Populating entity cache - done. {} entities loaded.", entities.size());
+    }
+
+    /**
+     * Reads the entities from the database, ignoring the shared cache: the table may have been modified by the
+     * current transaction, while its updated timestamp is only changed on commit.
+     */
+    public SortedSet<VariableEntity> refresh() {
+      log.debug("Populating entity cache for table {}", getName());
+      SortedSet<VariableEntity> loaded = loadEntities();
+      log.debug("Populating entity cache - done. {} entities loaded.", loaded.size());
+      setEntities(loaded);
+      return loaded;
     }
 
     /**
@@ -392,16 +509,284 @@ class HibernateValueTable extends AbstractValueTable {
     @NotNull
     @Override
     public Set<VariableEntity> getVariableEntities() {
-      //TODO cache these entities instead of recreating an ImmutableSet each time
+      Set<VariableEntity> committed = getCommittedEntities();
       if(getDatasource().hasTableTransaction(getName())) {
-        return ImmutableSet.copyOf(
-            Iterables.concat(entities, getDatasource().getTableTransaction(getName()).getUncommittedEntities()));
+        return Sets.union(committed, getDatasource().getTableTransaction(getName()).getUncommittedEntities());
+      }
+      return committed;
+    }
+
+    public synchronized void remove(VariableEntity entity) {
+      removedEntities.add(entity);
+    }
+
+    private synchronized void add(Collection<VariableEntity> newEntities) {
+      if(newEntities.isEmpty()) return;
+      SortedSet<VariableEntity> committed = getCommittedEntities();
+      entities = CompactVariableEntitySet.union(committed, ImmutableSet.copyOf(newEntities));
+    }
+
+    private synchronized void setEntities(SortedSet<VariableEntity> loaded) {
+      removedEntities.clear();
+      entities = loaded;
+    }
+
+    /**
+     * Applies the pending removals, at once, before returning the committed entities.
+     */
+    private SortedSet<VariableEntity> getCommittedEntities() {
+      synchronized(this) {
+        if(!removedEntities.isEmpty()) {
+          entities = CompactVariableEntitySet.copyOf(Sets.difference(entities, removedEntities));
+          removedEntities.clear();
+        }
+      }
+      return entities;
+    }
+
+    @SuppressWarnings("unchecked")
+    private SortedSet<VariableEntity> loadEntities() {
+      List<String> identifiers = Lists.newArrayList();
+      ImmutableSortedSet.Builder<VariableEntity> otherTypes = null;
+      ScrollableResults results = getDatasource().getSessionFactory().getCurrentSession()
+          .getNamedQuery("findVariableEntitiesByTableId") //
+          .setParameter("valueTableId", valueTableId) //
+          .setReadOnly(true) //
+          .scroll(ScrollMode.FORWARD_ONLY);
+      try {
+        while(results.next()) {
+          String type = results.getString(0);
+          String identifier = results.getString(1);
+          if(getEntityType().equals(type)) {
+            identifiers.add(identifier);
+          } else {
+            if(otherTypes == null) otherTypes = ImmutableSortedSet.naturalOrder();
+            otherTypes.add(new VariableEntityBean(type, identifier));
+          }
+        }
+      } finally {
+        results.close();
+      }
+      CompactVariableEntitySet loaded = CompactVariableEntitySet.of(getEntityType(), identifiers);
+      return otherTypes == null ? loaded : loaded.union(otherTypes.build());
+    }
+
+    private String getCacheKey() {
+      return getDatasource().getName() + "." + getName() + ";class=" + HibernateValueTable.class.getName() + ";id=" +
+          valueTableId;
+    }
+
+    @Nullable
+    private Cache getSharedCache() {
+      if(!MagmaEngine.get().hasExtension(MagmaCacheExtension.class)) return null;
+      MagmaCacheExtension cacheExtension = MagmaEngine.get().getExtension(MagmaCacheExtension.class);
+      return cacheExtension.hasVariableEntitiesCache() ? cacheExtension.getVariableEntitiesCache() : null;
+    }
+  }
+
+  /**
+   * Reads ahead the value sets of the next entities when the table is scanned, i.e. when value sets are requested in
+   * the order of the entities, as {@link #getValueSets()} or concurrent readers do. The value sets of a block of
+   * entities are read with their values by one query, and shared by the threads reading the table. Single value set
+   * lookups are not read ahead.
+   */
+  private class ValueSetPrefetch {
+
+    /**
+     * The committed entities the positions refer to.
+     */
+    @Nullable
+    private CompactVariableEntitySet entities;
+
+    /**
+     * Position of the last entity that was not read ahead, -1 if none.
+     */
+    private int lastPosition = -1;
+
+    /**
+     * Position following the last block.
+     */
+    private int blockEnd = -1;
+
+    private Map<String, ValueSetState> block = ImmutableMap.of();
+
+    /**
+     * Returns the value set of the entity if it was read ahead, or if the table is being scanned.
+     */
+    @Nullable
+    synchronized ValueSetState get(VariableEntity entity) {
+      SortedSet<VariableEntity> committed = variableEntityProvider.getCommittedEntities();
+      // do not evict value sets that are being written in the current session
+      if(!(committed instanceof CompactVariableEntitySet) || getDatasource().hasTableTransaction(getName())) {
+        return null;
+      }
+      if(committed != entities) {
+        clear();
+        entities = (CompactVariableEntitySet) committed;
+      }
+      if(!getEntityType().equals(entity.getType())) return null;
+      ValueSetState state = block.get(entity.getIdentifier());
+      if(state != null) return state;
+
+      int position = entities.indexOf(entity);
+      if(position < 0) return null;
+      boolean scanning = position == lastPosition + 1 ||
+          position >= blockEnd && position < blockEnd + VALUE_SET_BATCH_SIZE;
+      lastPosition = position;
+      if(!scanning) return null;
+      blockEnd = position + readBlock(entity);
+      return block.get(entity.getIdentifier());
+    }
+
+    synchronized void clear() {
+      entities = null;
+      lastPosition = -1;
+      blockEnd = -1;
+      block = ImmutableMap.of();
+    }
+
+    /**
+     * @return the number of entities of the block
+     */
+    @SuppressWarnings("unchecked")
+    private int readBlock(VariableEntity first) {
+      List<String> identifiers = Lists.newArrayListWithCapacity(VALUE_SET_BATCH_SIZE);
+      for(VariableEntity entity : Iterables.limit(entities.tailSet(first), VALUE_SET_BATCH_SIZE)) {
+        identifiers.add(entity.getIdentifier());
+      }
+      Session session = getDatasource().getSessionFactory().getCurrentSession();
+      List<ValueSetState> states = session.getNamedQuery("findValueSetsByEntityIdentifiers") //
+          .setParameter("valueTableId", valueTableId) //
+          .setParameter("entityType", getEntityType()) //
+          .setParameterList("identifiers", identifiers) //
+          .list();
+      Map<String, ValueSetState> read = Maps.newHashMapWithExpectedSize(identifiers.size());
+      for(ValueSetState state : states) {
+        // value sets would otherwise accumulate in the session, see HibernateValueSet
+        session.evict(state);
+        read.put(state.getVariableEntity().getIdentifier(), state);
+      }
+      block = read;
+      return identifiers.size();
+    }
+  }
+
+  /**
+   * Reads the values of many variables by scrolling the value sets of the table once per chunk of variables, instead
+   * of once per variable.
+   */
+  private class ValueMatrixIterator implements Iterator<Value[]> {
+
+    private final int width;
+
+    private final List<ValueMatrixCursor> cursors = Lists.newArrayList();
+
+    private final Iterator<VariableEntity> entities;
+
+    private ValueMatrixIterator(List<HibernateVariableValueSource> sources, SortedSet<VariableEntity> entities) {
+      width = sources.size();
+      this.entities = entities.iterator();
+      for(List<HibernateVariableValueSource> chunk : Lists.partition(sources, VARIABLE_CHUNK_SIZE)) {
+        cursors.add(new ValueMatrixCursor(chunk, entities));
+      }
+    }
+
+    @Override
+    public boolean hasNext() {
+      return entities.hasNext();
+    }
+
+    @Override
+    public Value[] next() {
+      VariableEntity entity = entities.next();
+      // an entity without value set has no rows, do not scroll the rest of the table looking for them
+      String identifier = hasValueSet(entity) ? entity.getIdentifier() : null;
+      Value[] row = new Value[width];
+      int offset = 0;
+      for(ValueMatrixCursor cursor : cursors) {
+        cursor.read(identifier, row, offset);
+        offset += cursor.sources.size();
+        if(!hasNext()) cursor.close();
       }
-      return Collections.unmodifiableSet(entities);
+      return row;
+    }
+
+    @Override
+    public void remove() {
+      throw new UnsupportedOperationException();
     }
+  }
+
+  private class ValueMatrixCursor {
+
+    private final List<HibernateVariableValueSource> sources;
 
-    public void remove(VariableEntity entity) {
-      entities.remove(entity);
+    private final Map<Serializable, Integer> variableIndexes = Maps.newHashMap();
+
+    private final ScrollableResults results;
+
+    private boolean hasNextResults;
+
+    private boolean closed;
+
+    private final SortedSet<VariableEntity> entities;
+
+    /**
+     * Values of the requested entities that were scrolled over before being requested.
+     */
+    private final Map<String, Value[]> valuesMap = Maps.newHashMap();
+
+    private ValueMatrixCursor(List<HibernateVariableValueSource> sources, SortedSet<VariableEntity> entities) {
+      this.sources = sources;
+      this.entities = entities;
+      for(int i = 0; i < sources.size(); i++) {
+        variableIndexes.put(sources.get(i).getVariableId(), i);
+      }
+      Query query = getDatasource().getSessionFactory().getCurrentSession().getNamedQuery("allValuesOfVariables") //
+          .setParameter("valueTableId", valueTableId) //
+          .setParameterList("variableIds", variableIndexes.keySet());
+      results = query.scroll(ScrollMode.FORWARD_ONLY);
+      hasNextResults = results.next();
+    }
+
+    /**
+     * @param identifier the identifier of the entity, null if it has no value set
+     */
+    private void read(@Nullable String identifier, Value[] row, int offset) {
+      // Rows are grouped by entity in the order of the database, which may not be the one of the requested entities:
+      // scroll until all the rows of the required entity are read, keeping the values of the other requested entities
+      while(identifier != null && hasNextResults) {
+        String id = results.getString(0);
+        if(!id.equals(identifier) && valuesMap.containsKey(identifier)) break;
+
+        if(entities.contains(new VariableEntityBean(getEntityType(), id))) {
+          Value[] values = valuesMap.get(id);
+          if(values == null) {
+            values = new Value[sources.size()];
+            valuesMap.put(id, values);
+          }
+          Serializable variableId = (Serializable) results.get(1);
+          if(variableId != null) {
+            int index = variableIndexes.get(variableId);
+            values[index] = sources.get(index).toValue((Serializable) results.get(3), (Value) results.get(2));
+          }
+        }
+        hasNextResults = results.next();
+      }
+      if(!hasNextResults) close();
+
+      // No duplicate of entities, so remove values from map once get.
+      Value[] values = identifier == null ? null : valuesMap.remove(identifier);
+      for(int i = 0; i < sources.size(); i++) {
+        row[offset + i] = values == null || values[i] == null ? sources.get(i).toValue(null, null) : values[i];
+      }
+    }
+
+    private void close() {
+      if(!closed) {
+        closed = true;
+        results.close();
+      }
     }
   }
 
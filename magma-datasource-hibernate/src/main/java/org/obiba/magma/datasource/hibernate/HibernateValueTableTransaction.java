@@ -2,14 +2,17 @@ package org.obiba.magma.datasource.hibernate;
 
 import java.util.Collections;
 import java.util.List;
+import java.util.Set;
 
 import javax.validation.constraints.NotNull;
 
 import org.hibernate.LockMode;
+import org.obiba.magma.MagmaEngine;
 import org.obiba.magma.VariableEntity;
 import org.obiba.magma.VariableValueSource;
 
 import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
 
 /**
  * Transaction synchronisation for modifications made to a {@code HibernateValueTable}.
@@ -29,7 +32,7 @@ class HibernateValueTableTransaction extends HibernateDatasourceSynchronization
 
   private final List<VariableValueSource> uncommittedRemovedSources = Lists.newLinkedList();
 
-  private final List<VariableEntity> uncommittedEntities = Lists.newLinkedList();
+  private final Set<VariableEntity> uncommittedEntities = Sets.newLinkedHashSet();
 
   private final HibernateValueTableWriter transactionWriter;
 
@@ -53,6 +56,13 @@ class HibernateValueTableTransaction extends HibernateDatasourceSynchronization
     return valueTable;
   }
 
+  @Override
+  public void beforeCompletion() {
+    super.beforeCompletion();
+    // value sets written by a writer that was not closed
+    transactionWriter.updateTableLastUpdate();
+  }
+
   /**
    * Adds all {@code VariableValueSource} and {@code VariableEntity} to the {@code HibernateValueTable}. If the
    * {@code HibernateValueTable} was created during this transaction, it will also be added to the
@@ -84,10 +94,13 @@ class HibernateValueTableTransaction extends HibernateDatasourceSynchronization
    */
   public void addSource(VariableValueSource source) {
     uncommittedSources.add(source);
+    // uncommitted sources are visible in the transaction
+    MagmaEngine.notifyRegistryChanged();
   }
 
   public void removeSource(VariableValueSource source) {
     uncommittedRemovedSources.add(source);
+    MagmaEngine.notifyRegistryChanged();
   }
 
   /**
@@ -111,11 +124,11 @@ class HibernateValueTableTransaction extends HibernateDatasourceSynchronization
   }
 
   /**
-   * Returns the list of {@code VariableEntity} to be committed after transaction completion.
+   * Returns the set of {@code VariableEntity} to be committed after transaction completion.
    *
    * @return
    */
-  public List<VariableEntity> getUncommittedEntities() {
-    return Collections.unmodifiableList(uncommittedEntities);
+  public Set<VariableEntity> getUncommittedEntities() {
+    return Collections.unmodifiableSet(uncommittedEntities);
   }
 }
@@ -3,9 +3,11 @@
  */
 package org.obiba.magma.datasource.hibernate;
 
+import java.io.Serializable;
 import java.util.Date;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 import javax.annotation.Nullable;
 import javax.validation.constraints.NotNull;
@@ -31,6 +33,7 @@ import org.obiba.magma.datasource.hibernate.converter.VariableEntityConverter;
 import org.obiba.magma.datasource.hibernate.domain.ValueSetBinaryValue;
 import org.obiba.magma.datasource.hibernate.domain.ValueSetState;
 import org.obiba.magma.datasource.hibernate.domain.ValueSetValue;
+import org.obiba.magma.datasource.hibernate.domain.ValueTableState;
 import org.obiba.magma.datasource.hibernate.domain.VariableEntityState;
 import org.obiba.magma.datasource.hibernate.domain.VariableState;
 import org.obiba.magma.type.BinaryType;
@@ -38,15 +41,32 @@ import org.obiba.magma.type.TextType;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.google.common.collect.HashMultimap;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
+import com.google.common.collect.SetMultimap;
+import com.google.common.collect.Sets;
 
 import static com.google.common.base.Preconditions.checkArgument;
 
+/**
+ * Writes the variables and value sets of a {@code HibernateValueTable} in the current session.
+ * <p/>
+ * The value sets of entities that are not in the table yet, as when a new table is filled or when entities are
+ * appended, are inserted without looking them up first. Once enough of them were written, the entity states are
+ * resolved from an index of the entity type read in one query. The version of the table is incremented once for all
+ * the value sets written, instead of once per value set, and the value chunks of the modified blocks (see
+ * {@link HibernateValueChunks}) are written at the same time.
+ */
 class HibernateValueTableWriter implements ValueTableWriter {
 
   private static final Logger log = LoggerFactory.getLogger(HibernateValueTableWriter.class);
 
+  /**
+   * Number of new value sets written before the entity states are resolved from an index of the entity type.
+   */
+  private static final int ENTITY_INDEX_THRESHOLD = 100;
+
   private final HibernateValueTable valueTable;
 
   private final HibernateValueTableTransaction transaction;
@@ -63,6 +83,30 @@ class HibernateValueTableWriter implements ValueTableWriter {
 
   private final HibernateMarshallingContext context;
 
+  /**
+   * Variable state ids by variable name, null until read or when variables were modified.
+   */
+  @Nullable
+  private Map<String, Serializable> variableStateIds;
+
+  /**
+   * Entity state ids of the table entity type by entity identifier, null until enough new value sets were written.
+   */
+  @Nullable
+  private Map<String, Serializable> entityStateIds;
+
+  private int newValueSetCount = 0;
+
+  /**
+   * Names of the variables of which the values were written, by value chunk block.
+   */
+  private final SetMultimap<Integer, String> modifiedBlocks = HashMultimap.create();
+
+  /**
+   * Value chunk blocks to which value sets were added.
+   */
+  private final Set<Integer> grownBlocks = Sets.newHashSet();
+
   HibernateValueTableWriter(HibernateValueTableTransaction transaction) {
     if(transaction == null) throw new IllegalArgumentException("transaction cannot be null");
     this.transaction = transaction;
@@ -88,13 +132,84 @@ class HibernateValueTableWriter implements ValueTableWriter {
     return new HibernateVariableWriter();
   }
 
+  @Override
+  public void flush() {
+    updateTableLastUpdate();
+  }
+
   @Override
   public void close() {
+    updateTableLastUpdate();
+  }
+
+  /**
+   * Increments the version of the table if it was modified since the last increment. The value sets only mark the
+   * table as modified: the table is updated once when the writer is flushed or closed, or before the transaction
+   * commits. The value chunks of the modified blocks are written then, once the table is locked: writing them clears
+   * the session.
+   */
+  void updateTableLastUpdate() {
+    if(dirty) {
+      session.buildLockRequest(new LockOptions(LockMode.PESSIMISTIC_FORCE_INCREMENT))
+          .lock(valueTable.getValueTableState());
+      dirty = false;
+    }
+    if(!modifiedBlocks.isEmpty() || !grownBlocks.isEmpty()) {
+      valueTable.getValueChunks().write(modifiedBlocks, grownBlocks);
+      modifiedBlocks.clear();
+      grownBlocks.clear();
+    }
   }
 
-  private void updateTableLastUpdate() {
-    session.buildLockRequest(new LockOptions(LockMode.PESSIMISTIC_FORCE_INCREMENT))
-        .lock(valueTable.getValueTableState());
+  /**
+   * Returns the state of the variable, as a reference that is not read from the database once the variable has an id.
+   */
+  @Nullable
+  private VariableState getVariableState(Variable variable) {
+    if(variableStateIds == null) {
+      variableStateIds = Maps.newHashMap();
+      for(VariableState state : valueTable.getValueTableState().getVariables()) {
+        if(state.getId() != null) variableStateIds.put(state.getName(), state.getId());
+      }
+    }
+    Serializable id = variableStateIds.get(variable.getName());
+    return id == null
+        ? variableConverter.getStateForVariable(variable, valueTable.createContext())
+        : (VariableState) session.load(VariableState.class, id);
+  }
+
+  /**
+   * Returns the state of a new entity of the table, created if the entity is not known yet. An entity missing from the
+   * index is looked up again before being created: it may have been created since the index was read, by a concurrent
+   * import into another table of the same entity type.
+   */
+  private VariableEntityState getVariableEntityState(VariableEntity entity,
+      VariableEntityConverter entityConverter) {
+    if(entityStateIds == null && ++newValueSetCount > ENTITY_INDEX_THRESHOLD) {
+      entityStateIds = readEntityStateIds();
+    }
+    if(entityStateIds == null || !valueTable.isForEntityType(entity.getType())) {
+      return entityConverter.marshal(entity, context);
+    }
+    Serializable id = entityStateIds.get(entity.getIdentifier());
+    if(id != null) {
+      return (VariableEntityState) session.load(VariableEntityState.class, id);
+    }
+    VariableEntityState state = entityConverter.marshal(entity, context);
+    entityStateIds.put(entity.getIdentifier(), state.getId());
+    return state;
+  }
+
+  @SuppressWarnings("unchecked")
+  private Map<String, Serializable> readEntityStateIds() {
+    Map<String, Serializable> ids = Maps.newHashMap();
+    for(Object[] row : (List<Object[]>) session.getNamedQuery("findVariableEntityIdsByType") //
+        .setParameter("type", valueTable.getEntityType()) //
+        .list()) {
+      ids.put((String) row[0], (Serializable) row[1]);
+    }
+    log.debug("Read {} {} entities to write {}", ids.size(), valueTable.getEntityType(), valueTable.getName());
+    return ids;
   }
 
   private class HibernateVariableWriter implements VariableWriter {
@@ -112,6 +227,7 @@ class HibernateValueTableWriter implements ValueTableWriter {
 
       // add or update variable
       errorOccurred = true;
+      variableStateIds = null;
       VariableState state = variableConverter.marshal(variable, context);
       transaction.addSource(valueSourceFactory.createSource(state));
       errorOccurred = false;
@@ -123,10 +239,12 @@ class HibernateValueTableWriter implements ValueTableWriter {
     public void removeVariable(@NotNull Variable variable) {
 
       errorOccurred = true;
+      variableStateIds = null;
 
       VariableState variableState = valueTable.getVariableState(variable);
 
       deleteVariableValues(variable, variableState);
+      valueTable.getValueChunks().deleteVariable(variableState.getId());
 
       transaction.removeSource(valueSourceFactory.createSource(variableState));
 
@@ -199,14 +317,13 @@ class HibernateValueTableWriter implements ValueTableWriter {
     public void close() {
       if(!errorOccurred) {
 
-        if(dirty) {
-          updateTableLastUpdate();
-          dirty = false;
-        }
+        updateTableLastUpdate();
 
         // persists data and empty the Session so we don't fill it up
         session.flush();
         session.clear();
+        // new variables have an id now
+        variableStateIds = null;
       }
     }
   }
@@ -225,11 +342,24 @@ class HibernateValueTableWriter implements ValueTableWriter {
 
     private final Map<String, ValueSetValue> values;
 
+    private final Set<String> writtenVariables = Sets.newHashSet();
+
     private HibernateValueSetWriter(@NotNull VariableEntity entity) {
       //noinspection ConstantConditions
       if(entity == null) throw new IllegalArgumentException("entity cannot be null");
       this.entity = entity;
 
+      if(!valueTable.hasValueSet(entity)) {
+        // new entity of the table, no value set to look up
+        valueSetState = new ValueSetState(
+            (ValueTableState) session.load(ValueTableState.class, valueTable.getValueTableId()),
+            getVariableEntityState(entity, entityConverter));
+        session.save(valueSetState);
+        values = Maps.newHashMap();
+        isNewValueSet = true;
+        return;
+      }
+
       // find entity or create it
       VariableEntityState variableEntityState = entityConverter.marshal(entity, context);
 
@@ -262,7 +392,7 @@ class HibernateValueTableWriter implements ValueTableWriter {
       if(value == null) throw new IllegalArgumentException("value cannot be null");
 
       try {
-        VariableState variableState = variableConverter.getStateForVariable(variable, valueTable.createContext());
+        VariableState variableState = getVariableState(variable);
         if(variableState == null) {
           throw new NoSuchVariableException(valueTable.getName(), variable.getName());
         }
@@ -272,6 +402,7 @@ class HibernateValueTableWriter implements ValueTableWriter {
         } else {
           updateValue(variable, value, valueSetValue);
         }
+        writtenVariables.add(variable.getName());
 
         dirty = true;
 
@@ -284,6 +415,11 @@ class HibernateValueTableWriter implements ValueTableWriter {
     @Override
     public void remove() {
       valueTable.dropValueSet(entity, valueSetState.getId());
+      // only the chunks of the variables that had a value in this value set are modified
+      int block = HibernateValueChunks.getBlock(valueSetState.getId());
+      modifiedBlocks.putAll(block, values.keySet());
+      modifiedBlocks.putAll(block, writtenVariables);
+      if(isNewValueSet) grownBlocks.add(block);
     }
 
     private void createValue(Variable variable, Value value, VariableState variableState) {
@@ -389,11 +525,9 @@ class HibernateValueTableWriter implements ValueTableWriter {
           // Make the entity visible within this transaction
           transaction.addEntity(entity);
         }
-
-        if(dirty) {
-          updateTableLastUpdate();
-          dirty = false;
-        }
+        int block = HibernateValueChunks.getBlock(valueSetState.getId());
+        modifiedBlocks.putAll(block, writtenVariables);
+        if(isNewValueSet) grownBlocks.add(block);
 
         // persists valueSetState and empty the Session so we don't fill it up
         session.flush();
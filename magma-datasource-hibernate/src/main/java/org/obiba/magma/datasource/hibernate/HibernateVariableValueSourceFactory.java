@@ -8,6 +8,7 @@ import java.util.Map;
 import java.util.Set;
 import java.util.SortedSet;
 
+import javax.annotation.Nullable;
 import javax.validation.constraints.NotNull;
 
 import org.hibernate.FetchMode;
@@ -39,6 +40,7 @@ import org.obiba.magma.type.BinaryType;
 
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
 
 class HibernateVariableValueSourceFactory implements VariableValueSourceFactory {
 
@@ -155,7 +157,15 @@ class HibernateVariableValueSourceFactory implements VariableValueSourceFactory
       return new Iterable<Value>() {
         @Override
         public Iterator<Value> iterator() {
-          return new ValueIterator(entities.iterator());
+          Set<String> identifiers = Sets.newHashSet();
+          for(VariableEntity entity : entities) {
+            identifiers.add(entity.getIdentifier());
+          }
+          Map<String, Value> chunkValues = valueTable.getValueChunks()
+              .read(ensureVariableId(), getValueType(), identifiers);
+          return chunkValues == null
+              ? new ValueIterator(entities.iterator())
+              : new ChunkValueIterator(entities.iterator(), chunkValues);
         }
       };
     }
@@ -166,6 +176,34 @@ class HibernateVariableValueSourceFactory implements VariableValueSourceFactory
       return getVariable().getValueType();
     }
 
+    Serializable getVariableId() {
+      return ensureVariableId();
+    }
+
+    /**
+     * Makes the value read for this variable in the given value set: binary values are turned into references, and a
+     * missing value into a null value.
+     *
+     * @param valueSetId
+     * @param value
+     * @return
+     */
+    Value toValue(@Nullable Serializable valueSetId, @Nullable Value value) {
+      if(value == null) {
+        return getVariable().isRepeatable() ? getValueType().nullSequence() : getValueType().nullValue();
+      }
+
+      if(getValueType().equals(BinaryType.get())) {
+        ValueLoaderFactory factory = new HibernateValueLoaderFactory(valueTable.getDatasource().getSessionFactory(),
+            ensureVariableId(), valueSetId);
+        return getVariable().isRepeatable()
+            ? BinaryType.get().sequenceOfReferences(factory, value)
+            : BinaryType.get().valueOfReference(factory, value);
+      }
+
+      return value;
+    }
+
     /**
      * Initialises the {@code variable} attribute from the provided state
      *
@@ -206,6 +244,36 @@ class HibernateVariableValueSourceFactory implements VariableValueSourceFactory
       return name.hashCode();
     }
 
+    /**
+     * Returns the values read from the value chunks of the variable.
+     */
+    private class ChunkValueIterator implements Iterator<Value> {
+
+      private final Iterator<VariableEntity> entities;
+
+      private final Map<String, Value> valueMap;
+
+      private ChunkValueIterator(Iterator<VariableEntity> entities, Map<String, Value> valueMap) {
+        this.entities = entities;
+        this.valueMap = valueMap;
+      }
+
+      @Override
+      public boolean hasNext() {
+        return entities.hasNext();
+      }
+
+      @Override
+      public Value next() {
+        return toValue(null, valueMap.get(entities.next().getIdentifier()));
+      }
+
+      @Override
+      public void remove() {
+        throw new UnsupportedOperationException();
+      }
+    }
+
     private class ValueIterator implements Iterator<Value> {
 
       private final ScrollableResults results;
@@ -243,7 +311,7 @@ class HibernateVariableValueSourceFactory implements VariableValueSourceFactory
         // Scroll until we find the required entity or reach the end of the results
         while(hasNextResults && !found) {
           String id = results.getString(0);
-          Value value = getValue((Serializable) results.get(2), (Value) results.get(1));
+          Value value = toValue((Serializable) results.get(2), (Value) results.get(1));
           valueMap.put(id, value);
           if(entity.getIdentifier().equals(id)) {
             found = true;
@@ -268,22 +336,6 @@ class HibernateVariableValueSourceFactory implements VariableValueSourceFactory
         return value;
       }
 
-      private Value getValue(Serializable valueSetId, Value value) {
-        if(value == null) {
-          return getVariable().isRepeatable() ? getValueType().nullSequence() : getValueType().nullValue();
-        }
-
-        if(getValueType().equals(BinaryType.get())) {
-          ValueLoaderFactory factory = new HibernateValueLoaderFactory(valueTable.getDatasource().getSessionFactory(),
-              ensureVariableId(), valueSetId);
-          return getVariable().isRepeatable()
-              ? BinaryType.get().sequenceOfReferences(factory, value)
-              : BinaryType.get().valueOfReference(factory, value);
-        }
-
-        return value;
-      }
-
       @Override
       public void remove() {
         throw new UnsupportedOperationException();
@@ -6,6 +6,7 @@ import org.hibernate.cfg.Configuration;
 import org.obiba.magma.datasource.hibernate.domain.AttributeState;
 import org.obiba.magma.datasource.hibernate.domain.CategoryState;
 import org.obiba.magma.datasource.hibernate.domain.DatasourceState;
+import org.obiba.magma.datasource.hibernate.domain.ValueChunkState;
 import org.obiba.magma.datasource.hibernate.domain.ValueSetBinaryValue;
 import org.obiba.magma.datasource.hibernate.domain.ValueSetState;
 import org.obiba.magma.datasource.hibernate.domain.ValueSetValue;
@@ -21,7 +22,7 @@ public class HibernateConfigurationHelper {
   private final static Set<Class<?>> ANNOTATED_TYPES = new ImmutableSet.Builder<Class<?>>()
       .add(DatasourceState.class, VariableEntityState.class, ValueTableState.class, ValueSetState.class,
           ValueSetValue.class, ValueSetBinaryValue.class, VariableState.class, CategoryState.class,
-          AttributeState.class).build();
+          AttributeState.class, ValueChunkState.class).build();
 
   public Configuration configure(Configuration configuration) {
     for(Class<?> type : getAnnotatedTypes()) {
@@ -0,0 +1,108 @@
+/*
+ * Copyright (c) 2011 OBiBa. All rights reserved.
+ *
+ * This program and the accompanying materials
+ * are made available under the terms of the GNU Public License v3.0.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.obiba.magma.datasource.hibernate.domain;
+
+import javax.persistence.Column;
+import javax.persistence.Entity;
+import javax.persistence.Lob;
+import javax.persistence.NamedQueries;
+import javax.persistence.NamedQuery;
+import javax.persistence.Table;
+import javax.persistence.UniqueConstraint;
+import javax.validation.constraints.NotNull;
+
+import org.obiba.core.domain.AbstractEntity;
+
+/**
+ * The packed values of one variable for the value sets of one block, the value sets of which the id is in
+ * {@code [block * blockSize, (block + 1) * blockSize[}. Chunks are a denormalised copy of the {@link ValueSetValue}
+ * rows, so the table and variable are referred to by their id only. A chunk also holds the number of value sets of its
+ * block when it was written: it covers its block as long as the block has this number of value sets.
+ */
+@Entity
+@Table(name = "value_chunk", uniqueConstraints = @UniqueConstraint(columnNames = { "variable_id", "block_index" }))
+@NamedQueries({ //
+    @NamedQuery(name = "findValueChunksByVariableId",
+        query = "SELECT vc.block, vc.values FROM ValueChunkState vc WHERE vc.variableId = :variableId"),
+    @NamedQuery(name = "countValueChunksByVariableId",
+        query = "SELECT COUNT(vc) FROM ValueChunkState vc WHERE vc.variableId = :variableId"),
+    @NamedQuery(name = "countCoveringValueChunksByVariableId",
+        query = "SELECT COUNT(vc), SUM(vc.valueSetCount) FROM ValueChunkState vc " +
+            "WHERE vc.variableId = :variableId AND vc.valueSetCount = (" +
+            "SELECT COUNT(vs) FROM ValueSetState vs WHERE vs.valueTable.id = vc.valueTableId " +
+            "AND vs.id BETWEEN vc.block * :blockSize AND vc.block * :blockSize + :blockSize - 1)"),
+    @NamedQuery(name = "decrementValueChunkValueSetCountsByBlock",
+        query = "UPDATE ValueChunkState SET valueSetCount = valueSetCount - 1 " +
+            "WHERE valueTableId = :valueTableId AND block = :block"),
+    @NamedQuery(name = "deleteValueChunksByTableId",
+        query = "DELETE FROM ValueChunkState WHERE valueTableId = :valueTableId"),
+    @NamedQuery(name = "deleteValueChunksByVariableId",
+        query = "DELETE FROM ValueChunkState WHERE variableId = :variableId"),
+    @NamedQuery(name = "deleteValueChunksByBlockAndVariableIds",
+        query = "DELETE FROM ValueChunkState WHERE block = :block AND variableId IN (:variableIds)") })
+public class ValueChunkState extends AbstractEntity {
+
+  private static final long serialVersionUID = 3466741046153823306L;
+
+  @Column(name = "value_table_id", nullable = false)
+  private Long valueTableId;
+
+  @Column(name = "variable_id", nullable = false)
+  private Long variableId;
+
+  @Column(name = "block_index", nullable = false)
+  private int block;
+
+  @Column(name = "value_set_count", nullable = false)
+  private int valueSetCount;
+
+  @Lob
+  @Column(name = "packed_values", nullable = false)
+  private byte[] values;
+
+  @SuppressWarnings("UnusedDeclaration")
+  public ValueChunkState() {
+  }
+
+  @SuppressWarnings("MethodCanBeVariableArityMethod")
+  @edu.umd.cs.findbugs.annotations.SuppressWarnings("EI_EXPOSE_REP2")
+  public ValueChunkState(@NotNull Long valueTableId, @NotNull Long variableId, int block, int valueSetCount,
+      @NotNull byte[] values) {
+    //noinspection ConstantConditions
+    if(values == null) throw new IllegalArgumentException("values cannot be null");
+    this.valueTableId = valueTableId;
+    this.variableId = variableId;
+    this.block = block;
+    this.valueSetCount = valueSetCount;
+    this.values = values;
+  }
+
+  public Long getValueTableId() {
+    return valueTableId;
+  }
+
+  public Long getVariableId() {
+    return variableId;
+  }
+
+  public int getBlock() {
+    return block;
+  }
+
+  public int getValueSetCount() {
+    return valueSetCount;
+  }
+
+  @edu.umd.cs.findbugs.annotations.SuppressWarnings("EI_EXPOSE_REP")
+  public byte[] getValues() {
+    return values;
+  }
+
+}
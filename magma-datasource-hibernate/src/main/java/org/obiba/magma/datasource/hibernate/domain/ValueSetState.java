@@ -33,7 +33,14 @@ import com.google.common.collect.Sets;
     @NamedQuery(name = "findValueSetIdsByTableId",
         query = "SELECT id FROM ValueSetState WHERE valueTable.id = :valueTableId"),
     @NamedQuery(name = "findValueSetTimestampsByTableId",
-        query = "SELECT id, created, updated FROM ValueSetState WHERE valueTable.id = :valueTableId"),
+        query = "SELECT vs.variableEntity.identifier, vs.created, vs.updated FROM ValueSetState vs " +
+            "WHERE vs.valueTable.id = :valueTableId ORDER BY vs.variableEntity.identifier"),
+    @NamedQuery(name = "findValueSetsByEntityIdentifiers",
+        query = "SELECT vs FROM ValueSetState vs JOIN FETCH vs.variableEntity ve LEFT JOIN FETCH vs.values " +
+            "WHERE vs.valueTable.id = :valueTableId AND ve.type = :entityType AND ve.identifier IN (:identifiers)"),
+    @NamedQuery(name = "findVariableEntitiesByTableId",
+        query = "SELECT vs.variableEntity.type, vs.variableEntity.identifier FROM ValueSetState vs " +
+            "WHERE vs.valueTable.id = :valueTableId"),
     @NamedQuery(name = "setLastUpdateForTableId",
         query = "UPDATE ValueSetState SET updated = :updated WHERE valueTable.id = :valueTableId"),
     @NamedQuery(name = "deleteEmptyValueSets",
@@ -30,13 +30,13 @@ import org.hibernate.annotations.Columns;
 import org.hibernate.annotations.Type;
 import org.hibernate.annotations.TypeDef;
 import org.obiba.magma.Value;
-import org.obiba.magma.datasource.hibernate.type.ValueHibernateType;
+import org.obiba.magma.datasource.hibernate.type.CompactValueHibernateType;
 
 import com.google.common.base.Objects;
 
 @Entity
 @Table(name = "value_set_value")
-@TypeDef(name = "value", typeClass = ValueHibernateType.class)
+@TypeDef(name = "value", typeClass = CompactValueHibernateType.class)
 @NamedQueries({ //
     @NamedQuery(name = "findValuesByTable",
         query = "SELECT vsv FROM ValueSetValue vsv WHERE vsv.id.valueSet " + //
@@ -52,11 +52,14 @@ public class ValueSetValue implements Timestamped, Serializable {
   @EmbeddedId
   private ValueSetValueId id;
 
+  // the binary column is added to existing tables, hence nullable, and the columns of a property cannot mix
+  // nullable and non nullable: the type never writes nulls in the first three ones
   @Type(type = "value")
   @Columns(columns = { //
-      @Column(name = "value_type", nullable = false), //
-      @Column(name = "is_sequence", nullable = false), //
-      @Column(name = "value", length = Integer.MAX_VALUE, nullable = false) })
+      @Column(name = "value_type"), //
+      @Column(name = "is_sequence"), //
+      @Column(name = "value", length = Integer.MAX_VALUE), //
+      @Column(name = "value_binary", length = Integer.MAX_VALUE) })
   private Value value;
 
   @SuppressWarnings("FieldMayBeFinal")
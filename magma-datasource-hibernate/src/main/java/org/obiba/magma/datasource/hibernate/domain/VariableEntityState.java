@@ -10,6 +10,8 @@
 package org.obiba.magma.datasource.hibernate.domain;
 
 import javax.persistence.Entity;
+import javax.persistence.NamedQueries;
+import javax.persistence.NamedQuery;
 import javax.persistence.Table;
 import javax.persistence.UniqueConstraint;
 
@@ -19,6 +21,8 @@ import com.google.common.collect.ComparisonChain;
 
 @Entity
 @Table(name = "variable_entity", uniqueConstraints = { @UniqueConstraint(columnNames = { "type", "identifier" }) })
+@NamedQueries(@NamedQuery(name = "findVariableEntityIdsByType",
+    query = "SELECT ve.identifier, ve.id FROM VariableEntityState ve WHERE ve.type = :type"))
 @SuppressWarnings("UnusedDeclaration")
 public class VariableEntityState extends AbstractTimestampedEntity implements VariableEntity {
 
@@ -20,6 +20,7 @@ import javax.persistence.ElementCollection;
 import javax.persistence.Entity;
 import javax.persistence.JoinColumn;
 import javax.persistence.ManyToOne;
+import javax.persistence.NamedQueries;
 import javax.persistence.NamedQuery;
 import javax.persistence.OneToMany;
 import javax.persistence.OrderColumn;
@@ -38,11 +39,22 @@ import org.obiba.magma.datasource.hibernate.type.ValueTypeHibernateType;
 @Table(name = "variable", uniqueConstraints = @UniqueConstraint(columnNames = { "value_table_id", "name" }))
 @TypeDef(name = "value_type", typeClass = ValueTypeHibernateType.class)
 @Cache(usage = CacheConcurrencyStrategy.NONSTRICT_READ_WRITE)
-@NamedQuery(name = "allValues",
-    query = "select vs.variableEntity.identifier, vsv.value, vs.id from ValueSetState as vs " + //
-        "left outer join vs.values as vsv with vsv.id.variable.id = :variableId " + //
-        "where vs.valueTable.id = :valueTableId " + //
-        "order by vs.variableEntity.identifier")
+@NamedQueries({ //
+    @NamedQuery(name = "allValues",
+        query = "select vs.variableEntity.identifier, vsv.value, vs.id from ValueSetState as vs " + //
+            "left outer join vs.values as vsv with vsv.id.variable.id = :variableId " + //
+            "where vs.valueTable.id = :valueTableId " + //
+            "order by vs.variableEntity.identifier"),
+    @NamedQuery(name = "allValuesOfVariables",
+        query = "select vs.variableEntity.identifier, vsv.id.variable.id, vsv.value, vs.id from ValueSetState as vs " + //
+            "left outer join vs.values as vsv with vsv.id.variable.id in (:variableIds) " + //
+            "where vs.valueTable.id = :valueTableId " + //
+            "order by vs.variableEntity.identifier"),
+    @NamedQuery(name = "allValuesOfVariablesInBlock",
+        query = "select vs.variableEntity.identifier, vsv.id.variable.id, vsv.value from ValueSetState as vs " + //
+            "join vs.values as vsv " + //
+            "where vs.valueTable.id = :valueTableId and vs.id between :firstId and :lastId " + //
+            "and vsv.id.variable.id in (:variableIds)") })
 @SuppressWarnings("UnusedDeclaration")
 public class VariableState extends AbstractAttributeAwareEntity implements Timestamped {
 
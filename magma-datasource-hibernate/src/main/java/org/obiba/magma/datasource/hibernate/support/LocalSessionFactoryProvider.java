@@ -50,6 +50,9 @@ public class LocalSessionFactoryProvider implements SessionFactoryProvider, Init
     builder.setProperty(Environment.USE_QUERY_CACHE, "true");
     builder.setProperty(Environment.CACHE_REGION_FACTORY, "org.hibernate.cache.ehcache.SingletonEhCacheRegionFactory");
     builder.setProperty(Environment.DIALECT_RESOLVERS, MagmaDialectResolver.class.getName());
+    // values of a value set are inserted by JDBC batches
+    builder.setProperty(Environment.STATEMENT_BATCH_SIZE, "50");
+    builder.setProperty(Environment.ORDER_INSERTS, "true");
     if(jtaTransactionManager != null) builder.setJtaTransactionManager(jtaTransactionManager);
 
     // we want to store byte[] as oid instead of bytea.
@@ -0,0 +1,188 @@
+package org.obiba.magma.datasource.hibernate.type;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Date;
+import java.util.List;
+
+import org.hibernate.HibernateException;
+import org.obiba.magma.MagmaDate;
+import org.obiba.magma.Value;
+import org.obiba.magma.ValueType;
+import org.obiba.magma.type.BooleanType;
+import org.obiba.magma.type.DateTimeType;
+import org.obiba.magma.type.DateType;
+import org.obiba.magma.type.DecimalType;
+import org.obiba.magma.type.IntegerType;
+
+import com.google.common.collect.Lists;
+
+/**
+ * Compact binary encoding of {@code Value} instances. The first byte is the format version, followed by the kind of
+ * value (null, value, null sequence or sequence). A sequence is the number of its values followed by each value,
+ * prefixed by a null flag.
+ * <p/>
+ * Integers and date times (milliseconds) are zig-zag varints, decimals are IEEE 754 doubles, dates are the varints of
+ * their year, month and day, booleans are one byte. Other value types are their text representation, as UTF-8 bytes
+ * prefixed by their length.
+ */
+public final class CompactValueCodec {
+
+  static final byte VERSION = 1;
+
+  private static final byte NULL_VALUE = 0;
+
+  private static final byte VALUE = 1;
+
+  private static final byte NULL_SEQUENCE = 2;
+
+  private static final byte SEQUENCE = 3;
+
+  private CompactValueCodec() {}
+
+  public static byte[] encode(Value value) {
+    Output out = new Output();
+    out.write(VERSION);
+    if(value.isSequence()) {
+      if(value.isNull()) {
+        out.write(NULL_SEQUENCE);
+      } else {
+        out.write(SEQUENCE);
+        List<Value> values = value.asSequence().getValues();
+        out.writeVarLong(values.size());
+        for(Value v : values) {
+          encodeElement(v, out);
+        }
+      }
+    } else if(value.isNull()) {
+      out.write(NULL_VALUE);
+    } else {
+      out.write(VALUE);
+      encodeValue(value, out);
+    }
+    return out.toByteArray();
+  }
+
+  public static Value decode(ValueType valueType, byte[] bytes) {
+    ByteBuffer in = ByteBuffer.wrap(bytes);
+    byte version = in.get();
+    if(version != VERSION) {
+      throw new HibernateException("Unsupported value encoding version: " + version);
+    }
+    byte kind = in.get();
+    switch(kind) {
+      case NULL_VALUE:
+        return valueType.nullValue();
+      case VALUE:
+        return decodeValue(valueType, in);
+      case NULL_SEQUENCE:
+        return valueType.nullSequence();
+      case SEQUENCE:
+        int size = (int) readVarLong(in);
+        List<Value> values = Lists.newArrayListWithCapacity(size);
+        for(int i = 0; i < size; i++) {
+          values.add(in.get() == NULL_VALUE ? valueType.nullValue() : decodeValue(valueType, in));
+        }
+        return valueType.sequenceOf(values);
+      default:
+        throw new HibernateException("Unknown encoded value kind: " + kind);
+    }
+  }
+
+  private static void encodeElement(Value value, Output out) {
+    if(value.isNull()) {
+      out.write(NULL_VALUE);
+    } else {
+      out.write(VALUE);
+      encodeValue(value, out);
+    }
+  }
+
+  private static void encodeValue(Value value, Output out) {
+    ValueType valueType = value.getValueType();
+    Object object = value.getValue();
+    if(valueType instanceof IntegerType) {
+      out.writeVarLong(zigZag(((Number) object).longValue()));
+    } else if(valueType instanceof DecimalType) {
+      out.writeLong(Double.doubleToLongBits(((Number) object).doubleValue()));
+    } else if(valueType instanceof DateTimeType) {
+      out.writeVarLong(zigZag(((Date) object).getTime()));
+    } else if(valueType instanceof DateType) {
+      MagmaDate date = (MagmaDate) object;
+      out.writeVarLong(zigZag(date.getYear()));
+      out.writeVarLong(date.getMonth());
+      out.writeVarLong(date.getDayOfMonth());
+    } else if(valueType instanceof BooleanType) {
+      out.write((Boolean) object ? (byte) 1 : (byte) 0);
+    } else {
+      byte[] text = value.toString().getBytes(StandardCharsets.UTF_8);
+      out.writeVarLong(text.length);
+      out.write(text, 0, text.length);
+    }
+  }
+
+  private static Value decodeValue(ValueType valueType, ByteBuffer in) {
+    if(valueType instanceof IntegerType) {
+      return valueType.valueOf(unZigZag(readVarLong(in)));
+    }
+    if(valueType instanceof DecimalType) {
+      return valueType.valueOf(Double.longBitsToDouble(in.getLong()));
+    }
+    if(valueType instanceof DateTimeType) {
+      return valueType.valueOf(new Date(unZigZag(readVarLong(in))));
+    }
+    if(valueType instanceof DateType) {
+      int year = (int) unZigZag(readVarLong(in));
+      int month = (int) readVarLong(in);
+      int dayOfMonth = (int) readVarLong(in);
+      return valueType.valueOf(new MagmaDate(year, month, dayOfMonth));
+    }
+    if(valueType instanceof BooleanType) {
+      return valueType.valueOf(in.get() == 1);
+    }
+    byte[] text = new byte[(int) readVarLong(in)];
+    in.get(text);
+    return valueType.valueOf(new String(text, StandardCharsets.UTF_8));
+  }
+
+  private static long zigZag(long n) {
+    return n << 1 ^ n >> 63;
+  }
+
+  private static long unZigZag(long n) {
+    return n >>> 1 ^ -(n & 1);
+  }
+
+  private static long readVarLong(ByteBuffer in) {
+    long result = 0;
+    for(int shift = 0; shift < 64; shift += 7) {
+      byte b = in.get();
+      result |= (long) (b & 0x7F) << shift;
+      if((b & 0x80) == 0) return result;
+    }
+    throw new HibernateException("Malformed encoded value: varint too long");
+  }
+
+  private static class Output extends ByteArrayOutputStream {
+
+    private Output() {
+      super(16);
+    }
+
+    private void writeVarLong(long n) {
+      long remaining = n;
+      while((remaining & ~0x7FL) != 0) {
+        write((int) (remaining & 0x7F | 0x80));
+        remaining >>>= 7;
+      }
+      write((int) remaining);
+    }
+
+    private void writeLong(long n) {
+      for(int shift = 56; shift >= 0; shift -= 8) {
+        write((int) (n >>> shift));
+      }
+    }
+  }
+}
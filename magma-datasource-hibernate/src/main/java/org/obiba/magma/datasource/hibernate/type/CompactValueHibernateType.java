@@ -0,0 +1,133 @@
+package org.obiba.magma.datasource.hibernate.type;
+
+import java.io.StringReader;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Types;
+
+import javax.annotation.Nullable;
+
+import org.hibernate.HibernateException;
+import org.hibernate.MappingException;
+import org.hibernate.engine.spi.Mapping;
+import org.hibernate.engine.spi.SessionImplementor;
+import org.hibernate.metamodel.relational.Size;
+import org.obiba.magma.Value;
+import org.obiba.magma.ValueType;
+
+import com.google.common.base.Strings;
+
+/**
+ * A {@link ValueHibernateType} with a 4th column that stores the value in a compact binary form (see
+ * {@link CompactValueCodec}), so that it is read without parsing its text representation:
+ * <ul>
+ * <li>value_type: stores the name of the ValueType</li>
+ * <li>is_sequence: stores true when the {@code Value} is a {@code ValueSequence},false otherwise.</li>
+ * <li>value: stores the value returned by {@code value.toString()}, or an empty string when the value is encoded</li>
+ * <li>value_binary: stores the encoded value, or null</li>
+ * </ul>
+ * Values are encoded when the Hibernate property {@value #COMPACT_VALUES} is true. Rows with a null binary column, as
+ * the ones written before, are read from their text representation.
+ */
+public class CompactValueHibernateType extends ValueHibernateType {
+
+  private static final long serialVersionUID = 1L;
+
+  /**
+   * Hibernate property that enables the binary encoding of the values that are written, false by default.
+   */
+  public static final String COMPACT_VALUES = "magma.hibernate.compact_values";
+
+  @Override
+  public int getColumnSpan(Mapping mapping) throws MappingException {
+    return 4;
+  }
+
+  @Override
+  public String getName() {
+    return "CompactValue";
+  }
+
+  @Nullable
+  @Override
+  public Object nullSafeGet(ResultSet rs, String[] names, SessionImplementor session, Object owner)
+      throws HibernateException, SQLException {
+    byte[] bytes = rs.getBytes(names[3]);
+    if(bytes == null || bytes.length == 0) {
+      return super.nullSafeGet(rs, names, session, owner);
+    }
+    String valueTypeName = rs.getString(names[0]);
+    if(valueTypeName == null) {
+      return null;
+    }
+    return CompactValueCodec.decode(ValueType.Factory.forName(valueTypeName), bytes);
+  }
+
+  @Override
+  public void nullSafeSet(PreparedStatement st, Object obj, int index, boolean[] settable, SessionImplementor session)
+      throws HibernateException, SQLException {
+    Value value = (Value) obj;
+    byte[] bytes = encode(value, session);
+
+    int offset = 0;
+    if(settable[0]) {
+      st.setString(index + offset++, value.getValueType().getName());
+    }
+    if(settable[1]) {
+      st.setBoolean(index + offset++, value.isSequence());
+    }
+    if(settable[2]) {
+      st.setString(index + offset++, bytes == null ? value.toString() : "");
+    }
+    if(settable[3]) {
+      setBytes(st, index + offset, bytes);
+    }
+  }
+
+  @Override
+  public void nullSafeSet(PreparedStatement st, Object obj, int index, SessionImplementor session)
+      throws HibernateException, SQLException {
+    Value value = (Value) obj;
+    byte[] bytes = encode(value, session);
+    st.setString(index, value.getValueType().getName());
+    st.setBoolean(index + 1, value.isSequence());
+    String stringValue = bytes == null ? Strings.nullToEmpty(value.isNull() ? null : value.toString()) : "";
+    st.setClob(index + 2, new StringReader(stringValue), stringValue.length());
+    setBytes(st, index + 3, bytes);
+  }
+
+  @Override
+  public int[] sqlTypes(Mapping mapping) throws MappingException {
+    return new int[] { Types.VARCHAR, Types.BIT, Types.CLOB, Types.LONGVARBINARY };
+  }
+
+  @Override
+  public boolean[] toColumnNullness(Object value, Mapping mapping) {
+    return new boolean[] { false, false, false, true };
+  }
+
+  @Override
+  public Size[] defaultSizes(Mapping mapping) throws MappingException {
+    Size[] sizes = super.defaultSizes(mapping);
+    return new Size[] { sizes[0], sizes[1], sizes[2], //
+        new Size(Size.DEFAULT_PRECISION, Size.DEFAULT_SCALE, 1, Size.LobMultiplier.G) // 1GB
+    };
+  }
+
+  @Nullable
+  private byte[] encode(Value value, SessionImplementor session) {
+    return Boolean.parseBoolean(session.getFactory().getProperties().getProperty(COMPACT_VALUES))
+        ? CompactValueCodec.encode(value)
+        : null;
+  }
+
+  private void setBytes(PreparedStatement st, int index, @Nullable byte[] bytes) throws SQLException {
+    if(bytes == null) {
+      st.setNull(index, Types.LONGVARBINARY);
+    } else {
+      st.setBytes(index, bytes);
+    }
+  }
+
+}
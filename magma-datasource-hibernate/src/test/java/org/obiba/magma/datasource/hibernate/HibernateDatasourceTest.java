@@ -5,24 +5,34 @@ import java.util.ArrayList;
 import java.util.Date;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Properties;
+import java.util.Set;
 import java.util.SortedSet;
 import java.util.TreeSet;
+import java.util.concurrent.ConcurrentMap;
+
+import javax.annotation.Nullable;
 
 import org.hibernate.Session;
 import org.hibernate.SessionFactory;
+import org.hibernate.engine.spi.SessionFactoryImplementor;
+import org.hibernate.stat.Statistics;
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.obiba.magma.Category;
+import org.obiba.magma.MagmaCacheExtension;
 import org.obiba.magma.MagmaEngine;
 import org.obiba.magma.NoSuchValueSetException;
 import org.obiba.magma.NoSuchValueTableException;
 import org.obiba.magma.NoSuchVariableException;
+import org.obiba.magma.Timestamps;
 import org.obiba.magma.Value;
 import org.obiba.magma.ValueSet;
 import org.obiba.magma.ValueTable;
 import org.obiba.magma.ValueTableWriter;
+import org.obiba.magma.ValueTableWriter.ValueSetWriter;
 import org.obiba.magma.ValueTableWriter.VariableWriter;
 import org.obiba.magma.Variable;
 import org.obiba.magma.VariableEntity;
@@ -35,9 +45,12 @@ import org.obiba.magma.datasource.hibernate.domain.DatasourceState;
 import org.obiba.magma.datasource.hibernate.domain.ValueSetState;
 import org.obiba.magma.datasource.hibernate.domain.ValueSetValue;
 import org.obiba.magma.datasource.hibernate.domain.ValueTableState;
+import org.obiba.magma.datasource.hibernate.domain.VariableEntityState;
 import org.obiba.magma.datasource.hibernate.domain.VariableState;
+import org.obiba.magma.datasource.hibernate.type.CompactValueHibernateType;
 import org.obiba.magma.support.DatasourceCopier;
 import org.obiba.magma.support.Initialisables;
+import org.obiba.magma.support.VariableEntitiesCache;
 import org.obiba.magma.support.VariableEntityBean;
 import org.obiba.magma.type.BinaryType;
 import org.obiba.magma.type.DateTimeType;
@@ -48,6 +61,9 @@ import org.obiba.magma.type.TextType;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.cache.Cache;
+import org.springframework.cache.concurrent.ConcurrentMapCache;
+import org.springframework.cache.support.SimpleCacheManager;
 import org.springframework.test.context.ContextConfiguration;
 import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
 import org.springframework.transaction.TransactionStatus;
@@ -55,6 +71,7 @@ import org.springframework.transaction.support.TransactionCallback;
 import org.springframework.transaction.support.TransactionCallbackWithoutResult;
 import org.springframework.transaction.support.TransactionTemplate;
 
+import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.Iterables;
 import com.google.common.collect.Lists;
@@ -416,6 +433,433 @@ public class HibernateDatasourceTest {
 
   }
 
+  @Test
+  public void test_value_matrix() {
+
+    final List<Variable> variables = ImmutableList.of( //
+        Variable.Builder.newVariable("Test Integer", IntegerType.get(), PARTICIPANT).build(),
+        Variable.Builder.newVariable("Test Text", TextType.get(), PARTICIPANT).build(),
+        Variable.Builder.newVariable("Test Repeatable Binary", BinaryType.get(), PARTICIPANT).repeatable().build());
+
+    transactionTemplate.execute(new TransactionCallbackRuntimeExceptions() {
+      @Override
+      protected void doAction(TransactionStatus status) throws Exception {
+        HibernateDatasource ds = createDatasource();
+        ValueTable generatedValueTable = new GeneratedValueTable(ds, variables, 20);
+        MagmaEngine.get().addDatasource(ds);
+        DatasourceCopier.Builder.newCopier().build().copy(generatedValueTable, "NewTable", ds);
+      }
+    });
+
+    transactionTemplate.execute(new TransactionCallbackRuntimeExceptions() {
+      @Override
+      protected void doAction(TransactionStatus status) throws Exception {
+        ValueTable valueTable = getDatasource().getValueTable("NewTable");
+        List<Variable> tableVariables = Lists.newArrayList();
+        for(Variable variable : Lists.reverse(variables)) {
+          tableVariables.add(valueTable.getVariable(variable.getName()));
+        }
+
+        SortedSet<VariableEntity> entities = Sets.newTreeSet(valueTable.getVariableEntities());
+        // missing entities among and after the entities of the table
+        Set<VariableEntity> unknowns = ImmutableSet.<VariableEntity>of(
+            new VariableEntityBean(PARTICIPANT, entities.first().getIdentifier() + "-unknown"),
+            new VariableEntityBean(PARTICIPANT, "unknown"));
+        entities.addAll(unknowns);
+
+        List<Value[]> rows = Lists.newArrayList(valueTable.getValueMatrix(tableVariables, entities));
+        assertThat(rows).hasSize(entities.size());
+        for(int i = 0; i < tableVariables.size(); i++) {
+          VectorSource vectorSource = valueTable.getVariableValueSource(tableVariables.get(i).getName())
+              .asVectorSource();
+          Iterator<VariableEntity> entityIterator = entities.iterator();
+          Iterator<Value[]> rowIterator = rows.iterator();
+          for(Value value : vectorSource.getValues(entities)) {
+            Value matrixValue = rowIterator.next()[i];
+            if(unknowns.contains(entityIterator.next())) {
+              assertThat(matrixValue.isNull()).isTrue();
+            } else if(BinaryType.get().equals(value.getValueType())) {
+              assertThat(matrixValue.getLength()).isEqualTo(value.getLength());
+            } else {
+              assertThat(matrixValue).isEqualTo(value);
+            }
+          }
+        }
+      }
+    });
+  }
+
+  @Test
+  public void test_value_sets_are_read_by_blocks() {
+    final List<Variable> variables = ImmutableList.of( //
+        Variable.Builder.newVariable("Test Integer", IntegerType.get(), PARTICIPANT).build(),
+        Variable.Builder.newVariable("Test Text", TextType.get(), PARTICIPANT).build());
+
+    transactionTemplate.execute(new TransactionCallbackRuntimeExceptions() {
+      @Override
+      protected void doAction(TransactionStatus status) throws Exception {
+        HibernateDatasource ds = createDatasource();
+        ValueTable generatedValueTable = new GeneratedValueTable(ds, variables, 250);
+        MagmaEngine.get().addDatasource(ds);
+        DatasourceCopier.Builder.newCopier().build().copy(generatedValueTable, "NewTable", ds);
+      }
+    });
+
+    transactionTemplate.execute(new TransactionCallbackRuntimeExceptions() {
+      @Override
+      protected void doAction(TransactionStatus status) throws Exception {
+        ValueTable valueTable = getDatasource().getValueTable("NewTable");
+        List<Variable> tableVariables = ImmutableList.copyOf(valueTable.getVariables());
+        List<Value[]> rows = Lists.newArrayList(
+            valueTable.getValueMatrix(tableVariables, Sets.newTreeSet(valueTable.getVariableEntities())));
+
+        Statistics statistics = sessionFactory.getStatistics();
+        statistics.setStatisticsEnabled(true);
+        statistics.clear();
+        Iterator<Value[]> expected = rows.iterator();
+        for(ValueSet valueSet : valueTable.getValueSets()) {
+          Value[] row = expected.next();
+          for(int i = 0; i < tableVariables.size(); i++) {
+            assertThat(valueTable.getValue(tableVariables.get(i), valueSet)).isEqualTo(row[i]);
+          }
+        }
+        assertThat(expected.hasNext()).isFalse();
+        // one query per block of value sets instead of one per value set
+        assertThat(statistics.getQueryExecutionCount()).isEqualTo(3);
+        assertThat(statistics.getPrepareStatementCount()).isLessThan(2 * 250);
+        statistics.setStatisticsEnabled(false);
+      }
+    });
+  }
+
+  @Test
+  public void test_append_value_sets() {
+    final List<Variable> variables = ImmutableList.of( //
+        Variable.Builder.newVariable("Test Integer", IntegerType.get(), PARTICIPANT).build(),
+        Variable.Builder.newVariable("Test Text", TextType.get(), PARTICIPANT).build());
+
+    // new entities, then entities known by another table, more than are resolved one by one
+    transactionTemplate.execute(new TransactionCallbackRuntimeExceptions() {
+      @Override
+      protected void doAction(TransactionStatus status) throws Exception {
+        HibernateDatasource ds = createDatasource();
+        ValueTable generatedValueTable = new GeneratedValueTable(ds, variables, 150);
+        MagmaEngine.get().addDatasource(ds);
+        DatasourceCopier.Builder.newCopier().build().copy(generatedValueTable, "NewTable", ds);
+      }
+    });
+    transactionTemplate.execute(new TransactionCallbackRuntimeExceptions() {
+      @Override
+      protected void doAction(TransactionStatus status) throws Exception {
+        HibernateDatasource ds = getDatasource();
+        DatasourceCopier.Builder.newCopier().build().copy(ds.getValueTable("NewTable"), "OtherTable", ds);
+      }
+    });
+
+    transactionTemplate.execute(new TransactionCallbackRuntimeExceptions() {
+      @Override
+      protected void doAction(TransactionStatus status) throws Exception {
+        HibernateDatasource ds = getDatasource();
+        ValueTable valueTable = ds.getValueTable("NewTable");
+        ValueTable otherTable = ds.getValueTable("OtherTable");
+        assertThat(otherTable.getVariableEntities()).hasSize(150).isEqualTo(valueTable.getVariableEntities());
+
+        SortedSet<VariableEntity> entities = Sets.newTreeSet(valueTable.getVariableEntities());
+        Iterator<Value[]> expected = valueTable.getValueMatrix(variables, entities).iterator();
+        for(Value[] row : otherTable.getValueMatrix(variables, entities)) {
+          assertThat(row).isEqualTo(expected.next());
+        }
+        assertThat(expected.hasNext()).isFalse();
+      }
+    });
+  }
+
+  @Test
+  public void test_entity_created_after_index_is_read_is_not_created_again() {
+    transactionTemplate.execute(new TransactionCallbackRuntimeExceptions() {
+      @Override
+      protected void doAction(TransactionStatus status) throws Exception {
+        HibernateDatasource ds = createDatasource();
+        MagmaEngine.get().addDatasource(ds);
+        Variable variable = Variable.Builder.newVariable("Var1", IntegerType.get(), PARTICIPANT).build();
+        try(ValueTableWriter tableWriter = ds.createWriter(TABLE, PARTICIPANT)) {
+          try(VariableWriter variableWriter = tableWriter.writeVariables()) {
+            variableWriter.writeVariable(variable);
+          }
+          // more new entities than are resolved one by one, so that the entity index is read
+          for(int i = 0; i < 150; i++) {
+            writeValueSet(tableWriter, variable, String.valueOf(i), i);
+          }
+          // entity created by another import once the index is read
+          sessionFactory.getCurrentSession().save(new VariableEntityState("150", PARTICIPANT));
+          writeValueSet(tableWriter, variable, "150", 150);
+        }
+      }
+    });
+
+    transactionTemplate.execute(new TransactionCallbackRuntimeExceptions() {
+      @Override
+      protected void doAction(TransactionStatus status) throws Exception {
+        ValueTable valueTable = getDatasource().getValueTable(TABLE);
+        assertThat(valueTable.getVariableEntities()).hasSize(151);
+        assertThat(valueTable.getValue(valueTable.getVariable("Var1"),
+            valueTable.getValueSet(new VariableEntityBean(PARTICIPANT, "150"))))
+            .isEqualTo(IntegerType.get().valueOf(150));
+      }
+    });
+  }
+
+  @Test
+  public void test_compact_values() {
+    final List<Variable> variables = ImmutableList.of( //
+        Variable.Builder.newVariable("Test Integer", IntegerType.get(), PARTICIPANT).build(),
+        Variable.Builder.newVariable("Test Decimal", DecimalType.get(), PARTICIPANT).repeatable().build(),
+        Variable.Builder.newVariable("Test Date", DateType.get(), PARTICIPANT).build(),
+        Variable.Builder.newVariable("Test Text", TextType.get(), PARTICIPANT).build());
+
+    transactionTemplate.execute(new TransactionCallbackRuntimeExceptions() {
+      @Override
+      protected void doAction(TransactionStatus status) throws Exception {
+        HibernateDatasource ds = createDatasource();
+        ValueTable generatedValueTable = new GeneratedValueTable(ds, variables, 20);
+        MagmaEngine.get().addDatasource(ds);
+        DatasourceCopier.Builder.newCopier().build().copy(generatedValueTable, "NewTable", ds);
+      }
+    });
+
+    Properties properties = ((SessionFactoryImplementor) sessionFactory).getProperties();
+    properties.setProperty(CompactValueHibernateType.COMPACT_VALUES, "true");
+    try {
+      transactionTemplate.execute(new TransactionCallbackRuntimeExceptions() {
+        @Override
+        protected void doAction(TransactionStatus status) throws Exception {
+          HibernateDatasource ds = getDatasource();
+          DatasourceCopier.Builder.newCopier().build().copy(ds.getValueTable("NewTable"), "CompactTable", ds);
+        }
+      });
+
+      transactionTemplate.execute(new TransactionCallbackRuntimeExceptions() {
+        @Override
+        protected void doAction(TransactionStatus status) throws Exception {
+          HibernateDatasource ds = getDatasource();
+          ValueTable valueTable = ds.getValueTable("NewTable");
+          ValueTable compactTable = ds.getValueTable("CompactTable");
+          for(ValueSet valueSet : valueTable.getValueSets()) {
+            ValueSet compactValueSet = compactTable.getValueSet(valueSet.getVariableEntity());
+            for(Variable variable : variables) {
+              assertThat(compactTable.getValue(variable, compactValueSet))
+                  .isEqualTo(valueTable.getValue(variable, valueSet));
+            }
+          }
+          Number encoded = (Number) sessionFactory.getCurrentSession()
+              .createSQLQuery("SELECT COUNT(*) FROM value_set_value WHERE value_binary IS NOT NULL").uniqueResult();
+          assertThat(encoded.intValue()).isGreaterThan(0);
+        }
+      });
+    } finally {
+      properties.remove(CompactValueHibernateType.COMPACT_VALUES);
+    }
+  }
+
+  @Test
+  public void test_value_chunks() {
+    final List<Variable> variables = ImmutableList.of( //
+        Variable.Builder.newVariable("Test Integer", IntegerType.get(), PARTICIPANT).build(),
+        Variable.Builder.newVariable("Test Decimal", DecimalType.get(), PARTICIPANT).repeatable().build(),
+        Variable.Builder.newVariable("Test Text", TextType.get(), PARTICIPANT).build());
+
+    Properties properties = ((SessionFactoryImplementor) sessionFactory).getProperties();
+    String valueChunks = properties.getProperty(HibernateDatasource.VALUE_CHUNKS);
+    properties.setProperty(HibernateDatasource.VALUE_CHUNKS, "true");
+    try {
+      transactionTemplate.execute(new TransactionCallbackRuntimeExceptions() {
+        @Override
+        protected void doAction(TransactionStatus status) throws Exception {
+          HibernateDatasource ds = createDatasource();
+          ValueTable generatedValueTable = new GeneratedValueTable(ds, variables, 50);
+          MagmaEngine.get().addDatasource(ds);
+          DatasourceCopier.Builder.newCopier().build().copy(generatedValueTable, "NewTable", ds);
+        }
+      });
+      assertVectorsEqualValueSets(variables);
+
+      transactionTemplate.execute(new TransactionCallbackRuntimeExceptions() {
+        @Override
+        protected void doAction(TransactionStatus status) throws Exception {
+          Number chunks = (Number) sessionFactory.getCurrentSession()
+              .createSQLQuery("SELECT COUNT(*) FROM value_chunk").uniqueResult();
+          assertThat(chunks.intValue()).isGreaterThan(0);
+
+          HibernateDatasource ds = getDatasource();
+          VariableEntity entity = ds.getValueTable("NewTable").getVariableEntities().iterator().next();
+          try(ValueTableWriter tableWriter = ds.createWriter("NewTable", PARTICIPANT);
+              ValueTableWriter.ValueSetWriter valueSetWriter = tableWriter.writeValueSet(entity)) {
+            valueSetWriter.writeValue(variables.get(0), IntegerType.get().valueOf(-1));
+            valueSetWriter.writeValue(variables.get(2), TextType.get().nullValue());
+          }
+        }
+      });
+      assertVectorsEqualValueSets(variables);
+
+      transactionTemplate.execute(new TransactionCallbackRuntimeExceptions() {
+        @Override
+        protected void doAction(TransactionStatus status) throws Exception {
+          HibernateDatasource ds = getDatasource();
+          VariableEntity entity = ds.getValueTable("NewTable").getVariableEntities().iterator().next();
+          try(ValueTableWriter tableWriter = ds.createWriter("NewTable", PARTICIPANT)) {
+            try(ValueTableWriter.ValueSetWriter valueSetWriter = tableWriter.writeValueSet(entity)) {
+              valueSetWriter.remove();
+            }
+            try(ValueTableWriter.ValueSetWriter valueSetWriter = tableWriter
+                .writeValueSet(new VariableEntityBean(PARTICIPANT, "appended"))) {
+              valueSetWriter.writeValue(variables.get(0), IntegerType.get().valueOf(1));
+            }
+          }
+        }
+      });
+      assertVectorsEqualValueSets(variables);
+
+      transactionTemplate.execute(new TransactionCallbackRuntimeExceptions() {
+        @Override
+        protected void doAction(TransactionStatus status) throws Exception {
+          // the chunks of every variable still cover all the value sets of the table
+          List<?> coverage = sessionFactory.getCurrentSession()
+              .createSQLQuery("SELECT SUM(value_set_count) FROM value_chunk GROUP BY variable_id").list();
+          assertThat(coverage).hasSize(variables.size());
+          for(Object covered : coverage) {
+            assertThat(((Number) covered).intValue()).isEqualTo(50);
+          }
+        }
+      });
+    } finally {
+      restoreProperty(properties, HibernateDatasource.VALUE_CHUNKS, valueChunks);
+    }
+  }
+
+  @Test
+  public void test_value_chunks_are_not_read_after_changes_while_disabled() {
+    final List<Variable> variables = ImmutableList.of( //
+        Variable.Builder.newVariable("Test Integer", IntegerType.get(), PARTICIPANT).build(),
+        Variable.Builder.newVariable("Test Text", TextType.get(), PARTICIPANT).build());
+
+    final Properties properties = ((SessionFactoryImplementor) sessionFactory).getProperties();
+    String valueChunks = properties.getProperty(HibernateDatasource.VALUE_CHUNKS);
+    properties.setProperty(HibernateDatasource.VALUE_CHUNKS, "true");
+    try {
+      transactionTemplate.execute(new TransactionCallbackRuntimeExceptions() {
+        @Override
+        protected void doAction(TransactionStatus status) throws Exception {
+          HibernateDatasource ds = createDatasource();
+          ValueTable generatedValueTable = new GeneratedValueTable(ds, variables, 10);
+          MagmaEngine.get().addDatasource(ds);
+          DatasourceCopier.Builder.newCopier().build().copy(generatedValueTable, "NewTable", ds);
+
+          // the first entity has no integer value, and the block of the table is filled up to its last value set
+          VariableEntity entity = ds.getValueTable("NewTable").getVariableEntities().iterator().next();
+          Number lastId = (Number) sessionFactory.getCurrentSession()
+              .createSQLQuery("SELECT MAX(id) FROM value_set").uniqueResult();
+          int padding = HibernateValueChunks.BLOCK_SIZE - 1 -
+              (int) (lastId.longValue() % HibernateValueChunks.BLOCK_SIZE);
+          try(ValueTableWriter tableWriter = ds.createWriter("NewTable", PARTICIPANT)) {
+            try(ValueTableWriter.ValueSetWriter valueSetWriter = tableWriter.writeValueSet(entity)) {
+              valueSetWriter.writeValue(variables.get(0), IntegerType.get().nullValue());
+            }
+            for(int i = 0; i < padding; i++) {
+              try(ValueTableWriter.ValueSetWriter valueSetWriter = tableWriter
+                  .writeValueSet(new VariableEntityBean(PARTICIPANT, "padding-" + i))) {
+                valueSetWriter.writeValue(variables.get(1), TextType.get().valueOf("padding"));
+              }
+            }
+          }
+        }
+      });
+      assertVectorsEqualValueSets(variables);
+
+      // while disabled, the value set is removed from the block of the chunks and another one starts the next block
+      properties.setProperty(HibernateDatasource.VALUE_CHUNKS, "false");
+      transactionTemplate.execute(new TransactionCallbackRuntimeExceptions() {
+        @Override
+        protected void doAction(TransactionStatus status) throws Exception {
+          HibernateDatasource ds = getDatasource();
+          VariableEntity entity = ds.getValueTable("NewTable").getVariableEntities().iterator().next();
+          try(ValueTableWriter tableWriter = ds.createWriter("NewTable", PARTICIPANT)) {
+            try(ValueTableWriter.ValueSetWriter valueSetWriter = tableWriter.writeValueSet(entity)) {
+              valueSetWriter.remove();
+            }
+            try(ValueTableWriter.ValueSetWriter valueSetWriter = tableWriter
+                .writeValueSet(new VariableEntityBean(PARTICIPANT, "appended"))) {
+              valueSetWriter.writeValue(variables.get(0), IntegerType.get().valueOf(42));
+            }
+          }
+        }
+      });
+
+      properties.setProperty(HibernateDatasource.VALUE_CHUNKS, "true");
+      assertVectorsEqualValueSets(variables);
+    } finally {
+      restoreProperty(properties, HibernateDatasource.VALUE_CHUNKS, valueChunks);
+    }
+  }
+
+  private static void restoreProperty(Properties properties, String key, @Nullable String value) {
+    if(value == null) {
+      properties.remove(key);
+    } else {
+      properties.setProperty(key, value);
+    }
+  }
+
+  private void assertVectorsEqualValueSets(final Iterable<Variable> variables) {
+    transactionTemplate.execute(new TransactionCallbackRuntimeExceptions() {
+      @Override
+      protected void doAction(TransactionStatus status) throws Exception {
+        ValueTable valueTable = getDatasource().getValueTable("NewTable");
+        SortedSet<VariableEntity> entities = Sets.newTreeSet(valueTable.getVariableEntities());
+        for(Variable variable : variables) {
+          Iterator<Value> values = valueTable.getVariableValueSource(variable.getName()).asVectorSource()
+              .getValues(entities).iterator();
+          for(VariableEntity entity : entities) {
+            assertThat(values.next()).isEqualTo(valueTable.getValue(variable, valueTable.getValueSet(entity)));
+          }
+        }
+      }
+    });
+  }
+
+  @Test
+  public void test_updated_entities() {
+    final List<Variable> variables = ImmutableList.of( //
+        Variable.Builder.newVariable("Test Integer", IntegerType.get(), PARTICIPANT).build());
+
+    transactionTemplate.execute(new TransactionCallbackRuntimeExceptions() {
+      @Override
+      protected void doAction(TransactionStatus status) throws Exception {
+        HibernateDatasource ds = createDatasource();
+        ValueTable generatedValueTable = new GeneratedValueTable(ds, variables, 20);
+        MagmaEngine.get().addDatasource(ds);
+        DatasourceCopier.Builder.newCopier().build().copy(generatedValueTable, "NewTable", ds);
+      }
+    });
+
+    transactionTemplate.execute(new TransactionCallbackRuntimeExceptions() {
+      @Override
+      protected void doAction(TransactionStatus status) throws Exception {
+        HibernateValueTable valueTable = (HibernateValueTable) getDatasource().getValueTable("NewTable");
+        Value lastUpdate = null;
+        for(Timestamps timestamps : valueTable
+            .getValueSetTimestamps(Sets.newTreeSet(valueTable.getVariableEntities()))) {
+          if(lastUpdate == null || timestamps.getLastUpdate().compareTo(lastUpdate) > 0) {
+            lastUpdate = timestamps.getLastUpdate();
+          }
+        }
+
+        assertThat(valueTable.getUpdatedVariableEntities(DateTimeType.get().valueOf(new Date(0))))
+            .isEqualTo(valueTable.getVariableEntities());
+        assertThat(valueTable.getUpdatedVariableEntities(lastUpdate)).isEmpty();
+      }
+    });
+  }
+
   @Test
   public void test_timestamps_adding_data() throws Exception {
 
@@ -1030,6 +1474,48 @@ public class HibernateDatasourceTest {
     });
   }
 
+  @Test
+  public void test_entities_are_shared_until_table_update() {
+    final ImmutableSet<Variable> variables = ImmutableSet.of(//
+        Variable.Builder.newVariable("Test Variable", IntegerType.get(), PARTICIPANT).build());
+    final Cache cache = new ConcurrentMapCache("magma-table-entities");
+    SimpleCacheManager cacheManager = new SimpleCacheManager();
+    cacheManager.setCaches(ImmutableList.of(cache));
+    cacheManager.afterPropertiesSet();
+    MagmaEngine.get().extend(new MagmaCacheExtension(cacheManager));
+
+    transactionTemplate.execute(new TransactionCallbackRuntimeExceptions() {
+      @Override
+      protected void doAction(TransactionStatus status) throws Exception {
+        HibernateDatasource ds = createDatasource();
+        MagmaEngine.get().addDatasource(ds);
+        DatasourceCopier.Builder.newCopier().build().copy(new GeneratedValueTable(ds, variables, 10), TABLE, ds);
+      }
+    });
+
+    transactionTemplate.execute(new TransactionCallbackRuntimeExceptions() {
+      @Override
+      protected void doAction(TransactionStatus status) throws Exception {
+        HibernateValueTable table = (HibernateValueTable) getDatasource().getValueTable(TABLE);
+        Initialisables.initialise(table);
+        assertThat(((ConcurrentMap<?, ?>) cache.getNativeCache()).values()).hasSize(1);
+        Object key = ((ConcurrentMap<?, ?>) cache.getNativeCache()).keySet().iterator().next();
+        long updated = table.getValueTableState().getUpdated().getTime();
+
+        // another node would read the same entities from the cache
+        VariableEntity other = new VariableEntityBean(PARTICIPANT, "other");
+        cache.put(key, new VariableEntitiesCache(ImmutableSet.of(other), updated));
+        Initialisables.initialise(table);
+        assertThat(table.getVariableEntities()).containsOnly(other);
+
+        // outdated entities are read again from the table
+        cache.put(key, new VariableEntitiesCache(ImmutableSet.of(other), updated - 1));
+        Initialisables.initialise(table);
+        assertThat(table.getVariableEntities()).hasSize(10);
+      }
+    });
+  }
+
   @Test
   public void test_rename_table() throws InterruptedException {
 
@@ -1248,6 +1734,13 @@ public class HibernateDatasourceTest {
     }
   }
 
+  private void writeValueSet(ValueTableWriter tableWriter, Variable variable, String identifier, int value) {
+    try(ValueSetWriter valueSetWriter = tableWriter
+        .writeValueSet(new VariableEntityBean(PARTICIPANT, identifier))) {
+      valueSetWriter.writeValue(variable, IntegerType.get().valueOf(value));
+    }
+  }
+
   private HibernateDatasource createDatasource() {
     HibernateDatasource datasource = new HibernateDatasource(DATASOURCE, sessionFactory);
     Initialisables.initialise(datasource);
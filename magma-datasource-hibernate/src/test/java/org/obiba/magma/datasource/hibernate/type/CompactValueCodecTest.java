@@ -0,0 +1,79 @@
+package org.obiba.magma.datasource.hibernate.type;
+
+import java.util.Date;
+
+import org.hibernate.HibernateException;
+import org.junit.Test;
+import org.obiba.magma.MagmaDate;
+import org.obiba.magma.Value;
+import org.obiba.magma.ValueType;
+import org.obiba.magma.test.AbstractMagmaTest;
+import org.obiba.magma.type.BooleanType;
+import org.obiba.magma.type.DateTimeType;
+import org.obiba.magma.type.DateType;
+import org.obiba.magma.type.DecimalType;
+import org.obiba.magma.type.IntegerType;
+import org.obiba.magma.type.LocaleType;
+import org.obiba.magma.type.TextType;
+
+import com.google.common.collect.ImmutableList;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+
+public class CompactValueCodecTest extends AbstractMagmaTest {
+
+  @Test
+  public void test_values() {
+    assertRoundTrip(IntegerType.get().valueOf(0L));
+    assertRoundTrip(IntegerType.get().valueOf(-123456789012L));
+    assertRoundTrip(IntegerType.get().valueOf(Long.MAX_VALUE));
+    assertRoundTrip(DecimalType.get().valueOf(-0.1));
+    assertRoundTrip(DecimalType.get().valueOf(Double.NaN));
+    assertRoundTrip(DateTimeType.get().valueOf(new Date()));
+    assertRoundTrip(DateTimeType.get().valueOf(new Date(-1000L)));
+    assertRoundTrip(DateType.get().valueOf(new MagmaDate(1901, 11, 31)));
+    assertRoundTrip(BooleanType.get().trueValue());
+    assertRoundTrip(BooleanType.get().falseValue());
+    assertRoundTrip(TextType.get().valueOf(""));
+    assertRoundTrip(TextType.get().valueOf("éèê \"quoted\", multi\nline"));
+    assertRoundTrip(LocaleType.get().valueOf("fr_CA"));
+  }
+
+  @Test
+  public void test_nulls() {
+    assertRoundTrip(IntegerType.get().nullValue());
+    assertRoundTrip(TextType.get().nullValue());
+    assertRoundTrip(DateType.get().nullSequence());
+  }
+
+  @Test
+  public void test_sequences() {
+    assertRoundTrip(IntegerType.get().sequenceOf(ImmutableList.<Value>of()));
+    assertRoundTrip(IntegerType.get().sequenceOf(
+        ImmutableList.of(IntegerType.get().valueOf(1L), IntegerType.get().nullValue(), IntegerType.get().valueOf(-1L))));
+    assertRoundTrip(TextType.get()
+        .sequenceOf(ImmutableList.of(TextType.get().valueOf("a,b"), TextType.get().nullValue(), TextType.get().valueOf(""))));
+  }
+
+  @Test
+  public void test_compact_size() {
+    assertThat(CompactValueCodec.encode(IntegerType.get().valueOf(42L))).hasSize(3);
+    assertThat(CompactValueCodec.encode(DateTimeType.get().valueOf(new Date()))).hasSize(8);
+  }
+
+  @Test(expected = HibernateException.class)
+  public void test_unknown_version() {
+    byte[] bytes = CompactValueCodec.encode(IntegerType.get().valueOf(1L));
+    bytes[0] = CompactValueCodec.VERSION + 1;
+    CompactValueCodec.decode(IntegerType.get(), bytes);
+  }
+
+  private static void assertRoundTrip(Value value) {
+    ValueType valueType = value.getValueType();
+    Value decoded = CompactValueCodec.decode(valueType, CompactValueCodec.encode(value));
+    assertThat(decoded.getValueType()).isEqualTo(valueType);
+    assertThat(decoded.isSequence()).isEqualTo(value.isSequence());
+    assertThat(decoded.isNull()).isEqualTo(value.isNull());
+    assertThat(decoded).isEqualTo(value);
+  }
+}
@@ -56,7 +56,7 @@ public class JdbcDatasource extends AbstractDatasource {
 
   private final JdbcDatasourceSettings settings;
 
-  private DatabaseSnapshot snapshot;
+  private volatile DatabaseSnapshot snapshot;
 
   @SuppressWarnings("ConstantConditions")
   public JdbcDatasource(String name, @NotNull DataSource datasource, @NotNull JdbcDatasourceSettings settings) {
@@ -107,6 +107,15 @@ public class JdbcDatasource extends AbstractDatasource {
     return new JdbcValueTableWriter(table);
   }
 
+  /**
+   * Value sets are written through a thread-safe {@link JdbcTemplate}, each writer binds to its own connection. Closing
+   * a writer of value sets only refreshes the entities of the table.
+   */
+  @Override
+  public boolean canWriteConcurrently() {
+    return true;
+  }
+
   @Override
   protected void onInitialise() {
     if(getSettings().isUseMetadataTables()) {
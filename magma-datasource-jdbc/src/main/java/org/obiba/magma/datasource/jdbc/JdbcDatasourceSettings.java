@@ -10,6 +10,12 @@ import javax.validation.constraints.NotNull;
 import com.google.common.base.Strings;
 
 public class JdbcDatasourceSettings {
+
+  /**
+   * Default number of value sets sent to the database in one batch.
+   */
+  public static final int DEFAULT_BATCH_SIZE = 100;
+
   //
   // Instance Variables
   //
@@ -32,6 +38,11 @@ public class JdbcDatasourceSettings {
    */
   private String defaultUpdatedTimestampColumnName;
 
+  /**
+   * The number of value sets buffered by a table writer before they are sent to the database
+   */
+  private int batchSize = DEFAULT_BATCH_SIZE;
+
   public JdbcDatasourceSettings() {
   }
 
@@ -132,6 +143,14 @@ public class JdbcDatasourceSettings {
     this.defaultUpdatedTimestampColumnName = defaultUpdatedTimestampColumnName;
   }
 
+  public int getBatchSize() {
+    return batchSize;
+  }
+
+  public void setBatchSize(int batchSize) {
+    this.batchSize = batchSize < 1 ? 1 : batchSize;
+  }
+
   public boolean isCreatedTimestampColumnNameProvided() {
     return !Strings.isNullOrEmpty(defaultCreatedTimestampColumnName);
   }
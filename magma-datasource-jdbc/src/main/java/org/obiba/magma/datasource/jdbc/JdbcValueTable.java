@@ -6,12 +6,14 @@ import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Statement;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.Date;
 import java.util.Iterator;
 import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Locale;
+import java.util.Map;
 import java.util.NoSuchElementException;
 import java.util.Set;
 import java.util.SortedSet;
@@ -27,6 +29,7 @@ import org.obiba.magma.Initialisable;
 import org.obiba.magma.MagmaRuntimeException;
 import org.obiba.magma.NoSuchValueSetException;
 import org.obiba.magma.Timestamps;
+import org.obiba.magma.TimestampsBean;
 import org.obiba.magma.Value;
 import org.obiba.magma.ValueSet;
 import org.obiba.magma.ValueType;
@@ -40,10 +43,15 @@ import org.obiba.magma.support.AbstractValueTable;
 import org.obiba.magma.support.AbstractVariableEntityProvider;
 import org.obiba.magma.support.Initialisables;
 import org.obiba.magma.support.NullTimestamps;
+import org.obiba.magma.support.UpdatedVariableEntityProvider;
 import org.obiba.magma.support.VariableEntityBean;
 import org.obiba.magma.type.DateTimeType;
+import org.springframework.jdbc.core.RowCallbackHandler;
 import org.springframework.jdbc.core.RowMapper;
 
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Maps;
+
 import liquibase.change.ChangeWithColumns;
 import liquibase.change.ColumnConfig;
 import liquibase.change.ConstraintsConfig;
@@ -53,7 +61,18 @@ import liquibase.database.structure.DatabaseSnapshot;
 import liquibase.database.structure.Table;
 
 @SuppressWarnings("OverlyCoupledClass")
-class JdbcValueTable extends AbstractValueTable {
+class JdbcValueTable extends AbstractValueTable implements UpdatedVariableEntityProvider {
+
+  /**
+   * Maximum number of entity identifiers in one vector read query.
+   */
+  static final int ENTITY_CHUNK_SIZE = 500;
+
+  /**
+   * Vector reads select the requested entities instead of scanning the table when they are less than one in this
+   * number of the table's entities.
+   */
+  static final int SPARSE_ENTITIES_RATIO = 10;
 
   private final JdbcValueTableSettings settings;
 
@@ -121,6 +140,52 @@ class JdbcValueTable extends AbstractValueTable {
     return NullTimestamps.get();
   }
 
+  /**
+   * Reads the timestamps of the entities by chunks of {@link #ENTITY_CHUNK_SIZE} identifiers, instead of one query per
+   * entity.
+   */
+  @Override
+  public Iterable<Timestamps> getValueSetTimestamps(final SortedSet<VariableEntity> entities) {
+    if(!hasCreatedTimestampColumn() || !hasUpdatedTimestampColumn()) {
+      return super.getValueSetTimestamps(entities);
+    }
+    return new Iterable<Timestamps>() {
+      @Override
+      public Iterator<Timestamps> iterator() {
+        return new ChunkedRowsIterator<Timestamps>(getEntityIdentifierColumnsSql() + "," +
+            getCreatedTimestampColumnName() + "," + getUpdatedTimestampColumnName(), entities) {
+          @Override
+          protected Timestamps readRow(ResultSet rs) throws SQLException {
+            return new TimestampsBean(DateTimeType.get().valueOf(rs.getTimestamp(getCreatedTimestampColumnName())),
+                DateTimeType.get().valueOf(rs.getTimestamp(getUpdatedTimestampColumnName())));
+          }
+
+          @Override
+          protected Timestamps missingRow() {
+            return NullTimestamps.get();
+          }
+        };
+      }
+    };
+  }
+
+  @Override
+  public Set<VariableEntity> getUpdatedVariableEntities(@NotNull Value since) {
+    if(!hasCreatedTimestampColumn() || !hasUpdatedTimestampColumn()) {
+      // value sets have no timestamps
+      return getVariableEntities();
+    }
+    String updated = getUpdatedTimestampColumnName();
+    return ImmutableSet.copyOf(getDatasource().getJdbcTemplate().query(
+        "SELECT " + getEntityIdentifierColumnsSql() + " FROM " + escapedSqlTableName + " WHERE " + updated + " > ? OR " +
+            updated + " IS NULL", new Object[] { since.getValue() }, new RowMapper<VariableEntity>() {
+          @Override
+          public VariableEntity mapRow(ResultSet rs, int rowNum) throws SQLException {
+            return new VariableEntityBean(getEntityType(), buildEntityIdentifier(rs));
+          }
+        }));
+  }
+
   @NotNull
   @Override
   public Timestamps getTimestamps() {
@@ -158,11 +223,15 @@ class JdbcValueTable extends AbstractValueTable {
     return NameConverter.toSqlName(getName());
   }
 
-  void tableChanged() {
+  synchronized void tableChanged() {
     table = getDatasource().getDatabaseSnapshot().getTable(settings.getSqlTableName());
     initialise();
   }
 
+  void entitiesChanged() {
+    Initialisables.initialise(getVariableEntityProvider());
+  }
+
   boolean hasCreatedTimestampColumn() {
     return getSettings().isCreatedTimestampColumnNameProvided() ||
         getDatasource().getSettings().isCreatedTimestampColumnNameProvided();
@@ -371,6 +440,10 @@ class JdbcValueTable extends AbstractValueTable {
     return sql.toString();
   }
 
+  private String[] splitEntityIdentifier(String identifier) {
+    return getSettings().getEntityIdentifierColumns().size() > 1 ? identifier.split("-") : new String[] { identifier };
+  }
+
   private String buildEntityIdentifier(ResultSet rs) throws SQLException {
     StringBuilder entityIdentifier = new StringBuilder();
     for(int i = 1; i <= getSettings().getEntityIdentifierColumns().size(); i++) {
@@ -410,7 +483,7 @@ class JdbcValueTable extends AbstractValueTable {
     @Override
     public Value getCreated() {
       String sql = appendIdentifierColumns(
-          "SELECT MIN(" + updatedTimestampColumnName + ") FROM " + escapedSqlTableName);
+          "SELECT MIN(" + getCreatedTimestampColumnName() + ") FROM " + escapedSqlTableName);
       return DateTimeType.get().valueOf(executeQuery(sql));
     }
 
@@ -436,7 +509,10 @@ class JdbcValueTable extends AbstractValueTable {
 
   class JdbcVariableEntityProvider extends AbstractVariableEntityProvider implements Initialisable {
 
-    private Set<VariableEntity> entities = new LinkedHashSet<>();
+    /**
+     * Replaced as a whole, never modified, so that readers never see a partially read set.
+     */
+    private volatile Set<VariableEntity> entities = Collections.emptySet();
 
     JdbcVariableEntityProvider(String entityType) {
       super(entityType);
@@ -444,8 +520,6 @@ class JdbcValueTable extends AbstractValueTable {
 
     @Override
     public void initialise() {
-      entities = new LinkedHashSet<>();
-
       // MAGMA-100
       if(escapedSqlTableName == null) {
         escapedSqlTableName = getDatasource().escapeSqlTableName(getSqlName());
@@ -460,13 +534,13 @@ class JdbcValueTable extends AbstractValueTable {
                 }
               });
 
-      entities.addAll(results);
+      entities = Collections.unmodifiableSet(new LinkedHashSet<>(results));
     }
 
     @NotNull
     @Override
     public Set<VariableEntity> getVariableEntities() {
-      return Collections.unmodifiableSet(entities);
+      return entities;
     }
 
   }
@@ -537,110 +611,331 @@ class JdbcValueTable extends AbstractValueTable {
 
     @Override
     public Iterable<Value> getValues(final SortedSet<VariableEntity> entities) {
-
+      final List<JdbcVariableValueSource> sources = Collections.singletonList(this);
       return new Iterable<Value>() {
 
         @Override
         public Iterator<Value> iterator() {
-          try {
-            return new ValueIterator(getDatasource().getJdbcTemplate().getDataSource().getConnection(), entities);
-          } catch(SQLException e) {
-            throw new RuntimeException(e);
-          }
+          final Iterator<Value[]> values = readValues(sources, entities);
+          return new Iterator<Value>() {
+            @Override
+            public boolean hasNext() {
+              return values.hasNext();
+            }
+
+            @Override
+            public Value next() {
+              return values.next()[0];
+            }
+
+            @Override
+            public void remove() {
+              throw new UnsupportedOperationException();
+            }
+          };
         }
 
       };
     }
 
-    private class ValueIterator implements Iterator<Value> {
+    String getColumnName() {
+      return columnName;
+    }
+
+    private Value toValue(@Nullable Object columnValue) {
+      Value value = columnValue == null ? null : variable.getValueType().valueOf(columnValue);
+      return value == null //
+          ? getVariable().isRepeatable() ? getValueType().nullSequence() : getValueType().nullValue() //
+          : value;
+    }
+  }
+
+  @Override
+  public Iterable<Value[]> getValueMatrix(List<Variable> variables, final SortedSet<VariableEntity> entities) {
+    final List<JdbcVariableValueSource> sources = new ArrayList<>(variables.size());
+    for(Variable variable : variables) {
+      VariableValueSource source = getVariableValueSource(variable.getName());
+      if(!(source instanceof JdbcVariableValueSource)) {
+        return super.getValueMatrix(variables, entities);
+      }
+      sources.add((JdbcVariableValueSource) source);
+    }
+    return new Iterable<Value[]>() {
+      @Override
+      public Iterator<Value[]> iterator() {
+        return readValues(sources, entities);
+      }
+    };
+  }
+
+  /**
+   * Reads the values of several columns, in one query, for a sorted set of entities. When only a few entities of the
+   * table are requested, the rows are selected by chunks of entity identifiers, otherwise the whole table is scanned
+   * once.
+   *
+   * @param sources the columns to read
+   * @param entities the entities to read the values of
+   * @return for each entity, in order, one value per source
+   */
+  Iterator<Value[]> readValues(List<JdbcVariableValueSource> sources, SortedSet<VariableEntity> entities) {
+    if(entities.isEmpty()) return Collections.emptyIterator();
+    if(isSparse(entities)) return new ChunkedValuesIterator(sources, entities);
+    try {
+      return new ScanValuesIterator(getDatasource().getJdbcTemplate().getDataSource().getConnection(), sources,
+          entities);
+    } catch(SQLException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  /**
+   * Whether the requested entities are few enough to be selected by chunks of identifiers rather than by a scan.
+   */
+  boolean isSparse(Collection<VariableEntity> entities) {
+    return entities.size() <= ENTITY_CHUNK_SIZE || entities.size() * SPARSE_ENTITIES_RATIO < getVariableEntityCount();
+  }
 
-      private final Connection connection;
+  private String getColumnsSql(Iterable<JdbcVariableValueSource> sources) {
+    StringBuilder sql = new StringBuilder(getEntityIdentifierColumnsSql());
+    for(JdbcVariableValueSource source : sources) {
+      sql.append(",").append(source.getColumnName());
+    }
+    return sql.toString();
+  }
 
-      private final PreparedStatement statement;
+  private Value[] readRow(ResultSet rs, List<JdbcVariableValueSource> sources) throws SQLException {
+    Value[] values = new Value[sources.size()];
+    for(int i = 0; i < values.length; i++) {
+      JdbcVariableValueSource source = sources.get(i);
+      values[i] = source.toValue(rs.getObject(source.getColumnName()));
+    }
+    return values;
+  }
 
-      private final ResultSet rs;
+  private Value[] nullRow(List<JdbcVariableValueSource> sources) {
+    Value[] values = new Value[sources.size()];
+    for(int i = 0; i < values.length; i++) {
+      values[i] = sources.get(i).toValue(null);
+    }
+    return values;
+  }
 
-      private final Iterator<VariableEntity> resultEntities;
+  /**
+   * Selects the rows of the requested entities only, by chunks of {@link #ENTITY_CHUNK_SIZE} identifiers.
+   */
+  private class ChunkedValuesIterator extends ChunkedRowsIterator<Value[]> {
 
-      private boolean hasNextResults;
+    private final List<JdbcVariableValueSource> sources;
 
-      private boolean closed = false;
+    private ChunkedValuesIterator(List<JdbcVariableValueSource> sources, Iterable<VariableEntity> entities) {
+      super(getColumnsSql(sources), entities);
+      this.sources = sources;
+    }
 
-      @edu.umd.cs.findbugs.annotations.SuppressWarnings("SQL_PREPARED_STATEMENT_GENERATED_FROM_NONCONSTANT_STRING")
-      private ValueIterator(Connection connection, Iterable<VariableEntity> entities) throws SQLException {
-        this.connection = connection;
-        String column = getEntityIdentifierColumnsSql();
-        statement = connection.prepareStatement("SELECT " + column + "," + columnName +
-            " FROM " + escapedSqlTableName + " ORDER BY " + column);
-        rs = statement.executeQuery();
-        hasNextResults = rs.next();
-        resultEntities = entities.iterator();
-        closeCursorIfNecessary();
-      }
+    @Override
+    protected Value[] readRow(ResultSet rs) throws SQLException {
+      return JdbcValueTable.this.readRow(rs, sources);
+    }
 
-      @Override
-      public boolean hasNext() {
-        return resultEntities.hasNext();
+    @Override
+    protected Value[] missingRow() {
+      return nullRow(sources);
+    }
+  }
+
+  /**
+   * Selects some columns of the requested entities, by chunks of {@link #ENTITY_CHUNK_SIZE} identifiers, and returns
+   * one row per entity, in order.
+   */
+  private abstract class ChunkedRowsIterator<T> implements Iterator<T> {
+
+    private final String columnsSql;
+
+    private final Iterator<VariableEntity> entities;
+
+    private final List<String> entityIdentifierColumns = getSettings().getEntityIdentifierColumns();
+
+    private Iterator<String> chunkEntities = Collections.emptyIterator();
+
+    private Map<String, T> chunkRows;
+
+    /**
+     * @param columnsSql the columns to select, starting with the entity identifier columns
+     */
+    private ChunkedRowsIterator(String columnsSql, Iterable<VariableEntity> entities) {
+      this.columnsSql = columnsSql;
+      this.entities = entities.iterator();
+    }
+
+    protected abstract T readRow(ResultSet rs) throws SQLException;
+
+    /**
+     * The row of an entity that is not in the table.
+     */
+    protected abstract T missingRow();
+
+    @Override
+    public boolean hasNext() {
+      return chunkEntities.hasNext() || entities.hasNext();
+    }
+
+    @Override
+    public T next() {
+      if(!hasNext()) {
+        throw new NoSuchElementException();
       }
+      if(!chunkEntities.hasNext()) {
+        readChunk();
+      }
+      T row = chunkRows.get(chunkEntities.next());
+      return row == null ? missingRow() : row;
+    }
 
-      @Override
-      public Value next() {
-        if(!hasNext()) {
-          throw new NoSuchElementException();
-        }
+    @Override
+    public void remove() {
+      throw new UnsupportedOperationException();
+    }
 
-        String nextEntity = resultEntities.next().getIdentifier();
-        try {
-          // Scroll until we find the required entity or reach the end of the results
-          while(hasNextResults && !buildEntityIdentifier(rs).equals(nextEntity)) {
-            hasNextResults = rs.next();
-          }
+    private void readChunk() {
+      List<String> identifiers = new ArrayList<>(ENTITY_CHUNK_SIZE);
+      List<Object> parameters = new ArrayList<>(ENTITY_CHUNK_SIZE * entityIdentifierColumns.size());
+      while(entities.hasNext() && identifiers.size() < ENTITY_CHUNK_SIZE) {
+        String identifier = entities.next().getIdentifier();
+        identifiers.add(identifier);
+        Collections.addAll(parameters, (Object[]) splitEntityIdentifier(identifier));
+      }
 
-          Value value = null;
-          if(hasNextResults) {
-            value = variable.getValueType().valueOf(rs.getObject(columnName));
+      final Map<String, T> rows = Maps.newHashMapWithExpectedSize(identifiers.size());
+      getDatasource().getJdbcTemplate()
+          .query("SELECT " + columnsSql + " FROM " + escapedSqlTableName + " WHERE " +
+              getWhereClause(identifiers.size()), parameters.toArray(), new RowCallbackHandler() {
+            @Override
+            public void processRow(ResultSet rs) throws SQLException {
+              rows.put(buildEntityIdentifier(rs), readRow(rs));
+            }
+          });
+      chunkRows = rows;
+      chunkEntities = identifiers.iterator();
+    }
+    private String getWhereClause(int count) {
+      StringBuilder where = new StringBuilder();
+      if(entityIdentifierColumns.size() == 1) {
+        where.append(entityIdentifierColumns.get(0)).append(" IN (");
+        for(int i = 0; i < count; i++) {
+          if(i > 0) where.append(",");
+          where.append("?");
+        }
+        where.append(")");
+      } else {
+        for(int i = 0; i < count; i++) {
+          if(i > 0) where.append(" OR ");
+          where.append("(");
+          for(int j = 0; j < entityIdentifierColumns.size(); j++) {
+            if(j > 0) where.append(" AND ");
+            where.append(entityIdentifierColumns.get(j)).append(" = ?");
           }
-          closeCursorIfNecessary();
-          return value == null //
-              ? getVariable().isRepeatable() ? getValueType().nullSequence() : getValueType().nullValue() //
-              : value;
-        } catch(SQLException e) {
-          throw new RuntimeException(e);
+          where.append(")");
         }
       }
+      return where.toString();
+    }
+  }
 
-      @Override
-      public void remove() {
-        throw new UnsupportedOperationException();
+  /**
+   * Scrolls the whole table, ordered by entity identifier, and picks the rows of the requested entities.
+   */
+  private class ScanValuesIterator implements Iterator<Value[]> {
+
+    private final Connection connection;
+
+    private final PreparedStatement statement;
+
+    private final ResultSet rs;
+
+    private final List<JdbcVariableValueSource> sources;
+
+    private final Iterator<VariableEntity> resultEntities;
+
+    private boolean hasNextResults;
+
+    private boolean closed = false;
+
+    @edu.umd.cs.findbugs.annotations.SuppressWarnings("SQL_PREPARED_STATEMENT_GENERATED_FROM_NONCONSTANT_STRING")
+    private ScanValuesIterator(Connection connection, List<JdbcVariableValueSource> sources,
+        Iterable<VariableEntity> entities) throws SQLException {
+      this.connection = connection;
+      this.sources = sources;
+      statement = connection.prepareStatement("SELECT " + getColumnsSql(sources) +
+          " FROM " + escapedSqlTableName + " ORDER BY " + getEntityIdentifierColumnsSql());
+      rs = statement.executeQuery();
+      hasNextResults = rs.next();
+      resultEntities = entities.iterator();
+      closeCursorIfNecessary();
+    }
+
+    @Override
+    public boolean hasNext() {
+      return resultEntities.hasNext();
+    }
+
+    @Override
+    public Value[] next() {
+      if(!hasNext()) {
+        throw new NoSuchElementException();
       }
 
-      private void closeCursorIfNecessary() {
-        if(!closed) {
-          // Close the cursor if we don't have any more results or no more entities to return
-          if(!hasNextResults || !hasNext()) {
-            closed = true;
-            closeQuietly(rs, statement, connection);
-          }
+      VariableEntity entity = resultEntities.next();
+      if(!hasValueSet(entity)) {
+        // not in the table: scrolling would skip the rows of the entities that follow
+        closeCursorIfNecessary();
+        return nullRow(sources);
+      }
+      String nextEntity = entity.getIdentifier();
+      try {
+        // Scroll until we find the required entity or reach the end of the results
+        while(hasNextResults && !buildEntityIdentifier(rs).equals(nextEntity)) {
+          hasNextResults = rs.next();
+        }
+
+        Value[] values = hasNextResults ? readRow(rs, sources) : nullRow(sources);
+        closeCursorIfNecessary();
+        return values;
+      } catch(SQLException e) {
+        throw new RuntimeException(e);
+      }
+    }
+
+    @Override
+    public void remove() {
+      throw new UnsupportedOperationException();
+    }
+
+    private void closeCursorIfNecessary() {
+      if(!closed) {
+        // Close the cursor if we don't have any more results or no more entities to return
+        if(!hasNextResults || !hasNext()) {
+          closed = true;
+          closeQuietly(rs, statement, connection);
         }
       }
+    }
 
-      @SuppressWarnings({ "OverlyStrongTypeCast", "ChainOfInstanceofChecks" })
-      private void closeQuietly(Object... objs) {
-        if(objs != null) {
-          for(Object o : objs) {
-            try {
-              if(o instanceof ResultSet) {
-                ((ResultSet) o).close();
-              }
-              if(o instanceof Statement) {
-                ((Statement) o).close();
-              }
-              if(o instanceof Connection) {
-                ((Connection) o).close();
-              }
-            } catch(SQLException e) {
-              // ignored
+    @SuppressWarnings({ "OverlyStrongTypeCast", "ChainOfInstanceofChecks" })
+    private void closeQuietly(Object... objs) {
+      if(objs != null) {
+        for(Object o : objs) {
+          try {
+            if(o instanceof ResultSet) {
+              ((ResultSet) o).close();
+            }
+            if(o instanceof Statement) {
+              ((Statement) o).close();
             }
+            if(o instanceof Connection) {
+              ((Connection) o).close();
+            }
+          } catch(SQLException e) {
+            // ignored
           }
         }
       }
@@ -10,10 +10,13 @@ import java.sql.SQLException;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Date;
+import java.util.HashSet;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
+import javax.annotation.Nullable;
 import javax.validation.constraints.NotNull;
 
 import org.obiba.magma.Attribute;
@@ -31,7 +34,7 @@ import org.obiba.magma.type.TextType;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.jdbc.core.JdbcTemplate;
-import org.springframework.jdbc.core.support.AbstractLobCreatingPreparedStatementCallback;
+import org.springframework.jdbc.core.PreparedStatementCallback;
 import org.springframework.jdbc.support.lob.DefaultLobHandler;
 import org.springframework.jdbc.support.lob.LobCreator;
 import org.springframework.util.Assert;
@@ -45,7 +48,6 @@ import liquibase.change.ModifyColumnChange;
 
 class JdbcValueTableWriter implements ValueTableWriter {
 
-  @SuppressWarnings("unused")
   private static final Logger log = LoggerFactory.getLogger(JdbcValueTableWriter.class);
 
   static final String VARIABLE_METADATA_TABLE = "variables";
@@ -78,8 +80,31 @@ class JdbcValueTableWriter implements ValueTableWriter {
 
   private final JdbcValueTable valueTable;
 
+  private final int batchSize;
+
+  private final boolean upsertSupported;
+
+  /**
+   * Value sets waiting to be sent to the database.
+   */
+  private final List<JdbcValueSetWriter> batch = new ArrayList<>();
+
+  private final Set<VariableEntity> batchEntities = new HashSet<>();
+
+  /**
+   * Entities inserted by this writer, not yet known by the value table.
+   */
+  private final Set<VariableEntity> insertedEntities = new HashSet<>();
+
+  /**
+   * Whether this writer changed the variables, and therefore the structure, of the table.
+   */
+  private boolean variablesChanged;
+
   JdbcValueTableWriter(JdbcValueTable valueTable) {
     this.valueTable = valueTable;
+    batchSize = valueTable.getDatasource().getSettings().getBatchSize();
+    upsertSupported = "mysql".equals(valueTable.getDatasource().getDatabaseSnapshot().getDatabase().getTypeName());
   }
 
   @NotNull
@@ -90,15 +115,93 @@ class JdbcValueTableWriter implements ValueTableWriter {
 
   @Override
   public VariableWriter writeVariables() {
+    variablesChanged = true;
     return valueTable.getDatasource().getSettings().isUseMetadataTables()
         ? new JdbcMetadataVariableWriter()
         : new JdbcVariableWriter();
   }
 
+  @Override
+  public void flush() {
+    if(batch.isEmpty()) return;
+
+    // group the value sets by statement so that each statement is prepared once per batch
+    Map<String, List<JdbcValueSetWriter>> statements = new LinkedHashMap<>();
+    for(JdbcValueSetWriter writer : batch) {
+      List<JdbcValueSetWriter> writers = statements.get(writer.sql);
+      if(writers == null) {
+        writers = new ArrayList<>();
+        statements.put(writer.sql, writers);
+      }
+      writers.add(writer);
+    }
+    batch.clear();
+    batchEntities.clear();
+
+    for(Map.Entry<String, List<JdbcValueSetWriter>> entry : statements.entrySet()) {
+      executeBatch(entry.getKey(), entry.getValue());
+    }
+  }
+
+  /**
+   * Only a writer that changed the variables re-initialises the table: writers of value sets refresh the entities,
+   * which leaves the variable sources untouched for the other writers of the table.
+   */
   @Override
   public void close() {
-    valueTable.getDatasource().databaseChanged();
-    valueTable.tableChanged();
+    flush();
+    if(variablesChanged) {
+      valueTable.getDatasource().databaseChanged();
+      valueTable.tableChanged();
+    } else {
+      valueTable.entitiesChanged();
+    }
+  }
+
+  private void addToBatch(JdbcValueSetWriter writer) {
+    batch.add(writer);
+    batchEntities.add(writer.entity);
+    if(batch.size() >= batchSize) {
+      flush();
+    }
+  }
+
+  private void executeBatch(String sql, final List<JdbcValueSetWriter> writers) {
+    log.trace("Batch of {}: {}", writers.size(), sql);
+    valueTable.getDatasource().getJdbcTemplate().execute(sql, new PreparedStatementCallback<int[]>() {
+      @Override
+      public int[] doInPreparedStatement(PreparedStatement ps) throws SQLException {
+        LobCreator lobCreator = new DefaultLobHandler().getLobCreator();
+        try {
+          for(JdbcValueSetWriter writer : writers) {
+            writer.setParameters(ps, lobCreator);
+            ps.addBatch();
+          }
+          return ps.executeBatch();
+        } finally {
+          lobCreator.close();
+        }
+      }
+    });
+  }
+
+  /**
+   * MySQL upsert clause of an insert: the value set may have been inserted since the table's entities were loaded. The
+   * created timestamp of an existing row is kept.
+   *
+   * @param columns the value columns of the insert
+   * @param createdTimestampColumn the created timestamp column, or null if the table has none
+   */
+  static String getOnDuplicateKeyUpdateSql(Iterable<String> columns, @Nullable String createdTimestampColumn) {
+    StringBuilder sql = new StringBuilder(" ON DUPLICATE KEY UPDATE ");
+    String separator = "";
+    for(String column : columns) {
+      if(!column.equals(createdTimestampColumn)) {
+        sql.append(separator).append(column).append(" = VALUES(").append(column).append(")");
+        separator = ", ";
+      }
+    }
+    return sql.toString();
   }
 
   private class JdbcVariableWriter implements VariableWriter {
@@ -263,6 +366,10 @@ class JdbcValueTableWriter implements ValueTableWriter {
 
     private final Map<String, Object> columnValueMap;
 
+    private String sql;
+
+    private final List<Object> parameters = new ArrayList<>();
+
     private JdbcValueSetWriter(VariableEntity entity) {
       this.entity = entity;
       columnValueMap = new LinkedHashMap<>();
@@ -291,31 +398,39 @@ class JdbcValueTableWriter implements ValueTableWriter {
       throw new UnsupportedOperationException();
     }
 
+    /**
+     * Prepares the statement and adds it to the batch of the table writer.
+     */
     @Override
     public void close() {
       if(columnValueMap.size() != 0) {
-        JdbcTemplate jdbcTemplate = valueTable.getDatasource().getJdbcTemplate();
+        // the same entity cannot be inserted and updated within the same batch
+        if(batchEntities.contains(entity)) flush();
+
+        if(valueTable.hasValueSet(entity) || insertedEntities.contains(entity)) {
+          prepareUpdate();
+        } else {
+          prepareInsert();
+          insertedEntities.add(entity);
+        }
+        addToBatch(this);
+      }
+    }
 
-        jdbcTemplate.execute(valueTable.hasValueSet(entity) ? getUpdateSql() : getInsertSql(),
-            new AbstractLobCreatingPreparedStatementCallback(new DefaultLobHandler()) {
-              @Override
-              protected void setValues(PreparedStatement ps, LobCreator lobCreator) throws SQLException {
-                int index = 1;
-                for(Map.Entry<String, Object> entry : columnValueMap.entrySet()) {
-                  if(entry.getValue() instanceof byte[]) {
-                    lobCreator.setBlobAsBinaryStream(ps, index++, new ByteArrayInputStream((byte[]) entry.getValue()),
-                        ((byte[]) entry.getValue()).length);
-                  } else {
-                    ps.setObject(index++, entry.getValue());
-                  }
-                }
-              }
-            });
+    private void setParameters(PreparedStatement ps, LobCreator lobCreator) throws SQLException {
+      int index = 1;
+      for(Object parameter : parameters) {
+        if(parameter instanceof byte[]) {
+          lobCreator.setBlobAsBinaryStream(ps, index++, new ByteArrayInputStream((byte[]) parameter),
+              ((byte[]) parameter).length);
+        } else {
+          ps.setObject(index++, parameter);
+        }
       }
     }
 
     @SuppressWarnings({ "PMD.NcssMethodCount", "OverlyLongMethod" })
-    private String getInsertSql() {
+    private void prepareInsert() {
       String timestamp = formattedDate(new Date());
       if(valueTable.hasCreatedTimestampColumn()) {
         writeValue(Variable.Builder
@@ -339,32 +454,33 @@ class JdbcValueTableWriter implements ValueTableWriter {
       for(Map.Entry<String, String> entry : entityIdentifierColumnValueMap.entrySet()) {
         sql.append(entry.getKey());
         sql.append(", ");
+        parameters.add(entry.getValue());
       }
       for(Map.Entry<String, Object> entry : columnValueMap.entrySet()) {
         sql.append(entry.getKey());
         sql.append(", ");
+        parameters.add(entry.getValue());
       }
       deleteFromEnd(sql, ", ");
       sql.append(") ");
 
       sql.append("VALUES (");
-      for(Map.Entry<String, String> entry : entityIdentifierColumnValueMap.entrySet()) {
-        sql.append("'");
-        sql.append(entry.getValue());
-        sql.append("'");
-        sql.append(", ");
-      }
-      for(int i = 0; i < columnValueMap.size(); i++) {
+      for(int i = 0; i < parameters.size(); i++) {
         sql.append("?");
         sql.append(", ");
       }
       deleteFromEnd(sql, ", ");
       sql.append(")");
 
-      return sql.toString();
+      if(upsertSupported) {
+        sql.append(getOnDuplicateKeyUpdateSql(columnValueMap.keySet(),
+            valueTable.hasCreatedTimestampColumn() ? valueTable.getCreatedTimestampColumnName() : null));
+      }
+
+      this.sql = sql.toString();
     }
 
-    private String getUpdateSql() {
+    private void prepareUpdate() {
       if(valueTable.hasUpdatedTimestampColumn()) {
         writeValue(Variable.Builder
             .newVariable(valueTable.getUpdatedTimestampColumnName(), TextType.get(), valueTable.getEntityType())
@@ -379,13 +495,14 @@ class JdbcValueTableWriter implements ValueTableWriter {
       for(Map.Entry<String, Object> entry : columnValueMap.entrySet()) {
         sql.append(entry.getKey());
         sql.append(" = ?, ");
+        parameters.add(entry.getValue());
       }
       deleteFromEnd(sql, ", ");
 
       sql.append(" ");
       sql.append(getWhereClause());
 
-      return sql.toString();
+      this.sql = sql.toString();
     }
 
     private String getWhereClause() {
@@ -394,11 +511,9 @@ class JdbcValueTableWriter implements ValueTableWriter {
       whereClause.append("WHERE ");
       for(Map.Entry<String, String> entry : getEntityIdentifierColumnValueMap().entrySet()) {
         whereClause.append(entry.getKey());
-        whereClause.append(" = ");
-        whereClause.append("'");
-        whereClause.append(entry.getValue());
-        whereClause.append("'");
+        whereClause.append(" = ?");
         whereClause.append(" AND ");
+        parameters.add(entry.getValue());
       }
       deleteFromEnd(whereClause, " AND ");
 
@@ -431,4 +546,4 @@ class JdbcValueTableWriter implements ValueTableWriter {
       return timestampDateFormat.format(date);
     }
   }
-}
\ No newline at end of file
+}
@@ -1,5 +1,10 @@
 package org.obiba.magma.datasource.jdbc;
 
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.SortedSet;
 import java.util.TreeSet;
 
 import javax.sql.DataSource;
@@ -19,13 +24,18 @@ import org.obiba.magma.ValueTableWriter.VariableWriter;
 import org.obiba.magma.Variable;
 import org.obiba.magma.VariableEntity;
 import org.obiba.magma.VectorSource;
+import org.obiba.magma.support.MultithreadedDatasourceCopier;
+import org.obiba.magma.support.StaticDatasource;
+import org.obiba.magma.support.StaticValueTable;
 import org.obiba.magma.support.VariableEntityBean;
 import org.obiba.magma.test.AbstractMagmaTest;
 import org.obiba.magma.test.SchemaTestExecutionListener;
 import org.obiba.magma.test.TestSchema;
 import org.obiba.magma.type.DecimalType;
 import org.obiba.magma.type.IntegerType;
+import org.obiba.magma.type.TextType;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.jdbc.core.JdbcTemplate;
 import org.springframework.test.context.ContextConfiguration;
 import org.springframework.test.context.TestExecutionListeners;
 import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
@@ -34,6 +44,8 @@ import org.springframework.test.context.support.DirtiesContextTestExecutionListe
 import org.springframework.test.context.transaction.TransactionConfiguration;
 import org.springframework.test.context.transaction.TransactionalTestExecutionListener;
 
+import com.google.common.collect.ImmutableList;
+
 import static org.fest.assertions.api.Assertions.assertThat;
 
 @SuppressWarnings({ "ReuseOfLocalVariable", "OverlyLongMethod", "PMD.NcssMethodCount" })
@@ -166,10 +178,187 @@ public class JdbcDatasourceTest extends AbstractMagmaTest {
     jdbcDatasource.dispose();
   }
 
+  @TestSchema(schemaLocation = "org/obiba/magma/datasource/jdbc", beforeSchema = "schema-notables.sql",
+      afterSchema = "schema-notables.sql")
+  @Test
+  public void test_batched_writes() {
+    JdbcDatasourceSettings settings = new JdbcDatasourceSettings("Participant", null, null, false);
+    settings.setDefaultCreatedTimestampColumnName("created");
+    settings.setDefaultUpdatedTimestampColumnName("updated");
+    settings.setBatchSize(3);
+    JdbcDatasource jdbcDatasource = new JdbcDatasource("my-datasource-nodb", dataSource, settings);
+    jdbcDatasource.initialise();
+    Variable intVar = Variable.Builder.newVariable("VAR1", IntegerType.get(), "Participant").build();
+    Variable textVar = Variable.Builder.newVariable("VAR2", TextType.get(), "Participant").build();
+
+    // inserts, in several batches
+    try(ValueTableWriter tableWriter = jdbcDatasource.createWriter("MY_TABLE", "Participant")) {
+      try(VariableWriter variableWriter = tableWriter.writeVariables()) {
+        variableWriter.writeVariable(intVar);
+        variableWriter.writeVariable(textVar);
+      }
+      for(int i = 1; i <= 10; i++) {
+        writeValueSet(tableWriter, String.valueOf(i), intVar, i, textVar, "text-" + i);
+      }
+    }
+    ValueTable table = jdbcDatasource.getValueTable("MY_TABLE");
+    assertThat(table.getVariableEntities()).hasSize(10);
+    for(int i = 1; i <= 10; i++) {
+      assertValueSet(table, String.valueOf(i), intVar, i, textVar, "text-" + i);
+    }
+
+    // updates of existing entities, inserts of new ones, and an entity written twice in the same batch
+    try(ValueTableWriter tableWriter = jdbcDatasource.createWriter("MY_TABLE", "Participant")) {
+      for(int i = 1; i <= 12; i++) {
+        writeValueSet(tableWriter, String.valueOf(i), intVar, i * 10, textVar, "text-" + i * 10);
+      }
+      writeValueSet(tableWriter, "12", intVar, 121, textVar, "text-121");
+    }
+    jdbcDatasource.dispose();
+
+    jdbcDatasource = new JdbcDatasource("my-datasource-nodb", dataSource, settings);
+    jdbcDatasource.initialise();
+    table = jdbcDatasource.getValueTable("MY_TABLE");
+    assertThat(table.getVariableEntities()).hasSize(12);
+    for(int i = 1; i <= 11; i++) {
+      assertValueSet(table, String.valueOf(i), intVar, i * 10, textVar, "text-" + i * 10);
+    }
+    assertValueSet(table, "12", intVar, 121, textVar, "text-121");
+
+    SortedSet<VariableEntity> entities = new TreeSet<>(table.getVariableEntities());
+    Iterator<Value> values = table.getVariableValueSource("VAR1").asVectorSource().getValues(entities).iterator();
+    for(VariableEntity entity : entities) {
+      assertThat(values.next()).isEqualTo(table.getValue(intVar, table.getValueSet(entity)));
+    }
+    assertThat(values.hasNext()).isFalse();
+
+    jdbcDatasource.dispose();
+  }
+
+  @TestSchema(schemaLocation = "org/obiba/magma/datasource/jdbc", beforeSchema = "schema-nometa.sql",
+      afterSchema = "schema-notables.sql")
+  @Test
+  public void test_read_values() {
+    // enough rows for a read of more than one chunk of entities to be sparse
+    int count = (JdbcValueTable.ENTITY_CHUNK_SIZE + 1) * JdbcValueTable.SPARSE_ENTITIES_RATIO * 2;
+    JdbcTemplate jdbcTemplate = new JdbcTemplate(dataSource);
+    jdbcTemplate.execute("CREATE MEMORY TABLE SINGLE_ID(ENTITY_ID VARCHAR(25) NOT NULL, BD INTEGER, " +
+        "PRIMARY KEY(ENTITY_ID))");
+    List<Object[]> singleIdRows = new ArrayList<>(count);
+    List<Object[]> compositeIdRows = new ArrayList<>(count);
+    for(int i = 0; i < count; i++) {
+      singleIdRows.add(new Object[] { String.format("%05d", i), i });
+      compositeIdRows.add(new Object[] { String.format("%05d", i), "1", i });
+    }
+    jdbcTemplate.batchUpdate("INSERT INTO SINGLE_ID (ENTITY_ID, BD) VALUES (?, ?)", singleIdRows);
+    jdbcTemplate.batchUpdate("INSERT INTO BONE_DENSITY (PART_ID, VISIT_ID, BD) VALUES (?, ?, ?)", compositeIdRows);
+
+    JdbcDatasource jdbcDatasource = new JdbcDatasource("my-datasource", dataSource, "Participant", false);
+    jdbcDatasource.initialise();
+
+    // IN clause on one identifier column, OR clause on the columns of a composite identifier
+    assertReadValues((JdbcValueTable) jdbcDatasource.getValueTable("SINGLE_ID"), "");
+    assertReadValues((JdbcValueTable) jdbcDatasource.getValueTable("BONE_DENSITY"), "-1");
+
+    jdbcDatasource.dispose();
+  }
+
+  @TestSchema(schemaLocation = "org/obiba/magma/datasource/jdbc", beforeSchema = "schema-notables.sql",
+      afterSchema = "schema-notables.sql")
+  @Test
+  public void test_concurrent_writers() throws IOException {
+    JdbcDatasourceSettings settings = new JdbcDatasourceSettings("Participant", null, null, false);
+    settings.setBatchSize(7);
+    JdbcDatasource jdbcDatasource = new JdbcDatasource("my-datasource-nodb", dataSource, settings);
+    jdbcDatasource.initialise();
+    assertThat(jdbcDatasource.canWriteConcurrently()).isTrue();
+
+    List<String> identifiers = new ArrayList<>();
+    for(int i = 0; i < 100; i++) {
+      identifiers.add(String.valueOf(i));
+    }
+    StaticValueTable source = new StaticValueTable(new StaticDatasource("source"), "MY_TABLE", identifiers);
+    source.addVariables(IntegerType.get(), "VAR1");
+    for(int i = 0; i < 100; i++) {
+      source.addValues(String.valueOf(i), "VAR1", i);
+    }
+
+    MultithreadedDatasourceCopier.Builder.newCopier() //
+        .from(source) //
+        .to(jdbcDatasource) //
+        .withWriters(4) //
+        .build().copy();
+
+    ValueTable table = jdbcDatasource.getValueTable("MY_TABLE");
+    assertThat(table.getVariableEntities()).hasSize(100);
+    Variable variable = table.getVariable("VAR1");
+    for(int i = 0; i < 100; i++) {
+      ValueSet valueSet = table.getValueSet(new VariableEntityBean("Participant", String.valueOf(i)));
+      assertThat(table.getValue(variable, valueSet)).isEqualTo(IntegerType.get().valueOf(i));
+    }
+
+    jdbcDatasource.dispose();
+  }
+
+  @Test
+  public void test_on_duplicate_key_update() {
+    assertThat(JdbcValueTableWriter.getOnDuplicateKeyUpdateSql(ImmutableList.of("bd", "created", "updated"), "created"))
+        .isEqualTo(" ON DUPLICATE KEY UPDATE bd = VALUES(bd), updated = VALUES(updated)");
+    assertThat(JdbcValueTableWriter.getOnDuplicateKeyUpdateSql(ImmutableList.of("bd", "bd_2"), null))
+        .isEqualTo(" ON DUPLICATE KEY UPDATE bd = VALUES(bd), bd_2 = VALUES(bd_2)");
+  }
+
   //
   // Methods
   //
 
+  private void writeValueSet(ValueTableWriter tableWriter, String identifier, Variable intVar, int integer,
+      Variable textVar, String text) {
+    try(ValueSetWriter valueSetWriter = tableWriter.writeValueSet(new VariableEntityBean("Participant", identifier))) {
+      valueSetWriter.writeValue(intVar, IntegerType.get().valueOf(integer));
+      valueSetWriter.writeValue(textVar, TextType.get().valueOf(text));
+    }
+  }
+
+  private void assertValueSet(ValueTable table, String identifier, Variable intVar, int integer, Variable textVar,
+      String text) {
+    ValueSet valueSet = table.getValueSet(new VariableEntityBean("Participant", identifier));
+    assertThat(table.getValue(intVar, valueSet)).isEqualTo(IntegerType.get().valueOf(integer));
+    assertThat(table.getValue(textVar, valueSet)).isEqualTo(TextType.get().valueOf(text));
+  }
+
+  /**
+   * Reads a sparse selection of entities, over a chunk boundary, then all the entities with a scan, each with entities
+   * that are not in the table. The entity identifiers are the value of BD, with a suffix.
+   */
+  private void assertReadValues(JdbcValueTable table, String suffix) {
+    SortedSet<VariableEntity> sparse = new TreeSet<>();
+    for(int i = 0; i <= JdbcValueTable.ENTITY_CHUNK_SIZE; i++) {
+      sparse.add(new VariableEntityBean("Participant", String.format("%05d", i * 2) + suffix));
+    }
+    sparse.add(new VariableEntityBean("Participant", "00000x" + suffix));
+    sparse.add(new VariableEntityBean("Participant", "99999" + suffix));
+    assertThat(table.isSparse(sparse)).isTrue();
+    assertReadValues(table, sparse);
+
+    SortedSet<VariableEntity> all = new TreeSet<>(table.getVariableEntities());
+    all.add(new VariableEntityBean("Participant", "00010x" + suffix));
+    all.add(new VariableEntityBean("Participant", "99999" + suffix));
+    assertThat(table.isSparse(all)).isFalse();
+    assertReadValues(table, all);
+  }
+
+  private void assertReadValues(ValueTable table, SortedSet<VariableEntity> entities) {
+    Iterator<Value[]> rows = table.getValueMatrix(ImmutableList.of(table.getVariable("BD")), entities).iterator();
+    for(VariableEntity entity : entities) {
+      Value expected = table.hasValueSet(entity)
+          ? IntegerType.get().valueOf(Integer.parseInt(entity.getIdentifier().substring(0, 5)))
+          : IntegerType.get().nullValue();
+      assertThat(rows.next()[0]).isEqualTo(expected);
+    }
+    assertThat(rows.hasNext()).isFalse();
+  }
+
   private void testCreateDatasourceFromExistingDatabase(JdbcDatasource jdbcDatasource) {
     assertThat(jdbcDatasource).isNotNull();
     assertThat(jdbcDatasource.getName()).isEqualTo("my-datasource");
@@ -58,6 +58,10 @@ class MongoDBValueTableWriter implements ValueTableWriter {
     return new MongoDBValueSetWriter(entity);
   }
 
+  @Override
+  public void flush() {
+  }
+
   @Override
   public void close() {
     updateLastUpdate();
@@ -78,6 +78,10 @@ public class NullDatasource extends AbstractDatasource {
       };
     }
 
+    @Override
+    public void flush() {
+    }
+
     @Override
     public void close() {
     }
@@ -14,8 +14,12 @@ import java.util.Collection;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
+import java.util.NoSuchElementException;
 import java.util.Set;
+import java.util.SortedSet;
 
 import javax.annotation.Nullable;
 import javax.validation.constraints.NotNull;
@@ -27,13 +31,16 @@ import org.obiba.magma.Timestamps;
 import org.obiba.magma.Value;
 import org.obiba.magma.ValueSet;
 import org.obiba.magma.ValueType;
+import org.obiba.magma.Variable;
 import org.obiba.magma.VariableEntity;
+import org.obiba.magma.VariableValueSource;
 import org.obiba.magma.datasource.spss.support.SpssDatasourceParsingException;
 import org.obiba.magma.datasource.spss.support.SpssVariableTypeMapper;
 import org.obiba.magma.datasource.spss.support.SpssVariableValueFactory;
 import org.obiba.magma.datasource.spss.support.SpssVariableValueSourceFactory;
 import org.obiba.magma.support.AbstractValueTable;
 import org.obiba.magma.support.DatasourceParsingException;
+import org.obiba.magma.support.ValueMatrices;
 import org.obiba.magma.support.VariableEntityBean;
 import org.obiba.magma.support.VariableEntityProvider;
 import org.obiba.magma.type.DateTimeType;
@@ -43,6 +50,7 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Lists;
 
 public class SpssValueTable extends AbstractValueTable implements Disposable {
 
@@ -72,6 +80,26 @@ public class SpssValueTable extends AbstractValueTable implements Disposable {
     return new SpssValueSet(this, entity, spssFile, entityToVariableIndex);
   }
 
+  @Override
+  public Iterable<Value[]> getValueMatrix(final List<Variable> variables, final SortedSet<VariableEntity> entities) {
+    final List<SpssVariableValueSource> sources = Lists.newArrayListWithCapacity(variables.size());
+    for(Variable variable : variables) {
+      VariableValueSource source = getVariableValueSource(variable.getName());
+      if(!(source instanceof SpssVariableValueSource)) {
+        return super.getValueMatrix(variables, entities);
+      }
+      sources.add((SpssVariableValueSource) source);
+    }
+    return new Iterable<Value[]>() {
+      @Override
+      public Iterator<Value[]> iterator() {
+        // make sure the data and the entity index are loaded
+        getVariableEntityProvider().getVariableEntities();
+        return new ValueMatrixIterator(variables, sources, entities);
+      }
+    };
+  }
+
   @NotNull
   @Override
   public Timestamps getTimestamps() {
@@ -130,6 +158,53 @@ public class SpssValueTable extends AbstractValueTable implements Disposable {
   // Inner Classes
   //
 
+  /**
+   * Looks up the observation index of each entity once and reads all the requested variables at that index.
+   */
+  private class ValueMatrixIterator implements Iterator<Value[]> {
+
+    private final List<Variable> variables;
+
+    private final List<SpssVariableValueSource> sources;
+
+    private final Iterator<VariableEntity> entitiesIterator;
+
+    private ValueMatrixIterator(List<Variable> variables, List<SpssVariableValueSource> sources,
+        Collection<VariableEntity> entities) {
+      this.variables = variables;
+      this.sources = sources;
+      entitiesIterator = entities.iterator();
+    }
+
+    @Override
+    public boolean hasNext() {
+      return entitiesIterator.hasNext();
+    }
+
+    @Override
+    public Value[] next() {
+      if(!hasNext()) {
+        throw new NoSuchElementException();
+      }
+
+      Integer variableIndex = entityToVariableIndex.get(entitiesIterator.next().getIdentifier());
+      if(variableIndex == null) {
+        return ValueMatrices.nullRow(variables);
+      }
+
+      Value[] row = new Value[sources.size()];
+      for(int i = 0; i < row.length; i++) {
+        row[i] = sources.get(i).getValue(variableIndex);
+      }
+      return row;
+    }
+
+    @Override
+    public void remove() {
+      throw new UnsupportedOperationException();
+    }
+  }
+
   private class SpssVariableEntityProvider implements VariableEntityProvider {
 
     @NotNull
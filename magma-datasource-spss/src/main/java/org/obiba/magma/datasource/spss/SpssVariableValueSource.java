@@ -83,6 +83,10 @@ public class SpssVariableValueSource extends AbstractVariableValueSource impleme
     };
   }
 
+  Value getValue(int variableIndex) {
+    return new SpssVariableValueFactory(variableIndex, spssVariable, variable.getValueType()).create();
+  }
+
   //
   // Inner classes
   //
@@ -107,9 +111,7 @@ public class SpssVariableValueSource extends AbstractVariableValueSource impleme
       }
 
       VariableEntity variableEntity = entitiesIterator.next();
-      int variableIndex = identifierToVariableIndex.get(variableEntity.getIdentifier());
-      return new SpssVariableValueFactory(variableIndex, spssVariable, variable.getValueType())
-          .create();
+      return getValue(identifierToVariableIndex.get(variableEntity.getIdentifier()));
     }
 
     @Override
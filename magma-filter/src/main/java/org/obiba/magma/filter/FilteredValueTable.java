@@ -1,13 +1,20 @@
 package org.obiba.magma.filter;
 
+import java.util.Iterator;
+import java.util.List;
+import java.util.SortedSet;
+
 import org.obiba.magma.NoSuchValueSetException;
+import org.obiba.magma.Value;
 import org.obiba.magma.ValueSet;
 import org.obiba.magma.ValueTable;
 import org.obiba.magma.Variable;
 import org.obiba.magma.VariableEntity;
 import org.obiba.magma.support.AbstractValueTableWrapper;
+import org.obiba.magma.support.ValueMatrices;
 
 import com.google.common.base.Predicate;
+import com.google.common.collect.AbstractIterator;
 import com.google.common.collect.Iterables;
 
 public class FilteredValueTable extends AbstractValueTableWrapper {
@@ -44,6 +51,32 @@ public class FilteredValueTable extends AbstractValueTableWrapper {
     return valueSet;
   }
 
+  /**
+   * Reads the values of the wrapped table, the rows of the entities that are filtered out are null.
+   */
+  @Override
+  public Iterable<Value[]> getValueMatrix(final List<Variable> variables, final SortedSet<VariableEntity> entities) {
+    final Iterable<Value[]> rows = super.getValueMatrix(variables, entities);
+    return new Iterable<Value[]>() {
+      @Override
+      public Iterator<Value[]> iterator() {
+        final Iterator<Value[]> wrappedRows = rows.iterator();
+        final Iterator<VariableEntity> entityIterator = entities.iterator();
+        return new AbstractIterator<Value[]>() {
+          @Override
+          protected Value[] computeNext() {
+            if(!entityIterator.hasNext()) return endOfData();
+            VariableEntity entity = entityIterator.next();
+            Value[] row = wrappedRows.next();
+            return !getWrappedValueTable().hasValueSet(entity) || hasValueSet(entity)
+                ? row
+                : ValueMatrices.nullRow(variables);
+          }
+        };
+      }
+    };
+  }
+
   @Override
   public Iterable<ValueSet> getValueSets() {
     return Iterables.filter(getWrappedValueTable().getValueSets(), new Predicate<ValueSet>() {
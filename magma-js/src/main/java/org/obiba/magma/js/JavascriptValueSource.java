@@ -4,9 +4,15 @@ import java.lang.reflect.Array;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
 import java.util.SortedSet;
 import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
 
 import javax.annotation.Nullable;
 import javax.validation.constraints.NotNull;
@@ -24,8 +30,11 @@ import org.obiba.magma.ValueSet;
 import org.obiba.magma.ValueSource;
 import org.obiba.magma.ValueTable;
 import org.obiba.magma.ValueType;
+import org.obiba.magma.Variable;
 import org.obiba.magma.VariableEntity;
+import org.obiba.magma.VariableValueSource;
 import org.obiba.magma.VectorSource;
+import org.obiba.magma.support.CompactVariableEntitySet;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -33,6 +42,7 @@ import com.google.common.base.Function;
 import com.google.common.base.Stopwatch;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Iterables;
+import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
 
 /**
@@ -41,7 +51,8 @@ import com.google.common.collect.Maps;
  * Within the JavaScript engine, {@code Value} instances are represented by {@code ScriptableValue} host objects.
  * <p/>
  * This class implements {@code Initialisable}. During the {@code #initialise()} method, the provided script is
- * compiled. Any compile error is thrown as a {@code EvaluatorException} which contains the details of the error.
+ * compiled. Any compile error is thrown as a {@code EvaluatorException} which contains the details of the error. The
+ * literal variable references of the script are extracted at the same time, see {@link VariableReferences}.
  *
  * @see ScriptableValue
  */
@@ -61,6 +72,9 @@ public class JavascriptValueSource implements ValueSource, VectorSource, Initial
   @SuppressWarnings("TransientFieldInNonSerializableClass")
   private transient Script compiledScript;
 
+  @SuppressWarnings("TransientFieldInNonSerializableClass")
+  private transient VariableReferences variableReferences;
+
   @SuppressWarnings("ConstantConditions")
   public JavascriptValueSource(@NotNull ValueType type, @NotNull String script) {
     if(type == null) throw new IllegalArgumentException("type cannot be null");
@@ -108,12 +122,67 @@ public class JavascriptValueSource implements ValueSource, VectorSource, Initial
   public Iterable<Value> getValues(SortedSet<VariableEntity> entities) {
     initialiseIfNot();
     Stopwatch stopwatch = Stopwatch.createStarted();
-    Iterable<Value> values = (Iterable<Value>) ContextFactory.getGlobal()
-        .call(new ValueVectorEvaluationContextAction(entities));
+    MagmaContextFactory factory = getPartitioningContextFactory(entities);
+    Iterable<Value> values = factory == null
+        ? (Iterable<Value>) ContextFactory.getGlobal().call(new ValueVectorEvaluationContextAction(entities))
+        : getValuesByPartitions(factory, entities);
     log.trace("Vector evaluation of {} in {}", getScriptName(), stopwatch);
     return values;
   }
 
+  /**
+   * Returns the context factory when the vector is to be evaluated by partitions on its executor. Vectors requested
+   * while a script is evaluated are not partitioned: the current thread may be one of the executor's.
+   */
+  @Nullable
+  private MagmaContextFactory getPartitioningContextFactory(@Nullable SortedSet<VariableEntity> entities) {
+    ContextFactory global = ContextFactory.getGlobal();
+    if(entities == null || !(global instanceof MagmaContextFactory) || Context.getCurrentContext() != null) return null;
+    MagmaContextFactory factory = (MagmaContextFactory) global;
+    return factory.getVectorExecutor() != null && entities.size() > factory.getVectorPartitionSize() ? factory : null;
+  }
+
+  /**
+   * Evaluates contiguous partitions of the entities concurrently, each within its own context, scope and
+   * {@link VectorCache}. The values are merged in the order of the entities.
+   */
+  private Iterable<Value> getValuesByPartitions(final MagmaContextFactory factory,
+      SortedSet<VariableEntity> entities) {
+    List<Future<List<Value>>> partitions = Lists.newArrayList();
+    try {
+      for(List<VariableEntity> partition : Iterables.partition(entities, factory.getVectorPartitionSize())) {
+        final SortedSet<VariableEntity> partitionEntities = CompactVariableEntitySet.copyOf(partition);
+        //noinspection ConstantConditions
+        partitions.add(factory.getVectorExecutor().submit(new Callable<List<Value>>() {
+          @Override
+          @SuppressWarnings("unchecked")
+          public List<Value> call() throws Exception {
+            // values are evaluated on iteration, which must happen on this thread
+            return Lists.newArrayList(
+                (Iterable<Value>) factory.call(new ValueVectorEvaluationContextAction(partitionEntities)));
+          }
+        }));
+      }
+      List<Value> values = Lists.newArrayListWithCapacity(entities.size());
+      for(Future<List<Value>> partition : partitions) {
+        values.addAll(partition.get());
+      }
+      return values;
+    } catch(InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new MagmaJsRuntimeException("Vector evaluation of " + getScriptName() + " was interrupted", e);
+    } catch(ExecutionException e) {
+      Throwable cause = e.getCause();
+      if(cause instanceof RuntimeException) throw (RuntimeException) cause;
+      throw new MagmaJsRuntimeException("Vector evaluation of " + getScriptName() + " failed", cause);
+    } finally {
+      // stop the remaining partitions on failure
+      for(Future<List<Value>> partition : partitions) {
+        partition.cancel(true);
+      }
+    }
+  }
+
   @NotNull
   @Override
   public ValueType getValueType() {
@@ -130,7 +199,9 @@ public class JavascriptValueSource implements ValueSource, VectorSource, Initial
         compiledScript = (Script) ContextFactory.getGlobal().call(new ContextAction() {
           @Override
           public Object run(Context context) {
-            return context.compileString(getScript(), getScriptName(), 1, null);
+            Script script = MagmaContext.asMagmaContext(context).compileScript(getScript(), getScriptName());
+            variableReferences = VariableReferences.parse(context, getScript(), getScriptName());
+            return script;
           }
         });
       } catch(Exception e) {
@@ -144,6 +215,11 @@ public class JavascriptValueSource implements ValueSource, VectorSource, Initial
     return false;
   }
 
+  @NotNull
+  protected VariableReferences getVariableReferences() {
+    return variableReferences == null ? VariableReferences.of() : variableReferences;
+  }
+
   /**
    * This method is invoked before evaluating the script. It provides a chance for derived classes to initialise values
    * within the context. This method will add the current {@code ValueSet} as a {@code ThreadLocal} variable with
@@ -157,9 +233,13 @@ public class JavascriptValueSource implements ValueSource, VectorSource, Initial
    * @param valueSet the current {@code ValueSet}
    */
   protected void enterContext(MagmaContext ctx, Scriptable scope) {
+    ctx.push(VariableReferences.class, getVariableReferences());
+    ctx.push(OccurrenceGroupIndex.class, new OccurrenceGroupIndex());
   }
 
   protected void exitContext(MagmaContext ctx) {
+    ctx.pop(VariableReferences.class);
+    ctx.pop(OccurrenceGroupIndex.class);
   }
 
   private abstract class AbstractEvaluationContextAction implements ContextAction {
@@ -343,8 +423,18 @@ public class JavascriptValueSource implements ValueSource, VectorSource, Initial
 
   }
 
+  /**
+   * Holds the vectors read during a vector evaluation. The values of the variables referenced by the script are read
+   * by blocks of {@link #BLOCK_SIZE} entities: at the start of each block, the variables that were referenced during
+   * the previous blocks are read together, with one {@link ValueTable#getValueMatrix(List, SortedSet)} call per table.
+   * A variable referenced for the first time is read for the rest of its block only, so variables in branches that the
+   * script never takes are not read. Joined values are read the same way, for all the identifiers of the rest of the
+   * block at once.
+   */
   public static class VectorCache {
 
+    static final int BLOCK_SIZE = 1000;
+
     private final Map<VectorSource, VectorHolder<Value>> vectors = Maps.newHashMap();
 
     private VectorHolder<Timestamps> timestampsVector;
@@ -352,7 +442,32 @@ public class JavascriptValueSource implements ValueSource, VectorSource, Initial
     // Holds the current "row" of the evaluation.
     private int index = 0;
 
-    void next() {
+    /**
+     * Variables referenced so far, in order of first reference, grouped by table.
+     */
+    private final Map<ValueTable, Map<String, Variable>> columns = Maps.newLinkedHashMap();
+
+    /**
+     * Values of the current block, by table and variable name.
+     */
+    private final Map<ValueTable, Map<String, Value[]>> blockValues = Maps.newHashMap();
+
+    /**
+     * Joined values of the current block, by join and identifier.
+     */
+    private final Map<List<Object>, Map<String, Value>> blockJoins = Maps.newHashMap();
+
+    private Iterator<VariableEntity> entities;
+
+    private List<VariableEntity> blockEntities = ImmutableList.of();
+
+    // Row of the first entity of the current block.
+    private int blockStart = 0;
+
+    /**
+     * Moves to the next "row" of the evaluation.
+     */
+    public void next() {
       index++;
     }
 
@@ -367,12 +482,140 @@ public class JavascriptValueSource implements ValueSource, VectorSource, Initial
       return holder.get(index);
     }
 
+    /**
+     * Returns the value of the current "row" for the variable of {@code source}, read from {@code table} by blocks.
+     */
+    public Value get(MagmaContext context, ValueTable table, VariableValueSource source) {
+      return getBlock(context, table, source)[index - blockStart];
+    }
+
+    /**
+     * Returns the values of {@code joinedSource} for the entities of {@code joinedTable} identified by the values of
+     * {@code identifierSource} from the current "row" to the end of the block. They are read with one
+     * {@link ValueTable#getValueMatrix(List, SortedSet)} call. Identifiers without value set in the joined table are
+     * not in the returned map.
+     */
+    public Map<String, Value> getJoined(MagmaContext context, ValueTable table, VariableValueSource identifierSource,
+        ValueTable joinedTable, VariableValueSource joinedSource) {
+      Value[] identifiers = getBlock(context, table, identifierSource);
+      List<Object> join = ImmutableList.<Object>of(table, identifierSource.getVariable().getName(), joinedTable,
+          joinedSource.getVariable().getName());
+      Map<String, Value> joined = blockJoins.get(join);
+      if(joined == null) {
+        joined = readJoined(identifiers, joinedTable, joinedSource);
+        blockJoins.put(join, joined);
+      }
+      return joined;
+    }
+
+    private Map<String, Value> readJoined(Value[] identifiers, ValueTable joinedTable,
+        VariableValueSource joinedSource) {
+      List<String> joinedIdentifiers = Lists.newArrayList();
+      for(int row = index - blockStart; row < identifiers.length; row++) {
+        Value identifier = identifiers[row];
+        if(identifier == null || identifier.isNull()) continue;
+        Iterable<Value> ids = identifier.isSequence() ? identifier.asSequence().getValue() : ImmutableList.of(identifier);
+        for(Value id : ids) {
+          if(!id.isNull()) joinedIdentifiers.add(id.toString());
+        }
+      }
+      // the values of a view are read for the entities it does not select, keep only the entities of the joined table
+      Set<VariableEntity> joinedEntities = joinedTable.getVariableEntities();
+      List<VariableEntity> existing = Lists.newArrayList();
+      for(VariableEntity entity : CompactVariableEntitySet.of(joinedTable.getEntityType(), joinedIdentifiers)) {
+        if(joinedEntities.contains(entity)) existing.add(entity);
+      }
+      SortedSet<VariableEntity> entities = CompactVariableEntitySet.copyOf(existing);
+      Map<String, Value> joined = Maps.newHashMapWithExpectedSize(entities.size());
+      // identifiers without value set are not joined, equivalent to a null joined value (LEFT JOIN)
+      Iterator<Value[]> rows = joinedTable.getValueMatrix(ImmutableList.of(joinedSource.getVariable()), entities)
+          .iterator();
+      for(VariableEntity entity : entities) {
+        joined.put(entity.getIdentifier(), rows.next()[0]);
+      }
+      return joined;
+    }
+
+    /**
+     * Returns the values of the current block for the variable of {@code source}: the rows that precede the row at
+     * which the variable was first referenced are null.
+     */
+    private Value[] getBlock(MagmaContext context, ValueTable table, VariableValueSource source) {
+      moveToBlock(context);
+      Map<String, Value[]> tableValues = blockValues.get(table);
+      Value[] values = tableValues == null ? null : tableValues.get(source.getVariable().getName());
+      if(values == null) {
+        Map<String, Variable> tableColumns = columns.get(table);
+        if(tableColumns == null) {
+          tableColumns = Maps.newLinkedHashMap();
+          columns.put(table, tableColumns);
+        }
+        tableColumns.put(source.getVariable().getName(), source.getVariable());
+        // read the rest of the block only
+        values = readBlock(table, ImmutableList.of(source.getVariable())).get(source.getVariable().getName());
+        tableValues = blockValues.get(table);
+        if(tableValues == null) {
+          tableValues = Maps.newHashMap();
+          blockValues.put(table, tableValues);
+        }
+        tableValues.put(source.getVariable().getName(), values);
+      }
+      return values;
+    }
+
     public Timestamps get(MagmaContext context, ValueTable table) {
       if (timestampsVector == null) {
         timestampsVector = new VectorHolder<>(table.getValueSetTimestamps(context.peek(SortedSet.class)).iterator());
       }
       return timestampsVector.get(index);
     }
+
+    @SuppressWarnings("unchecked")
+    private void moveToBlock(MagmaContext context) {
+      if(entities == null) {
+        entities = context.peek(SortedSet.class).iterator();
+      }
+      if(index < blockStart + blockEntities.size()) return;
+
+      // skip the blocks in which no variable was referenced
+      while(index >= blockStart + blockEntities.size()) {
+        blockStart += blockEntities.size();
+        List<VariableEntity> block = Lists.newArrayListWithCapacity(BLOCK_SIZE);
+        while(block.size() < BLOCK_SIZE && entities.hasNext()) {
+          block.add(entities.next());
+        }
+        if(block.isEmpty()) throw new NoSuchElementException();
+        blockEntities = block;
+      }
+      blockValues.clear();
+      blockJoins.clear();
+      for(Map.Entry<ValueTable, Map<String, Variable>> entry : columns.entrySet()) {
+        blockValues.put(entry.getKey(), readBlock(entry.getKey(), ImmutableList.copyOf(entry.getValue().values())));
+      }
+    }
+
+    /**
+     * Reads the values of the variables for the entities of the current block, from the current row.
+     *
+     * @return the values by variable name, with one value per entity of the block: the rows that precede the current row
+     * are null
+     */
+    private Map<String, Value[]> readBlock(ValueTable table, List<Variable> variables) {
+      Map<String, Value[]> values = Maps.newHashMap();
+      for(Variable variable : variables) {
+        values.put(variable.getName(), new Value[blockEntities.size()]);
+      }
+      int row = index - blockStart;
+      SortedSet<VariableEntity> entities = CompactVariableEntitySet
+          .copyOf(blockEntities.subList(row, blockEntities.size()));
+      for(Value[] rowValues : table.getValueMatrix(variables, entities)) {
+        for(int i = 0; i < rowValues.length; i++) {
+          values.get(variables.get(i).getName())[row] = rowValues[i];
+        }
+        row++;
+      }
+      return values;
+    }
   }
 
   private static class VectorHolder<T> {
@@ -4,6 +4,7 @@ import java.util.EmptyStackException;
 import java.util.Stack;
 
 import org.mozilla.javascript.Context;
+import org.mozilla.javascript.Script;
 import org.mozilla.javascript.Scriptable;
 import org.mozilla.javascript.ScriptableObject;
 
@@ -58,6 +59,18 @@ public class MagmaContext extends Context {
     return scope;
   }
 
+  /**
+   * Compiles a script at the optimization level of this context, or returns it from the {@link ScriptCache} of the
+   * context factory when it was already compiled.
+   *
+   * @param source the script
+   * @param sourceName the name of the script, reported in evaluation errors
+   * @return the compiled script
+   */
+  public Script compileScript(String source, String sourceName) {
+    return getMagmaContextFactory().getScriptCache().compile(this, source, sourceName);
+  }
+
   @SuppressWarnings("unchecked")
   public <T> void push(Class<T> type, T value) {
     Stack<T> stack = (Stack<T>) getThreadLocal(type);
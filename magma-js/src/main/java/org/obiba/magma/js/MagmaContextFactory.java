@@ -4,7 +4,9 @@ import java.lang.reflect.Method;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.Set;
+import java.util.concurrent.ExecutorService;
 
+import javax.annotation.Nullable;
 import javax.validation.constraints.NotNull;
 
 import org.mozilla.javascript.Context;
@@ -24,6 +26,13 @@ import com.google.common.collect.Iterables;
  */
 public class MagmaContextFactory extends ContextFactory implements Initialisable {
 
+  public static final int DEFAULT_VECTOR_PARTITION_SIZE = 10000;
+
+  /**
+   * Scripts are compiled to Java bytecode by default, see {@link Context#setOptimizationLevel(int)}.
+   */
+  public static final int DEFAULT_OPTIMIZATION_LEVEL = 0;
+
   /**
    * The global scope shared by all evaluated scripts. Should contain top-level functions and prototypes.
    */
@@ -38,9 +47,24 @@ public class MagmaContextFactory extends ContextFactory implements Initialisable
   @NotNull
   private Set<GlobalMethodProvider> globalMethodProviders = Collections.emptySet();
 
+  /**
+   * Executor of the partitions of vector evaluations, null when vectors are evaluated on the calling thread.
+   */
+  @Nullable
+  private ExecutorService vectorExecutor;
+
+  private int vectorPartitionSize = DEFAULT_VECTOR_PARTITION_SIZE;
+
+  private int optimizationLevel = DEFAULT_OPTIMIZATION_LEVEL;
+
+  @NotNull
+  private ScriptCache scriptCache = new ScriptCache();
+
   @Override
   protected Context makeContext() {
-    return new MagmaContext(this);
+    Context context = new MagmaContext(this);
+    context.setOptimizationLevel(optimizationLevel);
+    return context;
   }
 
   public ScriptableObject sharedScope() {
@@ -57,6 +81,58 @@ public class MagmaContextFactory extends ContextFactory implements Initialisable
     this.globalMethodProviders = ImmutableSet.copyOf(globalMethodProviders);
   }
 
+  @Nullable
+  public ExecutorService getVectorExecutor() {
+    return vectorExecutor;
+  }
+
+  /**
+   * Sets the executor on which vector evaluations of scripts are run, by partitions of
+   * {@link #getVectorPartitionSize()} entities. The value tables read by the scripts must then support being read from
+   * the threads of this executor.
+   *
+   * @param vectorExecutor the executor, null to evaluate vectors on the calling thread
+   */
+  public void setVectorExecutor(@Nullable ExecutorService vectorExecutor) {
+    this.vectorExecutor = vectorExecutor;
+  }
+
+  public int getVectorPartitionSize() {
+    return vectorPartitionSize;
+  }
+
+  public void setVectorPartitionSize(int vectorPartitionSize) {
+    if(vectorPartitionSize <= 0) throw new IllegalArgumentException("vectorPartitionSize must be > 0");
+    this.vectorPartitionSize = vectorPartitionSize;
+  }
+
+  public int getOptimizationLevel() {
+    return optimizationLevel;
+  }
+
+  /**
+   * Sets the optimization level of the contexts created by this factory: -1 to interpret scripts, 0 to 9 to compile
+   * them to Java bytecode. Compiled scripts are cached by optimization level, scripts that were compiled at the
+   * previous level are compiled again.
+   */
+  public void setOptimizationLevel(int optimizationLevel) {
+    if(!Context.isValidOptimizationLevel(optimizationLevel)) {
+      throw new IllegalArgumentException("Invalid optimization level: " + optimizationLevel);
+    }
+    this.optimizationLevel = optimizationLevel;
+  }
+
+  @NotNull
+  public ScriptCache getScriptCache() {
+    return scriptCache;
+  }
+
+  public void setScriptCache(@NotNull ScriptCache scriptCache) {
+    //noinspection ConstantConditions
+    if(scriptCache == null) throw new IllegalArgumentException("scriptCache cannot be null");
+    this.scriptCache = scriptCache;
+  }
+
   @NotNull
   public ScriptableValuePrototypeFactory getScriptableValuePrototypeFactory() {
     return scriptableValuePrototypeFactory;
@@ -1,5 +1,7 @@
 package org.obiba.magma.js;
 
+import javax.annotation.Nullable;
+
 import org.mozilla.javascript.ContextFactory;
 import org.obiba.magma.MagmaEngineExtension;
 
@@ -12,10 +14,29 @@ public class MagmaJsExtension implements MagmaEngineExtension {
 
   private transient MagmaContextFactory magmaContextFactory = new MagmaContextFactory();
 
+  @Nullable
+  private Integer optimizationLevel;
+
   public void setMagmaContextFactory(MagmaContextFactory magmaContextFactory) {
     this.magmaContextFactory = magmaContextFactory;
   }
 
+  /**
+   * Sets the Rhino optimization level of script evaluations: -1 to interpret scripts, 0 to 9 to compile them to Java
+   * bytecode.
+   *
+   * @param optimizationLevel the optimization level, null to keep the one of the {@link MagmaContextFactory}
+   * @see MagmaContextFactory#setOptimizationLevel(int)
+   */
+  public void setOptimizationLevel(@Nullable Integer optimizationLevel) {
+    this.optimizationLevel = optimizationLevel;
+  }
+
+  @Nullable
+  public Integer getOptimizationLevel() {
+    return optimizationLevel;
+  }
+
   @Override
   public String getName() {
     return "magma-js";
@@ -29,6 +50,8 @@ public class MagmaJsExtension implements MagmaEngineExtension {
       // Initialise the shared scope
       magmaContextFactory.initialise();
     }
-
+    if(optimizationLevel != null && ContextFactory.getGlobal() instanceof MagmaContextFactory) {
+      ((MagmaContextFactory) ContextFactory.getGlobal()).setOptimizationLevel(optimizationLevel);
+    }
   }
 }
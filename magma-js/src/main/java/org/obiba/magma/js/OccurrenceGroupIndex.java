@@ -0,0 +1,148 @@
+package org.obiba.magma.js;
+
+import java.util.List;
+import java.util.Map;
+
+import javax.annotation.Nullable;
+import javax.validation.constraints.NotNull;
+
+import org.obiba.magma.Value;
+import org.obiba.magma.ValueTable;
+import org.obiba.magma.Variable;
+
+import com.google.common.base.Predicate;
+import com.google.common.collect.ArrayListMultimap;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ListMultimap;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+/**
+ * The occurrence groups of the entity being evaluated, shared by the {@code $group()} calls of an evaluation. The
+ * values of the variables of a group are read once, as columns of occurrences, and the occurrences matching a value
+ * are looked up in a hash index of the column instead of being scanned.
+ * <p/>
+ * A new index is pushed in the context for each evaluation of a script, i.e. for each {@code ValueSet} or for each
+ * entity of a vector, so that it is never shared between entities.
+ */
+public final class OccurrenceGroupIndex {
+
+  /**
+   * Variables of the table of the evaluation, by occurrence group.
+   */
+  @Nullable
+  private ListMultimap<String, Variable> occurrenceGroups;
+
+  private final Map<String, OccurrenceColumn> columns = Maps.newHashMap();
+
+  /**
+   * Returns the column of the variable with the given name (as referenced by the script), null if it was not read yet.
+   */
+  @Nullable
+  public OccurrenceColumn getColumn(String name) {
+    return columns.get(name);
+  }
+
+  public void putColumn(String name, OccurrenceColumn column) {
+    columns.put(name, column);
+  }
+
+  /**
+   * Returns the variables of the table that are in the occurrence group of the given variable.
+   */
+  public List<Variable> getOccurrenceGroup(@Nullable ValueTable valueTable, @NotNull Variable variable) {
+    if(variable.getOccurrenceGroup() == null || valueTable == null) {
+      return ImmutableList.of();
+    }
+    if(occurrenceGroups == null) {
+      occurrenceGroups = ArrayListMultimap.create();
+      for(Variable var : valueTable.getVariables()) {
+        if(var.getOccurrenceGroup() != null) {
+          occurrenceGroups.put(var.getOccurrenceGroup(), var);
+        }
+      }
+    }
+    return occurrenceGroups.get(variable.getOccurrenceGroup());
+  }
+
+  /**
+   * The value of a variable for the entity being evaluated, with its occurrences and their positions by value.
+   */
+  public static final class OccurrenceColumn {
+
+    @NotNull
+    private final Variable variable;
+
+    @NotNull
+    private final Value value;
+
+    @Nullable
+    private final String unit;
+
+    @Nullable
+    private List<Value> occurrences;
+
+    @Nullable
+    private ListMultimap<Value, Integer> positions;
+
+    public OccurrenceColumn(@NotNull Variable variable, @NotNull Value value, @Nullable String unit) {
+      this.variable = variable;
+      this.value = value;
+      this.unit = unit;
+    }
+
+    @NotNull
+    public Variable getVariable() {
+      return variable;
+    }
+
+    @NotNull
+    public Value getValue() {
+      return value;
+    }
+
+    @Nullable
+    public String getUnit() {
+      return unit;
+    }
+
+    /**
+     * @throws IllegalStateException when the value is not a sequence
+     */
+    public List<Value> getOccurrences() {
+      if(occurrences == null) {
+        occurrences = value.asSequence().getValues();
+      }
+      return occurrences;
+    }
+
+    /**
+     * Returns the positions of the occurrences equal to the given value, in ascending order. The hash index is built on
+     * the first lookup.
+     */
+    public List<Integer> getPositions(@NotNull Value criteria) {
+      if(positions == null) {
+        List<Value> values = getOccurrences();
+        positions = ArrayListMultimap.create();
+        for(int i = 0; i < values.size(); i++) {
+          positions.put(values.get(i), i);
+        }
+      }
+      return positions.get(criteria);
+    }
+
+    /**
+     * Returns the positions of the occurrences that match the predicate, in ascending order.
+     */
+    public List<Integer> getPositions(Predicate<Value> predicate) {
+      List<Value> values = getOccurrences();
+      List<Integer> matching = Lists.newArrayList();
+      for(int i = 0; i < values.size(); i++) {
+        if(predicate.apply(values.get(i))) {
+          matching.add(i);
+        }
+      }
+      return matching;
+    }
+  }
+}
@@ -0,0 +1,107 @@
+package org.obiba.magma.js;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+
+import javax.validation.constraints.NotNull;
+
+import org.mozilla.javascript.Context;
+import org.mozilla.javascript.Script;
+
+import com.google.common.base.Objects;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.util.concurrent.ExecutionError;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+
+/**
+ * A bounded cache of compiled scripts, so that a script used by many variables, views or clauses is compiled once.
+ * Scripts are keyed by source, name and optimization level, the least recently used ones are evicted first. The name
+ * is part of the key because it is compiled into the script: it identifies the script in evaluation errors.
+ *
+ * @see MagmaContext#compileScript(String, String)
+ */
+public class ScriptCache {
+
+  public static final long DEFAULT_MAXIMUM_SIZE = 10000;
+
+  private final Cache<Key, Script> scripts;
+
+  public ScriptCache() {
+    this(DEFAULT_MAXIMUM_SIZE);
+  }
+
+  /**
+   * @param maximumSize maximum number of compiled scripts kept in the cache
+   */
+  public ScriptCache(long maximumSize) {
+    scripts = CacheBuilder.newBuilder().maximumSize(maximumSize).recordStats().build();
+  }
+
+  /**
+   * Returns the compiled script, compiling it at the optimization level of {@code context} if it is not in the cache.
+   * Scripts that fail to compile are not cached.
+   */
+  public Script compile(final Context context, final String source, final String sourceName) {
+    try {
+      return scripts.get(new Key(source, sourceName, context.getOptimizationLevel()), new Callable<Script>() {
+        @Override
+        public Script call() {
+          return context.compileString(source, sourceName, 1, null);
+        }
+      });
+    } catch(ExecutionException | UncheckedExecutionException | ExecutionError e) {
+      Throwable cause = e.getCause();
+      if(cause instanceof RuntimeException) throw (RuntimeException) cause;
+      if(cause instanceof Error) throw (Error) cause;
+      throw new MagmaJsRuntimeException("Script compilation failed: " + cause.getMessage(), cause);
+    }
+  }
+
+  public long getHitCount() {
+    return scripts.stats().hitCount();
+  }
+
+  public long getMissCount() {
+    return scripts.stats().missCount();
+  }
+
+  public long getSize() {
+    return scripts.size();
+  }
+
+  public void invalidateAll() {
+    scripts.invalidateAll();
+  }
+
+  private static final class Key {
+
+    @NotNull
+    private final String source;
+
+    @NotNull
+    private final String sourceName;
+
+    private final int optimizationLevel;
+
+    private Key(@NotNull String source, @NotNull String sourceName, int optimizationLevel) {
+      this.source = source;
+      this.sourceName = sourceName;
+      this.optimizationLevel = optimizationLevel;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+      if(this == obj) return true;
+      if(!(obj instanceof Key)) return false;
+      Key other = (Key) obj;
+      return optimizationLevel == other.optimizationLevel && source.equals(other.source) &&
+          sourceName.equals(other.sourceName);
+    }
+
+    @Override
+    public int hashCode() {
+      return Objects.hashCode(source, sourceName, optimizationLevel);
+    }
+  }
+}
@@ -0,0 +1,371 @@
+package org.obiba.magma.js;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.annotation.Nullable;
+import javax.validation.constraints.NotNull;
+
+import org.mozilla.javascript.CompilerEnvirons;
+import org.mozilla.javascript.Context;
+import org.mozilla.javascript.Parser;
+import org.mozilla.javascript.RhinoException;
+import org.mozilla.javascript.ast.AstNode;
+import org.mozilla.javascript.ast.FunctionCall;
+import org.mozilla.javascript.ast.Name;
+import org.mozilla.javascript.ast.NodeVisitor;
+import org.mozilla.javascript.ast.StringLiteral;
+import org.obiba.magma.DefaultDatasourceRegistry;
+import org.obiba.magma.MagmaEngine;
+import org.obiba.magma.NoSuchValueSetException;
+import org.obiba.magma.Value;
+import org.obiba.magma.ValueSet;
+import org.obiba.magma.ValueTable;
+import org.obiba.magma.VariableEntity;
+import org.obiba.magma.VariableValueSource;
+import org.obiba.magma.support.MagmaEngineVariableResolver;
+import org.obiba.magma.support.VariableEntityBean;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Optional;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Iterables;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+
+/**
+ * The variable references of a script that are string literals, such as {@code $('VAR')}, {@code $val('table:VAR')}
+ * or {@code $join('ds.table:VAR', 'ID_VAR')}. They are extracted from the script when it is compiled and each of them
+ * is parsed once. Their resolution against the table of the evaluation context is kept, so that evaluating the script
+ * for each entity does not look up the datasource registry again.
+ * <p/>
+ * Resolutions are dropped when the {@link MagmaEngine#getDatasourceRegistryVersion() datasource registry} changes.
+ * References to other tables are not kept when the datasource registry is decorated (e.g. secured), as their
+ * resolution may then depend on the caller. A resolution also keeps the last values joined by {@code $join()}, until
+ * the referenced table is updated: its last update is checked at most once per
+ * {@link #LAST_UPDATE_CHECK_INTERVAL_MILLIS}. The values joined from a table without last update are not kept.
+ */
+public final class VariableReferences {
+
+  private static final Logger log = LoggerFactory.getLogger(VariableReferences.class);
+
+  private static final Set<String> REFERENCE_METHODS = ImmutableSet.of("$", "$val", "$value", "$join");
+
+  /**
+   * Methods that read the variable named by their first argument, which may be in another table.
+   */
+  private static final Set<String> VARIABLE_METHODS = ImmutableSet
+      .of("$", "$val", "$value", "$var", "$variable", "$group", "$groups");
+
+  /**
+   * Methods that read other tables than the one of the evaluation context, whatever their arguments.
+   */
+  private static final Set<String> OTHER_TABLE_METHODS = ImmutableSet.of("$join", "$this");
+
+  /**
+   * Number of evaluation context tables for which the resolution of a reference is kept.
+   */
+  private static final int MAX_RESOLUTIONS = 16;
+
+  /**
+   * Number of joined values kept by resolution.
+   */
+  private static final int MAX_JOINED_VALUES = 1000;
+
+  /**
+   * Time during which the joined values are used without checking the last update of the joined table again.
+   */
+  public static final long LAST_UPDATE_CHECK_INTERVAL_MILLIS = 1000;
+
+  private static final VariableReferences EMPTY = new VariableReferences(
+      ImmutableMap.<String, VariableReference>of(), ImmutableSet.<String>of(), false);
+
+  @NotNull
+  private final Map<String, VariableReference> references;
+
+  /**
+   * The Magma methods ({@code $...}) named in the script.
+   */
+  @NotNull
+  private final Set<String> methods;
+
+  private final boolean local;
+
+  private VariableReferences(@NotNull Map<String, VariableReference> references, @NotNull Set<String> methods,
+      boolean local) {
+    this.references = references;
+    this.methods = methods;
+    this.local = local;
+  }
+
+  public static VariableReferences of() {
+    return EMPTY;
+  }
+
+  /**
+   * Extracts the literal variable references of a script.
+   *
+   * @param context the context used to compile the script
+   */
+  public static VariableReferences parse(Context context, String script, String scriptName) {
+    CompilerEnvirons environment = new CompilerEnvirons();
+    environment.initFromContext(context);
+    final Map<String, VariableReference> references = Maps.newHashMap();
+    final Set<String> methods = Sets.newHashSet();
+    final Set<String> otherTableMethods = Sets.newHashSet();
+    try {
+      new Parser(environment).parse(script, scriptName, 1).visit(new NodeVisitor() {
+        @Override
+        public boolean visit(AstNode node) {
+          if(node instanceof Name && ((Name) node).getIdentifier().startsWith("$")) {
+            methods.add(((Name) node).getIdentifier());
+            if(readsOtherTable((Name) node)) otherTableMethods.add(((Name) node).getIdentifier());
+          }
+          if(node instanceof FunctionCall && ((FunctionCall) node).getTarget() instanceof Name) {
+            FunctionCall call = (FunctionCall) node;
+            String method = ((Name) call.getTarget()).getIdentifier();
+            if(REFERENCE_METHODS.contains(method)) {
+              // $join() has two references: the joined variable and the variable holding the identifiers
+              for(AstNode argument : Iterables.limit(call.getArguments(), "$join".equals(method) ? 2 : 1)) {
+                if(argument instanceof StringLiteral) {
+                  String name = ((StringLiteral) argument).getValue();
+                  if(!references.containsKey(name)) references.put(name, new VariableReference(name, true));
+                }
+              }
+            }
+          }
+          return true;
+        }
+      });
+    } catch(RhinoException e) {
+      log.debug("Unable to extract the variable references of script {}", scriptName, e);
+      return EMPTY;
+    }
+    return new VariableReferences(ImmutableMap.copyOf(references), ImmutableSet.copyOf(methods),
+        otherTableMethods.isEmpty());
+  }
+
+  /**
+   * Returns true if the method may read another table than the one of the evaluation context: the method joins or reads
+   * the view, or its first argument is not a literal variable name without table, or it is not called but passed
+   * around.
+   */
+  private static boolean readsOtherTable(Name method) {
+    if(OTHER_TABLE_METHODS.contains(method.getIdentifier())) return true;
+    if(!VARIABLE_METHODS.contains(method.getIdentifier())) return false;
+    if(!(method.getParent() instanceof FunctionCall) || ((FunctionCall) method.getParent()).getTarget() != method) {
+      return true;
+    }
+    List<AstNode> arguments = ((FunctionCall) method.getParent()).getArguments();
+    return arguments.isEmpty() || !(arguments.get(0) instanceof StringLiteral) ||
+        MagmaEngineVariableResolver.valueOf(((StringLiteral) arguments.get(0)).getValue()).getTableName() != null;
+  }
+
+  /**
+   * Returns true if the script names the given Magma method, whether it calls it or passes it around.
+   */
+  public boolean uses(String method) {
+    return methods.contains(method);
+  }
+
+  /**
+   * Returns true if the script only reads the table of the evaluation context: its variables are named by literals
+   * without table, and it neither joins other tables nor reads the view. False if the script could not be parsed.
+   */
+  public boolean isLocal() {
+    return local;
+  }
+
+  /**
+   * Returns the literal references of the script.
+   */
+  public Set<String> getNames() {
+    return references.keySet();
+  }
+
+  /**
+   * Returns the reference with the given name. The resolution of a name that is not a literal of the script is not
+   * kept.
+   */
+  public VariableReference get(String name) {
+    VariableReference reference = references.get(name);
+    return reference == null ? new VariableReference(name, false) : reference;
+  }
+
+  /**
+   * A parsed variable reference and its resolution for the last evaluation context tables.
+   */
+  public static final class VariableReference {
+
+    @NotNull
+    private final MagmaEngineVariableResolver resolver;
+
+    /**
+     * Resolutions by context table, weak keys are compared by identity.
+     */
+    @Nullable
+    private final Cache<ValueTable, Resolution> resolutions;
+
+    private VariableReference(String name, boolean cached) {
+      resolver = MagmaEngineVariableResolver.valueOf(name);
+      resolutions = cached ? CacheBuilder.newBuilder().weakKeys().maximumSize(MAX_RESOLUTIONS)
+          .<ValueTable, Resolution>build() : null;
+    }
+
+    /**
+     * @see MagmaEngineVariableResolver#resolveTable(ValueTable)
+     */
+    public ValueTable resolveTable(@Nullable ValueTable context) {
+      Resolution resolution = getResolution(context);
+      return resolution == null ? resolver.resolveTable(context) : resolution.table;
+    }
+
+    /**
+     * @see MagmaEngineVariableResolver#resolveSource(ValueTable)
+     */
+    public VariableValueSource resolveSource(@Nullable ValueTable context) {
+      Resolution resolution = getResolution(context);
+      return resolution == null ? resolver.resolveSource(context) : resolution.getSource();
+    }
+
+    /**
+     * Returns true if the specified {@code ValueSet} is within a different table than the referenced one.
+     */
+    public boolean isJoin(ValueSet valueSet) {
+      return resolveTable(valueSet.getValueTable()) != valueSet.getValueTable();
+    }
+
+    public ValueSet join(ValueSet valueSet) throws NoSuchValueSetException {
+      return resolveTable(valueSet.getValueTable()).getValueSet(valueSet.getVariableEntity());
+    }
+
+    /**
+     * Returns the value of the referenced variable for the entity of the referenced table with the given identifier.
+     *
+     * @return the joined value, null if the referenced table has no value set for this entity
+     */
+    @Nullable
+    public Value joinedValue(@Nullable ValueTable context, String identifier) {
+      Resolution resolution = getResolution(context);
+      return resolution == null
+          ? readJoinedValue(resolver.resolveTable(context), resolver.resolveSource(context), identifier)
+          : resolution.getJoinedValue(identifier);
+    }
+
+    @Nullable
+    private static Value readJoinedValue(ValueTable table, VariableValueSource source, String identifier) {
+      VariableEntity entity = new VariableEntityBean(table.getEntityType(), identifier);
+      return table.hasValueSet(entity) ? source.getValue(table.getValueSet(entity)) : null;
+    }
+
+    @Nullable
+    private Resolution getResolution(@Nullable ValueTable context) {
+      if(resolutions == null || context == null || !isCacheable()) return null;
+      MagmaEngine engine = MagmaEngine.get();
+      // read the version before resolving, so that a concurrent change invalidates this resolution
+      long version = engine.getDatasourceRegistryVersion();
+      Resolution resolution = resolutions.getIfPresent(context);
+      if(resolution == null || !resolution.isValid(engine, version)) {
+        resolution = new Resolution(engine, version, resolver.resolveTable(context));
+        resolutions.put(context, resolution);
+      }
+      return resolution;
+    }
+
+    private boolean isCacheable() {
+      return resolver.getTableName() == null ||
+          MagmaEngine.get().getDatasourceRegistry() instanceof DefaultDatasourceRegistry;
+    }
+
+    private final class Resolution {
+
+      @NotNull
+      private final MagmaEngine engine;
+
+      private final long version;
+
+      @NotNull
+      private final ValueTable table;
+
+      @Nullable
+      private volatile VariableValueSource source;
+
+      @Nullable
+      private volatile JoinedValues joinedValues;
+
+      private Resolution(@NotNull MagmaEngine engine, long version, @NotNull ValueTable table) {
+        this.engine = engine;
+        this.version = version;
+        this.table = table;
+      }
+
+      private boolean isValid(MagmaEngine currentEngine, long currentVersion) {
+        return engine == currentEngine && version == currentVersion;
+      }
+
+      /**
+       * The source is resolved lazily: a join reference is resolved against the table of the value set, which may not
+       * have the referenced variable.
+       */
+      private VariableValueSource getSource() {
+        VariableValueSource resolved = source;
+        if(resolved == null) {
+          resolved = table.getVariableValueSource(resolver.getVariableName());
+          source = resolved;
+        }
+        return resolved;
+      }
+
+      @Nullable
+      private Value getJoinedValue(String identifier) {
+        JoinedValues joined = joinedValues;
+        long now = System.currentTimeMillis();
+        if(joined == null || now - joined.checkTime > LAST_UPDATE_CHECK_INTERVAL_MILLIS) {
+          Value lastUpdate = table.getTimestamps().getLastUpdate();
+          if(lastUpdate == null || lastUpdate.isNull()) {
+            // updates of the table cannot be detected, its values are always read
+            joinedValues = null;
+            return readJoinedValue(table, getSource(), identifier);
+          }
+          if(joined == null || !joined.lastUpdate.equals(lastUpdate)) {
+            joined = new JoinedValues(lastUpdate);
+            joinedValues = joined;
+          }
+          joined.checkTime = now;
+        }
+        Optional<Value> value = joined.values.getIfPresent(identifier);
+        if(value == null) {
+          value = Optional.fromNullable(readJoinedValue(table, getSource(), identifier));
+          joined.values.put(identifier, value);
+        }
+        return value.orNull();
+      }
+    }
+  }
+
+  /**
+   * The last joined values of a table, by identifier, for a last update of this table.
+   */
+  private static final class JoinedValues {
+
+    @NotNull
+    private final Value lastUpdate;
+
+    private final Cache<String, Optional<Value>> values = CacheBuilder.newBuilder().maximumSize(MAX_JOINED_VALUES)
+        .build();
+
+    /**
+     * Time at which {@link #lastUpdate} was last found to be the one of the table.
+     */
+    private volatile long checkTime;
+
+    private JoinedValues(@NotNull Value lastUpdate) {
+      this.lastUpdate = lastUpdate;
+    }
+  }
+}
@@ -31,10 +31,13 @@ import org.obiba.magma.VariableValueSource;
 import org.obiba.magma.js.JavascriptValueSource.VectorCache;
 import org.obiba.magma.js.MagmaContext;
 import org.obiba.magma.js.MagmaJsEvaluationRuntimeException;
+import org.obiba.magma.js.OccurrenceGroupIndex;
+import org.obiba.magma.js.OccurrenceGroupIndex.OccurrenceColumn;
 import org.obiba.magma.js.ScriptableValue;
 import org.obiba.magma.js.ScriptableVariable;
+import org.obiba.magma.js.VariableReferences;
+import org.obiba.magma.js.VariableReferences.VariableReference;
 import org.obiba.magma.support.MagmaEngineVariableResolver;
-import org.obiba.magma.support.VariableEntityBean;
 import org.obiba.magma.type.BooleanType;
 import org.obiba.magma.type.DateTimeType;
 import org.obiba.magma.type.TextType;
@@ -42,9 +45,9 @@ import org.obiba.magma.views.View;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.google.common.base.Functions;
 import com.google.common.base.Objects;
 import com.google.common.base.Predicate;
-import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
@@ -284,15 +287,36 @@ public final class GlobalMethods extends AbstractGlobalMethodProvider {
         flat = (Boolean) BooleanType.get().valueOf(args[2]).getValue();
       } catch (Exception ignore) {}
     }
-    ValueTable valueTable = context.peek(ValueTable.class);
-    Value identifier = valueFromContext(context, thisObj, name).getValue();
+    final ValueTable valueTable = context.peek(ValueTable.class);
 
     // Find the joined named source
-    MagmaEngineVariableResolver reference = MagmaEngineVariableResolver.valueOf(joinedName);
+    final VariableReference reference = referenceFromContext(context, joinedName);
     ValueTable joinedTable = reference.resolveTable(valueTable);
     VariableValueSource joinedSource = reference.resolveSource(valueTable);
 
-    return new ScriptableValue(thisObj, getJoinedValue(joinedTable, joinedSource, identifier, flat),
+    Value identifier;
+    com.google.common.base.Function<String, Value> joinedValues;
+    if(context.has(VectorCache.class)) {
+      // Join the identifiers of the rest of the block at once
+      VariableReference identifierReference = referenceFromContext(context, name);
+      ValueTable identifierTable = identifierReference.resolveTable(valueTable);
+      VariableValueSource identifierSource = identifierReference.resolveSource(valueTable);
+      VectorCache cache = context.peek(VectorCache.class);
+      identifier = cache.get(context, identifierTable, identifierSource);
+      joinedValues = Functions.forMap(
+          cache.getJoined(context, identifierTable, identifierSource, joinedTable, joinedSource), null);
+    } else {
+      identifier = valueFromContext(context, thisObj, name).getValue();
+      joinedValues = new com.google.common.base.Function<String, Value>() {
+        @Nullable
+        @Override
+        public Value apply(String input) {
+          return reference.joinedValue(valueTable, input);
+        }
+      };
+    }
+
+    return new ScriptableValue(thisObj, getJoinedValue(joinedSource, joinedValues, identifier, flat),
         joinedSource.getVariable().getUnit());
   }
 
@@ -376,30 +400,31 @@ public final class GlobalMethods extends AbstractGlobalMethodProvider {
   /**
    * Get a joined value where identifier can be a sequence of identifiers.
    *
-   * @param joinedTable
    * @param joinedSource
+   * @param joinedValues the joined values by identifier, null if the joined table has no value set for an identifier
    * @param identifier
    * @param flat Flatten the value sequence tree into a sequence of unique values
    * @return
    */
-  private static Value getJoinedValue(ValueTable joinedTable, VariableValueSource joinedSource, Value identifier, boolean flat) {
+  private static Value getJoinedValue(VariableValueSource joinedSource,
+      com.google.common.base.Function<String, Value> joinedValues, Value identifier, boolean flat) {
     // Default value is null if joined table has no valueSet (equivalent to a LEFT JOIN)
     Value value = identifier.isSequence()
         ? joinedSource.getValueType().nullSequence()
         : joinedSource.getValueType().nullValue();
     if(identifier.isSequence()) {
       if(identifier.asSequence().getSize() > 0) {
-        List<Value> joinedValues = Lists.newArrayList();
+        List<Value> values = Lists.newArrayList();
         for(Value id : identifier.asSequence().getValue()) {
-          joinedValues.add(getSingleJoinedValue(joinedTable, joinedSource, id, flat));
+          values.add(getSingleJoinedValue(joinedSource, joinedValues, id, flat));
         }
-        value = joinedSource.getValueType().sequenceOf(joinedValues);
+        value = joinedSource.getValueType().sequenceOf(values);
         if (flat) {
           value = value.getValueType().sequenceOf(new HashSet<>(getAllSingleValues(value.asSequence())));
         }
       }
     } else {
-      value = getSingleJoinedValue(joinedTable, joinedSource, identifier, true);
+      value = getSingleJoinedValue(joinedSource, joinedValues, identifier, true);
     }
 
     return value;
@@ -408,22 +433,21 @@ public final class GlobalMethods extends AbstractGlobalMethodProvider {
   /**
    * Get a joined value where identifier must not be a sequence of identifiers.
    *
-   * @param joinedTable
    * @param joinedSource
+   * @param joinedValues
    * @param identifier
    * @param allowSequence
    * @return
    */
-  private static Value getSingleJoinedValue(ValueTable joinedTable, VariableValueSource joinedSource,
-      Value identifier, boolean allowSequence) {
+  private static Value getSingleJoinedValue(VariableValueSource joinedSource,
+      com.google.common.base.Function<String, Value> joinedValues, Value identifier, boolean allowSequence) {
     Value value = identifier.isSequence()
         ? joinedSource.getValueType().nullSequence()
         : joinedSource.getValueType().nullValue();
     if(!identifier.isNull()) {
-      VariableEntity entity = new VariableEntityBean(joinedTable.getEntityType(), identifier.toString());
-      if(joinedTable.hasValueSet(entity)) {
-        value = joinedSource.getValue(joinedTable.getValueSet(entity));
-        value = allowSequence ? value : ensureValueNotSequence(value);
+      Value joined = joinedValues.apply(identifier.toString());
+      if(joined != null) {
+        value = allowSequence ? joined : ensureValueNotSequence(joined);
       }
     }
     return value;
@@ -478,7 +502,7 @@ public final class GlobalMethods extends AbstractGlobalMethodProvider {
 
     // Test whether this is a vector-oriented evaluation or a ValueSet-oriented evaluation
     if(context.has(VectorCache.class)) {
-      return valuesForVector(context, thisObj, source);
+      return valuesForVector(context, thisObj, view, source);
     }
     ValueSet valueSet = context.peek(ValueSet.class);
     // The ValueSet is the one of the "from" table of the view
@@ -501,24 +525,34 @@ public final class GlobalMethods extends AbstractGlobalMethodProvider {
 
   private static ScriptableValue valueFromContext(MagmaContext context, Scriptable thisObj, String name) {
     ValueTable valueTable = context.peek(ValueTable.class);
-    MagmaEngineVariableResolver reference = MagmaEngineVariableResolver.valueOf(name);
+    VariableReference reference = referenceFromContext(context, name);
     VariableValueSource variableSource = reference.resolveSource(valueTable);
 
     // Test whether this is a vector-oriented evaluation or a ValueSet-oriented evaluation
     return context.has(VectorCache.class)
-        ? valuesForVector(context, thisObj, variableSource)
+        ? valuesForVector(context, thisObj, reference.resolveTable(valueTable), variableSource)
         : valueForValueSet(context, thisObj, reference, variableSource);
   }
 
-  private static ScriptableValue valuesForVector(MagmaContext context, Scriptable thisObj, VariableValueSource source) {
-    // Load the vector
+  private static ScriptableValue valuesForVector(MagmaContext context, Scriptable thisObj, ValueTable table,
+      VariableValueSource source) {
+    // Load the vector, by blocks of entities
     VectorCache cache = context.peek(VectorCache.class);
-    Value value = cache.get(context, source.asVectorSource());
+    Value value = cache.get(context, table, source);
     return new ScriptableValue(thisObj, value, source.getVariable().getUnit());
   }
 
+  /**
+   * Get the reference from the literal references of the script being evaluated, if any.
+   */
+  private static VariableReference referenceFromContext(MagmaContext context, String name) {
+    return context.has(VariableReferences.class)
+        ? context.peek(VariableReferences.class).get(name)
+        : VariableReferences.of().get(name);
+  }
+
   private static ScriptableValue valueForValueSet(MagmaContext context, Scriptable thisObj,
-      MagmaEngineVariableResolver reference, VariableValueSource variableSource) {
+      VariableReference reference, VariableValueSource variableSource) {
     ValueSet valueSet = context.peek(ValueSet.class);
     // Tests whether this valueSet is in the same table as the referenced ValueTable
     if(reference.isJoin(valueSet)) {
@@ -573,32 +607,30 @@ public final class GlobalMethods extends AbstractGlobalMethodProvider {
 
   private static Value getGroupValue(Context ctx, Scriptable thisObj, String name, Object criteria, String select) {
     MagmaContext context = MagmaContext.asMagmaContext(ctx);
-    ScriptableValue sv = valueFromContext(context, thisObj, name);
-    Variable variable = variableFromContext(context, name);
-    ValueTable valueTable = valueTableFromContext(context);
-    Variable selectVariable = getVariableFromOccurrenceGroup(valueTable, variable, select);
+    OccurrenceGroupIndex index = occurrenceGroupIndexFromContext(context);
+    OccurrenceColumn source = columnFromContext(context, thisObj, index, name);
+    Variable selectVariable = getVariableFromOccurrenceGroup(valueTableFromContext(context), index,
+        source.getVariable(), select);
 
-    ValueSequence sourceValue = sv.getValue().asSequence();
+    ValueSequence sourceValue = source.getValue().asSequence();
     if(sourceValue.isNull() || !sourceValue.isSequence()) {
       return selectVariable.getValueType().nullValue();
     }
 
-    Predicate<Value> predicate = getPredicate(ctx, sv.getParentScope(), thisObj, variable, criteria);
-    ValueSequence destinationValue = valueFromContext(context, thisObj, selectVariable.getName()).getValue()
-        .asSequence();
+    List<Integer> positions = getPositions(ctx, thisObj, source, criteria);
+    List<Value> destinationValues = columnFromContext(context, thisObj, index, selectVariable.getName())
+        .getOccurrences();
 
-    return getSequenceGroupValue(selectVariable.getValueType(), sourceValue, predicate, destinationValue);
+    return getSequenceGroupValue(selectVariable.getValueType(), positions, destinationValues);
   }
 
-  private static Value getSequenceGroupValue(ValueType valueType, ValueSequence sourceValue, Predicate<Value> predicate,
-      ValueSequence destinationValue) {
+  private static Value getSequenceGroupValue(ValueType valueType, Iterable<Integer> positions,
+      List<Value> destinationValues) {
 
     List<Value> rvalues = Lists.newArrayList();
-    int index = -1;
-    for(Value value : sourceValue.getValues()) {
-      index++;
-      if(predicate.apply(value) && index < destinationValue.getSize()) {
-        rvalues.add(destinationValue.get(index));
+    for(int position : positions) {
+      if(position < destinationValues.size()) {
+        rvalues.add(destinationValues.get(position));
       }
     }
 
@@ -615,32 +647,27 @@ public final class GlobalMethods extends AbstractGlobalMethodProvider {
   @SuppressWarnings({ "OverlyLongMethod", "PMD.NcssMethodCount" })
   private static NativeObject getGroups(Context ctx, Scriptable thisObj, String name, Object criteria) {
     MagmaContext context = MagmaContext.asMagmaContext(ctx);
-
-    ScriptableValue sv = valueFromContext(context, thisObj, name);
-    Variable variable = variableFromContext(context, name);
+    OccurrenceGroupIndex index = occurrenceGroupIndexFromContext(context);
+    OccurrenceColumn source = columnFromContext(context, thisObj, index, name);
+    Variable variable = source.getVariable();
 
     NativeObject valueObject = new NativeObject();
 
-    if(sv.getValue().isNull() || !sv.getValue().isSequence()) {
+    if(source.getValue().isNull() || !source.getValue().isSequence()) {
       // just map itself
-      valueObject.put(variable.getName(), valueObject, sv);
+      valueObject
+          .put(variable.getName(), valueObject, new ScriptableValue(thisObj, source.getValue(), source.getUnit()));
     } else {
-      ValueTable valueTable = valueTableFromContext(context);
-      Predicate<Value> predicate = getPredicate(ctx, sv.getParentScope(), thisObj, variable, criteria);
-      Iterable<Variable> variables = getVariablesFromOccurrenceGroup(valueTable, variable, null);
+      Iterable<Variable> variables = index.getOccurrenceGroup(valueTableFromContext(context), variable);
 
-      ValueSequence valueSequence = sv.getValue().asSequence();
+      List<Value> occurrences = source.getOccurrences();
       Map<String, List<Value>> valueMap = Maps.newHashMap();
-      int index = -1;
       // foreach eligible value, look for corresponding values of the same variable group
-      for(Value value : valueSequence.getValue()) {
-        index++;
-        if(predicate.apply(value)) {
-          // map itself
-          addVariableValue(valueMap, variable, value);
-          // get variables of the same occurrence group and map values
-          mapValues(context, thisObj, valueMap, variables, index);
-        }
+      for(int position : getPositions(ctx, thisObj, source, criteria)) {
+        // map itself
+        addVariableValue(valueMap, variable, occurrences.get(position));
+        // get variables of the same occurrence group and map values
+        mapValues(context, thisObj, index, valueMap, variables, position);
       }
 
       // make it a native map
@@ -659,6 +686,29 @@ public final class GlobalMethods extends AbstractGlobalMethodProvider {
     return valueObject;
   }
 
+  /**
+   * Get the occurrence group index of the evaluation, if any.
+   */
+  private static OccurrenceGroupIndex occurrenceGroupIndexFromContext(MagmaContext context) {
+    return context.has(OccurrenceGroupIndex.class)
+        ? context.peek(OccurrenceGroupIndex.class)
+        : new OccurrenceGroupIndex();
+  }
+
+  /**
+   * Get the value of a variable from the occurrence group index, reading it if it is not indexed yet.
+   */
+  private static OccurrenceColumn columnFromContext(MagmaContext context, Scriptable thisObj,
+      OccurrenceGroupIndex index, String name) {
+    OccurrenceColumn column = index.getColumn(name);
+    if(column == null) {
+      ScriptableValue sv = valueFromContext(context, thisObj, name);
+      column = new OccurrenceColumn(variableFromContext(context, name), sv.getValue(), sv.getUnit());
+      index.putColumn(name, column);
+    }
+    return column;
+  }
+
   @Nullable
   private static ValueTable valueTableFromContext(MagmaContext context) {
     ValueTable valueTable = null;
@@ -676,6 +726,18 @@ public final class GlobalMethods extends AbstractGlobalMethodProvider {
     return source.getVariable();
   }
 
+  /**
+   * Get the positions of the occurrences matching the criteria: values are looked up in the index of the column,
+   * functions are applied to each occurrence.
+   */
+  private static List<Integer> getPositions(Context ctx, Scriptable thisObj, OccurrenceColumn source,
+      Object criteria) {
+    Predicate<Value> predicate = getPredicate(ctx, thisObj, thisObj, source.getVariable(), criteria);
+    return predicate instanceof ValuePredicate
+        ? source.getPositions(((ValuePredicate) predicate).criteriaValue)
+        : source.getPositions(predicate);
+  }
+
   private static Predicate<Value> getPredicate(Context ctx, Scriptable scope, Scriptable thisObj, Variable variable,
       Object criteria) {
     Predicate<Value> predicate;
@@ -689,9 +751,14 @@ public final class GlobalMethods extends AbstractGlobalMethodProvider {
     return predicate;
   }
 
-  private static Variable getVariableFromOccurrenceGroup(@Nullable ValueTable valueTable, @NotNull Variable variable,
-      @NotNull String select) {
-    List<Variable> variables = getVariablesFromOccurrenceGroup(valueTable, variable, select);
+  private static Variable getVariableFromOccurrenceGroup(@Nullable ValueTable valueTable, OccurrenceGroupIndex index,
+      @NotNull Variable variable, @NotNull String select) {
+    List<Variable> variables = Lists.newArrayList();
+    for(Variable var : index.getOccurrenceGroup(valueTable, variable)) {
+      if(select.equals(var.getName())) {
+        variables.add(var);
+      }
+    }
     if(variables.size() != 1) {
       throw new IllegalArgumentException(
           "Cannot find one variable with name '" + select + "' in the same occurrence group as '" + variable.getName() +
@@ -701,25 +768,6 @@ public final class GlobalMethods extends AbstractGlobalMethodProvider {
     return variables.get(0);
   }
 
-  private static List<Variable> getVariablesFromOccurrenceGroup(@Nullable ValueTable valueTable,
-      @NotNull Variable variable, String select) {
-    ImmutableList.Builder<Variable> builder = ImmutableList.builder();
-
-    if(variable.getOccurrenceGroup() == null || valueTable == null) {
-      return builder.build();
-    }
-
-    for(Variable var : valueTable.getVariables()) {
-      if(variable.getOccurrenceGroup().equals(var.getOccurrenceGroup())) {
-        if(select == null || select.equals(var.getName())) {
-          builder.add(var);
-        }
-      }
-    }
-
-    return builder.build();
-  }
-
   private static void addVariableValue(Map<String, List<Value>> valueMap, Variable variable, Value value) {
     List<Value> values = valueMap.get(variable.getName());
     if(values == null) {
@@ -729,17 +777,15 @@ public final class GlobalMethods extends AbstractGlobalMethodProvider {
     values.add(value);
   }
 
-  private static void mapValues(MagmaContext context, Scriptable thisObj, Map<String, List<Value>> valueMap,
-      Iterable<Variable> variables, int index) {
-    if(index < 0) return;
-
+  private static void mapValues(MagmaContext context, Scriptable thisObj, OccurrenceGroupIndex index,
+      Map<String, List<Value>> valueMap, Iterable<Variable> variables, int position) {
     for(Variable var : variables) {
-      ScriptableValue scriptableValue = valueFromContext(context, thisObj, var.getName());
+      OccurrenceColumn column = columnFromContext(context, thisObj, index, var.getName());
       Value value = var.getValueType().nullValue();
-      if(!scriptableValue.getValue().isNull()) {
-        ValueSequence valSeq = scriptableValue.getValue().asSequence();
-        if(index < valSeq.getSize()) {
-          value = valSeq.get(index);
+      if(!column.getValue().isNull()) {
+        List<Value> occurrences = column.getOccurrences();
+        if(position < occurrences.size()) {
+          value = occurrences.get(position);
         }
       }
       addVariableValue(valueMap, var, value);
@@ -3,6 +3,7 @@ package org.obiba.magma.js.methods;
 import java.math.BigDecimal;
 import java.math.MathContext;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.List;
@@ -25,9 +26,18 @@ import org.obiba.magma.type.IntegerType;
 import org.obiba.magma.type.TextType;
 import org.unitsofmeasurement.unit.Unit;
 
+import com.google.common.math.LongMath;
+
 @SuppressWarnings({ "UnusedParameters", "UnusedDeclaration" })
 public class NumericMethods {
 
+  /**
+   * Largest magnitude of the longs that are exactly represented by a double.
+   */
+  private static final long MAX_EXACT_LONG = 1L << 53;
+
+  private static final String NO_UNIT = SI.ONE.toString();
+
   private NumericMethods() {
   }
 
@@ -566,6 +576,8 @@ public class NumericMethods {
   }
 
   static Value compare(ScriptableValue thisObj, Object args[], Comps comparator) {
+    Value result = compareUnboxed(thisObj, args, comparator);
+    if(result != null) return result;
     BigDecimal value = asBigDecimal(thisObj);
     if(value == null) return BooleanType.get().nullValue();
     for(Object argument : args) {
@@ -596,6 +608,8 @@ public class NumericMethods {
   }
 
   static ScriptableValue operate(ScriptableValue thisObj, Object args[], Ops operation) {
+    Value result = operateUnboxed(thisObj, args, operation);
+    if(result != null) return new ScriptableValue(thisObj, result, NO_UNIT);
     try {
       BigDecimal value = asBigDecimal(thisObj);
       if(value == null) return new ScriptableValue(thisObj, thisObj.getValueType().nullValue());
@@ -618,6 +632,124 @@ public class NumericMethods {
     }
   }
 
+  /**
+   * Compares the operands as primitives when they all are plain numbers, see {@link #asPlainNumber(Object)}.
+   *
+   * @return the result of the comparison, null if it must be made on {@link BigDecimal}s
+   */
+  @Nullable
+  private static Value compareUnboxed(ScriptableValue thisObj, Object[] args, Comps comparator) {
+    Number value = asPlainNumber(thisObj);
+    if(value == null) return null;
+    for(Object argument : args) {
+      if(asPlainNumber(argument) == null) return null;
+    }
+    double lhs = value.doubleValue();
+    for(Object argument : args) {
+      double rhs = asPlainNumber(argument).doubleValue();
+      if(!comparator.apply(lhs < rhs ? -1 : lhs > rhs ? 1 : 0)) {
+        return BooleanType.get().falseValue();
+      }
+    }
+    return BooleanType.get().trueValue();
+  }
+
+  /**
+   * Operates on primitives when the operands all are plain numbers, see {@link #asPlainNumber(Object)}: on longs when
+   * they all are integers, on doubles when there is a single argument. The results are the ones of the operation on
+   * {@link BigDecimal}s: integer results that would overflow and decimal results that are whole numbers are left to it.
+   *
+   * @return the result, null if the operation must be made on {@link BigDecimal}s
+   */
+  @Nullable
+  private static Value operateUnboxed(ScriptableValue thisObj, Object[] args, Ops operation) {
+    Number value = asPlainNumber(thisObj);
+    if(value == null) return null;
+    boolean integers = value instanceof Long;
+    for(Object argument : args) {
+      Number rhs = asPlainNumber(argument);
+      if(rhs == null) return null;
+      integers &= rhs instanceof Long;
+    }
+    if(integers && operation != Ops.DIVIDE) {
+      try {
+        long result = value.longValue();
+        for(Object argument : args) {
+          result = operate(operation, result, asPlainNumber(argument).longValue());
+        }
+        return IntegerType.get().valueOf(result);
+      } catch(ArithmeticException e) {
+        return null;
+      }
+    }
+    if(args.length != 1) return null;
+    double lhs = value.doubleValue();
+    double rhs = asPlainNumber(args[0]).doubleValue();
+    if(operation == Ops.DIVIDE && integers && rhs != 0 && value.longValue() % (long) rhs == 0) {
+      return IntegerType.get().valueOf(value.longValue() / (long) rhs);
+    }
+    double result = operate(operation, lhs, rhs);
+    // whole numbers are integers if the exact result is, and large or infinite results depend on the exact result
+    if(Math.abs(result) >= MAX_EXACT_LONG / 2 || result == Math.rint(result) || Double.isNaN(result)) return null;
+    return DecimalType.get().valueOf(result);
+  }
+
+  private static long operate(Ops operation, long lhs, long rhs) throws ArithmeticException {
+    switch(operation) {
+      case PLUS:
+        return LongMath.checkedAdd(lhs, rhs);
+      case MINUS:
+        return LongMath.checkedSubtract(lhs, rhs);
+      case MULTIPLY:
+        return LongMath.checkedMultiply(lhs, rhs);
+      default:
+        throw new ArithmeticException("Unsupported operation: " + operation);
+    }
+  }
+
+  private static double operate(Ops operation, double lhs, double rhs) {
+    switch(operation) {
+      case PLUS:
+        return lhs + rhs;
+      case MINUS:
+        return lhs - rhs;
+      case MULTIPLY:
+        return lhs * rhs;
+      default:
+        return lhs / rhs;
+    }
+  }
+
+  /**
+   * Returns the number of a non-null numeric value without unit, or of a JavaScript whole number. Integers are returned
+   * as {@code Long}, decimals as {@code Double}. Other operands (units, null values, strings, JavaScript decimal numbers
+   * that are converted from their decimal representation) are operated on as {@link BigDecimal}s.
+   */
+  @Nullable
+  private static Number asPlainNumber(Object object) {
+    if(object instanceof ScriptableValue) {
+      ScriptableValue scriptable = (ScriptableValue) object;
+      Value value = scriptable.getValue();
+      if(scriptable.hasUnit() || value.isNull() || value.isSequence()) return null;
+      Object number = value.getValue();
+      if(number instanceof Long) {
+        return Math.abs((Long) number) <= MAX_EXACT_LONG ? (Long) number : null;
+      }
+      return number instanceof Double && !((Double) number).isInfinite() && !((Double) number).isNaN()
+          ? (Double) number
+          : null;
+    }
+    if(object instanceof Integer || object instanceof Long) {
+      long integer = ((Number) object).longValue();
+      return Math.abs(integer) <= MAX_EXACT_LONG ? integer : null;
+    }
+    if(object instanceof Double) {
+      double decimal = (Double) object;
+      return decimal == Math.rint(decimal) && Math.abs(decimal) <= MAX_EXACT_LONG ? (long) decimal : null;
+    }
+    return null;
+  }
+
   static Double asDouble(Object obj) {
     if(obj == null) return null;
     if(obj instanceof Number) {
@@ -679,34 +811,60 @@ public class NumericMethods {
   }
 
   static Double average(ValueSequence valueSequence) {
-    int size = valueSequence.getSize();
-    if(size == 0) return null;
-    Double sum = sum(valueSequence);
-    if(sum != null) {
-      return sum / size;
+    if(valueSequence.isNull()) return null;
+
+    // count while summing: the size of a sequence is the one of a copy of its values
+    double sum = 0;
+    int size = 0;
+    for(Value v : valueSequence.getValue()) {
+      if(v.isNull()) {
+        return null;
+      }
+      sum += ((Number) v.getValue()).doubleValue();
+      size++;
     }
-    return null;
+    return size == 0 ? null : sum / size;
   }
 
   static Double stddev(ValueSequence valueSequence) {
-    if(valueSequence.isNull()) return null;
-
-    Double avg = average(valueSequence);
-    if(avg == null) return null;
+    // read the values once, the deviations are summed over the unboxed values
+    double[] values = asDoubles(valueSequence);
+    if(values == null || values.length == 0) return null;
 
-    int size = valueSequence.getSize();
-    if(size == 0) return null;
+    double sum = 0;
+    for(double d : values) {
+      sum += d;
+    }
+    double avg = sum / values.length;
 
     double sumDev = 0;
-    for(Value v : valueSequence.getValue()) {
+    for(double d : values) {
+      sumDev += (d - avg) * (d - avg);
+    }
+
+    return Math.sqrt(sumDev / values.length);
+  }
+
+  /**
+   * Unboxes the values of a sequence of numbers.
+   *
+   * @return the values, null if the sequence is null or contains a null value
+   */
+  @Nullable
+  private static double[] asDoubles(ValueSequence valueSequence) {
+    if(valueSequence.isNull()) return null;
+
+    Iterable<Value> sequence = valueSequence.getValue();
+    double[] values = new double[sequence instanceof Collection ? ((Collection<?>) sequence).size() : 16];
+    int size = 0;
+    for(Value v : sequence) {
       if(v.isNull()) {
         return null;
       }
-      double d = ((Number) v.getValue()).doubleValue();
-      sumDev += (d - avg) * (d - avg);
+      if(size == values.length) values = Arrays.copyOf(values, size * 2);
+      values[size++] = ((Number) v.getValue()).doubleValue();
     }
-
-    return Math.sqrt(sumDev / size);
+    return size == values.length ? values : Arrays.copyOf(values, size);
   }
 
 }
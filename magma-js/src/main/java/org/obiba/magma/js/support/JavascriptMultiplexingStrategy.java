@@ -46,7 +46,7 @@ public class JavascriptMultiplexingStrategy implements DatasourceCopier.Multiple
     compiledScript = (Script) ContextFactory.getGlobal().call(new ContextAction() {
       @Override
       public Object run(Context cx) {
-        return cx.compileString(getScript(), getScriptName(), 1, null);
+        return MagmaContext.asMagmaContext(cx).compileScript(getScript(), getScriptName());
       }
     });
   }
@@ -1,6 +1,10 @@
 package org.obiba.magma.js.views;
 
 import java.io.Serializable;
+import java.util.List;
+import java.util.SortedSet;
+
+import javax.annotation.Nullable;
 
 import org.mozilla.javascript.Context;
 import org.mozilla.javascript.ContextAction;
@@ -15,15 +19,22 @@ import org.obiba.magma.ValueTable;
 import org.obiba.magma.ValueType;
 import org.obiba.magma.Variable;
 import org.obiba.magma.VariableEntity;
+import org.obiba.magma.js.JavascriptValueSource.VectorCache;
 import org.obiba.magma.js.MagmaContext;
+import org.obiba.magma.js.OccurrenceGroupIndex;
 import org.obiba.magma.js.ScriptableValue;
 import org.obiba.magma.js.ScriptableVariable;
+import org.obiba.magma.js.VariableReferences;
+import org.obiba.magma.support.CompactVariableEntitySet;
 import org.obiba.magma.type.BooleanType;
+import org.obiba.magma.views.BatchWhereClause;
+import org.obiba.magma.views.CacheableWhereClause;
 import org.obiba.magma.views.SelectClause;
 import org.obiba.magma.views.View;
-import org.obiba.magma.views.WhereClause;
 
-public class JavascriptClause implements Initialisable, SelectClause, WhereClause {
+import com.google.common.collect.Lists;
+
+public class JavascriptClause implements Initialisable, SelectClause, BatchWhereClause, CacheableWhereClause {
   //
   // Instance Variables
   //
@@ -36,6 +47,12 @@ public class JavascriptClause implements Initialisable, SelectClause, WhereClaus
   @SuppressWarnings("TransientFieldInNonSerializableClass")
   private transient Script compiledScript;
 
+  @SuppressWarnings("TransientFieldInNonSerializableClass")
+  private transient boolean usesThis;
+
+  @SuppressWarnings("TransientFieldInNonSerializableClass")
+  private transient boolean local;
+
   //
   // Constructors
   //
@@ -64,7 +81,11 @@ public class JavascriptClause implements Initialisable, SelectClause, WhereClaus
     compiledScript = (Script) ContextFactory.getGlobal().call(new ContextAction() {
       @Override
       public Object run(Context cx) {
-        return cx.compileString(getScript(), getScriptName(), 1, null);
+        Script compiled = MagmaContext.asMagmaContext(cx).compileScript(getScript(), getScriptName());
+        VariableReferences references = VariableReferences.parse(cx, getScript(), getScriptName());
+        usesThis = references.uses("$this");
+        local = references.isLocal();
+        return compiled;
       }
     });
   }
@@ -122,6 +143,31 @@ public class JavascriptClause implements Initialisable, SelectClause, WhereClaus
     return (Boolean) ContextFactory.getGlobal().call(new WhereContextAction(valueSet, view));
   }
 
+  /**
+   * Evaluates the script as a vector over the entities: the variables it references are read by blocks of entities,
+   * see {@link VectorCache}, instead of loading the value set of each entity. Scripts that use {@code $this()} are
+   * evaluated for each value set, as the values of the view are only defined for the value sets it selects.
+   */
+  @Override
+  @SuppressWarnings("unchecked")
+  public SortedSet<VariableEntity> filter(ValueTable valueTable, SortedSet<VariableEntity> entities,
+      @Nullable View view) {
+    if(compiledScript == null) {
+      throw new IllegalStateException("script hasn't been compiled. Call initialise() before calling filter().");
+    }
+    if(valueTable == null) throw new IllegalArgumentException("valueTable cannot be null");
+
+    if(usesThis) {
+      List<VariableEntity> selected = Lists.newArrayList();
+      for(VariableEntity entity : entities) {
+        if(where(valueTable.getValueSet(entity), view)) selected.add(entity);
+      }
+      return CompactVariableEntitySet.copyOf(selected);
+    }
+    return (SortedSet<VariableEntity>) ContextFactory.getGlobal()
+        .call(new FilterContextAction(valueTable, entities, view));
+  }
+
   //
   // Query Methods
   //
@@ -176,6 +222,19 @@ public class JavascriptClause implements Initialisable, SelectClause, WhereClaus
     this.script = script;
   }
 
+  /**
+   * Clauses of the same script select the same value sets. A script that reads other tables than the one of the value
+   * set has no cache key: the cached results would not see the updates of these tables.
+   */
+  @Nullable
+  @Override
+  public String getCacheKey() {
+    if(compiledScript == null) {
+      throw new IllegalStateException("script hasn't been compiled. Call initialise() before calling getCacheKey().");
+    }
+    return local ? script : null;
+  }
+
   /**
    * This method is invoked before evaluating the script. It provides a chance for derived classes to initialise values
    * within the context. This method will add the current {@code ValueSet} as a {@code ThreadLocal} variable with
@@ -194,6 +253,7 @@ public class JavascriptClause implements Initialisable, SelectClause, WhereClaus
     ctx.push(VariableEntity.class, valueSet.getVariableEntity());
     ValueTable valueTable = valueSet.getValueTable();
     ctx.push(ValueTable.class, valueTable);
+    ctx.push(OccurrenceGroupIndex.class, new OccurrenceGroupIndex());
     if(view != null) {
       ctx.push(View.class, view);
     }
@@ -203,11 +263,35 @@ public class JavascriptClause implements Initialisable, SelectClause, WhereClaus
     ctx.pop(ValueSet.class);
     ctx.pop(VariableEntity.class);
     ctx.pop(ValueTable.class);
+    ctx.pop(OccurrenceGroupIndex.class);
     if(view != null) {
       ctx.pop(View.class);
     }
   }
 
+  /**
+   * Converts the result of the script to the result of the clause.
+   */
+  @SuppressWarnings("ChainOfInstanceofChecks")
+  private static Object asWhereResult(Object value) {
+    if(value instanceof Boolean) {
+      return value;
+    }
+    if(value instanceof ScriptableValue) {
+      return getValue((ScriptableValue) value);
+    }
+    return false;
+  }
+
+  private static Object getValue(ScriptableValue scriptable) {
+    if (scriptable.getValue().isNull()) return false;
+    try {
+      return BooleanType.get().valueOf(scriptable.getValue().getValue()).getValue();
+    } catch (Exception e) {
+      return false;
+    }
+  }
+
   private class WhereContextAction implements ContextAction {
     private final ValueSet valueSet;
 
@@ -219,7 +303,6 @@ public class JavascriptClause implements Initialisable, SelectClause, WhereClaus
     }
 
     @Override
-    @SuppressWarnings("ChainOfInstanceofChecks")
     public Object run(Context ctx) {
       MagmaContext context = MagmaContext.asMagmaContext(ctx);
       // Don't pollute the global scope
@@ -229,22 +312,62 @@ public class JavascriptClause implements Initialisable, SelectClause, WhereClaus
       Object value = compiledScript.exec(ctx, scope);
       exitContext(context, valueSet, view);
 
-      if(value instanceof Boolean) {
-        return value;
-      }
-      if(value instanceof ScriptableValue) {
-        return getValue((ScriptableValue) value);
-      }
-      return false;
+      return asWhereResult(value);
     }
+  }
+
+  private class FilterContextAction implements ContextAction {
+
+    private final ValueTable valueTable;
+
+    private final SortedSet<VariableEntity> entities;
+
+    @Nullable
+    private final View view;
 
-    private Object getValue(ScriptableValue scriptable) {
-      if (scriptable.getValue().isNull()) return false;
+    FilterContextAction(ValueTable valueTable, SortedSet<VariableEntity> entities, @Nullable View view) {
+      this.valueTable = valueTable;
+      this.entities = entities;
+      this.view = view;
+    }
+
+    @Override
+    public Object run(Context ctx) {
+      MagmaContext context = MagmaContext.asMagmaContext(ctx);
+      // Don't pollute the global scope
+      Scriptable scope = context.newLocalScope();
+      VectorCache vectorCache = new VectorCache();
+      List<VariableEntity> selected = Lists.newArrayList();
+
+      context.push(ValueTable.class, valueTable);
+      context.push(SortedSet.class, entities);
+      context.push(VectorCache.class, vectorCache);
+      if(view != null) {
+        context.push(View.class, view);
+      }
       try {
-        return BooleanType.get().valueOf(scriptable.getValue().getValue()).getValue();
-      } catch (Exception e) {
-        return false;
+        for(VariableEntity entity : entities) {
+          context.push(VariableEntity.class, entity);
+          context.push(OccurrenceGroupIndex.class, new OccurrenceGroupIndex());
+          try {
+            if(Boolean.TRUE.equals(asWhereResult(compiledScript.exec(ctx, scope)))) {
+              selected.add(entity);
+            }
+          } finally {
+            context.pop(OccurrenceGroupIndex.class);
+            context.pop(VariableEntity.class);
+            vectorCache.next();
+          }
+        }
+      } finally {
+        context.pop(ValueTable.class);
+        context.pop(SortedSet.class);
+        context.pop(VectorCache.class);
+        if(view != null) {
+          context.pop(View.class);
+        }
       }
+      return CompactVariableEntitySet.copyOf(selected);
     }
   }
 }
@@ -7,6 +7,7 @@ import java.util.Set;
 import javax.validation.constraints.NotNull;
 
 import org.obiba.magma.Initialisable;
+import org.obiba.magma.MagmaEngine;
 import org.obiba.magma.MagmaRuntimeException;
 import org.obiba.magma.NoSuchVariableException;
 import org.obiba.magma.ValueTable;
@@ -81,6 +82,8 @@ public class VariablesClause implements ListClause, Initialisable {
       }
     }
     initialised = true;
+    // the derived variables of the view changed
+    MagmaEngine.notifyRegistryChanged();
   }
 
   @Override
@@ -1,21 +1,48 @@
 package org.obiba.magma.js;
 
 import java.util.Date;
+import java.util.List;
+import java.util.Set;
+import java.util.SortedSet;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import javax.validation.constraints.NotNull;
 
 import org.junit.Test;
+import org.mozilla.javascript.Context;
+import org.mozilla.javascript.ContextFactory;
 import org.obiba.magma.Datasource;
 import org.obiba.magma.MagmaDate;
+import org.obiba.magma.MagmaEngine;
 import org.obiba.magma.Timestamps;
 import org.obiba.magma.Value;
 import org.obiba.magma.ValueSet;
 import org.obiba.magma.ValueTable;
+import org.obiba.magma.ValueType;
 import org.obiba.magma.Variable;
+import org.obiba.magma.VectorSource;
 import org.obiba.magma.VariableEntity;
 import org.obiba.magma.VariableValueSource;
+import org.obiba.magma.support.AbstractVariableValueSourceWrapper;
+import org.obiba.magma.support.StaticDatasource;
+import org.obiba.magma.support.StaticValueTable;
 import org.obiba.magma.support.ValueSetBean;
 import org.obiba.magma.support.VariableEntityBean;
+import org.obiba.magma.type.BooleanType;
 import org.obiba.magma.type.DateType;
+import org.obiba.magma.type.IntegerType;
 import org.obiba.magma.type.TextType;
+import org.obiba.magma.views.View;
+import org.obiba.magma.views.ViewAwareDatasource;
+import org.obiba.magma.views.WhereClause;
+
+import com.google.common.collect.HashMultiset;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSortedSet;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Multiset;
+import com.google.common.collect.Sets;
 
 import static org.fest.assertions.api.Assertions.assertThat;
 import static org.mockito.Matchers.any;
@@ -95,4 +122,293 @@ public class JavascriptVariableValueSourceTest extends AbstractJsTest {
     assertThat(value.toString()).isEqualTo("The Value");
   }
 
+  @Test
+  public void test_vector_reads_referenced_variables_by_blocks() {
+    List<String> identifiers = Lists.newArrayList();
+    for(int i = 0; i < 2500; i++) {
+      identifiers.add(String.format("%04d", i));
+    }
+    MatrixCountingTable table = new MatrixCountingTable(identifiers);
+    table.addVariables(BooleanType.get(), "A");
+    table.addVariables(IntegerType.get(), "B", "C");
+    for(String identifier : identifiers) {
+      table.addValues(identifier, "A", true, "B", 1, "C", 2);
+    }
+    Variable variable = Variable.Builder.newVariable("D", IntegerType.get(), "Participant")
+        .extend(JavascriptVariableBuilder.class).setScript("$('A').value() ? $('B') : $('C')").build();
+    JavascriptVariableValueSource source = new JavascriptVariableValueSource(variable, table);
+    source.initialise();
+
+    SortedSet<VariableEntity> entities = ImmutableSortedSet.copyOf(table.getVariableEntities());
+    List<Value> values = Lists.newArrayList(source.asVectorSource().getValues(entities));
+
+    assertThat(values).hasSize(2500);
+    assertThat(Sets.newHashSet(values)).containsOnly(IntegerType.get().valueOf(1));
+    // first block reads A then B, next blocks read both at once; C is never read
+    assertThat(table.matrixReads).isEqualTo(4);
+    assertThat(table.readVariables).containsOnly("A", "B");
+  }
+
+  @Test
+  public void test_vector_evaluation_by_partitions() {
+    List<String> identifiers = Lists.newArrayList();
+    for(int i = 0; i < 2500; i++) {
+      identifiers.add(String.format("%04d", i));
+    }
+    MatrixCountingTable table = new MatrixCountingTable(identifiers);
+    table.addVariables(IntegerType.get(), "B");
+    for(int i = 0; i < identifiers.size(); i++) {
+      table.addValues(identifiers.get(i), "B", i);
+    }
+    Variable variable = Variable.Builder.newVariable("D", IntegerType.get(), "Participant")
+        .extend(JavascriptVariableBuilder.class).setScript("$('B').plus(1)").build();
+    JavascriptVariableValueSource source = new JavascriptVariableValueSource(variable, table);
+    source.initialise();
+
+    MagmaContextFactory factory = (MagmaContextFactory) ContextFactory.getGlobal();
+    ExecutorService executor = Executors.newFixedThreadPool(3);
+    factory.setVectorExecutor(executor);
+    factory.setVectorPartitionSize(1000);
+    // vectors requested while a script is evaluated are not partitioned
+    Context.exit();
+    List<Value> values;
+    try {
+      values = Lists.newArrayList(
+          source.asVectorSource().getValues(ImmutableSortedSet.copyOf(table.getVariableEntities())));
+    } finally {
+      Context.enter();
+      factory.setVectorExecutor(null);
+      factory.setVectorPartitionSize(MagmaContextFactory.DEFAULT_VECTOR_PARTITION_SIZE);
+      executor.shutdown();
+    }
+
+    assertThat(values).hasSize(2500);
+    for(int i = 0; i < values.size(); i++) {
+      assertThat(values.get(i)).isEqualTo(IntegerType.get().valueOf(i + 1));
+    }
+    assertThat(table.matrixReads).isEqualTo(3);
+    assertThat(table.readThreads).isNotEmpty().doesNotContain(Thread.currentThread());
+  }
+
+  @Test
+  public void test_vector_join_reads_joined_values_by_blocks() {
+    List<String> identifiers = Lists.newArrayList();
+    for(int i = 0; i < 2500; i++) {
+      identifiers.add(String.format("%04d", i));
+    }
+    MatrixCountingTable table = new MatrixCountingTable(identifiers);
+    table.addVariables(TextType.get(), "MED");
+    for(int i = 0; i < identifiers.size(); i++) {
+      table.addValues(identifiers.get(i), "MED", "d" + i % 10);
+    }
+    // no drug d9
+    List<String> drugIdentifiers = ImmutableList.of("d0", "d1", "d2", "d3", "d4", "d5", "d6", "d7", "d8");
+    StaticDatasource medications = new StaticDatasource("medications");
+    MatrixCountingTable drugs = new MatrixCountingTable(medications, "drugs", drugIdentifiers, "Drug");
+    drugs.addVariables(TextType.get(), "BRAND");
+    for(String drug : drugIdentifiers) {
+      drugs.addValues(drug, "BRAND", "brand-" + drug);
+    }
+    medications.addValueTable(drugs);
+    MagmaEngine.get().addDatasource(medications);
+
+    Variable variable = Variable.Builder.newVariable("D", TextType.get(), "Participant")
+        .extend(JavascriptVariableBuilder.class).setScript("$join('medications.drugs:BRAND', 'MED')").build();
+    JavascriptVariableValueSource source = new JavascriptVariableValueSource(variable, table);
+    source.initialise();
+
+    List<Value> values = Lists
+        .newArrayList(source.asVectorSource().getValues(ImmutableSortedSet.copyOf(table.getVariableEntities())));
+
+    assertThat(values).hasSize(2500);
+    for(int i = 0; i < values.size(); i++) {
+      assertThat(values.get(i))
+          .isEqualTo(i % 10 == 9 ? TextType.get().nullValue() : TextType.get().valueOf("brand-d" + i % 10));
+    }
+    // one read of the joined variable per block, missing drugs are null rows rather than probed one by one
+    assertThat(drugs.matrixReads).isEqualTo(3);
+    assertThat(drugs.hasValueSetCalls).isLessThanOrEqualTo(drugs.matrixEntities);
+    assertThat(drugs.matrixEntities).isEqualTo(27);
+  }
+
+  @Test
+  public void test_vector_join_through_filtered_view_equals_value_set_join() {
+    StaticValueTable table = new StaticValueTable(new StaticDatasource("ds"), "table",
+        ImmutableList.of("1", "2", "3"));
+    table.addVariables(TextType.get(), "MED");
+    table.addValues("1", "MED", "d0");
+    table.addValues("2", "MED", "d1");
+    table.addValues("3", "MED", "d2");
+    StaticDatasource medications = new StaticDatasource("medications");
+    StaticValueTable drugs = new VectorTable(medications, "drugs", ImmutableList.of("d0", "d1", "d2"), "Drug");
+    drugs.addVariables(TextType.get(), "BRAND");
+    for(String drug : ImmutableList.of("d0", "d1", "d2")) {
+      drugs.addValues(drug, "BRAND", "brand-" + drug);
+    }
+    // the view does not select d1
+    View view = View.Builder.newView("selected", drugs).where(new WhereClause() {
+      @Override
+      public boolean where(ValueSet valueSet) {
+        return where(valueSet, null);
+      }
+
+      @Override
+      public boolean where(ValueSet valueSet, View view) {
+        return !"d1".equals(valueSet.getVariableEntity().getIdentifier());
+      }
+    }).build();
+    medications.addValueTable(drugs);
+    MagmaEngine.get().addDatasource(new ViewAwareDatasource(medications, ImmutableList.of(view)));
+
+    Variable variable = Variable.Builder.newVariable("D", TextType.get(), "Participant")
+        .extend(JavascriptVariableBuilder.class).setScript("$join('medications.selected:BRAND', 'MED')").build();
+    JavascriptVariableValueSource source = new JavascriptVariableValueSource(variable, table);
+    source.initialise();
+
+    SortedSet<VariableEntity> entities = ImmutableSortedSet.copyOf(table.getVariableEntities());
+    List<Value> values = Lists.newArrayList(source.asVectorSource().getValues(entities));
+    assertThat(values).containsExactly(TextType.get().valueOf("brand-d0"), TextType.get().nullValue(),
+        TextType.get().valueOf("brand-d2"));
+    int i = 0;
+    for(VariableEntity entity : entities) {
+      assertThat(source.getValue(table.getValueSet(entity))).isEqualTo(values.get(i++));
+    }
+  }
+
+  @Test
+  public void test_group_reads_occurrence_group_once_per_value_set() {
+    ValueCountingTable table = new ValueCountingTable();
+    table.addValues("1", stage("STAGE_NAME", TextType.get()), TextType.get().sequenceOf("A,B,A,C"),
+        stage("STAGE_DURATION", IntegerType.get()), IntegerType.get().sequenceOf("1,2,3,4"));
+    Variable variable = Variable.Builder.newVariable("D", IntegerType.get(), "Participant")
+        .extend(JavascriptVariableBuilder.class).setScript("$group('STAGE_NAME', 'B', 'STAGE_DURATION')" +
+            ".plus($group('STAGE_NAME', 'C', 'STAGE_DURATION'))" +
+            ".plus($group('STAGE_NAME', function(name) { return name.eq('A'); }, 'STAGE_DURATION').sum())" +
+            ".plus($group('STAGE_NAME', 'A', 'STAGE_DURATION').sum())" +
+            ".plus($group('STAGE_NAME', 'D', 'STAGE_DURATION').isNull().value() ? 100 : 0)").build();
+    JavascriptVariableValueSource source = new JavascriptVariableValueSource(variable, table);
+    source.initialise();
+
+    ValueSet valueSet = table.getValueSet(new VariableEntityBean("Participant", "1"));
+    assertThat(source.getValue(valueSet)).isEqualTo(IntegerType.get().valueOf(114));
+    assertThat(table.valueReads.count("STAGE_NAME")).isEqualTo(1);
+    assertThat(table.valueReads.count("STAGE_DURATION")).isEqualTo(1);
+
+    // another evaluation reads the values again
+    assertThat(source.getValue(valueSet)).isEqualTo(IntegerType.get().valueOf(114));
+    assertThat(table.valueReads.count("STAGE_NAME")).isEqualTo(2);
+  }
+
+  private static Variable stage(String name, ValueType type) {
+    return Variable.Builder.newVariable(name, type, "Participant").repeatable().occurrenceGroup("STAGES").build();
+  }
+
+  private static class MatrixCountingTable extends StaticValueTable {
+
+    private int matrixReads;
+
+    private int matrixEntities;
+
+    private int hasValueSetCalls;
+
+    private final Set<String> readVariables = Sets.newHashSet();
+
+    private final Set<Thread> readThreads = Sets.newHashSet();
+
+    private MatrixCountingTable(Iterable<String> entities) {
+      super(new StaticDatasource("ds"), "table", entities);
+    }
+
+    private MatrixCountingTable(Datasource datasource, String name, Iterable<String> entities, String entityType) {
+      super(datasource, name, entities, entityType);
+    }
+
+    @Override
+    public Iterable<Value[]> getValueMatrix(List<Variable> variables, SortedSet<VariableEntity> entities) {
+      synchronized(this) {
+        matrixReads++;
+        matrixEntities += entities.size();
+        readThreads.add(Thread.currentThread());
+        for(Variable variable : variables) {
+          readVariables.add(variable.getName());
+        }
+      }
+      return super.getValueMatrix(variables, entities);
+    }
+
+    @Override
+    public boolean hasValueSet(VariableEntity entity) {
+      hasValueSetCalls++;
+      return super.hasValueSet(entity);
+    }
+  }
+
+  /**
+   * A table of which the sources read vectors, without checking the value sets of the entities.
+   */
+  private static class VectorTable extends StaticValueTable {
+
+    private VectorTable(Datasource datasource, String name, Iterable<String> entities, String entityType) {
+      super(datasource, name, entities, entityType);
+    }
+
+    @Override
+    public void addVariables(ValueType type, String... variables) {
+      super.addVariables(type, variables);
+      for(String variable : variables) {
+        addVectorSource(variable);
+      }
+    }
+
+    private void addVectorSource(String variable) {
+      addVariableValueSource(new AbstractVariableValueSourceWrapper(getVariableValueSource(variable)) {
+        @Override
+        public boolean supportVectorSource() {
+          return true;
+        }
+
+        @NotNull
+        @Override
+        public VectorSource asVectorSource() {
+          return new VectorSource() {
+            @Override
+            public ValueType getValueType() {
+              return getVariable().getValueType();
+            }
+
+            @Override
+            public Iterable<Value> getValues(SortedSet<VariableEntity> entities) {
+              List<Value> values = Lists.newArrayList();
+              for(VariableEntity entity : entities) {
+                values.add(getValue(getValueSet(entity)));
+              }
+              return values;
+            }
+          };
+        }
+      });
+    }
+  }
+
+  private static class ValueCountingTable extends StaticValueTable {
+
+    private final Multiset<String> valueReads = HashMultiset.create();
+
+    private ValueCountingTable() {
+      super(new StaticDatasource("ds"), "table", ImmutableList.of("1"));
+    }
+
+    @Override
+    public void addVariable(Variable variable) {
+      super.addVariable(variable);
+      addVariableValueSource(new AbstractVariableValueSourceWrapper(getVariableValueSource(variable.getName())) {
+        @NotNull
+        @Override
+        public Value getValue(ValueSet valueSet) {
+          valueReads.add(getVariable().getName());
+          return super.getValue(valueSet);
+        }
+      });
+    }
+  }
 }
@@ -0,0 +1,60 @@
+package org.obiba.magma.js;
+
+import org.junit.Test;
+import org.mozilla.javascript.EvaluatorException;
+import org.mozilla.javascript.Script;
+import org.obiba.magma.js.views.JavascriptClause;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+import static org.fest.assertions.api.Assertions.fail;
+
+public class ScriptCacheTest extends AbstractJsTest {
+
+  @Test
+  public void test_scripts_are_compiled_once_by_optimization_level() {
+    ScriptCache cache = new ScriptCache(10);
+    MagmaContext context = getMagmaContext();
+
+    context.setOptimizationLevel(-1);
+    Script interpreted = cache.compile(context, "1 + 1", "test");
+    assertThat(cache.compile(context, "1 + 1", "test")).isSameAs(interpreted);
+    assertThat(cache.compile(context, "1 + 1", "other")).isNotSameAs(interpreted);
+
+    context.setOptimizationLevel(0);
+    assertThat(cache.compile(context, "1 + 1", "test")).isNotSameAs(interpreted);
+
+    assertThat(cache.getHitCount()).isEqualTo(1);
+    assertThat(cache.getMissCount()).isEqualTo(3);
+    assertThat(cache.getSize()).isEqualTo(3);
+  }
+
+  @Test
+  public void test_compilation_errors_are_not_cached() {
+    ScriptCache cache = new ScriptCache(10);
+    for(int i = 0; i < 2; i++) {
+      try {
+        cache.compile(getMagmaContext(), "1 +", "test");
+        fail("Expected EvaluatorException");
+      } catch(EvaluatorException e) {
+        // expected
+      }
+    }
+    assertThat(cache.getMissCount()).isEqualTo(2);
+    assertThat(cache.getSize()).isEqualTo(0);
+  }
+
+  @Test
+  public void test_clauses_share_compiled_scripts() {
+    ScriptCache cache = getMagmaContext().getMagmaContextFactory().getScriptCache();
+    cache.invalidateAll();
+    long misses = cache.getMissCount();
+
+    for(int i = 0; i < 3; i++) {
+      JavascriptClause clause = new JavascriptClause("$('A').isNull()");
+      clause.initialise();
+    }
+
+    assertThat(cache.getMissCount() - misses).isEqualTo(1);
+    assertThat(cache.getSize()).isEqualTo(1);
+  }
+}
@@ -0,0 +1,180 @@
+package org.obiba.magma.js;
+
+import java.util.Date;
+
+import org.junit.Test;
+import org.mozilla.javascript.Context;
+import org.obiba.magma.MagmaEngine;
+import org.obiba.magma.Timestamps;
+import org.obiba.magma.TimestampsBean;
+import org.obiba.magma.ValueSet;
+import org.obiba.magma.ValueTable;
+import org.obiba.magma.VariableEntity;
+import org.obiba.magma.js.VariableReferences.VariableReference;
+import org.obiba.magma.support.StaticDatasource;
+import org.obiba.magma.support.StaticValueTable;
+import org.obiba.magma.type.DateTimeType;
+import org.obiba.magma.type.IntegerType;
+import org.obiba.magma.type.TextType;
+
+import com.google.common.collect.ImmutableList;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+
+public class VariableReferencesTest extends AbstractJsTest {
+
+  @Test
+  public void test_literal_references_are_extracted() {
+    VariableReferences references = VariableReferences.parse(Context.getCurrentContext(),
+        "var name = 'E'; $('A').plus($val('t:B')).plus($join('ds.t:C', 'D', true)).plus($(name)).plus(foo('F'))",
+        "test");
+
+    assertThat(references.getNames()).containsOnly("A", "t:B", "ds.t:C", "D");
+  }
+
+  @Test
+  public void test_used_methods_are_extracted() {
+    Context context = Context.getCurrentContext();
+
+    assertThat(VariableReferences.parse(context, "$this('A').eq(1)", "test").uses("$this")).isTrue();
+    assertThat(VariableReferences.parse(context, "var f = $this; f('A')", "test").uses("$this")).isTrue();
+    assertThat(VariableReferences.parse(context, "$('A').eq('$this')", "test").uses("$this")).isFalse();
+    assertThat(VariableReferences.parse(context, "// $this\n$('A')", "test").uses("$this")).isFalse();
+  }
+
+  @Test
+  public void test_scripts_reading_other_tables_are_not_local() {
+    Context context = Context.getCurrentContext();
+
+    assertThat(VariableReferences.parse(context, "$('A').plus($val('B')).plus($var('A').name())", "test").isLocal())
+        .isTrue();
+    assertThat(VariableReferences.parse(context, "$('t:A')", "test").isLocal()).isFalse();
+    assertThat(VariableReferences.parse(context, "$group('ds.t:A', 'x')", "test").isLocal()).isFalse();
+    assertThat(VariableReferences.parse(context, "$join('ds.t:A', 'B')", "test").isLocal()).isFalse();
+    assertThat(VariableReferences.parse(context, "$this('A')", "test").isLocal()).isFalse();
+    assertThat(VariableReferences.parse(context, "var name = 'A'; $(name)", "test").isLocal()).isFalse();
+    assertThat(VariableReferences.parse(context, "var f = $; f('A')", "test").isLocal()).isFalse();
+    assertThat(VariableReferences.parse(context, "$('A'", "test").isLocal()).isFalse();
+  }
+
+  @Test
+  public void test_resolution_is_kept_until_registry_changes() {
+    StaticValueTable table = createTable();
+    StaticDatasource datasource = new StaticDatasource("ds");
+    datasource.addValueTable(table);
+    MagmaEngine.get().addDatasource(datasource);
+
+    VariableReferences references = VariableReferences.parse(Context.getCurrentContext(), "$('ds.t:A')", "test");
+    VariableReference reference = references.get("ds.t:A");
+    ValueTable context = createTable();
+
+    assertThat(reference.resolveTable(context)).isSameAs(table);
+    assertThat(reference.resolveSource(context)).isSameAs(reference.resolveSource(context));
+    assertThat(reference.isJoin(context.getValueSet(context.getVariableEntities().iterator().next()))).isTrue();
+
+    StaticValueTable newTable = createTable();
+    StaticDatasource newDatasource = new StaticDatasource("ds");
+    newDatasource.addValueTable(newTable);
+    MagmaEngine.get().removeDatasource(datasource);
+    MagmaEngine.get().addDatasource(newDatasource);
+
+    assertThat(reference.resolveTable(context)).isSameAs(newTable);
+    assertThat(references.get("A").resolveTable(context)).isSameAs(context);
+  }
+
+  @Test
+  public void test_source_resolution_follows_variable_changes() {
+    StaticValueTable table = createTable();
+    StaticDatasource datasource = new StaticDatasource("ds");
+    datasource.addValueTable(table);
+    MagmaEngine.get().addDatasource(datasource);
+
+    VariableReference reference = VariableReferences.parse(Context.getCurrentContext(), "$('ds.t:A')", "test")
+        .get("ds.t:A");
+    ValueTable context = createTable();
+    assertThat(reference.resolveSource(context).getValueType()).isEqualTo(IntegerType.get());
+
+    // variable updated in place, in the same table
+    table.removeVariable("A");
+    table.addVariables(TextType.get(), "A");
+    assertThat(reference.resolveSource(context).getValueType()).isEqualTo(TextType.get());
+  }
+
+  @Test
+  public void test_joined_values_are_kept_until_table_update() throws InterruptedException {
+    UpdatableTable table = new UpdatableTable();
+    StaticDatasource datasource = new StaticDatasource("ds");
+    datasource.addValueTable(table);
+    MagmaEngine.get().addDatasource(datasource);
+
+    VariableReferences references = VariableReferences
+        .parse(Context.getCurrentContext(), "$join('ds.t:A', 'ID')", "test");
+    VariableReference reference = references.get("ds.t:A");
+    ValueTable context = createTable();
+
+    for(int i = 0; i < 3; i++) {
+      assertThat(reference.joinedValue(context, "1")).isEqualTo(IntegerType.get().valueOf(1));
+      assertThat(reference.joinedValue(context, "2")).isNull();
+    }
+    assertThat(table.valueSetReads).isEqualTo(1);
+    assertThat(table.timestampsReads).isEqualTo(1);
+
+    // the update is seen once the last update of the table is checked again
+    table.lastUpdate = new Date(table.lastUpdate.getTime() + 1);
+    Thread.sleep(VariableReferences.LAST_UPDATE_CHECK_INTERVAL_MILLIS + 10);
+    assertThat(reference.joinedValue(context, "1")).isEqualTo(IntegerType.get().valueOf(1));
+    assertThat(table.valueSetReads).isEqualTo(2);
+  }
+
+  @Test
+  public void test_joined_values_are_not_kept_without_last_update() {
+    UpdatableTable table = new UpdatableTable();
+    table.lastUpdate = null;
+    StaticDatasource datasource = new StaticDatasource("ds");
+    datasource.addValueTable(table);
+    MagmaEngine.get().addDatasource(datasource);
+
+    VariableReference reference = VariableReferences
+        .parse(Context.getCurrentContext(), "$join('ds.t:A', 'ID')", "test").get("ds.t:A");
+    ValueTable context = createTable();
+
+    for(int i = 0; i < 3; i++) {
+      assertThat(reference.joinedValue(context, "1")).isEqualTo(IntegerType.get().valueOf(1));
+    }
+    assertThat(table.valueSetReads).isEqualTo(3);
+  }
+
+  private StaticValueTable createTable() {
+    StaticValueTable table = new StaticValueTable(new StaticDatasource("other"), "t", ImmutableList.of("1"));
+    table.addVariables(IntegerType.get(), "A");
+    table.addValues("1", "A", 1);
+    return table;
+  }
+
+  private static class UpdatableTable extends StaticValueTable {
+
+    private Date lastUpdate = new Date();
+
+    private int valueSetReads;
+
+    private int timestampsReads;
+
+    private UpdatableTable() {
+      super(new StaticDatasource("other"), "t", ImmutableList.of("1"));
+      addVariables(IntegerType.get(), "A");
+      addValues("1", "A", 1);
+    }
+
+    @Override
+    public Timestamps getTimestamps() {
+      timestampsReads++;
+      return new TimestampsBean(DateTimeType.get().valueOf(lastUpdate), DateTimeType.get().valueOf(lastUpdate));
+    }
+
+    @Override
+    public ValueSet getValueSet(VariableEntity entity) {
+      valueSetReads++;
+      return super.getValueSet(entity);
+    }
+  }
+}
@@ -27,6 +27,27 @@ public class NumericMethodsTest extends AbstractJsTest {
     assertThat(result.getValue()).isEqualTo(IntegerType.get().valueOf(3));
   }
 
+  @Test
+  public void test_unboxed_operations_keep_decimal_semantics() {
+    // whole decimal results are integers
+    assertThat(evaluate("plus(newValue(1.5, 'decimal'))", DecimalType.get().valueOf(1.5)).getValue())
+        .isEqualTo(IntegerType.get().valueOf(3));
+    // javascript decimal numbers are read from their decimal representation
+    assertThat(evaluate("plus(0.1)", DecimalType.get().valueOf(0.2)).getValue())
+        .isEqualTo(DecimalType.get().valueOf(0.3));
+    assertThat(evaluate("plus(newValue(0.1, 'decimal'))", DecimalType.get().valueOf(0.2)).getValue())
+        .isEqualTo(DecimalType.get().valueOf(0.2 + 0.1));
+    assertThat(evaluate("div(2)", IntegerType.get().valueOf(8)).getValue()).isEqualTo(IntegerType.get().valueOf(4));
+    assertThat(evaluate("div(2)", IntegerType.get().valueOf(7)).getValue()).isEqualTo(DecimalType.get().valueOf(3.5));
+    assertThat(evaluate("div(0)", IntegerType.get().valueOf(7)).getValue()).isEqualTo(DecimalType.get().nullValue());
+    // overflowing integer results are decimals
+    assertThat(evaluate("multiply(3)", IntegerType.get().valueOf(Long.MAX_VALUE / 2)).getValue().getValueType())
+        .isEqualTo(DecimalType.get());
+    assertThat(evaluate("gt(0)", DecimalType.get().valueOf(0.1)).getValue()).isEqualTo(BooleanType.get().trueValue());
+    assertThat(evaluate("le(1, 2)", IntegerType.get().valueOf(1)).getValue())
+        .isEqualTo(BooleanType.get().trueValue());
+  }
+
   @Test
   public void test_integer_plus_integers() {
     ScriptableValue result = evaluate("plus(2,3,4)", IntegerType.get().valueOf(1));
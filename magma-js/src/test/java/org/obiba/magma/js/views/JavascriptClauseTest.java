@@ -1,15 +1,28 @@
 package org.obiba.magma.js.views;
 
+import java.util.List;
+import java.util.Set;
+import java.util.SortedSet;
+
 import org.junit.Test;
 import org.obiba.magma.Initialisable;
+import org.obiba.magma.Value;
 import org.obiba.magma.ValueSet;
 import org.obiba.magma.ValueTable;
 import org.obiba.magma.Variable;
 import org.obiba.magma.VariableEntity;
 import org.obiba.magma.js.AbstractJsTest;
+import org.obiba.magma.support.StaticDatasource;
+import org.obiba.magma.support.StaticValueTable;
+import org.obiba.magma.support.VariableEntityBean;
+import org.obiba.magma.type.IntegerType;
+import org.obiba.magma.type.TextType;
 import org.obiba.magma.views.SelectClause;
+import org.obiba.magma.views.View;
 import org.obiba.magma.views.WhereClause;
 
+import com.google.common.collect.Lists;
+
 import static org.easymock.EasyMock.createMock;
 import static org.easymock.EasyMock.expect;
 import static org.easymock.EasyMock.replay;
@@ -64,6 +77,17 @@ public class JavascriptClauseTest extends AbstractJsTest {
     clause.select(null);
   }
 
+  @Test
+  public void test_getCacheKey_isNullWhenScriptReadsOtherTables() {
+    JavascriptClause clause = new JavascriptClause("$('A').eq(1)");
+    clause.initialise();
+    assertThat(clause.getCacheKey()).isEqualTo("$('A').eq(1)");
+
+    clause = new JavascriptClause("$join('ds.t:A', 'B').eq(1)");
+    clause.initialise();
+    assertThat(clause.getCacheKey()).isNull();
+  }
+
   @Test(expected = IllegalArgumentException.class)
   public void test_select_throwsIllegalArgumentException() {
     JavascriptClause clause = new JavascriptClause("true");
@@ -120,6 +144,39 @@ public class JavascriptClauseTest extends AbstractJsTest {
     assertWhere("now()", false);
   }
 
+  @Test
+  public void test_view_entities_are_filtered_by_vector() {
+    List<String> identifiers = Lists.newArrayList();
+    for(int i = 0; i < 2500; i++) {
+      identifiers.add(String.format("%04d", i));
+    }
+    CountingTable table = new CountingTable(identifiers);
+    table.addVariables(IntegerType.get(), "AGE");
+    table.addVariables(TextType.get(), "SEX");
+    for(int i = 0; i < identifiers.size(); i++) {
+      table.addValues(identifiers.get(i), "AGE", i % 100, "SEX", i % 2 == 0 ? "F" : "M");
+    }
+    JavascriptClause clause = new JavascriptClause("$('AGE').ge(50).and($('SEX').eq('F'))");
+    View view = View.Builder.newView("view", table).where(clause).build();
+    view.initialise();
+
+    Set<VariableEntity> entities = view.getVariableEntities();
+
+    assertThat(entities).hasSize(625);
+    for(VariableEntity entity : entities) {
+      int i = Integer.parseInt(entity.getIdentifier());
+      assertThat(i % 100 >= 50 && i % 2 == 0).isTrue();
+    }
+    assertThat(table.valueSetReads).isEqualTo(0);
+    // both variables are read by blocks of entities
+    assertThat(table.matrixReads).isEqualTo(4);
+
+    // same selection as value set evaluation
+    VariableEntity selected = entities.iterator().next();
+    assertThat(clause.where(table.getValueSet(selected), view)).isTrue();
+    assertThat(clause.where(table.getValueSet(new VariableEntityBean("Participant", "0001")), view)).isFalse();
+  }
+
   private void assertSelect(String script, boolean expected) {
     JavascriptClause clause = new JavascriptClause(script);
     clause.initialise();
@@ -140,4 +197,35 @@ public class JavascriptClauseTest extends AbstractJsTest {
     assertThat(selected).isEqualTo(expected);
     verify(valueSetMock);
   }
+
+  private static class CountingTable extends StaticValueTable {
+
+    private int valueSetReads;
+
+    private int matrixReads;
+
+    private CountingTable(Iterable<String> entities) {
+      super(new StaticDatasource("ds"), "table", entities);
+    }
+
+    private boolean readingMatrix;
+
+    @Override
+    public ValueSet getValueSet(VariableEntity entity) {
+      // value sets read by the matrix of this (non vector) table are not counted
+      if(!readingMatrix) valueSetReads++;
+      return super.getValueSet(entity);
+    }
+
+    @Override
+    public Iterable<Value[]> getValueMatrix(List<Variable> variables, SortedSet<VariableEntity> entities) {
+      matrixReads++;
+      readingMatrix = true;
+      try {
+        return Lists.newArrayList(super.getValueMatrix(variables, entities));
+      } finally {
+        readingMatrix = false;
+      }
+    }
+  }
 }